@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import com.sun.jna.Memory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Per-call overhead of the native backends (Linux only), on a pipe so
+ * that the system calls are as cheap as they get. The "ffm" backend needs
+ * Java 22: run the benchmark there, with --enable-native-access. It lives
+ * in the library package since NativeIO isn't public.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+public class NativeBackendBenchmark {
+
+    @Param({"jna", "ffm"})
+    private String backend;
+
+    private NativeIO io;
+    private int readFd;
+    private int writeFd;
+    private ByteBuffer buffer;
+    private Memory memory;
+    private Memory pollFd;
+
+    @Setup
+    public void setUp() throws IOException {
+        io = NativeBackend.load(backend);
+        int[] fds = new int[2];
+        if (LibC.pipe(fds) != 0)
+            throw LibC.getLastException();
+        readFd = fds[0];
+        writeFd = fds[1];
+        buffer = ByteBuffer.allocateDirect(1);
+        memory = new Memory(4);
+        pollFd = new Memory(LibC.POLLFD_SIZE);
+        pollFd.setInt(0, readFd);
+        pollFd.setShort(4, LibC.POLLIN);
+    }
+
+    @TearDown
+    public void tearDown() {
+        LibC.close(readFd);
+        LibC.close(writeFd);
+    }
+
+    /* A byte written from a direct buffer, and read back in JNA memory. */
+    @Benchmark
+    public int writeRead() {
+        buffer.clear();
+        io.write(writeFd, buffer, 1);
+        return io.read(readFd, memory, 1);
+    }
+
+    /* What available() costs. */
+    @Benchmark
+    public int ioctl() {
+        io.ioctl(readFd, LibC.FIONREAD, memory);
+        return memory.getInt(0);
+    }
+
+    /* A readiness check without waiting, as the selector does. */
+    @Benchmark
+    public int poll() {
+        return io.poll(pollFd, 1, 0);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.benchmarks;
+
+import dk.thibaut.serial.SerialChannel;
+import dk.thibaut.serial.SerialPort;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * SerialChannel throughput: each operation writes a buffer and reads its
+ * echo, so the bytes per second in each direction are the score times
+ * the size. The gc profiler reports the bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelBenchmark {
+
+    @Param({"8", "256", "4096"})
+    private int size;
+
+    @Param({"heap", "direct"})
+    private String buffers;
+
+    @Param({"false", "true"})
+    private boolean polled;
+
+    /* A pseudo-terminal echoing the bytes (Linux only), or a loopback
+     * port connected to itself without wire timing. */
+    @Param({"pty", "loopback"})
+    private String transport;
+
+    private PtyEcho echo;
+    private SerialPort port;
+    private SerialChannel channel;
+    private ByteBuffer out;
+    private ByteBuffer in;
+    private ByteBuffer[] outs;
+    private ByteBuffer[] ins;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (transport.equals("pty")) {
+            echo = new PtyEcho();
+            port = echo.openPort();
+        } else {
+            port = SerialPort.open("loop:channel?timing=false");
+        }
+        port.setPolled(polled);
+        channel = port.getChannel();
+        out = buffers.equals("direct") ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        in = buffers.equals("direct") ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        outs = new ByteBuffer[] {out};
+        ins = new ByteBuffer[] {in};
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        port.close();
+        if (echo != null)
+            echo.close();
+    }
+
+    @Benchmark
+    public int writeRead() throws IOException {
+        out.clear();
+        in.clear();
+        channel.write(out);
+        while (in.hasRemaining())
+            channel.read(in);
+        return in.position();
+    }
+
+    @Benchmark
+    public long gatheringWriteScatteringRead() throws IOException {
+        out.clear();
+        in.clear();
+        channel.write(outs);
+        long total = 0;
+        while (in.hasRemaining())
+            total += channel.read(ins);
+        return total;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.benchmarks;
+
+import dk.thibaut.serial.framing.DelimiterCodec;
+import dk.thibaut.serial.framing.FrameReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Decoding of newline-delimited frames, with FrameReader, and with the
+ * usual InputStream loop reading a byte at a time. Bytes come from memory
+ * in chunks, like serial reads, so only the decoding is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    private static final int FRAMES = 64;
+    private static final byte DELIMITER = '\n';
+
+    @Param({"16", "256"})
+    private int frameLength;
+
+    /* Bytes returned by each read. */
+    @Param({"64"})
+    private int chunk;
+
+    private Replay replay;
+    private FrameReader reader;
+    private InputStream stream;
+    private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+
+    /* Reads the same bytes again and again, chunk by chunk. */
+    private static class Replay extends InputStream implements ReadableByteChannel {
+
+        private final byte[] data;
+        private final int chunk;
+        private int position;
+
+        Replay(byte[] data, int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        public int read(ByteBuffer dst) {
+            int n = Math.min(Math.min(dst.remaining(), chunk), data.length - position);
+            dst.put(data, position, n);
+            position = (position + n) % data.length;
+            return n;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(Math.min(len, chunk), data.length - position);
+            System.arraycopy(data, position, b, off, n);
+            position = (position + n) % data.length;
+            return n;
+        }
+
+        @Override
+        public int read() {
+            int value = data[position] & 0xFF;
+            position = (position + 1) % data.length;
+            return value;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        byte[] data = new byte[FRAMES * (frameLength + 1)];
+        Arrays.fill(data, (byte) 'a');
+        for (int i = frameLength; i < data.length; i += frameLength + 1)
+            data[i] = DELIMITER;
+        replay = new Replay(data, chunk);
+        reader = new FrameReader(replay, new DelimiterCodec(DELIMITER, frameLength), 4096);
+        stream = new BufferedInputStream(replay);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void frameReader(Blackhole blackhole) throws IOException {
+        for (int i = 0; i < FRAMES; i++)
+            blackhole.consume(reader.read());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void inputStream(Blackhole blackhole) throws IOException {
+        for (int i = 0; i < FRAMES; i++) {
+            frame.reset();
+            int b;
+            while ((b = stream.read()) != DELIMITER)
+                frame.write(b);
+            blackhole.consume(frame.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.benchmarks;
+
+import com.sun.jna.Library;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import dk.thibaut.serial.SerialPort;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/*
+ * A pseudo-terminal whose master side echoes back everything written on
+ * the slave, which is the port under test. Benchmarks run without any
+ * hardware nor virtual port driver, and unlike the VirtualNullModem of
+ * the tests, there is a single thread between the writes and the echo.
+ */
+class PtyEcho implements Closeable {
+
+    private interface Util extends Library {
+        int openpty(IntByReference master, IntByReference slave, Pointer name,
+                    Pointer termios, Pointer winsize);
+    }
+
+    /* Direct mapping, as the echo thread is part of the measured path. */
+    private static class C {
+        static {
+            Native.register(C.class, NativeLibrary.getInstance("c"));
+        }
+
+        static native int read(int fd, Pointer buffer, int count);
+        static native int write(int fd, Pointer buffer, int count);
+        static native int close(int fd);
+    }
+
+    private final int master;
+    private final int slave;
+    private final String name;
+    private final Thread thread;
+
+    PtyEcho() {
+        IntByReference masterRef = new IntByReference();
+        IntByReference slaveRef = new IntByReference();
+        Memory nameBuffer = new Memory(256);
+        if (loadUtil().openpty(masterRef, slaveRef, nameBuffer, null, null) != 0)
+            throw new IllegalStateException("openpty() failed: " + Native.getLastError());
+        master = masterRef.getValue();
+        slave = slaveRef.getValue();
+        name = nameBuffer.getString(0);
+        thread = new Thread(new Runnable() {
+            public void run() {
+                echo();
+            }
+        }, "PtyEcho");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static Util loadUtil() {
+        /* openpty() moved from libutil to libc in glibc 2.34. */
+        try {
+            return (Util) Native.loadLibrary("util", Util.class);
+        } catch (UnsatisfiedLinkError e) {
+            return (Util) Native.loadLibrary("c", Util.class);
+        }
+    }
+
+    /* Opens the slave side, configured raw like any port. */
+    SerialPort openPort() throws IOException {
+        return SerialPort.open(name);
+    }
+
+    private void echo() {
+        Memory buffer = new Memory(65536);
+        int n;
+        /* Reading the master fails once all the slave descriptors are closed. */
+        while ((n = C.read(master, buffer, (int) buffer.size())) > 0) {
+            for (int off = 0; off < n; ) {
+                int written = C.write(master, buffer.share(off), n - off);
+                if (written < 0)
+                    return;
+                off += written;
+            }
+        }
+    }
+
+    /* The port must be closed first. */
+    public void close() {
+        C.close(slave);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        C.close(master);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.benchmarks;
+
+import dk.thibaut.serial.ReadTimeouts;
+import dk.thibaut.serial.SerialChannel;
+import dk.thibaut.serial.SerialPort;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Request/response latency of small messages, for each way of waiting
+ * for the response. The throughput mode gives the transactions per
+ * second, the sample mode the latency percentiles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    @Param({"8"})
+    private int size;
+
+    @Param({"infinite", "lowLatency", "interval", "deadline", "polled"})
+    private String timeouts;
+
+    /* A pseudo-terminal echoing the bytes (Linux only), or a loopback
+     * port connected to itself without wire timing. */
+    @Param({"pty", "loopback"})
+    private String transport;
+
+    private PtyEcho echo;
+    private SerialPort port;
+    private SerialChannel channel;
+    private ByteBuffer request;
+    private ByteBuffer response;
+    private boolean deadline;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (transport.equals("pty")) {
+            echo = new PtyEcho();
+            port = echo.openPort();
+        } else {
+            port = SerialPort.open("loop:roundTrip?timing=false");
+        }
+        if (timeouts.equals("lowLatency"))
+            port.setReadTimeouts(ReadTimeouts.lowLatency(SerialPort.TIMEOUT_INFINITE));
+        else if (timeouts.equals("interval"))
+            port.setReadTimeouts(new ReadTimeouts(SerialPort.TIMEOUT_INFINITE, 10));
+        else if (timeouts.equals("polled"))
+            port.setPolled(true);
+        else
+            port.setTimeout(SerialPort.TIMEOUT_INFINITE);
+        channel = port.getChannel();
+        request = ByteBuffer.allocateDirect(size);
+        response = ByteBuffer.allocateDirect(size);
+        deadline = timeouts.equals("deadline");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        port.close();
+        if (echo != null)
+            echo.close();
+    }
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        request.clear();
+        response.clear();
+        channel.write(request);
+        if (deadline)
+            return channel.readFully(response, 1, TimeUnit.SECONDS);
+        while (response.hasRemaining())
+            channel.read(response);
+        return response.position();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.benchmarks;
+
+import dk.thibaut.serial.SerialPort;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Overhead of the port streams: a message is written and its echo read
+ * back, either a byte at a time, which is what SerialInputStream buffering
+ * and output coalescing are for, or as arrays. Compare with the
+ * ChannelBenchmark scores of the same size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamBenchmark {
+
+    @Param({"64"})
+    private int size;
+
+    /* The setOutputCoalescing() threshold, 0 to disable it. */
+    @Param({"0", "64"})
+    private int coalescing;
+
+    /* A pseudo-terminal echoing the bytes (Linux only), or a loopback
+     * port connected to itself without wire timing. */
+    @Param({"pty", "loopback"})
+    private String transport;
+
+    private PtyEcho echo;
+    private SerialPort port;
+    private InputStream in;
+    private OutputStream out;
+    private byte[] message;
+    private byte[] received;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (transport.equals("pty")) {
+            echo = new PtyEcho();
+            port = echo.openPort();
+        } else {
+            port = SerialPort.open("loop:stream?timing=false");
+        }
+        port.setOutputCoalescing(coalescing, 1);
+        in = port.getInputStream();
+        out = port.getOutputStream();
+        message = new byte[size];
+        received = new byte[size];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        port.close();
+        if (echo != null)
+            echo.close();
+    }
+
+    @Benchmark
+    public int bytes() throws IOException {
+        for (int i = 0; i < size; i++)
+            out.write(message[i]);
+        out.flush();
+        int sum = 0;
+        for (int i = 0; i < size; i++)
+            sum += in.read();
+        return sum;
+    }
+
+    @Benchmark
+    public int arrays() throws IOException {
+        out.write(message);
+        out.flush();
+        int total = 0;
+        while (total < size)
+            total += in.read(received, total, size - total);
+        return total;
+    }
+}
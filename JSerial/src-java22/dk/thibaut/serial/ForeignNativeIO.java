@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+import com.sun.jna.win32.W32APIOptions;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * The Foreign Function and Memory API backend.
+ * <p>
+ * Native functions are called through downcall method handles. Pointers
+ * are passed as 64-bit integers, the addresses of direct buffers and JNA
+ * memory, so that a call doesn't allocate any segment, and errno or
+ * GetLastError() is captured by the linker in a segment of the calling
+ * thread. Sizes (size_t, ssize_t) are 64-bit too, 32-bit JVMs use JNA.
+ */
+final class ForeignNativeIO extends NativeIO {
+
+    private final StructLayout stateLayout = Linker.Option.captureStateLayout();
+    private final long errorOffset;
+    private final ThreadLocal<CallState> state;
+
+    private MethodHandle read;
+    private MethodHandle write;
+    private MethodHandle readv;
+    private MethodHandle writev;
+    private MethodHandle poll;
+    private MethodHandle ioctl;
+
+    private MethodHandle nativeRead;
+    private MethodHandle nativeReadTimeout;
+    private MethodHandle nativeWrite;
+
+    ForeignNativeIO() {
+        if (ADDRESS.byteSize() != 8)
+            throw new UnsupportedOperationException("32-bit JVM");
+        Linker linker = Linker.nativeLinker();
+        String errorName = Platform.isWindows() ? "GetLastError" : "errno";
+        errorOffset = stateLayout.byteOffset(MemoryLayout.PathElement.groupElement(errorName));
+        state = ThreadLocal.withInitial(() -> new CallState(Arena.ofAuto().allocate(stateLayout)));
+        Linker.Option capture = Linker.Option.captureCallState(errorName);
+        if (Platform.isWindows()) {
+            /* The DLL is extracted and loaded by JNA, as for the other calls. */
+            NativeLibrary library = NativeLibrary.getInstance("JSerial", W32APIOptions.UNICODE_OPTIONS);
+            nativeRead = bind(linker, library, "NativeRead",
+                FunctionDescriptor.of(JAVA_INT, JAVA_LONG, JAVA_LONG, JAVA_INT, JAVA_LONG), capture);
+            nativeReadTimeout = bind(linker, library, "NativeReadTimeout",
+                FunctionDescriptor.of(JAVA_INT, JAVA_LONG, JAVA_LONG, JAVA_INT, JAVA_LONG, JAVA_INT), capture);
+            nativeWrite = bind(linker, library, "NativeWrite",
+                FunctionDescriptor.of(JAVA_INT, JAVA_LONG, JAVA_LONG, JAVA_INT), capture);
+        } else {
+            SymbolLookup libc = linker.defaultLookup();
+            read = bind(linker, libc, "read", FunctionDescriptor.of(JAVA_LONG, JAVA_INT, JAVA_LONG, JAVA_LONG), capture);
+            write = bind(linker, libc, "write", FunctionDescriptor.of(JAVA_LONG, JAVA_INT, JAVA_LONG, JAVA_LONG), capture);
+            readv = bind(linker, libc, "readv", FunctionDescriptor.of(JAVA_LONG, JAVA_INT, JAVA_LONG, JAVA_INT), capture);
+            writev = bind(linker, libc, "writev", FunctionDescriptor.of(JAVA_LONG, JAVA_INT, JAVA_LONG, JAVA_INT), capture);
+            poll = bind(linker, libc, "poll", FunctionDescriptor.of(JAVA_INT, JAVA_LONG, JAVA_LONG, JAVA_INT), capture);
+            ioctl = bind(linker, libc, "ioctl", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_LONG, JAVA_LONG),
+                capture, Linker.Option.firstVariadicArg(2));
+        }
+    }
+
+    private static MethodHandle bind(Linker linker, SymbolLookup lookup, String name,
+                                     FunctionDescriptor descriptor, Linker.Option... options) {
+        MemorySegment symbol = lookup.find(name)
+            .orElseThrow(() -> new UnsatisfiedLinkError("Native function not found: " + name));
+        return linker.downcallHandle(symbol, descriptor, options);
+    }
+
+    private static MethodHandle bind(Linker linker, NativeLibrary library, String name,
+                                     FunctionDescriptor descriptor, Linker.Option... options) {
+        MemorySegment symbol = MemorySegment.ofAddress(Pointer.nativeValue(library.getFunction(name)));
+        return linker.downcallHandle(symbol, descriptor, options);
+    }
+
+    private static long address(Pointer pointer) {
+        return Pointer.nativeValue(pointer);
+    }
+
+    /* The address at the position of a direct buffer. Wrapping the buffer
+     * in a segment allocates, so the base addresses of the last buffers used
+     * by the thread are kept: channels and streams reuse the same ones. */
+    private long address(ByteBuffer buffer) {
+        if (!buffer.isDirect())
+            throw new IllegalArgumentException("Heap buffers must be copied to native memory first");
+        CallState current = state.get();
+        for (int i = 0; i < CallState.BUFFERS; i++) {
+            if (current.buffers[i].get() == buffer)
+                return current.bases[i] + buffer.position();
+        }
+        int i = current.next;
+        current.next = (i + 1) % CallState.BUFFERS;
+        current.bases[i] = MemorySegment.ofBuffer(buffer).address() - buffer.position();
+        current.buffers[i] = new WeakReference<>(buffer);
+        return current.bases[i] + buffer.position();
+    }
+
+    /* Method handles only throw what the native function can't: a bug. */
+    private static AssertionError rethrow(Throwable t) {
+        if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        return new AssertionError(t);
+    }
+
+    String getName() {
+        return "ffm";
+    }
+
+    int lastError() {
+        return state.get().segment.get(JAVA_INT, errorOffset);
+    }
+
+    int read(int fd, ByteBuffer buffer, int count) {
+        return read(fd, address(buffer), count);
+    }
+
+    int read(int fd, Pointer buffer, int count) {
+        return read(fd, address(buffer), count);
+    }
+
+    private int read(int fd, long buffer, int count) {
+        try {
+            return (int) (long) read.invokeExact(state.get().segment, fd, buffer, (long) count);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    int write(int fd, ByteBuffer buffer, int count) {
+        return write(fd, address(buffer), count);
+    }
+
+    int write(int fd, Pointer buffer, int count) {
+        return write(fd, address(buffer), count);
+    }
+
+    private int write(int fd, long buffer, int count) {
+        try {
+            return (int) (long) write.invokeExact(state.get().segment, fd, buffer, (long) count);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    int readv(int fd, Pointer iov, int iovcnt) {
+        try {
+            return (int) (long) readv.invokeExact(state.get().segment, fd, address(iov), iovcnt);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    int writev(int fd, Pointer iov, int iovcnt) {
+        try {
+            return (int) (long) writev.invokeExact(state.get().segment, fd, address(iov), iovcnt);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    int poll(Pointer fds, int nfds, int timeout) {
+        try {
+            return (int) poll.invokeExact(state.get().segment, address(fds), (long) nfds, timeout);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    int ioctl(int fd, int request, Pointer arg) {
+        try {
+            /* The request is an unsigned long. */
+            return (int) ioctl.invokeExact(state.get().segment, fd, request & 0xFFFFFFFFL, address(arg));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    boolean nativeRead(Pointer handle, ByteBuffer buffer, int numberOfBytes, Pointer readBytes) {
+        return nativeRead(handle, address(buffer), numberOfBytes, readBytes);
+    }
+
+    boolean nativeRead(Pointer handle, Pointer buffer, int numberOfBytes, Pointer readBytes) {
+        return nativeRead(handle, address(buffer), numberOfBytes, readBytes);
+    }
+
+    private boolean nativeRead(Pointer handle, long buffer, int numberOfBytes, Pointer readBytes) {
+        try {
+            return (int) nativeRead.invokeExact(state.get().segment, address(handle), buffer,
+                numberOfBytes, address(readBytes)) != 0;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    boolean nativeReadTimeout(Pointer handle, ByteBuffer buffer, int numberOfBytes, Pointer readBytes, int timeout) {
+        return nativeReadTimeout(handle, address(buffer), numberOfBytes, readBytes, timeout);
+    }
+
+    boolean nativeReadTimeout(Pointer handle, Pointer buffer, int numberOfBytes, Pointer readBytes, int timeout) {
+        return nativeReadTimeout(handle, address(buffer), numberOfBytes, readBytes, timeout);
+    }
+
+    private boolean nativeReadTimeout(Pointer handle, long buffer, int numberOfBytes,
+                                      Pointer readBytes, int timeout) {
+        try {
+            return (int) nativeReadTimeout.invokeExact(state.get().segment, address(handle), buffer,
+                numberOfBytes, address(readBytes), timeout) != 0;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    boolean nativeWrite(Pointer handle, ByteBuffer buffer, int numberOfBytes) {
+        return nativeWrite(handle, address(buffer), numberOfBytes);
+    }
+
+    boolean nativeWrite(Pointer handle, Pointer buffer, int numberOfBytes) {
+        return nativeWrite(handle, address(buffer), numberOfBytes);
+    }
+
+    private boolean nativeWrite(Pointer handle, long buffer, int numberOfBytes) {
+        try {
+            return (int) nativeWrite.invokeExact(state.get().segment, address(handle), buffer, numberOfBytes) != 0;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /* What a thread needs to make calls, see address(ByteBuffer). */
+    private static final class CallState {
+        static final int BUFFERS = 4;
+
+        final MemorySegment segment;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final WeakReference<ByteBuffer>[] buffers = new WeakReference[BUFFERS];
+        final long[] bases = new long[BUFFERS];
+        int next;
+
+        CallState(MemorySegment segment) {
+            this.segment = segment;
+            Arrays.fill(buffers, new WeakReference<ByteBuffer>(null));
+        }
+    }
+}
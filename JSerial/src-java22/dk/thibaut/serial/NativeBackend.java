@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+/**
+ * Selects the backend of {@link NativeIO}.
+ * <p>
+ * This is the Java 22 version of the multi-release JAR: the native calls
+ * are bound with the Foreign Function and Memory API, unless the
+ * {@link #PROPERTY} system property is "jna", or the platform isn't
+ * supported by the native linker (32-bit JVMs), in which case JNA is used.
+ * Native access should be enabled with {@code --enable-native-access},
+ * to avoid the warning of the JDK.
+ */
+final class NativeBackend {
+
+    /**
+     * System property selecting the backend: "jna", or "ffm" (the default
+     * where it's available). A backend which isn't available is ignored.
+     */
+    static final String PROPERTY = "dk.thibaut.serial.backend";
+
+    private NativeBackend() {
+    }
+
+    static NativeIO load() {
+        if ("jna".equals(System.getProperty(PROPERTY)))
+            return new JnaNativeIO();
+        try {
+            return new ForeignNativeIO();
+        } catch (RuntimeException | LinkageError e) {
+            /* Unsupported platform, or native access denied. */
+            return new JnaNativeIO();
+        }
+    }
+
+    /* Creates a backend by name, to compare them. */
+    static NativeIO load(String name) {
+        switch (name) {
+            case "jna":
+                return new JnaNativeIO();
+            case "ffm":
+                return new ForeignNativeIO();
+            default:
+                throw new IllegalArgumentException("Unknown native backend: " + name);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The deadline reads built on {@link #read(ByteBuffer, long, TimeUnit)},
+ * the file transfers, and the metrics recording, common to all the platforms.
+ */
+abstract class AbstractSerialChannel implements SerialChannel {
+
+    /* Null unless the port metrics are enabled, so that the hot path
+     * only pays for a volatile read when they are disabled. */
+    private volatile SerialPortMetrics metrics;
+
+    /* The transmit queue size, when the port knows it. */
+    private volatile int transferChunk = FileTransfers.DEFAULT_CHUNK;
+    /* The buffer of transferTo(), allocated again when the chunk size changes. */
+    private final Object transferLock = new Object();
+    private ByteBuffer transferBuffer;
+
+    void setMetrics(SerialPortMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /* Must be called when the channel is closed: the metrics can still
+     * be read by their owner, but aren't published anymore. */
+    void closeMetrics() {
+        SerialPortMetrics current = metrics;
+        if (current != null)
+            current.unregister();
+    }
+
+    /* Returns the start time of a native call, 0 if it isn't measured. */
+    final long startCall() {
+        return metrics != null ? System.nanoTime() : 0;
+    }
+
+    final void readDone(long start, long readBytes) {
+        SerialPortMetrics current = metrics;
+        if (current != null && start != 0)
+            current.read(readBytes, System.nanoTime() - start);
+    }
+
+    final void writeDone(long start, long written) {
+        SerialPortMetrics current = metrics;
+        if (current != null && start != 0)
+            current.write(written, System.nanoTime() - start);
+    }
+
+    /* Counts a read which returned nothing, although it could wait for bytes. */
+    final void countTimeout(long readBytes, boolean couldWait) {
+        if (readBytes == 0 && couldWait) {
+            SerialPortMetrics current = metrics;
+            if (current != null)
+                current.timeout();
+        }
+    }
+
+    public int readFully(ByteBuffer dst, long timeout, TimeUnit unit) throws IOException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int total = 0;
+        long remaining = unit.toNanos(timeout);
+        do {
+            total += read(dst, Math.max(0, remaining), TimeUnit.NANOSECONDS);
+        } while (dst.hasRemaining() && (remaining = deadline - System.nanoTime()) > 0);
+        return total;
+    }
+
+    public int readUntil(ByteBuffer dst, byte delimiter, long timeout, TimeUnit unit) throws IOException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int start = dst.position();
+        int scanned = start;
+        long remaining = unit.toNanos(timeout);
+        do {
+            read(dst, Math.max(0, remaining), TimeUnit.NANOSECONDS);
+            for (; scanned < dst.position(); scanned++)
+                if (dst.get(scanned) == delimiter)
+                    return scanned + 1 - start;
+        } while (dst.hasRemaining() && (remaining = deadline - System.nanoTime()) > 0);
+        return -1;
+    }
+
+    void setTransferChunk(int transferChunk) {
+        this.transferChunk = transferChunk;
+    }
+
+    public long transferFrom(FileChannel src, long position, long count, TransferListener listener) throws IOException {
+        return FileTransfers.transferFrom(this, src, position, count, transferChunk, listener);
+    }
+
+    public long transferTo(FileChannel dst, long position, long count, TransferListener listener) throws IOException {
+        synchronized (transferLock) {
+            int chunk = transferChunk;
+            if (transferBuffer == null || transferBuffer.capacity() != chunk)
+                transferBuffer = ByteBuffer.allocateDirect(chunk);
+            return FileTransfers.transferTo(this, dst, position, count, transferBuffer, listener);
+        }
+    }
+
+    /* Converts a timeout to milliseconds for a native call, rounding up
+     * so that the call doesn't return before the deadline. */
+    static int toMillis(long nanos) {
+        if (nanos <= 0)
+            return 0;
+        return (int) Math.min(Integer.MAX_VALUE, (nanos + 999999) / 1000000);
+    }
+}
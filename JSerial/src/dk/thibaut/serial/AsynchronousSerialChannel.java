@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadPendingException;
+import java.nio.channels.WritePendingException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An asynchronous channel for a {@link SerialPort}.
+ * <p>
+ * This class implements {@link AsynchronousByteChannel}: read and write
+ * operations return immediately, and complete later by invoking a
+ * {@link CompletionHandler} or through a {@link Future}. At most one read
+ * and one write can be pending at the same time.
+ * <p>
+ * Operations are driven by an {@link AsynchronousSerialChannelGroup}, so
+ * no thread is blocked per port or per pending operation. Writes are
+ * performed by the group executor once the port can accept data, a
+ * write completes when all the buffer has been written.
+ * <p>
+ * Opening an asynchronous channel sets the port timeout to
+ * {@link SerialPort#TIMEOUT_IMMEDIATE}, you should not change it, nor use
+ * the port's synchronous channel or streams while the asynchronous
+ * channel is open.
+ */
+public class AsynchronousSerialChannel implements AsynchronousByteChannel {
+
+    private final SerialPort port;
+    private final SerialChannel channel;
+    private final AsynchronousSerialChannelGroup group;
+    private final SerialSelectionKey key;
+    private final Object lock = new Object();
+
+    private Operation read;
+    private Operation write;
+    private boolean closed;
+
+    private final Runnable readTask = new Runnable() {
+        public void run() {
+            perform(true);
+        }
+    };
+
+    private final Runnable writeTask = new Runnable() {
+        public void run() {
+            perform(false);
+        }
+    };
+
+    private static class Operation {
+        final ByteBuffer buffer;
+        final Object attachment;
+        final CompletionHandler<Integer, Object> handler;
+        boolean running;
+        int transferred;
+
+        @SuppressWarnings("unchecked")
+        Operation(ByteBuffer buffer, Object attachment, CompletionHandler<Integer, ?> handler) {
+            this.buffer = buffer;
+            this.attachment = attachment;
+            this.handler = (CompletionHandler<Integer, Object>) handler;
+        }
+    }
+
+    private AsynchronousSerialChannel(SerialPort port, AsynchronousSerialChannelGroup group) throws IOException {
+        this.port = port;
+        this.group = group;
+        this.channel = port.getChannel();
+        port.setTimeout(SerialPort.TIMEOUT_IMMEDIATE);
+        this.key = group.register(channel, this);
+    }
+
+    /**
+     * Opens an asynchronous channel in the default group.
+     *
+     * @param port An opened port.
+     * @return A new asynchronous channel.
+     * @throws IOException If the port is closed or can't be registered.
+     */
+    public static AsynchronousSerialChannel open(SerialPort port) throws IOException {
+        return open(port, AsynchronousSerialChannelGroup.getDefault());
+    }
+
+    /**
+     * Opens an asynchronous channel in the given group.
+     *
+     * @param port An opened port.
+     * @param group The group driving the operations of the channel.
+     * @return A new asynchronous channel.
+     * @throws IOException If the port is closed or can't be registered.
+     * @throws java.nio.channels.ShutdownChannelGroupException If the group is shut down.
+     */
+    public static AsynchronousSerialChannel open(SerialPort port, AsynchronousSerialChannelGroup group) throws IOException {
+        return new AsynchronousSerialChannel(port, group);
+    }
+
+    /**
+     * @return The port used by this channel.
+     */
+    public SerialPort getPort() {
+        return port;
+    }
+
+    /**
+     * Reads bytes into the given buffer.
+     * <p>
+     * The operation completes as soon as at least one byte has been read,
+     * with the number of bytes read.
+     */
+    public <A> void read(ByteBuffer dst, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        if (dst.isReadOnly())
+            throw new IllegalArgumentException("Read-only buffer");
+        submit(true, new Operation(dst, attachment, handler));
+    }
+
+    public Future<Integer> read(ByteBuffer dst) {
+        PendingResult result = new PendingResult();
+        read(dst, null, result);
+        return result;
+    }
+
+    /**
+     * Writes bytes from the given buffer.
+     * <p>
+     * The operation completes when all the remaining bytes have been written.
+     */
+    public <A> void write(ByteBuffer src, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        submit(false, new Operation(src, attachment, handler));
+    }
+
+    public Future<Integer> write(ByteBuffer src) {
+        PendingResult result = new PendingResult();
+        write(src, null, result);
+        return result;
+    }
+
+    public boolean isOpen() {
+        synchronized (lock) {
+            return !closed && channel.isOpen();
+        }
+    }
+
+    /**
+     * Closes the channel and its port.
+     * <p>
+     * Pending operations fail with an {@link AsynchronousCloseException}.
+     */
+    public void close() throws IOException {
+        Operation pendingRead;
+        Operation pendingWrite;
+        synchronized (lock) {
+            if (closed)
+                return;
+            closed = true;
+            pendingRead = read;
+            pendingWrite = write;
+            read = null;
+            write = null;
+        }
+        key.cancel();
+        try {
+            port.close();
+        } finally {
+            if (pendingRead != null)
+                fail(pendingRead, new AsynchronousCloseException());
+            if (pendingWrite != null)
+                fail(pendingWrite, new AsynchronousCloseException());
+        }
+    }
+
+    private void submit(boolean isRead, Operation operation) {
+        if (operation.handler == null)
+            throw new NullPointerException("handler");
+        synchronized (lock) {
+            if (closed || !channel.isOpen()) {
+                failLater(operation, new ClosedChannelException());
+                return;
+            }
+            if (isRead && read != null)
+                throw new ReadPendingException();
+            if (!isRead && write != null)
+                throw new WritePendingException();
+            if (!operation.buffer.hasRemaining()) {
+                completeLater(operation, 0);
+                return;
+            }
+            if (isRead)
+                read = operation;
+            else
+                write = operation;
+            updateInterest();
+        }
+    }
+
+    /* Called by the group thread when the channel is selected. */
+    void ready(int readyOps) {
+        synchronized (lock) {
+            if ((readyOps & SerialSelectionKey.OP_READ) != 0)
+                start(read, readTask);
+            if ((readyOps & SerialSelectionKey.OP_WRITE) != 0)
+                start(write, writeTask);
+            updateInterest();
+        }
+    }
+
+    private void start(Operation operation, Runnable task) {
+        if (operation == null || operation.running)
+            return;
+        operation.running = true;
+        try {
+            group.execute(task);
+        } catch (RuntimeException e) {
+            operation.running = false;
+        }
+    }
+
+    /* Only the operations waiting for the port are selected, those being
+     * performed by the executor are not, so they are dispatched once. */
+    private void updateInterest() {
+        int ops = 0;
+        if (read != null && !read.running)
+            ops |= SerialSelectionKey.OP_READ;
+        if (write != null && !write.running)
+            ops |= SerialSelectionKey.OP_WRITE;
+        try {
+            key.interestOps(ops);
+        } catch (CancelledKeyException e) {
+            /* The port was closed concurrently, the operations
+             * waiting for it would never be selected. */
+            if (read != null && !read.running) {
+                failLater(read, new AsynchronousCloseException());
+                read = null;
+            }
+            if (write != null && !write.running) {
+                failLater(write, new AsynchronousCloseException());
+                write = null;
+            }
+        }
+    }
+
+    private void perform(boolean isRead) {
+        Operation operation;
+        synchronized (lock) {
+            operation = isRead ? read : write;
+        }
+        if (operation == null)
+            return;
+        try {
+            int count = isRead ? channel.read(operation.buffer) : channel.write(operation.buffer);
+            operation.transferred += count;
+            synchronized (lock) {
+                if (operation != (isRead ? read : write))
+                    return;
+                if (operation.transferred == 0 || (!isRead && operation.buffer.hasRemaining())) {
+                    operation.running = false;
+                    updateInterest();
+                    return;
+                }
+                if (isRead)
+                    read = null;
+                else
+                    write = null;
+                updateInterest();
+            }
+            operation.handler.completed(operation.transferred, operation.attachment);
+        } catch (Throwable e) {
+            synchronized (lock) {
+                if (operation != (isRead ? read : write))
+                    return;
+                if (isRead)
+                    read = null;
+                else
+                    write = null;
+                updateInterest();
+            }
+            fail(operation, e);
+        }
+    }
+
+    private void completeLater(final Operation operation, final int result) {
+        group.execute(new Runnable() {
+            public void run() {
+                operation.handler.completed(result, operation.attachment);
+            }
+        });
+    }
+
+    private void failLater(final Operation operation, final Throwable error) {
+        group.execute(new Runnable() {
+            public void run() {
+                fail(operation, error);
+            }
+        });
+    }
+
+    private static void fail(Operation operation, Throwable error) {
+        operation.handler.failed(error, operation.attachment);
+    }
+
+    /**
+     * The {@link Future} returned by read and write methods.
+     * <p>
+     * Cancelling it doesn't cancel the operation, it only
+     * releases the threads waiting for it.
+     */
+    private static class PendingResult implements Future<Integer>, CompletionHandler<Integer, Object> {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Integer result;
+        private volatile Throwable error;
+        private volatile boolean cancelled;
+
+        public void completed(Integer result, Object attachment) {
+            this.result = result;
+            done.countDown();
+        }
+
+        public void failed(Throwable error, Object attachment) {
+            this.error = error;
+            done.countDown();
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (isDone())
+                return false;
+            cancelled = true;
+            done.countDown();
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        public Integer get() throws InterruptedException, ExecutionException {
+            done.await();
+            return getResult();
+        }
+
+        public Integer get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit))
+                throw new TimeoutException();
+            return getResult();
+        }
+
+        private Integer getResult() throws ExecutionException {
+            if (cancelled)
+                throw new CancellationException();
+            if (error != null)
+                throw new ExecutionException(error);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ShutdownChannelGroupException;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of {@link AsynchronousSerialChannel} sharing their threads.
+ * <p>
+ * A group has a single thread waiting for all its channels using a
+ * {@link SerialSelector}, and an {@link ExecutorService} to perform the
+ * I/O operations and invoke completion handlers. Thousands of pending
+ * operations only need these threads.
+ * <p>
+ * Channels opened without a group use a default group, whose executor
+ * is a fixed pool of daemon threads, one per available processor. If the
+ * default group stops after a selector failure, channels opened afterwards
+ * use a new one.
+ */
+public class AsynchronousSerialChannelGroup {
+
+    private static AsynchronousSerialChannelGroup defaultGroup;
+
+    private final SerialSelector selector;
+    private final ExecutorService executor;
+    private final Thread thread;
+    private volatile boolean shutdown;
+
+    private AsynchronousSerialChannelGroup(ExecutorService executor) throws IOException {
+        this.executor = executor;
+        this.selector = SerialSelector.open();
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, "AsynchronousSerialChannelGroup");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Creates a group using the given executor.
+     *
+     * @param executor The executor used to perform I/O operations and invoke
+     *     completion handlers. It is shut down with the group.
+     * @return A new group.
+     * @throws IOException If the selector can't be opened.
+     */
+    public static AsynchronousSerialChannelGroup withThreadPool(ExecutorService executor) throws IOException {
+        if (executor == null)
+            throw new NullPointerException();
+        return new AsynchronousSerialChannelGroup(executor);
+    }
+
+    static synchronized AsynchronousSerialChannelGroup getDefault() throws IOException {
+        if (defaultGroup == null || defaultGroup.isShutdown()) {
+            final AtomicInteger count = new AtomicInteger();
+            defaultGroup = new AsynchronousSerialChannelGroup(Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                            "AsynchronousSerialChannelGroup-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }));
+        }
+        return defaultGroup;
+    }
+
+    /**
+     * Shuts down the group.
+     * <p>
+     * The selecting thread stops and the executor is shut down. Channels of
+     * this group should be closed before, their pending operations will
+     * never complete.
+     */
+    public void shutdown() {
+        if (shutdown)
+            return;
+        shutdown = true;
+        selector.wakeup();
+        executor.shutdown();
+    }
+
+    /**
+     * @return True if the group has been shut down.
+     */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Waits until the group is terminated, after a call to {@link #shutdown()}.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The time unit of the timeout.
+     * @return True if the group terminated, false on timeout.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        thread.join(Math.max(1, unit.toMillis(timeout)));
+        if (thread.isAlive())
+            return false;
+        return executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    SerialSelectionKey register(SerialChannel channel, AsynchronousSerialChannel owner) throws IOException {
+        if (shutdown)
+            throw new ShutdownChannelGroupException();
+        return selector.register(channel, 0, owner);
+    }
+
+    void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            throw new ShutdownChannelGroupException();
+        }
+    }
+
+    private void dispatch() {
+        try {
+            while (!shutdown) {
+                selector.select();
+                Iterator<SerialSelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SerialSelectionKey key = iterator.next();
+                    iterator.remove();
+                    try {
+                        if (key.isValid())
+                            ((AsynchronousSerialChannel) key.attachment()).ready(key.readyOps());
+                    } catch (CancelledKeyException e) {
+                        /* Closed since select() returned, the channel fails
+                         * its pending operations itself. */
+                    } catch (RuntimeException e) {
+                        /* Only this channel is affected, the others
+                         * must still be dispatched. */
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            /* The selector is broken, nothing can be completed anymore. */
+        } finally {
+            shutdown();
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
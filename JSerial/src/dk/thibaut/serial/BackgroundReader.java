@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Continuously reads a port from a dedicated thread, so that received
+ * bytes are not lost when the application doesn't read fast enough.
+ * <p>
+ * Bytes are stored in an off-heap ring buffer, with a single producer (the
+ * reader thread) and a single consumer (the application): no lock is used,
+ * the producer and the consumer only share two counters. The reader thread
+ * reads directly into the ring memory. When the ring is full, received
+ * bytes are dropped and counted by {@link #getOverflowCount()}, the
+ * capacity should be chosen using {@link #getHighWaterMark()}.
+ * <p>
+ * Instances are created using {@link SerialPort#startBackgroundReader(int)}.
+ * Once started, the port must only be read using this object, which has its
+ * own timeout. Reads from several threads must be synchronized externally.
+ */
+public class BackgroundReader implements ReadableByteChannel {
+
+    /* Bytes dropped on overflow are read in this much memory. */
+    private static final int DISCARD_SIZE = 4096;
+
+    private final SerialPort port;
+    private final SerialChannel channel;
+    private final Thread thread;
+    private final int capacity;
+    private final int mask;
+
+    private final ByteBuffer ring;
+    private final ByteBuffer producerView;
+    private final ByteBuffer consumerView;
+    private final ByteBuffer discard;
+
+    /* Total bytes written by the producer and read by the consumer, the
+     * difference is the number of bytes available in the ring. */
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    private volatile Thread waiter;
+    private volatile boolean running = true;
+    private volatile IOException failure;
+    private volatile int timeout = SerialPort.TIMEOUT_INFINITE;
+    private volatile long highWaterMark;
+    private volatile long overflowCount;
+
+    private final boolean wasPolled;
+    private final ReadTimeouts previousTimeouts;
+
+    BackgroundReader(SerialPort port, int capacity) throws IOException {
+        if (capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        this.port = port;
+        this.channel = port.getChannel();
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        this.capacity = size;
+        this.mask = this.capacity - 1;
+        this.ring = ByteBuffer.allocateDirect(this.capacity);
+        this.producerView = ring.duplicate();
+        this.consumerView = ring.duplicate();
+        this.discard = ByteBuffer.allocateDirect(Math.min(DISCARD_SIZE, this.capacity));
+
+        /* In polled mode, the reader thread doesn't block in a native call,
+         * closing the port or stopping the reader releases it. */
+        wasPolled = port.isPolled();
+        previousTimeouts = port.getReadTimeouts();
+        port.setPolled(true);
+        port.setTimeout(SerialPort.TIMEOUT_INFINITE);
+
+        thread = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "SerialReader " + port.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void drain() {
+        long tail = this.tail.get();
+        try {
+            while (running) {
+                int free = capacity - (int) (tail - head.get());
+                if (free == 0) {
+                    discard.clear();
+                    int count = channel.read(discard);
+                    if (count < 0)
+                        break;
+                    overflowCount += count;
+                    continue;
+                }
+                int index = (int) tail & mask;
+                producerView.limit(index + Math.min(free, capacity - index));
+                producerView.position(index);
+                int count = channel.read(producerView);
+                if (count < 0)
+                    break;
+                if (count == 0)
+                    continue;
+                tail += count;
+                /* A volatile write, not a lazy one: it must be visible
+                 * before the waiter is read, see read(). */
+                this.tail.set(tail);
+                long used = tail - head.get();
+                if (used > highWaterMark)
+                    highWaterMark = used;
+                Thread waiting = waiter;
+                if (waiting != null)
+                    LockSupport.unpark(waiting);
+            }
+        } catch (IOException e) {
+            if (running)
+                failure = e;
+        } finally {
+            running = false;
+            Thread waiting = waiter;
+            if (waiting != null)
+                LockSupport.unpark(waiting);
+        }
+    }
+
+    /**
+     * Read the bytes received by the reader thread.
+     * <p>
+     * The timeout set by {@link #setTimeout(int)} is used to wait for the
+     * first byte, then all the available bytes are returned.
+     *
+     * @param dst The buffer to fill.
+     * @return The number of bytes read, 0 if the timeout expired.
+     * @throws ClosedChannelException If the reader is stopped and no bytes are left.
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     * @throws IOException The error which stopped the reader thread, if any.
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining())
+            return 0;
+        long head = this.head.get();
+        long deadline = SerialPoller.deadline(timeout);
+        long tail;
+        while ((tail = this.tail.get()) == head) {
+            if (!running) {
+                IOException e = failure;
+                throw e != null ? e : new ClosedChannelException();
+            }
+            if (timeout == SerialPort.TIMEOUT_IMMEDIATE)
+                return 0;
+            waiter = Thread.currentThread();
+            if (this.tail.get() == head && running) {
+                if (deadline == 0) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        waiter = null;
+                        return 0;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+            waiter = null;
+            if (Thread.currentThread().isInterrupted())
+                throw new InterruptedIOException();
+        }
+
+        int count = (int) Math.min(dst.remaining(), tail - head);
+        int index = (int) head & mask;
+        int first = Math.min(count, capacity - index);
+        consumerView.limit(index + first);
+        consumerView.position(index);
+        dst.put(consumerView);
+        if (first < count) {
+            consumerView.limit(count - first);
+            consumerView.position(0);
+            dst.put(consumerView);
+        }
+        this.head.lazySet(head + count);
+        return count;
+    }
+
+    /**
+     * @return The number of bytes which can be read without waiting.
+     */
+    public int available() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * @return The size of the ring buffer, the requested capacity rounded
+     *      up to a power of two.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The largest number of bytes stored in the ring buffer.
+     */
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * @return The number of bytes dropped because the ring buffer was full.
+     */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    /**
+     * Sets the timeout of {@link #read(ByteBuffer)}, with the same
+     * values as {@link SerialPort#setTimeout(int)}.
+     *
+     * @param timeout The timeout value, in milliseconds.
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return True while the reader thread is running, or bytes are left.
+     */
+    public boolean isOpen() {
+        return running || available() > 0;
+    }
+
+    /**
+     * Stops the reader thread, and restores the port timeout and I/O mode.
+     * <p>
+     * The port itself isn't closed, and can be read directly again. The bytes
+     * left in the ring buffer can still be read from this object.
+     *
+     * @throws IOException If the port settings can't be restored.
+     */
+    public void close() throws IOException {
+        port.stopBackgroundReader(this);
+    }
+
+    void stop() throws IOException {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (port.isOpen()) {
+            port.setReadTimeouts(previousTimeouts);
+            port.setPolled(wasPolled);
+        }
+    }
+}
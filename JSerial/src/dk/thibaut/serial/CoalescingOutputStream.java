@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An {@link OutputStream} batching small writes into a direct buffer,
+ * so that chatty code writing byte by byte doesn't do one native
+ * call per byte.
+ * <p>
+ * Buffered bytes are written to the channel when the buffer is full, when
+ * {@link #flush()} is called, or when the linger time has passed since the
+ * first byte of the batch was written: the added latency is bounded by the
+ * linger time (plus the scheduling delay of a shared timer thread). Writes
+ * larger than the buffer are done directly.
+ * <p>
+ * With a threshold of 0, nothing is buffered and each write is done immediately,
+ * this is how streams returned by {@link SerialPort#getOutputStream()} behave
+ * until {@link SerialPort#setOutputCoalescing(int, int)} is called.
+ * <p>
+ * An error occurring while flushing from the timer thread is thrown by the
+ * next call to the stream.
+ */
+public class CoalescingOutputStream extends OutputStream {
+
+    private static ScheduledExecutorService timer;
+
+    private final WritableByteChannel channel;
+    /* Not synchronized, it would pin virtual threads while writing. */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ByteBuffer single = ByteBuffer.allocateDirect(1);
+    private final Runnable lingerTask = new Runnable() {
+        public void run() {
+            linger();
+        }
+    };
+
+    private ByteBuffer buffer;
+    private int lingerMillis;
+    private ScheduledFuture<?> scheduled;
+    private IOException failure;
+
+    /**
+     * Creates a stream which doesn't buffer anything.
+     *
+     * @param channel The channel to write to.
+     */
+    public CoalescingOutputStream(WritableByteChannel channel) {
+        this(channel, 0, 0);
+    }
+
+    /**
+     * @param channel The channel to write to.
+     * @param threshold The buffer size, written when full. 0 disables buffering.
+     * @param lingerMillis The maximum time bytes stay in the buffer. With 0,
+     *      bytes are only buffered during a single write call.
+     */
+    public CoalescingOutputStream(WritableByteChannel channel, int threshold, int lingerMillis) {
+        checkSettings(threshold, lingerMillis);
+        this.channel = channel;
+        this.buffer = threshold > 0 ? ByteBuffer.allocateDirect(threshold) : null;
+        this.lingerMillis = lingerMillis;
+    }
+
+    private static void checkSettings(int threshold, int lingerMillis) {
+        if (threshold < 0)
+            throw new IllegalArgumentException("Invalid threshold: " + threshold);
+        if (lingerMillis < 0)
+            throw new IllegalArgumentException("Invalid linger time: " + lingerMillis);
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SerialOutputLinger");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            timer = executor;
+        }
+        return timer;
+    }
+
+    /**
+     * Change the buffering settings, buffered bytes are written first.
+     *
+     * @param threshold The buffer size, written when full. 0 disables buffering.
+     * @param lingerMillis The maximum time bytes stay in the buffer.
+     * @throws IOException If an error occurs while writing the buffered bytes.
+     */
+    public void setCoalescing(int threshold, int lingerMillis) throws IOException {
+        checkSettings(threshold, lingerMillis);
+        lock.lock();
+        try {
+            checkFailure();
+            flushBuffer();
+            if (buffer == null || buffer.capacity() != threshold)
+                buffer = threshold > 0 ? ByteBuffer.allocateDirect(threshold) : null;
+            this.lingerMillis = lingerMillis;
+            /* The buffer is empty, a timer scheduled with the previous linger
+             * time would otherwise delay the next batch. */
+            if (scheduled != null) {
+                scheduled.cancel(false);
+                scheduled = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        lock.lock();
+        try {
+            checkFailure();
+            if (buffer == null) {
+                single.clear();
+                single.put((byte) b).flip();
+                writeFully(single);
+            } else {
+                buffer.put((byte) b);
+                buffered();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+        lock.lock();
+        try {
+            checkFailure();
+            if (buffer == null || len >= buffer.capacity()) {
+                flushBuffer();
+                writeFully(ByteBuffer.wrap(b, off, len));
+                return;
+            }
+            while (len > 0) {
+                int count = Math.min(len, buffer.remaining());
+                buffer.put(b, off, count);
+                off += count;
+                len -= count;
+                if (!buffer.hasRemaining())
+                    flushBuffer();
+            }
+            buffered();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            checkFailure();
+            flushBuffer();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write the buffered bytes, and close the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            flushBuffer();
+        } finally {
+            lock.unlock();
+            channel.close();
+        }
+    }
+
+    /**
+     * @return The number of bytes waiting in the buffer.
+     */
+    public int getBufferedCount() {
+        lock.lock();
+        try {
+            return buffer != null ? buffer.position() : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Called with the lock held, after bytes were added to the buffer. */
+    private void buffered() throws IOException {
+        if (buffer.position() == 0)
+            return;
+        if (lingerMillis == 0 || !buffer.hasRemaining()) {
+            flushBuffer();
+        } else if (scheduled == null) {
+            /* A timer scheduled for a previous batch, already flushed, also
+             * flushes this one: earlier than needed, which is allowed. */
+            scheduled = getTimer().schedule(lingerTask, lingerMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void linger() {
+        lock.lock();
+        try {
+            scheduled = null;
+            flushBuffer();
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Called with the lock held. */
+    private void flushBuffer() throws IOException {
+        if (buffer == null || buffer.position() == 0)
+            return;
+        buffer.flip();
+        try {
+            writeFully(buffer);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining())
+            channel.write(src);
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            failure = null;
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The file transfers of {@link SerialChannel}, for its implementations.
+ * <p>
+ * Applications should call {@link SerialChannel#transferFrom} and
+ * {@link SerialChannel#transferTo}, which use the chunk size of the port.
+ * Other channels (such as decorators) can implement these methods with
+ * this class, as they go through the channel reads and writes.
+ */
+public final class FileTransfers {
+
+    /**
+     * The chunk size when the driver transmit queue size isn't known, the
+     * size of the Linux tty output buffer.
+     */
+    public static final int DEFAULT_CHUNK = 4096;
+
+    /* The file is mapped by windows of this size, to bound the address
+     * space used by a large transfer. */
+    private static final int MAP_WINDOW = 16 * 1024 * 1024;
+
+    /* Delay between two checks of a full transmit queue, in nanoseconds. */
+    private static final long DRAIN_DELAY = 1000000L;
+
+    private FileTransfers() {
+    }
+
+    /**
+     * Writes a region of a file to a channel.
+     * <p>
+     * The file is memory-mapped, and the mapped buffers are written to the
+     * channel, so the bytes are passed to the native write calls without
+     * being copied. Each write is at most a chunk. When a non-blocking
+     * channel writes nothing, the transfer waits for its transmit queue to
+     * drain before trying again.
+     *
+     * @param channel The channel to write to.
+     * @param src The file to read, opened for reading.
+     * @param position The position of the region in the file.
+     * @param count The maximum number of bytes to transfer.
+     * @param chunk The maximum number of bytes per write.
+     * @param listener Called after each chunk, or null.
+     * @return The number of bytes transferred, less than count if the
+     *      file ends before.
+     * @throws IOException If an error occurs while mapping or writing.
+     * @throws InterruptedIOException If the thread is interrupted while
+     *      waiting for the transmit queue to drain.
+     */
+    public static long transferFrom(SerialChannel channel, FileChannel src, long position, long count,
+                                    int chunk, TransferListener listener) throws IOException {
+        checkArguments(position, count, chunk);
+        long size = src.size();
+        if (position >= size)
+            return 0;
+        long total = Math.min(count, size - position);
+        long transferred = 0;
+        while (transferred < total) {
+            int windowSize = (int) Math.min(total - transferred, MAP_WINDOW);
+            MappedByteBuffer window = src.map(FileChannel.MapMode.READ_ONLY, position + transferred, windowSize);
+            while (window.position() < windowSize) {
+                int start = window.position();
+                window.limit(Math.min(windowSize, start + chunk));
+                while (window.hasRemaining()) {
+                    if (channel.write(window) == 0)
+                        awaitDrain(channel);
+                }
+                transferred += window.position() - start;
+                if (listener != null)
+                    listener.transferred(transferred, total);
+            }
+        }
+        return transferred;
+    }
+
+    /**
+     * Writes the bytes received by a channel to a file.
+     * <p>
+     * Unlike {@link #transferFrom}, the bytes are copied once: each read
+     * fills the given buffer with at most a chunk, which is then written at
+     * its position in the file. With a direct buffer, the bytes don't go
+     * through the Java heap, and channels keep one to reuse it for every
+     * transfer. The transfer stops when count bytes were received, or when
+     * a read returns nothing, as it does when the port timeout expires.
+     *
+     * @param channel The channel to read from.
+     * @param dst The file to write, opened for writing.
+     * @param position The position in the file of the first byte.
+     * @param count The maximum number of bytes to transfer.
+     * @param buffer The buffer to read into, whose capacity is the chunk
+     *      size. Its content, position and limit are overwritten.
+     * @param listener Called after each chunk, or null.
+     * @return The number of bytes transferred.
+     * @throws IOException If an error occurs while reading or writing.
+     */
+    public static long transferTo(SerialChannel channel, FileChannel dst, long position, long count,
+                                  ByteBuffer buffer, TransferListener listener) throws IOException {
+        checkArguments(position, count, buffer.capacity());
+        long transferred = 0;
+        while (transferred < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+            if (channel.read(buffer) <= 0)
+                break;
+            buffer.flip();
+            while (buffer.hasRemaining())
+                dst.write(buffer, position + transferred + buffer.position());
+            transferred += buffer.limit();
+            if (listener != null)
+                listener.transferred(transferred, count);
+        }
+        return transferred;
+    }
+
+    /* Waits until some of the pending output is transmitted, or for a
+     * delay when the channel doesn't report any. */
+    private static void awaitDrain(SerialChannel channel) throws IOException {
+        int pending = channel.pendingOutput();
+        do {
+            LockSupport.parkNanos(DRAIN_DELAY);
+            if (Thread.currentThread().isInterrupted())
+                throw new InterruptedIOException();
+        } while (pending > 0 && channel.pendingOutput() >= pending);
+    }
+
+    private static void checkArguments(long position, long count, int chunk) {
+        if (position < 0 || count < 0)
+            throw new IllegalArgumentException("Invalid file region: " + position + ", " + count);
+        if (chunk <= 0)
+            throw new IllegalArgumentException("Invalid chunk size: " + chunk);
+    }
+}
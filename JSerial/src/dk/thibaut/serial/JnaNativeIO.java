@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The JNA backend, using the direct mappings of {@link LibC}
+ * and {@link SerialPortWindows}.
+ */
+final class JnaNativeIO extends NativeIO {
+
+    String getName() {
+        return "jna";
+    }
+
+    int lastError() {
+        return Native.getLastError();
+    }
+
+    int read(int fd, ByteBuffer buffer, int count) {
+        return LibC.read(fd, buffer, count);
+    }
+
+    int read(int fd, Pointer buffer, int count) {
+        return LibC.read(fd, buffer, count);
+    }
+
+    int write(int fd, ByteBuffer buffer, int count) {
+        return LibC.write(fd, buffer, count);
+    }
+
+    int write(int fd, Pointer buffer, int count) {
+        return LibC.write(fd, buffer, count);
+    }
+
+    int readv(int fd, Pointer iov, int iovcnt) {
+        return LibC.readv(fd, iov, iovcnt);
+    }
+
+    int writev(int fd, Pointer iov, int iovcnt) {
+        return LibC.writev(fd, iov, iovcnt);
+    }
+
+    int poll(Pointer fds, int nfds, int timeout) {
+        return LibC.poll(fds, nfds, timeout);
+    }
+
+    int ioctl(int fd, int request, Pointer arg) {
+        return LibC.ioctl(fd, request, arg);
+    }
+
+    boolean nativeRead(Pointer handle, ByteBuffer buffer, int numberOfBytes, Pointer readBytes) {
+        return SerialPortWindows.NativeRead(handle, buffer, numberOfBytes, readBytes);
+    }
+
+    boolean nativeRead(Pointer handle, Pointer buffer, int numberOfBytes, Pointer readBytes) {
+        return SerialPortWindows.NativeRead(handle, buffer, numberOfBytes, readBytes);
+    }
+
+    boolean nativeReadTimeout(Pointer handle, ByteBuffer buffer, int numberOfBytes, Pointer readBytes, int timeout) {
+        return SerialPortWindows.NativeReadTimeout(handle, buffer, numberOfBytes, readBytes, timeout);
+    }
+
+    boolean nativeReadTimeout(Pointer handle, Pointer buffer, int numberOfBytes, Pointer readBytes, int timeout) {
+        return SerialPortWindows.NativeReadTimeout(handle, buffer, numberOfBytes, readBytes, timeout);
+    }
+
+    boolean nativeWrite(Pointer handle, ByteBuffer buffer, int numberOfBytes) {
+        return SerialPortWindows.NativeWrite(handle, buffer, numberOfBytes);
+    }
+
+    boolean nativeWrite(Pointer handle, Pointer buffer, int numberOfBytes) {
+        return SerialPortWindows.NativeWrite(handle, buffer, numberOfBytes);
+    }
+}
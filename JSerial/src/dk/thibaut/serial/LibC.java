@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import com.sun.jna.ptr.IntByReference;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Direct mapping of the few libc functions used by the POSIX backend.
+ * <p>
+ * Constants are the Linux (x86, x86-64 and ARM) values. Sizes (size_t,
+ * ssize_t) are mapped to int: we never transfer more than 2GB at once
+ * and libffi extends the value to the register width.
+ */
+final class LibC {
+
+    static {
+        Native.register(LibC.class, NativeLibrary.getInstance("c"));
+    }
+
+    static final int O_RDWR = 0x2;
+    static final int O_NOCTTY = 0x100;
+    static final int O_NONBLOCK = 0x800;
+
+    static final int F_GETFL = 3;
+    static final int F_SETFL = 4;
+
+    static final int EINTR = 4;
+    static final int EAGAIN = 11;
+    static final int ENOTTY = 25;
+    static final int EINVAL = 22;
+
+    static final int TCSANOW = 0;
+    static final int TCIFLUSH = 0;
+    static final int TCOFLUSH = 1;
+    static final int TCIOFLUSH = 2;
+
+    static final int CSIZE = 0x30;
+    static final int CS5 = 0x0;
+    static final int CS6 = 0x10;
+    static final int CS7 = 0x20;
+    static final int CS8 = 0x30;
+    static final int CSTOPB = 0x40;
+    static final int CREAD = 0x80;
+    static final int PARENB = 0x100;
+    static final int PARODD = 0x200;
+    static final int CLOCAL = 0x800;
+    static final int CMSPAR = 0x40000000;
+    static final int CRTSCTS = 0x80000000;
+    static final int CBAUD = 0010017;
+    static final int BOTHER = 0010000;
+    /** Input speed bits, CBAUD shifted by IBSHIFT (16). */
+    static final int CIBAUD = CBAUD << 16;
+
+    static final int IGNBRK = 0x1;
+    static final int BRKINT = 0x2;
+    static final int PARMRK = 0x8;
+    static final int INPCK = 0x10;
+    static final int ISTRIP = 0x20;
+    static final int INLCR = 0x40;
+    static final int IGNCR = 0x80;
+    static final int ICRNL = 0x100;
+    static final int IXON = 0x400;
+    static final int IXANY = 0x800;
+    static final int IXOFF = 0x1000;
+
+    static final int OPOST = 0x1;
+
+    static final int ISIG = 0x1;
+    static final int ICANON = 0x2;
+    static final int ECHO = 0x8;
+    static final int ECHONL = 0x40;
+    static final int IEXTEN = 0x8000;
+
+    static final int VTIME = 5;
+    static final int VMIN = 6;
+
+    static final int TIOCEXCL = 0x540C;
+    static final int TIOCMGET = 0x5415;
+    static final int TIOCMBIS = 0x5416;
+    static final int TIOCMBIC = 0x5417;
+
+    static final int TIOCGICOUNT = 0x545D;
+
+    static final int FIONREAD = 0x541B;
+    static final int TIOCOUTQ = 0x5411;
+
+    /* struct termios2: the glibc struct termios can't hold speeds
+     * outside of the Bxxx constants, the kernel one can with BOTHER.
+     * Its c_cc has 19 entries, so the speeds follow at offset 36. */
+    static final int TCGETS2 = 0x802C542A;
+    static final int TCSETS2 = 0x402C542B;
+    static final int TERMIOS2_SIZE = 44;
+    static final int TERMIOS2_IFLAG_OFFSET = 0;
+    static final int TERMIOS2_CFLAG_OFFSET = 8;
+    static final int TERMIOS2_ISPEED_OFFSET = 36;
+    static final int TERMIOS2_OSPEED_OFFSET = 40;
+
+    static final int TIOCGSERIAL = 0x541E;
+    static final int TIOCSSERIAL = 0x541F;
+    static final int ASYNC_LOW_LATENCY = 1 << 13;
+    /** Offset of flags in struct serial_struct, its size is 72 bytes on 64-bit. */
+    static final int SERIAL_FLAGS_OFFSET = 16;
+    static final int SERIAL_STRUCT_SIZE = 72;
+
+    static final int TIOCM_DTR = 0x002;
+    static final int TIOCM_RTS = 0x004;
+    static final int TIOCM_CTS = 0x020;
+    static final int TIOCM_CAR = 0x040;
+    static final int TIOCM_RNG = 0x080;
+    static final int TIOCM_DSR = 0x100;
+
+    /** Size of a struct serial_icounter_struct: 20 ints. */
+    static final int ICOUNTER_SIZE = 80;
+    /* Offsets of the line errors counters in serial_icounter_struct. */
+    static final int ICOUNTER_FRAME = 24;
+    static final int ICOUNTER_OVERRUN = 28;
+    static final int ICOUNTER_PARITY = 32;
+    static final int ICOUNTER_BRK = 36;
+    static final int ICOUNTER_BUF_OVERRUN = 40;
+
+    static final short POLLIN = 0x1;
+    static final short POLLOUT = 0x4;
+    static final short POLLERR = 0x8;
+    static final short POLLHUP = 0x10;
+    static final short POLLNVAL = 0x20;
+
+    /** Size of a struct pollfd: int fd, short events, short revents. */
+    static final int POLLFD_SIZE = 8;
+
+    /** Size of a struct iovec: void* base, size_t len. */
+    static final int IOVEC_SIZE = Pointer.SIZE * 2;
+
+    static final int IOV_MAX = 1024;
+
+    /** Maps termios speed constants (index) to baudrates (value). */
+    private static final int[][] SPEEDS = {
+        {0000015, 9600}, {0000016, 19200}, {0000017, 38400},
+        {0010001, 57600}, {0010002, 115200}, {0010003, 230400},
+        {0010004, 460800}, {0010005, 500000}, {0010006, 576000},
+        {0010007, 921600}, {0010010, 1000000}, {0010011, 1152000},
+        {0010012, 1500000}, {0010013, 2000000}, {0010014, 2500000},
+        {0010015, 3000000}, {0010016, 3500000}, {0010017, 4000000}
+    };
+
+    /**
+     * The glibc struct termios, NCCS is 32 on Linux.
+     */
+    public static class Termios extends Structure {
+        public int c_iflag;
+        public int c_oflag;
+        public int c_cflag;
+        public int c_lflag;
+        public byte c_line;
+        public byte[] c_cc = new byte[32];
+        public int c_ispeed;
+        public int c_ospeed;
+
+        @Override
+        protected List<String> getFieldOrder() {
+            return Arrays.asList("c_iflag", "c_oflag", "c_cflag", "c_lflag",
+                "c_line", "c_cc", "c_ispeed", "c_ospeed");
+        }
+    }
+
+    private LibC() {
+    }
+
+    static int baudRateToSpeed(int baudRate) {
+        for (int[] s : SPEEDS)
+            if (s[1] == baudRate)
+                return s[0];
+        return -1;
+    }
+
+    static SerialException getLastException() {
+        return getException(Native.getLastError());
+    }
+
+    static SerialException getException(int error) {
+        return new SerialException(error, strerror(error));
+    }
+
+    native static int open(String path, int flags);
+    native static int close(int fd);
+    native static int read(int fd, ByteBuffer buffer, int count);
+    native static int read(int fd, Pointer buffer, int count);
+    native static int write(int fd, ByteBuffer buffer, int count);
+    native static int write(int fd, Pointer buffer, int count);
+    native static int readv(int fd, Pointer iov, int iovcnt);
+    native static int writev(int fd, Pointer iov, int iovcnt);
+    native static int fcntl(int fd, int cmd, int arg);
+    native static int ioctl(int fd, int request, IntByReference arg);
+    native static int ioctl(int fd, int request, Pointer arg);
+    native static int ioctl(int fd, int request, int[] arg);
+    native static int pipe(int[] fds);
+    native static int poll(Pointer fds, int nfds, int timeout);
+    native static int tcgetattr(int fd, Termios termios);
+    native static int tcsetattr(int fd, int actions, Termios termios);
+    native static int tcflush(int fd, int queue);
+    native static int cfgetospeed(Termios termios);
+    native static int cfsetispeed(Termios termios, int speed);
+    native static int cfsetospeed(Termios termios, int speed);
+    native static String strerror(int error);
+}
@@ -0,0 +1,597 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import dk.thibaut.serial.enums.FlowControl;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Random;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One direction of a loopback wire: the transmit queue of the sending port
+ * and the receive queue of the receiving port.
+ * <p>
+ * No thread moves the bytes: whoever looks at the line first delivers
+ * the bytes which had the time to cross the wire, one character time
+ * after the other, to the receive queue. The character time comes from
+ * the configuration of the sender.
+ * <p>
+ * Waiting threads park on a {@link Condition}, which doesn't pin the
+ * carrier of a virtual thread, whether the port is polled or not.
+ */
+final class LoopbackLine {
+
+    static final int DEFAULT_QUEUE_SIZE = 4096;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    /* Bytes written and not received yet, the first one being
+     * on the wire since wireStart. */
+    private final Queue transmit = new Queue(DEFAULT_QUEUE_SIZE);
+    private final Queue receive = new Queue(DEFAULT_QUEUE_SIZE);
+    private long wireStart;
+
+    /* Set by the sender. */
+    private long byteNanos;
+    private int dataMask = 0xff;
+    private FlowControl senderFlow = FlowControl.NONE;
+    private SerialChannelLoopback sender;
+
+    /* Set by the receiver, bytes are lost while nobody receives them. */
+    private FlowControl receiverFlow = FlowControl.NONE;
+    private SerialChannelLoopback receiver;
+    private boolean timed = true;
+    private double dropRate;
+    private double errorRate;
+    private Random random;
+
+    private int framingErrors;
+    private int overruns;
+    private int modemEvents;
+
+    void attachReceiver(SerialChannelLoopback channel, boolean timed,
+                        double dropRate, double errorRate, long seed) {
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            receive.clear();
+            receiver = channel;
+            this.timed = timed;
+            this.dropRate = dropRate;
+            this.errorRate = errorRate;
+            random = new Random(seed);
+            framingErrors = 0;
+            overruns = 0;
+            signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void detachReceiver() {
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            receive.clear();
+            receiver = null;
+            receiverFlow = FlowControl.NONE;
+            signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* The bytes already written keep crossing the wire once the sender
+     * is detached, and the receiver sees its modem lines drop. */
+    void attachSender(SerialChannelLoopback channel) {
+        lock.lock();
+        try {
+            sender = channel;
+            modemEvents++;
+            signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void detachSender() {
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            sender = null;
+            modemEvents++;
+            signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setSenderConfig(long byteNanos, int dataMask, FlowControl flow) {
+        lock.lock();
+        try {
+            /* Bytes already on the wire keep their timing. */
+            long now = System.nanoTime();
+            advance(now);
+            this.byteNanos = byteNanos;
+            this.dataMask = dataMask;
+            senderFlow = flow;
+            if (transmit.count > 0)
+                wireStart = now;
+            signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setReceiverFlow(FlowControl flow) {
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            receiverFlow = flow;
+            signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setTransmitSize(int size) {
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            transmit.resize(size);
+            signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setReceiveSize(int size) {
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            receive.resize(size);
+            signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the received bytes.
+     *
+     * @param timeout The total timeout in nanoseconds, negative to wait
+     *      indefinitely, 0 to return immediately.
+     * @param interval The interval timeout in nanoseconds, 0 to return as
+     *      soon as bytes are read, negative to fill the buffers.
+     */
+    int receive(ByteBuffer dst, long timeout, long interval, SerialChannelLoopback channel)
+            throws ClosedChannelException, InterruptedIOException {
+        return (int) receive(dst, null, 0, 0, timeout, interval, channel);
+    }
+
+    long receive(ByteBuffer[] dsts, int offset, int length, long timeout, long interval,
+                 SerialChannelLoopback channel) throws ClosedChannelException, InterruptedIOException {
+        return receive(null, dsts, offset, length, timeout, interval, channel);
+    }
+
+    /* Either dst or dsts is null, the lock is released while waiting. */
+    private long receive(ByteBuffer dst, ByteBuffer[] dsts, int offset, int length, long timeout,
+                         long interval, SerialChannelLoopback channel)
+            throws ClosedChannelException, InterruptedIOException {
+        lock.lock();
+        try {
+            long start = System.nanoTime();
+            long last = start;
+            long total = 0;
+            while (true) {
+                if (!channel.isOpen()) {
+                    if (total > 0)
+                        return total;
+                    throw new ClosedChannelException();
+                }
+                long now = System.nanoTime();
+                advance(now);
+                int count = 0;
+                if (dst != null)
+                    count = receive.get(dst, Math.min(dst.remaining(), receive.count));
+                for (int i = offset; i < offset + length && receive.count > 0; i++)
+                    count += receive.get(dsts[i], Math.min(dsts[i].remaining(), receive.count));
+                if (count > 0) {
+                    total += count;
+                    last = now;
+                    signal();
+                }
+                if (timeout == 0 || remaining(dst, dsts, offset, length) == 0)
+                    return total;
+                if (total > 0 && interval == 0)
+                    return total;
+                long wait = untilArrival(now);
+                if (timeout > 0) {
+                    long remaining = start + timeout - now;
+                    if (remaining <= 0)
+                        return total;
+                    wait = Math.min(wait, remaining);
+                }
+                if (total > 0 && interval > 0) {
+                    long silence = last + interval - now;
+                    if (silence <= 0)
+                        return total;
+                    wait = Math.min(wait, silence);
+                }
+                await(wait);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int transmit(ByteBuffer src, SerialChannelLoopback channel)
+            throws ClosedChannelException, InterruptedIOException {
+        return (int) transmit(src, null, 0, 0, channel);
+    }
+
+    long transmit(ByteBuffer[] srcs, int offset, int length, SerialChannelLoopback channel)
+            throws ClosedChannelException, InterruptedIOException {
+        return transmit(null, srcs, offset, length, channel);
+    }
+
+    /* Like a driver, returns once everything is in the transmit queue. */
+    private long transmit(ByteBuffer src, ByteBuffer[] srcs, int offset, int length,
+                          SerialChannelLoopback channel) throws ClosedChannelException, InterruptedIOException {
+        lock.lock();
+        try {
+            long total = 0;
+            while (true) {
+                if (!channel.isOpen())
+                    throw new ClosedChannelException();
+                long now = System.nanoTime();
+                advance(now);
+                if (transmit.count == 0)
+                    wireStart = now;
+                int count = 0;
+                if (src != null)
+                    count = transmit.put(src, Math.min(src.remaining(), transmit.room()));
+                for (int i = offset; i < offset + length && transmit.room() > 0; i++)
+                    count += transmit.put(srcs[i], Math.min(srcs[i].remaining(), transmit.room()));
+                if (count > 0) {
+                    total += count;
+                    signal();
+                }
+                long remaining = remaining(src, srcs, offset, length);
+                if (remaining == 0)
+                    return total;
+                await(untilArrival(Math.min(remaining, transmit.capacity() / 4) - transmit.room(), now));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int available() {
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            return receive.count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int pendingOutput() {
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            return transmit.count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isWritable() {
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            return transmit.room() > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* The time until the next byte is received, Long.MAX_VALUE if
+     * no byte is expected without a change of the line. */
+    long untilArrival() {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            advance(now);
+            return untilArrival(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clearReceived() {
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            receive.clear();
+            signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clearTransmitted() {
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            transmit.clear();
+            signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Called when a modem line of the sender changed. */
+    void modemChanged() {
+        lock.lock();
+        try {
+            modemEvents++;
+            signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Changes whenever a modem line or an error counter changes. */
+    int getModemEvents() {
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            return modemEvents & Integer.MAX_VALUE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getFramingErrors() {
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            return framingErrors;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getOverruns() {
+        lock.lock();
+        try {
+            advance(System.nanoTime());
+            return overruns;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Moves the bytes which crossed the wire to the receive queue. */
+    private void advance(long now) {
+        boolean delivered = false;
+        while (transmit.count > 0) {
+            if (isStalled()) {
+                wireStart = now;
+                break;
+            }
+            long nanos = timed ? byteNanos : 0;
+            int arrived = transmit.count;
+            if (nanos > 0) {
+                long elapsed = now - wireStart;
+                if (elapsed < nanos)
+                    break;
+                arrived = (int) Math.min(arrived, elapsed / nanos);
+            }
+            if (isFlowControlled())
+                arrived = Math.min(arrived, receive.room());
+            wireStart += arrived * nanos;
+            deliver(arrived);
+            delivered = true;
+        }
+        /* Deliveries only depend on time, selectors already
+         * wait for them, see untilArrival(). */
+        if (delivered)
+            changed.signalAll();
+    }
+
+    private void deliver(int count) {
+        if (receiver == null) {
+            transmit.skip(count);
+            return;
+        }
+        if (dropRate == 0 && errorRate == 0 && dataMask == 0xff) {
+            int accepted = Math.min(count, receive.room());
+            transmit.moveTo(receive, accepted);
+            if (accepted < count) {
+                transmit.skip(count - accepted);
+                overruns += count - accepted;
+                modemEvents++;
+            }
+            return;
+        }
+        /* A byte with a framing error is received as 0, as Linux does. */
+        for (int i = 0; i < count; i++) {
+            byte b = transmit.take();
+            if (dropRate > 0 && random.nextDouble() < dropRate)
+                continue;
+            if (errorRate > 0 && random.nextDouble() < errorRate) {
+                b = 0;
+                framingErrors++;
+                modemEvents++;
+            }
+            if (receive.room() == 0) {
+                overruns++;
+                modemEvents++;
+                continue;
+            }
+            receive.add((byte) (b & dataMask));
+        }
+    }
+
+    /* Both ends must use the same flow control for the
+     * receiver to hold the sender. */
+    private boolean isFlowControlled() {
+        return receiver != null && senderFlow != FlowControl.NONE && senderFlow == receiverFlow;
+    }
+
+    private boolean isStalled() {
+        return isFlowControlled() && receive.room() == 0;
+    }
+
+    private long untilArrival(long now) {
+        return untilArrival(1, now);
+    }
+
+    /* Waiting for each character would leave little time to the reader
+     * at high baud rates, writers waiting for room wait for several. */
+    private long untilArrival(long count, long now) {
+        if (transmit.count == 0 || isStalled())
+            return Long.MAX_VALUE;
+        count = Math.max(1, Math.min(count, transmit.count));
+        return Math.max(1, wireStart + (timed ? count * byteNanos : 0) - now);
+    }
+
+    private static long remaining(ByteBuffer buffer, ByteBuffer[] buffers, int offset, int length) {
+        return buffer != null ? buffer.remaining() : ScratchMemory.remaining(buffers, offset, length);
+    }
+
+    private void await(long nanos) throws InterruptedIOException {
+        try {
+            if (nanos == Long.MAX_VALUE)
+                changed.await();
+            else
+                changed.awaitNanos(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /* Wakes up the threads and the selectors waiting for this line. */
+    private void signal() {
+        changed.signalAll();
+        if (sender != null)
+            sender.wakeupSelectors();
+        if (receiver != null && receiver != sender)
+            receiver.wakeupSelectors();
+    }
+
+    /* A bounded FIFO of bytes. */
+    private static final class Queue {
+        private byte[] data;
+        private int head;
+        int count;
+
+        Queue(int size) {
+            data = new byte[size];
+        }
+
+        int capacity() {
+            return data.length;
+        }
+
+        int room() {
+            return data.length - count;
+        }
+
+        int put(ByteBuffer src, int length) {
+            int done = 0;
+            while (done < length) {
+                int tail = (head + count) % data.length;
+                int run = Math.min(length - done, data.length - tail);
+                src.get(data, tail, run);
+                count += run;
+                done += run;
+            }
+            return length;
+        }
+
+        int get(ByteBuffer dst, int length) {
+            int done = 0;
+            while (done < length) {
+                int run = Math.min(length - done, data.length - head);
+                dst.put(data, head, run);
+                skip(run);
+                done += run;
+            }
+            return length;
+        }
+
+        void moveTo(Queue other, int length) {
+            int done = 0;
+            while (done < length) {
+                int tail = (other.head + other.count) % other.data.length;
+                int run = Math.min(Math.min(length - done, data.length - head), other.data.length - tail);
+                System.arraycopy(data, head, other.data, tail, run);
+                other.count += run;
+                skip(run);
+                done += run;
+            }
+        }
+
+        byte take() {
+            byte b = data[head];
+            skip(1);
+            return b;
+        }
+
+        void add(byte b) {
+            data[(head + count) % data.length] = b;
+            count++;
+        }
+
+        void skip(int length) {
+            head = (head + length) % data.length;
+            count -= length;
+        }
+
+        void clear() {
+            head = 0;
+            count = 0;
+        }
+
+        /* Keeps the oldest bytes which fit in the new size. */
+        void resize(int size) {
+            byte[] resized = new byte[size];
+            int kept = Math.min(count, size);
+            for (int i = 0; i < kept; i++)
+                resized[i] = data[(head + i) % data.length];
+            data = resized;
+            head = 0;
+            count = kept;
+        }
+    }
+}
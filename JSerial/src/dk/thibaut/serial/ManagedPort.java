@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A port opened and kept open by a {@link SerialPortManager}.
+ * <p>
+ * The underlying {@link SerialPort} is replaced each time the port is
+ * opened again, so it should only be used through this class. Received
+ * bytes are given to the {@link ManagedPortHandler} of the port, and
+ * {@link #write(ByteBuffer)} can be called from any thread, including
+ * the handler.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class ManagedPort {
+
+    private final SerialPortManager manager;
+    private final SerialPortManager.Worker worker;
+    private final String name;
+    private final ManagedPortHandler handler;
+
+    /* Written under the lock of this object, so that a configuration set
+     * while the port is being opened isn't lost. */
+    private volatile SerialConfig config;
+    private volatile SerialPort port;
+    private volatile boolean closed;
+
+    private final AtomicLong bytesSent = new AtomicLong();
+    /* Only written by the I/O thread. */
+    volatile long bytesReceived;
+    volatile long reconnects;
+    volatile long failures;
+    volatile IOException lastFailure;
+
+    /* State of the I/O thread. */
+    SerialChannel channel;
+    SerialSelectionKey key;
+    boolean up;
+    boolean everConnected;
+    int backoff;
+    long nextAttempt;
+    int emptyReads;
+
+    ManagedPort(SerialPortManager manager, SerialPortManager.Worker worker, String name,
+                SerialConfig config, ManagedPortHandler handler) {
+        this.manager = manager;
+        this.worker = worker;
+        this.name = name;
+        this.config = config;
+        this.handler = handler;
+    }
+
+    /**
+     * @return The name the port is opened with.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The manager of this port.
+     */
+    public SerialPortManager getManager() {
+        return manager;
+    }
+
+    ManagedPortHandler getHandler() {
+        return handler;
+    }
+
+    SerialPortManager.Worker getWorker() {
+        return worker;
+    }
+
+    /**
+     * @return True if the port is currently opened.
+     */
+    public boolean isConnected() {
+        return port != null;
+    }
+
+    /**
+     * Returns the port currently opened, to use the modem lines for example.
+     * <p>
+     * It must not be read from, closed, nor have its timeouts changed, and its
+     * configuration should be set with {@link #setConfig(SerialConfig)} instead,
+     * to be kept when the port is opened again.
+     *
+     * @return The port, or {@code null} if it's not connected.
+     */
+    public SerialPort getPort() {
+        return port;
+    }
+
+    void setPort(SerialPort port) {
+        this.port = port;
+    }
+
+    /**
+     * @return The configuration applied each time the port is opened,
+     *     {@code null} to keep the one of the system.
+     */
+    public SerialConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Changes the configuration of the port, and keeps it for
+     * the next times it's opened.
+     *
+     * @param config The new configuration.
+     * @throws IOException If the port is connected and the
+     *     configuration can't be applied, it's then not kept.
+     */
+    public synchronized void setConfig(SerialConfig config) throws IOException {
+        if (config == null)
+            throw new NullPointerException();
+        SerialPort current = port;
+        if (current != null)
+            current.setConfig(config);
+        this.config = config;
+    }
+
+    /**
+     * Writes bytes to the port.
+     * <p>
+     * The write blocks until the bytes are queued by the driver. If it fails,
+     * the port is considered lost and is opened again.
+     *
+     * @param src The bytes to write.
+     * @return The number of bytes written.
+     * @throws ClosedChannelException If the port is not connected.
+     * @throws IOException If the write failed.
+     */
+    public int write(ByteBuffer src) throws IOException {
+        SerialPort current = port;
+        if (current == null)
+            throw new ClosedChannelException();
+        try {
+            int n = current.getChannel().write(src);
+            bytesSent.addAndGet(n);
+            return n;
+        } catch (IOException e) {
+            worker.failLater(this, current, e);
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of bytes received since the port was added.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return The number of bytes written since the port was added.
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * @return The number of times the port was opened again after being lost.
+     */
+    public long getReconnectCount() {
+        return reconnects;
+    }
+
+    /**
+     * @return The number of errors which closed the port, including
+     *     the failed attempts to open it.
+     */
+    public long getFailureCount() {
+        return failures;
+    }
+
+    /**
+     * @return The last error which closed the port or prevented
+     *     to open it, {@code null} if none.
+     */
+    public IOException getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * @return True if the port was removed from its manager.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Removes the port from its manager and closes it. The handler isn't
+     * called anymore once the I/O thread has processed the removal.
+     */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        manager.remove(this);
+    }
+
+    @Override
+    public String toString() {
+        return "ManagedPort[" + name + (isConnected() ? ", connected]" : ", disconnected]");
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the data and the connection changes of a {@link ManagedPort}.
+ * <p>
+ * Handlers are called from the I/O thread of the {@link SerialPortManager}
+ * owning the port, never concurrently for a given port. As this thread
+ * serves many other ports, handlers must not block: long processing
+ * should be handed over to another thread. Exceptions thrown by a handler
+ * are counted in {@link ManagerHealth#getHandlerErrors()} and ignored.
+ */
+public interface ManagedPortHandler {
+
+    /**
+     * Called when the port has been opened and configured, the first
+     * time and after each reconnection.
+     *
+     * @param port The managed port.
+     */
+    void connected(ManagedPort port);
+
+    /**
+     * Called with the bytes received on the port.
+     *
+     * @param port The managed port.
+     * @param data The bytes received, between the position and the limit.
+     *     The buffer is reused once the handler returns, it must be
+     *     copied to be kept.
+     */
+    void dataReceived(ManagedPort port, ByteBuffer data);
+
+    /**
+     * Called when the port was lost, typically because its USB adapter
+     * was unplugged. The manager tries to open it again.
+     *
+     * @param port The managed port.
+     * @param cause The error which closed the port.
+     */
+    void disconnected(ManagedPort port, IOException cause);
+}
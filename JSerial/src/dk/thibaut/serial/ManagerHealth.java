@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+/**
+ * A snapshot of the state of the ports of a {@link SerialPortManager}.
+ * <p>
+ * Counters are totals over the ports currently managed, they are
+ * not synchronized together: a snapshot taken while ports are busy
+ * may be slightly inconsistent.
+ */
+public final class ManagerHealth {
+
+    private final int ports;
+    private final int connected;
+    private final long reconnects;
+    private final long failures;
+    private final long bytesReceived;
+    private final long bytesSent;
+    private final long handlerErrors;
+
+    ManagerHealth(int ports, int connected, long reconnects, long failures,
+                  long bytesReceived, long bytesSent, long handlerErrors) {
+        this.ports = ports;
+        this.connected = connected;
+        this.reconnects = reconnects;
+        this.failures = failures;
+        this.bytesReceived = bytesReceived;
+        this.bytesSent = bytesSent;
+        this.handlerErrors = handlerErrors;
+    }
+
+    /**
+     * @return The number of managed ports.
+     */
+    public int getPorts() {
+        return ports;
+    }
+
+    /**
+     * @return The number of ports currently opened.
+     */
+    public int getConnected() {
+        return connected;
+    }
+
+    /**
+     * @return The number of ports waiting to be opened again.
+     */
+    public int getDisconnected() {
+        return ports - connected;
+    }
+
+    /**
+     * @return The number of times ports were opened again after being lost.
+     */
+    public long getReconnects() {
+        return reconnects;
+    }
+
+    /**
+     * @return The number of errors which closed a port, including the
+     *     failed attempts to open it.
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return The number of bytes received on all ports.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return The number of bytes written on all ports.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return The number of exceptions thrown by the handlers.
+     */
+    public long getHandlerErrors() {
+        return handlerErrors;
+    }
+
+    @Override
+    public String toString() {
+        return "ManagerHealth[ports=" + ports + ", connected=" + connected
+            + ", reconnects=" + reconnects + ", failures=" + failures
+            + ", received=" + bytesReceived + ", sent=" + bytesSent
+            + ", handlerErrors=" + handlerErrors + "]";
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+/**
+ * Receives the modem lines changes and line events of a {@link SerialPort}.
+ * <p>
+ * Listeners are registered with {@link SerialPort#addModemLineListener(ModemLineListener)}.
+ * A single thread watches all the ports and another one calls the listeners,
+ * so a listener shouldn't block for long, as it delays the events of other
+ * ports.
+ * <p>
+ * On Windows, the watcher waits for WaitCommEvent(). On Linux, TIOCMIWAIT
+ * would need a thread per port, so the lines and the TIOCGICOUNT counters
+ * are checked every {@link SerialSelector#MODEM_POLL_INTERVAL} milliseconds.
+ */
+public interface ModemLineListener {
+
+    /** The CTS (Clear To Send) line changed. */
+    int CTS = 1;
+    /** The DSR (Data Set Ready) line changed. */
+    int DSR = 2;
+    /** The RI (Ring Indicator) line changed. */
+    int RI = 4;
+    /** The DCD (Data Carrier Detect) line changed. */
+    int DCD = 8;
+    /** A break was received. */
+    int BREAK = 16;
+    /** A framing, parity or overrun error happened. */
+    int ERROR = 32;
+
+    /**
+     * Called when the modem status of a port changed.
+     *
+     * @param port The port.
+     * @param events A combination of {@link #CTS}, {@link #DSR}, {@link #RI},
+     *      {@link #DCD}, {@link #BREAK} and {@link #ERROR}.
+     * @param status The new modem status.
+     */
+    void modemLinesChanged(SerialPort port, int events, ModemStatus status);
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+/**
+ * A snapshot of the modem lines of a port, returned by
+ * {@link SerialPort#getModemStatus()}.
+ * <p>
+ * Besides the state of the input lines, it has the number of breaks and
+ * line errors (framing, parity, overrun) received since the port was
+ * opened, when the driver counts them. Instances are immutable.
+ */
+public final class ModemStatus {
+
+    private final int lines;
+    private final int breakCount;
+    private final int framingErrorCount;
+    private final int overrunCount;
+    private final int parityErrorCount;
+
+    /**
+     * @param lines A combination of {@link ModemLineListener#CTS}, {@link ModemLineListener#DSR},
+     *      {@link ModemLineListener#RI} and {@link ModemLineListener#DCD}.
+     */
+    ModemStatus(int lines, int breakCount, int framingErrorCount, int overrunCount, int parityErrorCount) {
+        this.lines = lines;
+        this.breakCount = breakCount;
+        this.framingErrorCount = framingErrorCount;
+        this.overrunCount = overrunCount;
+        this.parityErrorCount = parityErrorCount;
+    }
+
+    public boolean isCts() {
+        return (lines & ModemLineListener.CTS) != 0;
+    }
+
+    public boolean isDsr() {
+        return (lines & ModemLineListener.DSR) != 0;
+    }
+
+    public boolean isRi() {
+        return (lines & ModemLineListener.RI) != 0;
+    }
+
+    public boolean isDcd() {
+        return (lines & ModemLineListener.DCD) != 0;
+    }
+
+    public int getBreakCount() {
+        return breakCount;
+    }
+
+    /** @return The number of line errors, whatever their kind. */
+    public int getErrorCount() {
+        return framingErrorCount + overrunCount + parityErrorCount;
+    }
+
+    public int getFramingErrorCount() {
+        return framingErrorCount;
+    }
+
+    /** @return The number of bytes lost because the hardware or the driver buffer was full. */
+    public int getOverrunCount() {
+        return overrunCount;
+    }
+
+    public int getParityErrorCount() {
+        return parityErrorCount;
+    }
+
+    /**
+     * Compares this status with an older one.
+     *
+     * @param previous The older status.
+     * @return The events between both, as in {@link ModemLineListener#modemLinesChanged}.
+     */
+    public int changes(ModemStatus previous) {
+        int events = lines ^ previous.lines;
+        if (breakCount != previous.breakCount)
+            events |= ModemLineListener.BREAK;
+        if (getErrorCount() != previous.getErrorCount())
+            events |= ModemLineListener.ERROR;
+        return events;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ModemStatus))
+            return false;
+        ModemStatus other = (ModemStatus) o;
+        return lines == other.lines && breakCount == other.breakCount
+            && framingErrorCount == other.framingErrorCount && overrunCount == other.overrunCount
+            && parityErrorCount == other.parityErrorCount;
+    }
+
+    @Override
+    public int hashCode() {
+        return (lines * 31 + breakCount) * 31 + getErrorCount();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ModemStatus(CTS=%s, DSR=%s, RI=%s, DCD=%s, Breaks=%d, Errors=%d)",
+            isCts(), isDsr(), isRi(), isDcd(), breakCount, getErrorCount());
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+/**
+ * Selects the backend of {@link NativeIO}.
+ * <p>
+ * This is the Java 7 version, which only has JNA. The multi-release JAR
+ * replaces it on Java 22 and later by a version which binds the native
+ * calls with the Foreign Function and Memory API, and keeps JNA as the
+ * fallback.
+ */
+final class NativeBackend {
+
+    /**
+     * System property selecting the backend: "jna", or "ffm" (the default
+     * where it's available). A backend which isn't available is ignored.
+     */
+    static final String PROPERTY = "dk.thibaut.serial.backend";
+
+    private NativeBackend() {
+    }
+
+    static NativeIO load() {
+        return new JnaNativeIO();
+    }
+
+    /* Creates a backend by name, to compare them. Only "jna" is available here. */
+    static NativeIO load(String name) {
+        if (!name.equals("jna"))
+            throw new IllegalArgumentException("Native backend not available on this JDK: " + name);
+        return new JnaNativeIO();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import com.sun.jna.Pointer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The native calls made for each read and write, which are bound by
+ * the backend selected by {@link NativeBackend}.
+ * <p>
+ * The other native calls, made once per port or per configuration change,
+ * go through JNA on all JDKs. Calls return what the native functions
+ * return, and {@link #lastError()} gives the errno (POSIX) or
+ * GetLastError() (Windows) of the last call made by the current thread.
+ * Buffers are passed from their position, and must be direct: channels
+ * copy heap buffers, read-only ones included, to their scratch memory.
+ */
+abstract class NativeIO {
+
+    static final NativeIO INSTANCE = NativeBackend.load();
+
+    /**
+     * @return The name of the backend, "jna" or "ffm".
+     */
+    abstract String getName();
+
+    abstract int lastError();
+
+    /* POSIX, see LibC. */
+
+    abstract int read(int fd, ByteBuffer buffer, int count);
+
+    abstract int read(int fd, Pointer buffer, int count);
+
+    abstract int write(int fd, ByteBuffer buffer, int count);
+
+    abstract int write(int fd, Pointer buffer, int count);
+
+    abstract int readv(int fd, Pointer iov, int iovcnt);
+
+    abstract int writev(int fd, Pointer iov, int iovcnt);
+
+    abstract int poll(Pointer fds, int nfds, int timeout);
+
+    abstract int ioctl(int fd, int request, Pointer arg);
+
+    /* Windows, see SerialPortWindows. */
+
+    abstract boolean nativeRead(Pointer handle, ByteBuffer buffer, int numberOfBytes, Pointer readBytes);
+
+    abstract boolean nativeRead(Pointer handle, Pointer buffer, int numberOfBytes, Pointer readBytes);
+
+    abstract boolean nativeReadTimeout(Pointer handle, ByteBuffer buffer, int numberOfBytes, Pointer readBytes, int timeout);
+
+    abstract boolean nativeReadTimeout(Pointer handle, Pointer buffer, int numberOfBytes, Pointer readBytes, int timeout);
+
+    abstract boolean nativeWrite(Pointer handle, ByteBuffer buffer, int numberOfBytes);
+
+    abstract boolean nativeWrite(Pointer handle, Pointer buffer, int numberOfBytes);
+}
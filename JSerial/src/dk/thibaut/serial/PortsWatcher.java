@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Platform-specific part of {@link SerialPortRegistry}: lists the ports
+ * with their metadata, and waits until they may have changed.
+ */
+abstract class PortsWatcher {
+
+    static PortsWatcher open() throws IOException {
+        String os = System.getProperty("os.name").toLowerCase();
+        if (os.startsWith("windows"))
+            return new PortsWatcherWindows();
+        if (os.startsWith("linux"))
+            return new PortsWatcherPosix();
+        throw new RuntimeException("Platform not supported by SerialPortRegistry.");
+    }
+
+    /** @return The ports currently present, sorted by name. */
+    abstract List<SerialPortInfo> scan();
+
+    /**
+     * Blocks until the ports may have changed. Spurious returns are
+     * allowed, the registry only reports actual differences.
+     *
+     * @throws IOException If changes can't be watched anymore.
+     */
+    abstract void await() throws IOException, InterruptedException;
+}
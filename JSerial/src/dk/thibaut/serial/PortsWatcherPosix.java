@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Paths;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+
+/*
+ * Sysfs doesn't generate inotify events, but udev creates the device
+ * nodes in /dev once the sysfs entries are ready, so /dev is watched
+ * (the JDK WatchService relies on inotify) and sysfs is read on changes.
+ * Without /dev, the ports are listed every POLL_INTERVAL milliseconds.
+ */
+class PortsWatcherPosix extends PortsWatcher {
+
+    private static final String DEV = "/dev";
+
+    private final WatchService watchService;
+
+    PortsWatcherPosix() {
+        WatchService service = null;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+            Paths.get(DEV).register(service, ENTRY_CREATE, ENTRY_DELETE);
+        } catch (IOException e) {
+            service = closeQuietly(service);
+        }
+        watchService = service;
+    }
+
+    @Override
+    List<SerialPortInfo> scan() {
+        return SerialPortPosix.getAvailablePorts();
+    }
+
+    @Override
+    void await() throws IOException, InterruptedException {
+        if (watchService == null) {
+            Thread.sleep(SerialPortRegistry.POLL_INTERVAL);
+            return;
+        }
+        WatchKey key = watchService.take();
+        /* Events are only used as a trigger, what changed is found by
+         * listing the ports again, so all the pending ones are dropped. */
+        do {
+            key.pollEvents();
+            if (!key.reset())
+                throw new IOException(DEV + " can't be watched anymore");
+        } while ((key = watchService.poll()) != null);
+    }
+
+    private static WatchService closeQuietly(WatchService service) {
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                /* Nothing more to do. */
+            }
+        }
+        return null;
+    }
+}
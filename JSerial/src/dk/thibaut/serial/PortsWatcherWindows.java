@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import com.sun.jna.Pointer;
+
+import java.io.IOException;
+import java.util.List;
+
+/*
+ * Watches HARDWARE\DEVICEMAP in the registry with RegNotifyChangeKeyValue(),
+ * as the SERIALCOMM key listing the ports is created along with the first
+ * port. The metadata comes from the SetupAPI.
+ */
+class PortsWatcherWindows extends PortsWatcher {
+
+    private final Pointer watcher;
+
+    PortsWatcherWindows() throws IOException {
+        watcher = SerialPortWindows.NativePortsWatcherOpen();
+        if (watcher == null)
+            throw SerialPortWindows.getLastException();
+    }
+
+    @Override
+    List<SerialPortInfo> scan() {
+        return SerialPortWindows.getAvailablePorts();
+    }
+
+    @Override
+    void await() throws IOException {
+        if (!SerialPortWindows.NativePortsWatcherWait(watcher))
+            throw SerialPortWindows.getLastException();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+/**
+ * The timeouts of the read calls of a {@link SerialPort}.
+ * <p>
+ * The total timeout is the maximum time a read waits, with the same values
+ * as {@link SerialPort#setTimeout(int)}. The interval timeout tells when
+ * a read returns, once some bytes are received:
+ * <ul>
+ *  <li>0: as soon as any byte is available.</li>
+ *  <li>A positive value: when no byte is received for this many
+ *  milliseconds. On Linux, the resolution is 100ms, up to 25.5 seconds.</li>
+ *  <li>{@link #INTERVAL_NONE}: only when the buffer is full (or the total
+ *  timeout expired).</li>
+ * </ul>
+ * In all cases, a read also returns when the buffer is full.
+ * <p>
+ * The low-latency mode, created by {@link #lowLatency(int)}, returns as soon
+ * as any byte is available, and on Linux also asks the driver to push
+ * received bytes immediately (ASYNC_LOW_LATENCY), which is supported by
+ * most USB adapters. On Windows, the latency timer of USB adapters can
+ * only be changed in the device settings.
+ * <p>
+ * Instances are immutable.
+ */
+public final class ReadTimeouts {
+
+    public static final int INTERVAL_NONE = -1;
+
+    private final int totalTimeout;
+    private final int intervalTimeout;
+    private final boolean lowLatency;
+
+    /**
+     * @param totalTimeout The total timeout in milliseconds, or one of
+     *      {@link SerialPort#TIMEOUT_INFINITE} and {@link SerialPort#TIMEOUT_IMMEDIATE}.
+     * @param intervalTimeout The interval timeout in milliseconds, or
+     *      {@link #INTERVAL_NONE}.
+     */
+    public ReadTimeouts(int totalTimeout, int intervalTimeout) {
+        this(totalTimeout, intervalTimeout, false);
+    }
+
+    private ReadTimeouts(int totalTimeout, int intervalTimeout, boolean lowLatency) {
+        if (totalTimeout < SerialPort.TIMEOUT_INFINITE)
+            throw new IllegalArgumentException("Invalid total timeout: " + totalTimeout);
+        if (intervalTimeout < INTERVAL_NONE)
+            throw new IllegalArgumentException("Invalid interval timeout: " + intervalTimeout);
+        this.totalTimeout = totalTimeout;
+        this.intervalTimeout = intervalTimeout;
+        this.lowLatency = lowLatency;
+    }
+
+    /**
+     * Creates low-latency timeouts: reads return as soon as any byte is
+     * available, and the driver is asked to deliver bytes immediately.
+     *
+     * @param totalTimeout The total timeout in milliseconds, or one of
+     *      {@link SerialPort#TIMEOUT_INFINITE} and {@link SerialPort#TIMEOUT_IMMEDIATE}.
+     * @return The timeouts.
+     */
+    public static ReadTimeouts lowLatency(int totalTimeout) {
+        return new ReadTimeouts(totalTimeout, 0, true);
+    }
+
+    public int getTotalTimeout() {
+        return totalTimeout;
+    }
+
+    public int getIntervalTimeout() {
+        return intervalTimeout;
+    }
+
+    public boolean isLowLatency() {
+        return lowLatency;
+    }
+
+    /**
+     * @param totalTimeout The new total timeout.
+     * @return A copy of these timeouts, with another total timeout.
+     */
+    public ReadTimeouts withTotalTimeout(int totalTimeout) {
+        return new ReadTimeouts(totalTimeout, intervalTimeout, lowLatency);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ReadTimeouts))
+            return false;
+        ReadTimeouts other = (ReadTimeouts) o;
+        return totalTimeout == other.totalTimeout && intervalTimeout == other.intervalTimeout
+            && lowLatency == other.lowLatency;
+    }
+
+    @Override
+    public int hashCode() {
+        return (totalTimeout * 31 + intervalTimeout) * 2 + (lowLatency ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ReadTimeouts(Total=%d, Interval=%d, LowLatency=%s)",
+            totalTimeout, intervalTimeout, lowLatency);
+    }
+}
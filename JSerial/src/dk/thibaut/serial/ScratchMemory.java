@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import com.sun.jna.Memory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable native memory used to pass heap buffers to native functions,
+ * and to gather several buffers into a single native call.
+ * <p>
+ * When a heap {@link ByteBuffer} is given to a native function, JNA copies
+ * it to a temporary native buffer on every call. Channels keep one of these
+ * per direction instead, so that the steady state doesn't allocate. Direct
+ * buffers don't need it, their address is passed as is.
+ * <p>
+ * This class is not thread-safe.
+ */
+class ScratchMemory {
+
+    /** Larger transfers are split in several native calls. */
+    static final int MAX_SIZE = 64 * 1024;
+
+    private static final int MIN_SIZE = 256;
+
+    private Memory memory;
+    private ByteBuffer view;
+
+    /**
+     * Get a native memory block of at least {@code min(size, MAX_SIZE)} bytes.
+     * The content of the block is undefined.
+     */
+    Memory get(int size) {
+        size = Math.min(size, MAX_SIZE);
+        if (memory == null || memory.size() < size) {
+            int capacity = MIN_SIZE;
+            while (capacity < size)
+                capacity <<= 1;
+            memory = new Memory(capacity);
+            view = memory.getByteBuffer(0, capacity);
+        }
+        return memory;
+    }
+
+    /**
+     * Copies up to {@link #MAX_SIZE} remaining bytes of several buffers
+     * to the scratch memory, one after the other, without changing the
+     * buffers positions.
+     *
+     * @return The number of bytes copied.
+     */
+    int gather(ByteBuffer[] srcs, int offset, int length) {
+        get((int) Math.min(remaining(srcs, offset, length), MAX_SIZE));
+        view.clear();
+        for (int i = offset; i < offset + length && view.hasRemaining(); i++) {
+            ByteBuffer src = srcs[i];
+            int position = src.position();
+            int limit = src.limit();
+            src.limit(position + Math.min(src.remaining(), view.remaining()));
+            view.put(src);
+            src.limit(limit).position(position);
+        }
+        return view.position();
+    }
+
+    /**
+     * Copies {@code count} bytes from the scratch memory to several buffers,
+     * filling them one after the other, and advances their positions.
+     */
+    void scatter(ByteBuffer[] dsts, int offset, int length, int count) {
+        view.clear().limit(count);
+        for (int i = offset; i < offset + length && view.hasRemaining(); i++) {
+            ByteBuffer dst = dsts[i];
+            int limit = view.limit();
+            view.limit(view.position() + Math.min(dst.remaining(), view.remaining()));
+            dst.put(view);
+            view.limit(limit);
+        }
+    }
+
+    /**
+     * Copies {@code count} bytes of a buffer to the scratch memory at the
+     * given offset, without changing the buffer position. The memory must
+     * have been obtained with {@link #get(int)}.
+     */
+    void put(int at, ByteBuffer src, int count) {
+        int position = src.position();
+        int limit = src.limit();
+        src.limit(position + count);
+        view.clear();
+        view.position(at);
+        view.put(src);
+        src.limit(limit).position(position);
+    }
+
+    /**
+     * Copies {@code count} bytes from the scratch memory at the given
+     * offset to a buffer, and advances the buffer position.
+     */
+    void get(int at, ByteBuffer dst, int count) {
+        view.clear();
+        view.position(at).limit(at + count);
+        dst.put(view);
+    }
+
+    /**
+     * Get the total number of bytes remaining in several buffers.
+     */
+    static long remaining(ByteBuffer[] buffers, int offset, int length) {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++)
+            total += buffers[i].remaining();
+        return total;
+    }
+
+    /**
+     * Advances the positions of several buffers, as if {@code count}
+     * bytes had been read from or written to them, in order.
+     */
+    static void advance(ByteBuffer[] buffers, int offset, int length, long count) {
+        for (int i = offset; i < offset + length && count > 0; i++) {
+            int n = (int) Math.min(buffers[i].remaining(), count);
+            buffers[i].position(buffers[i].position() + n);
+            count -= n;
+        }
+    }
+
+    /**
+     * Checks the offset and length parameters of scattering and gathering
+     * operations, as specified by {@link java.nio.channels.ScatteringByteChannel}.
+     */
+    static void checkBounds(ByteBuffer[] buffers, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > buffers.length - length)
+            throw new IndexOutOfBoundsException();
+    }
+
+    /**
+     * Copies up to {@link #MAX_SIZE} remaining bytes of a heap buffer, which
+     * may be read-only, to the scratch memory, without changing the buffer
+     * position.
+     *
+     * @return The number of bytes copied.
+     */
+    int copyFrom(ByteBuffer src) {
+        int count = Math.min(src.remaining(), MAX_SIZE);
+        get(count);
+        put(0, src, count);
+        return count;
+    }
+
+    /**
+     * Copies {@code count} bytes from the scratch memory at the position of
+     * a heap buffer, and advances the buffer position.
+     */
+    void copyTo(ByteBuffer dst, int count) {
+        get(0, dst, count);
+    }
+}
@@ -25,6 +25,10 @@ package dk.thibaut.serial;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A Java NIO channel for the serial communication.
@@ -34,8 +38,22 @@ import java.nio.channels.ByteChannel;
  * <p>
  * The {@link #read(ByteBuffer)} and {@link #write(ByteBuffer)} methods
  * works exactly like specified in the {@link ByteBuffer} documentation.
+ * <p>
+ * Scattering reads and gathering writes are done with a single native
+ * call, so a frame split into several buffers (header, payload, CRC)
+ * is sent with one system call. A gathering write always writes all the
+ * remaining bytes, like {@link #write(ByteBuffer)}.
+ * <p>
+ * Reads with a deadline ignore the port timeout, which is enforced while
+ * waiting for bytes instead of being programmed in the driver: a request and
+ * response exchange with a deadline doesn't cost any extra native call.
+ * <p>
+ * Files are sent with {@link #transferFrom}, which writes a memory-mapped
+ * file without copying it, and received with {@link #transferTo}, through a
+ * direct buffer reused by the channel: firmware images or log dumps never go
+ * through the Java heap.
  */
-public interface SerialChannel extends ByteChannel {
+public interface SerialChannel extends ByteChannel, GatheringByteChannel, ScatteringByteChannel {
     /**
      * Flushes internal buffers.
      *
@@ -44,4 +62,101 @@ public interface SerialChannel extends ByteChannel {
      * @throws IOException If an error uccors while calling the native function.
      */
     void flush(boolean in, boolean out) throws IOException;
+
+    /**
+     * Returns the number of bytes received by the driver and not read
+     * yet, so that a read can be sized to get all of them at once.
+     *
+     * @return The number of bytes that can be read without blocking.
+     * @throws IOException If an error occurs while calling the native function.
+     */
+    int available() throws IOException;
+
+    /**
+     * Returns the number of bytes written and not transmitted yet.
+     *
+     * @return The number of bytes in the driver transmit queue.
+     * @throws IOException If an error occurs while calling the native function.
+     */
+    int pendingOutput() throws IOException;
+
+    /**
+     * Reads bytes, waiting at most the given time for the first one.
+     * <p>
+     * It behaves like {@link #read(ByteBuffer)} with a port timeout of
+     * the given duration, without changing the port timeout.
+     *
+     * @param dst The buffer to fill.
+     * @param timeout The maximum time to wait, 0 to return immediately.
+     * @param unit The unit of the timeout.
+     * @return The number of bytes read, 0 if the timeout expired.
+     * @throws IOException If an error occurs while calling the native function.
+     */
+    int read(ByteBuffer dst, long timeout, TimeUnit unit) throws IOException;
+
+    /**
+     * Reads until the buffer is full, or the deadline is passed.
+     *
+     * @param dst The buffer to fill.
+     * @param timeout The maximum time to wait for all the bytes.
+     * @param unit The unit of the timeout.
+     * @return The number of bytes read, less than requested if the deadline passed.
+     * @throws IOException If an error occurs while calling the native function.
+     */
+    int readFully(ByteBuffer dst, long timeout, TimeUnit unit) throws IOException;
+
+    /**
+     * Reads until a delimiter is received, the buffer is full, or the deadline
+     * is passed.
+     * <p>
+     * Bytes are read by blocks, not one by one: bytes received after the
+     * delimiter may also have been read in the buffer, after the returned
+     * count. The buffer position is after all the bytes read.
+     *
+     * @param dst The buffer to fill.
+     * @param delimiter The byte to look for.
+     * @param timeout The maximum time to wait for the delimiter.
+     * @param unit The unit of the timeout.
+     * @return The number of bytes read up to and including the delimiter,
+     *      or -1 if the delimiter wasn't found.
+     * @throws IOException If an error occurs while calling the native function.
+     */
+    int readUntil(ByteBuffer dst, byte delimiter, long timeout, TimeUnit unit) throws IOException;
+
+    /**
+     * Sends a region of a file.
+     * <p>
+     * The region is memory-mapped and written from the mapping, by chunks
+     * of the transmit queue size given to {@link SerialPort#setQueueSizes(int, int)}
+     * ({@link FileTransfers#DEFAULT_CHUNK} by default), so that the progress
+     * can be followed. The file position isn't changed.
+     *
+     * @param src The file to send, opened for reading.
+     * @param position The position of the region in the file.
+     * @param count The maximum number of bytes to send.
+     * @param listener Called after each chunk, or null.
+     * @return The number of bytes sent, less than count if the file ends before.
+     * @throws IOException If an error occurs while mapping the file or
+     *      calling the native function.
+     */
+    long transferFrom(FileChannel src, long position, long count, TransferListener listener) throws IOException;
+
+    /**
+     * Receives bytes into a file.
+     * <p>
+     * Bytes are read by chunks of the transmit queue size, like
+     * {@link #transferFrom}, in a direct buffer kept by the channel, then
+     * copied to the file at their position. The transfer stops when count
+     * bytes were received, or when a read returns nothing because the port
+     * timeout expired. The file position isn't changed.
+     *
+     * @param dst The file to write, opened for writing.
+     * @param position The position in the file of the first byte received.
+     * @param count The maximum number of bytes to receive.
+     * @param listener Called after each chunk, or null.
+     * @return The number of bytes received.
+     * @throws IOException If an error occurs while writing the file or
+     *      calling the native function.
+     */
+    long transferTo(FileChannel dst, long position, long count, TransferListener listener) throws IOException;
 }
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+class SerialChannelLoopback extends AbstractSerialChannel {
+
+    private final SerialPortLoopback port;
+    private final LoopbackLine rx;
+    private final LoopbackLine tx;
+    private volatile boolean open = true;
+    private volatile int timeout = SerialPort.TIMEOUT_INFINITE;
+    private volatile int interval;
+    /* The selectors this channel is registered with, once per key. */
+    private final List<SerialSelector> selectors = new CopyOnWriteArrayList<>();
+
+    SerialChannelLoopback(SerialPortLoopback port, LoopbackLine rx, LoopbackLine tx) {
+        this.port = port;
+        this.rx = rx;
+        this.tx = tx;
+    }
+
+    void setTimeouts(int timeout, int interval) {
+        this.timeout = timeout;
+        this.interval = interval;
+    }
+
+    int getTimeout() {
+        return timeout;
+    }
+
+    public int available() throws IOException {
+        checkOpen();
+        return rx.available();
+    }
+
+    public int pendingOutput() throws IOException {
+        checkOpen();
+        return tx.pendingOutput();
+    }
+
+    public void flush(boolean in, boolean out) throws IOException {
+        checkOpen();
+        if (in)
+            rx.clearReceived();
+        if (out)
+            tx.clearTransmitted();
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        checkOpen();
+        long start = startCall();
+        int readBytes = rx.receive(dst, toNanos(timeout), toNanos(interval), this);
+        readDone(start, readBytes);
+        countTimeout(readBytes, timeout != SerialPort.TIMEOUT_IMMEDIATE && dst.hasRemaining());
+        return readBytes;
+    }
+
+    public int read(ByteBuffer dst, long timeout, TimeUnit unit) throws IOException {
+        checkOpen();
+        long nanos = Math.max(0, unit.toNanos(timeout));
+        long start = startCall();
+        int readBytes = rx.receive(dst, nanos, 0, this);
+        readDone(start, readBytes);
+        countTimeout(readBytes, nanos > 0 && dst.hasRemaining());
+        return readBytes;
+    }
+
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        ScratchMemory.checkBounds(dsts, offset, length);
+        checkOpen();
+        long start = startCall();
+        long readBytes = rx.receive(dsts, offset, length, toNanos(timeout), toNanos(interval), this);
+        readDone(start, readBytes);
+        countTimeout(readBytes, timeout != SerialPort.TIMEOUT_IMMEDIATE
+            && ScratchMemory.remaining(dsts, offset, length) > 0);
+        return readBytes;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        checkOpen();
+        long start = startCall();
+        int written = tx.transmit(src, this);
+        writeDone(start, written);
+        return written;
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        ScratchMemory.checkBounds(srcs, offset, length);
+        checkOpen();
+        long start = startCall();
+        long written = tx.transmit(srcs, offset, length, this);
+        writeDone(start, written);
+        return written;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            if (!open)
+                return;
+            open = false;
+        }
+        rx.detachReceiver();
+        tx.detachSender();
+        closeMetrics();
+        port.channelClosed();
+    }
+
+    void addSelector(SerialSelector selector) {
+        selectors.add(selector);
+    }
+
+    void removeSelector(SerialSelector selector) {
+        selectors.remove(selector);
+    }
+
+    void wakeupSelectors() {
+        for (SerialSelector selector : selectors)
+            selector.keysChanged();
+    }
+
+    /* The operations of the key the channel is ready for. Like
+     * a closed descriptor, a closed channel is readable. */
+    int readyOps(SerialSelectionKey key) {
+        int ops = key.interestOps;
+        int ready = 0;
+        if ((ops & SerialSelectionKey.OP_READ) != 0 && (!open || rx.available() > 0))
+            ready |= SerialSelectionKey.OP_READ;
+        if ((ops & SerialSelectionKey.OP_WRITE) != 0 && tx.isWritable())
+            ready |= SerialSelectionKey.OP_WRITE;
+        if ((ops & SerialSelectionKey.OP_MODEM) != 0) {
+            int state = rx.getModemEvents();
+            if (key.modemState >= 0 && key.modemState != state)
+                ready |= SerialSelectionKey.OP_MODEM;
+            key.modemState = state;
+        }
+        return ready;
+    }
+
+    /* The time after which the key may be ready without any call
+     * on the ports, Long.MAX_VALUE if it can't. */
+    long untilReady(SerialSelectionKey key) {
+        int ops = key.interestOps;
+        long wait = Long.MAX_VALUE;
+        if ((ops & (SerialSelectionKey.OP_READ | SerialSelectionKey.OP_MODEM)) != 0)
+            wait = rx.untilArrival();
+        if ((ops & SerialSelectionKey.OP_WRITE) != 0)
+            wait = Math.min(wait, tx.untilArrival());
+        return wait;
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!open)
+            throw new ClosedChannelException();
+    }
+
+    private static long toNanos(int millis) {
+        return millis < 0 ? -1 : millis * 1000000L;
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+class SerialChannelPosix extends AbstractSerialChannel {
+
+    /* The calls made for each read and write, JNA or FFM. */
+    private static final NativeIO IO = NativeIO.INSTANCE;
+
+    private volatile int fd;
+    private volatile int timeout = SerialPort.TIMEOUT_INFINITE;
+    private volatile boolean polled;
+    private volatile boolean fill;
+    /* The selectors this channel is registered with, once per key. */
+    private final List<SerialSelectorPosix> selectors = new CopyOnWriteArrayList<>();
+
+    /* A single struct pollfd, reused by every timed read, and
+     * scratch memory for heap buffers, one for each direction. */
+    private final Memory pollFd = new Memory(LibC.POLLFD_SIZE);
+    private final ScratchMemory readScratch = new ScratchMemory();
+    private final ScratchMemory writeScratch = new ScratchMemory();
+    private Memory iovecs = new Memory(LibC.IOVEC_SIZE * 16);
+    private final Memory queued = new Memory(4);
+
+    SerialChannelPosix(int fd) {
+        this.fd = fd;
+    }
+
+    int getFd() {
+        return fd;
+    }
+
+    /**
+     * Sets the timeout used by {@link #read(ByteBuffer)}. The port
+     * is responsible for the matching VMIN/VTIME configuration. When
+     * fill is true (no interval timeout), blocking reads return only
+     * once the buffers are full or the timeout expired.
+     */
+    void setTimeouts(int timeout, boolean fill) {
+        this.timeout = timeout;
+        this.fill = fill;
+    }
+
+    int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * In polled mode, the descriptor is non-blocking (the port is responsible
+     * for setting O_NONBLOCK) and threads park while the poller waits.
+     */
+    void setPolled(boolean polled) {
+        this.polled = polled;
+    }
+
+    public int available() throws IOException {
+        return queue(LibC.FIONREAD);
+    }
+
+    public int pendingOutput() throws IOException {
+        return queue(LibC.TIOCOUTQ);
+    }
+
+    private int queue(int request) throws IOException {
+        int fd = checkedFd();
+        synchronized (queued) {
+            if (IO.ioctl(fd, request, queued) != 0)
+                throw LibC.getException(IO.lastError());
+            return queued.getInt(0);
+        }
+    }
+
+    public void flush(boolean in, boolean out) throws IOException {
+        if (!in && !out)
+            return;
+        int queue = in && out ? LibC.TCIOFLUSH : (in ? LibC.TCIFLUSH : LibC.TCOFLUSH);
+        if (LibC.tcflush(checkedFd(), queue) != 0)
+            throw LibC.getLastException();
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        int readBytes = readPortTimeout(dst);
+        countTimeout(readBytes, timeout != SerialPort.TIMEOUT_IMMEDIATE && dst.hasRemaining());
+        return readBytes;
+    }
+
+    private int readPortTimeout(ByteBuffer dst) throws IOException {
+        int fd = checkedFd();
+        if (polled) {
+            long deadline = SerialPoller.deadline(timeout);
+            int readBytes;
+            while ((readBytes = readNow(checkedFd(), dst)) == 0 && dst.hasRemaining() && awaitReadable(deadline))
+                continue;
+            return readBytes;
+        }
+        /* With a positive timeout, VMIN and VTIME are both zero: we wait
+         * for the first byte with poll(), then read whatever is queued.
+         * VTIME can't be used here, its resolution is 100ms and its
+         * maximum 25.5 seconds. */
+        if (fill && timeout != SerialPort.TIMEOUT_IMMEDIATE) {
+            long deadline = SerialPoller.deadline(timeout);
+            int total = 0;
+            while (dst.hasRemaining() && (timeout < 0 || waitReadable(fd, deadline)))
+                total += readNow(checkedFd(), dst);
+            return total;
+        }
+        if (timeout > 0 && !waitReadable(fd, SerialPoller.deadline(timeout)))
+            return 0;
+        return readNow(fd, dst);
+    }
+
+    public int read(ByteBuffer dst, long timeout, TimeUnit unit) throws IOException {
+        long nanos = unit.toNanos(timeout);
+        int readBytes = readDeadline(dst, nanos);
+        countTimeout(readBytes, nanos > 0 && dst.hasRemaining());
+        return readBytes;
+    }
+
+    private int readDeadline(ByteBuffer dst, long nanos) throws IOException {
+        int fd = checkedFd();
+        long deadline = System.nanoTime() + Math.max(0, nanos);
+        if (polled) {
+            int readBytes;
+            while ((readBytes = readNow(checkedFd(), dst)) == 0 && dst.hasRemaining() && nanos > 0
+                    && SerialPoller.get().await(this, SerialSelectionKey.OP_READ, deadline == 0 ? 1 : deadline))
+                continue;
+            return readBytes;
+        }
+        /* Whatever the port timeout, once poll() reports bytes, read()
+         * returns them without waiting (VMIN is 0 or 1, VTIME is 0). */
+        if (!waitReadable(fd, deadline))
+            return 0;
+        return readNow(fd, dst);
+    }
+
+    private int readNow(int fd, ByteBuffer dst) throws IOException {
+        if (dst.isReadOnly())
+            throw new IllegalArgumentException("Read-only buffer");
+        boolean direct = dst.isDirect();
+        int toRead = direct ? dst.remaining() : Math.min(dst.remaining(), ScratchMemory.MAX_SIZE);
+        int readBytes;
+        long start = startCall();
+        do {
+            if (direct)
+                readBytes = IO.read(fd, dst, toRead);
+            else
+                readBytes = IO.read(fd, readScratch.get(toRead), toRead);
+        } while (readBytes < 0 && IO.lastError() == LibC.EINTR);
+        if (readBytes < 0) {
+            if (IO.lastError() != LibC.EAGAIN)
+                throw LibC.getException(IO.lastError());
+            readBytes = 0;
+        }
+        readDone(start, readBytes);
+        if (direct)
+            dst.position(dst.position() + readBytes);
+        else
+            readScratch.copyTo(dst, readBytes);
+        return readBytes;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        int fd = checkedFd();
+        int toWrite = src.remaining();
+        boolean direct = src.isDirect();
+        while (src.hasRemaining()) {
+            int written;
+            long start = startCall();
+            if (direct) {
+                written = IO.write(fd, src, src.remaining());
+            } else {
+                int count = writeScratch.copyFrom(src);
+                written = IO.write(fd, writeScratch.get(count), count);
+            }
+            if (written < 0) {
+                if (IO.lastError() == LibC.EINTR)
+                    continue;
+                if (polled && IO.lastError() == LibC.EAGAIN) {
+                    SerialPoller.get().await(this, SerialSelectionKey.OP_WRITE, 0);
+                    continue;
+                }
+                throw LibC.getException(IO.lastError());
+            }
+            writeDone(start, written);
+            src.position(src.position() + written);
+        }
+        return toWrite;
+    }
+
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        ScratchMemory.checkBounds(dsts, offset, length);
+        long readBytes = readPortTimeout(dsts, offset, length);
+        countTimeout(readBytes, readBytes == 0 && timeout != SerialPort.TIMEOUT_IMMEDIATE
+            && ScratchMemory.remaining(dsts, offset, length) > 0);
+        return readBytes;
+    }
+
+    private long readPortTimeout(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        int fd = checkedFd();
+        if (polled) {
+            long deadline = SerialPoller.deadline(timeout);
+            long readBytes;
+            while ((readBytes = readNow(checkedFd(), dsts, offset, length)) == 0
+                    && ScratchMemory.remaining(dsts, offset, length) > 0 && awaitReadable(deadline))
+                continue;
+            return readBytes;
+        }
+        if (fill && timeout != SerialPort.TIMEOUT_IMMEDIATE) {
+            long deadline = SerialPoller.deadline(timeout);
+            long total = 0;
+            while (ScratchMemory.remaining(dsts, offset, length) > 0
+                    && (timeout < 0 || waitReadable(fd, deadline)))
+                total += readNow(checkedFd(), dsts, offset, length);
+            return total;
+        }
+        if (timeout > 0 && !waitReadable(fd, SerialPoller.deadline(timeout)))
+            return 0;
+        return readNow(fd, dsts, offset, length);
+    }
+
+    private long readNow(int fd, ByteBuffer[] dsts, int offset, int length) throws IOException {
+        int count = fillIovecs(dsts, offset, length, readScratch, false);
+        int readBytes;
+        long start = startCall();
+        do {
+            readBytes = IO.readv(fd, iovecs, count);
+        } while (readBytes < 0 && IO.lastError() == LibC.EINTR);
+        if (readBytes < 0) {
+            if (IO.lastError() != LibC.EAGAIN)
+                throw LibC.getException(IO.lastError());
+            readBytes = 0;
+        }
+        readDone(start, readBytes);
+        /* Direct buffers already contain the data, heap
+         * buffers are copied from the scratch memory. */
+        int left = readBytes;
+        int at = 0;
+        for (int i = offset; i < offset + length && left > 0; i++) {
+            ByteBuffer dst = dsts[i];
+            int n = Math.min(dst.remaining(), left);
+            if (dst.isDirect()) {
+                dst.position(dst.position() + n);
+            } else {
+                readScratch.get(at, dst, n);
+                at += n;
+            }
+            left -= n;
+        }
+        return readBytes;
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        ScratchMemory.checkBounds(srcs, offset, length);
+        int fd = checkedFd();
+        long total = 0;
+        int count;
+        while ((count = fillIovecs(srcs, offset, length, writeScratch, true)) > 0) {
+            long start = startCall();
+            int written = IO.writev(fd, iovecs, count);
+            if (written < 0) {
+                if (IO.lastError() == LibC.EINTR)
+                    continue;
+                if (polled && IO.lastError() == LibC.EAGAIN) {
+                    SerialPoller.get().await(this, SerialSelectionKey.OP_WRITE, 0);
+                    continue;
+                }
+                throw LibC.getException(IO.lastError());
+            }
+            writeDone(start, written);
+            ScratchMemory.advance(srcs, offset, length, written);
+            total += written;
+        }
+        return total;
+    }
+
+    public boolean isOpen() {
+        return fd >= 0;
+    }
+
+    /* The descriptor is invalidated before it's closed, so that a concurrent
+     * call can't use its number once the system reuses it, and selectors are
+     * waited for until they stop polling it. A thread blocked in read()
+     * (VMIN=1) isn't woken up by close() on Linux, see SerialPort. */
+    public void close() throws IOException {
+        int closing;
+        synchronized (this) {
+            closing = fd;
+            if (closing < 0)
+                return;
+            fd = -1;
+        }
+        for (SerialSelectorPosix selector : selectors)
+            selector.awaitRelease();
+        if (LibC.close(closing) != 0)
+            throw LibC.getLastException();
+        closeMetrics();
+        if (polled)
+            SerialPoller.channelClosed();
+    }
+
+    void addSelector(SerialSelectorPosix selector) {
+        selectors.add(selector);
+    }
+
+    void removeSelector(SerialSelectorPosix selector) {
+        selectors.remove(selector);
+    }
+
+    private int checkedFd() throws ClosedChannelException {
+        int current = fd;
+        if (current < 0)
+            throw new ClosedChannelException();
+        return current;
+    }
+
+    /*
+     * Fills the iovec array with the remaining bytes of the buffers. Direct
+     * buffers are used in place, heap buffers are given consecutive regions
+     * of the scratch memory (and copied there when writing). Stops when the
+     * scratch memory is full or after IOV_MAX buffers.
+     *
+     * Returns the number of iovec structures used.
+     */
+    private int fillIovecs(ByteBuffer[] buffers, int offset, int length,
+                           ScratchMemory scratch, boolean write) {
+        long iovecsSize = (long) Math.min(length, LibC.IOV_MAX) * LibC.IOVEC_SIZE;
+        if (iovecs.size() < iovecsSize)
+            iovecs = new Memory(iovecsSize);
+        long heap = 0;
+        for (int i = offset; i < offset + length; i++)
+            if (!buffers[i].isDirect())
+                heap += buffers[i].remaining();
+        Memory memory = scratch.get((int) Math.min(heap, ScratchMemory.MAX_SIZE));
+        int available = (int) Math.min(heap, ScratchMemory.MAX_SIZE);
+        int at = 0;
+        int count = 0;
+        for (int i = offset; i < offset + length && count < LibC.IOV_MAX; i++) {
+            ByteBuffer buffer = buffers[i];
+            int n = buffer.remaining();
+            if (n == 0)
+                continue;
+            long address;
+            if (buffer.isDirect()) {
+                address = Pointer.nativeValue(Native.getDirectBufferPointer(buffer)) + buffer.position();
+            } else {
+                n = Math.min(n, available - at);
+                if (n == 0)
+                    break;
+                if (write)
+                    scratch.put(at, buffer, n);
+                address = Pointer.nativeValue(memory) + at;
+                at += n;
+            }
+            setIovec(count++, address, n);
+            if (!buffer.isDirect() && n < buffer.remaining())
+                break;
+        }
+        return count;
+    }
+
+    private void setIovec(int index, long address, int length) {
+        long offset = (long) index * LibC.IOVEC_SIZE;
+        if (Pointer.SIZE == 8) {
+            iovecs.setLong(offset, address);
+            iovecs.setLong(offset + 8, length);
+        } else {
+            iovecs.setInt(offset, (int) address);
+            iovecs.setInt(offset + 4, length);
+        }
+    }
+
+    /* In polled mode, parks until the descriptor is readable.
+     * Returns false if the timeout expired. */
+    private boolean awaitReadable(long deadline) throws IOException {
+        if (timeout == SerialPort.TIMEOUT_IMMEDIATE)
+            return false;
+        return SerialPoller.get().await(this, SerialSelectionKey.OP_READ, deadline);
+    }
+
+    /* Waits until the descriptor is readable, or the System.nanoTime()
+     * deadline is passed. */
+    private boolean waitReadable(int fd, long deadline) throws IOException {
+        while (true) {
+            pollFd.setInt(0, fd);
+            pollFd.setShort(4, LibC.POLLIN);
+            pollFd.setShort(6, (short) 0);
+            int remaining = toMillis(deadline - System.nanoTime());
+            int result = IO.poll(pollFd, 1, remaining);
+            if (result > 0)
+                return true;
+            if (result == 0)
+                return false;
+            if (IO.lastError() != LibC.EINTR)
+                throw LibC.getException(IO.lastError());
+        }
+    }
+}
@@ -22,49 +22,250 @@
 
 package dk.thibaut.serial;
 
+import com.sun.jna.Memory;
 import com.sun.jna.Pointer;
-import com.sun.jna.ptr.IntByReference;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.TimeUnit;
 
-class SerialChannelWindows implements SerialChannel {
+class SerialChannelWindows extends AbstractSerialChannel {
 
-    private Pointer handle;
+    /* The calls made for each read and write, JNA or FFM. */
+    private static final NativeIO IO = NativeIO.INSTANCE;
+
+    private volatile Pointer handle;
+
+    /* The selector which last used the handle, see close(). */
+    private volatile SerialSelectorWindows selector;
+
+    /* Native memory is allocated once, so that reading and writing
+     * doesn't allocate anything. Reads and writes can happen at the
+     * same time from two threads, each one has its own scratch. */
+    private final Memory readBytesRef = new Memory(4);
+    private final ScratchMemory readScratch = new ScratchMemory();
+    private final ScratchMemory writeScratch = new ScratchMemory();
+    private final int[] queues = new int[2];
+
+    /* The port read timeout. In polled mode, the driver timeout is
+     * immediate and this one is handled here, waiting in the poller. */
+    private volatile boolean polled;
+    private volatile int timeout = SerialPort.TIMEOUT_INFINITE;
+
+    /* Passed to readNow() to use the port timeout. */
+    private static final int PORT_TIMEOUT = -1;
 
     SerialChannelWindows(Pointer handle) {
         this.handle = handle;
     }
 
+    /* Called by a selector before it passes the handle to native code. */
+    Pointer getHandle(SerialSelectorWindows selector) {
+        this.selector = selector;
+        return handle;
+    }
+
+    void setPolled(boolean polled, int timeout) {
+        this.timeout = timeout;
+        this.polled = polled;
+    }
+
+    public int available() throws IOException {
+        return queue(0);
+    }
+
+    public int pendingOutput() throws IOException {
+        return queue(1);
+    }
+
+    /* 0: bytes received and not read yet, 1: bytes not transmitted yet. */
+    private int queue(int index) throws IOException {
+        if (handle == null)
+            throw new ClosedChannelException();
+        synchronized (queues) {
+            if (!SerialPortWindows.NativeGetQueues(handle, queues))
+                throw SerialPortWindows.getLastException();
+            return queues[index];
+        }
+    }
+
     public void flush(boolean in, boolean out) throws IOException {
         if (!SerialPortWindows.NativeFlush(handle, in, out))
             throw SerialPortWindows.getLastException();
     }
 
     public int read(ByteBuffer dst) throws IOException {
-        IntByReference readBytesRef = new IntByReference(0);
-        if (!SerialPortWindows.NativeRead(handle, dst, dst.remaining(), readBytesRef))
-            throw SerialPortWindows.getLastException();
-        int readBytes = readBytesRef.getValue();
-        dst.position(dst.position() + readBytes);
+        int readBytes = readPortTimeout(dst);
+        countTimeout(readBytes, timeout != SerialPort.TIMEOUT_IMMEDIATE && dst.hasRemaining());
+        return readBytes;
+    }
+
+    private int readPortTimeout(ByteBuffer dst) throws IOException {
+        if (polled) {
+            long deadline = SerialPoller.deadline(timeout);
+            int readBytes;
+            while ((readBytes = readNow(dst, PORT_TIMEOUT)) == 0 && dst.hasRemaining() && awaitReadable(deadline))
+                continue;
+            return readBytes;
+        }
+        return readNow(dst, PORT_TIMEOUT);
+    }
+
+    public int read(ByteBuffer dst, long timeout, TimeUnit unit) throws IOException {
+        long nanos = unit.toNanos(timeout);
+        int readBytes = readDeadline(dst, nanos);
+        countTimeout(readBytes, nanos > 0 && dst.hasRemaining());
+        return readBytes;
+    }
+
+    private int readDeadline(ByteBuffer dst, long nanos) throws IOException {
+        if (polled) {
+            /* The driver timeout is immediate, the channel waits. */
+            long deadline = System.nanoTime() + Math.max(0, nanos);
+            int readBytes;
+            while ((readBytes = readNow(dst, PORT_TIMEOUT)) == 0 && dst.hasRemaining() && nanos > 0
+                    && SerialPoller.get().await(this, SerialSelectionKey.OP_READ, deadline == 0 ? 1 : deadline))
+                continue;
+            return readBytes;
+        }
+        return readNow(dst, toMillis(nanos));
+    }
+
+    private int readNow(ByteBuffer dst, int deadlineTimeout) throws IOException {
+        int readBytes;
+        if (dst.isReadOnly())
+            throw new IllegalArgumentException("Read-only buffer");
+        long start = startCall();
+        if (dst.isDirect()) {
+            /* The address of a direct buffer is passed as is. */
+            boolean success = deadlineTimeout == PORT_TIMEOUT
+                ? IO.nativeRead(handle, dst, dst.remaining(), readBytesRef)
+                : IO.nativeReadTimeout(handle, dst, dst.remaining(), readBytesRef, deadlineTimeout);
+            if (!success)
+                throw SerialPortWindows.getException(IO.lastError());
+            readBytes = readBytesRef.getInt(0);
+            dst.position(dst.position() + readBytes);
+        } else {
+            int toRead = Math.min(dst.remaining(), ScratchMemory.MAX_SIZE);
+            Memory scratch = readScratch.get(toRead);
+            boolean success = deadlineTimeout == PORT_TIMEOUT
+                ? IO.nativeRead(handle, scratch, toRead, readBytesRef)
+                : IO.nativeReadTimeout(handle, scratch, toRead, readBytesRef, deadlineTimeout);
+            if (!success)
+                throw SerialPortWindows.getException(IO.lastError());
+            readBytes = readBytesRef.getInt(0);
+            readScratch.copyTo(dst, readBytes);
+        }
+        readDone(start, readBytes);
         return readBytes;
     }
 
     public int write(ByteBuffer src) throws IOException {
         int toWrite = src.remaining();
-        if (!SerialPortWindows.NativeWrite(handle, src, src.remaining()))
-            throw SerialPortWindows.getLastException();
-        src.position(src.limit());
+        if (src.isDirect()) {
+            long start = startCall();
+            if (!IO.nativeWrite(handle, src, src.remaining()))
+                throw SerialPortWindows.getException(IO.lastError());
+            writeDone(start, toWrite);
+            src.position(src.limit());
+        } else {
+            while (src.hasRemaining()) {
+                int count = writeScratch.copyFrom(src);
+                long start = startCall();
+                if (!IO.nativeWrite(handle, writeScratch.get(count), count))
+                    throw SerialPortWindows.getException(IO.lastError());
+                writeDone(start, count);
+                src.position(src.position() + count);
+            }
+        }
         return toWrite;
     }
 
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        ScratchMemory.checkBounds(dsts, offset, length);
+        long readBytes = readPortTimeout(dsts, offset, length);
+        countTimeout(readBytes, readBytes == 0 && timeout != SerialPort.TIMEOUT_IMMEDIATE
+            && ScratchMemory.remaining(dsts, offset, length) > 0);
+        return readBytes;
+    }
+
+    private long readPortTimeout(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        if (polled) {
+            long deadline = SerialPoller.deadline(timeout);
+            long readBytes;
+            while ((readBytes = readNow(dsts, offset, length)) == 0
+                    && ScratchMemory.remaining(dsts, offset, length) > 0 && awaitReadable(deadline))
+                continue;
+            return readBytes;
+        }
+        return readNow(dsts, offset, length);
+    }
+
+    private long readNow(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        int toRead = (int) Math.min(ScratchMemory.remaining(dsts, offset, length), ScratchMemory.MAX_SIZE);
+        long start = startCall();
+        if (!IO.nativeRead(handle, readScratch.get(toRead), toRead, readBytesRef))
+            throw SerialPortWindows.getException(IO.lastError());
+        int readBytes = readBytesRef.getInt(0);
+        readDone(start, readBytes);
+        readScratch.scatter(dsts, offset, length, readBytes);
+        return readBytes;
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /* Buffers are gathered in the scratch memory, so that a
+     * single WriteFile() is done for up to 64KB of data. */
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        ScratchMemory.checkBounds(srcs, offset, length);
+        long written = 0;
+        int count;
+        while ((count = writeScratch.gather(srcs, offset, length)) > 0) {
+            long start = startCall();
+            if (!IO.nativeWrite(handle, writeScratch.get(count), count))
+                throw SerialPortWindows.getException(IO.lastError());
+            writeDone(start, count);
+            ScratchMemory.advance(srcs, offset, length, count);
+            written += count;
+        }
+        return written;
+    }
+
     public boolean isOpen() {
         return handle != null;
     }
 
+    /* The handle is cleared before the selector is read, and selectors set
+     * the selector before reading the handle: either a selector sees the
+     * port closed, or it's waited for until it's done with the handle. */
     public void close() throws IOException {
-        if (!SerialPortWindows.NativeClose(handle))
+        Pointer closing;
+        synchronized (this) {
+            closing = handle;
+            if (closing == null)
+                return;
+            handle = null;
+        }
+        SerialSelectorWindows selector = this.selector;
+        if (selector != null)
+            selector.awaitRelease();
+        if (!SerialPortWindows.NativeClose(closing))
             throw SerialPortWindows.getLastException();
-        handle = null;
+        closeMetrics();
+        if (polled)
+            SerialPoller.channelClosed();
+    }
+
+    private boolean awaitReadable(long deadline) throws IOException {
+        if (timeout == SerialPort.TIMEOUT_IMMEDIATE)
+            return false;
+        return SerialPoller.get().await(this, SerialSelectionKey.OP_READ, deadline);
     }
 }
@@ -24,6 +24,7 @@ package dk.thibaut.serial;
 
 import dk.thibaut.serial.enums.BaudRate;
 import dk.thibaut.serial.enums.DataBits;
+import dk.thibaut.serial.enums.FlowControl;
 import dk.thibaut.serial.enums.Parity;
 import dk.thibaut.serial.enums.StopBits;
 
@@ -37,25 +38,174 @@ import dk.thibaut.serial.enums.StopBits;
  * You can also get an instance of this object by calling the
  * {@link SerialPort#getConfig()} method to access the current
  * port configuration.
+ * <p>
+ * Baudrates not listed by the {@link BaudRate} enum, like the multi-megabaud
+ * rates of USB adapters, are given to the integer constructor,
+ * {@link #BaudRate} is then {@link BaudRate#UNKNOWN}.
+ * <p>
+ * The flow control is {@link FlowControl#NONE} unless set with
+ * {@link #withFlowControl(FlowControl)}. With hardware flow control, the
+ * driver owns the handshake line (RTS or DTR), so {@link SerialPort#setRts}
+ * or {@link SerialPort#setDtr} shouldn't be used.
+ * <p>
+ * Instances are immutable, use the <code>with</code> methods to
+ * derive a modified configuration.
  */
-public class SerialConfig {
+public final class SerialConfig {
 
-    public BaudRate BaudRate;
-    public Parity Parity;
-    public StopBits StopBits;
-    public DataBits DataBits;
+    public final BaudRate BaudRate;
+    public final Parity Parity;
+    public final StopBits StopBits;
+    public final DataBits DataBits;
+    public final FlowControl FlowControl;
+
+    private final int baudRateValue;
+    private final int xonLimit;
+    private final int xoffLimit;
 
     public SerialConfig(BaudRate b, Parity p, StopBits s, DataBits d) {
+        this(b.toInteger(), b, p, s, d, dk.thibaut.serial.enums.FlowControl.NONE, 0, 0);
+    }
+
+    public SerialConfig(int baudRate, Parity p, StopBits s, DataBits d) {
+        this(baudRate, dk.thibaut.serial.enums.BaudRate.fromInteger(baudRate), p, s, d,
+            dk.thibaut.serial.enums.FlowControl.NONE, 0, 0);
+    }
+
+    SerialConfig(int baudRate, Parity p, StopBits s, DataBits d,
+                 FlowControl f, int xonLimit, int xoffLimit) {
+        this(baudRate, dk.thibaut.serial.enums.BaudRate.fromInteger(baudRate), p, s, d,
+            f, xonLimit, xoffLimit);
+    }
+
+    private SerialConfig(int baudRateValue, BaudRate b, Parity p, StopBits s, DataBits d,
+                         FlowControl f, int xonLimit, int xoffLimit) {
+        if (xonLimit < 0 || xoffLimit < 0)
+            throw new IllegalArgumentException("Negative XON/XOFF limit");
+        this.baudRateValue = baudRateValue;
         BaudRate = b;
         Parity = p;
         StopBits = s;
         DataBits = d;
+        FlowControl = f;
+        this.xonLimit = xonLimit;
+        this.xoffLimit = xoffLimit;
+    }
+
+    /**
+     * @return The baudrate as an integer, whether it's listed by
+     *      the {@link BaudRate} enum or not.
+     */
+    public int getBaudRateValue() {
+        return baudRateValue;
+    }
+
+    /**
+     * @return The number of bytes left in the receive buffer below which
+     *      XON is sent, 0 for the driver default.
+     */
+    public int getXonLimit() {
+        return xonLimit;
+    }
+
+    /**
+     * @return The number of free bytes in the receive buffer below which
+     *      XOFF is sent, 0 for the driver default.
+     */
+    public int getXoffLimit() {
+        return xoffLimit;
+    }
+
+    /**
+     * Creates a configuration with another baudrate, this one is unchanged.
+     *
+     * @param baudRate The baudrate, listed by the {@link BaudRate} enum or not.
+     * @return A copy of this configuration with the new baudrate.
+     */
+    public SerialConfig withBaudRate(int baudRate) {
+        return new SerialConfig(baudRate, Parity, StopBits, DataBits, FlowControl, xonLimit, xoffLimit);
+    }
+
+    /**
+     * Creates a configuration with another parity, this one is unchanged.
+     *
+     * @param p The parity.
+     * @return A copy of this configuration with the new parity.
+     */
+    public SerialConfig withParity(Parity p) {
+        return new SerialConfig(baudRateValue, BaudRate, p, StopBits, DataBits, FlowControl, xonLimit, xoffLimit);
+    }
+
+    /**
+     * Creates a configuration with another number of stop bits, this one
+     * is unchanged.
+     *
+     * @param s The number of stop bits.
+     * @return A copy of this configuration with the new stop bits.
+     */
+    public SerialConfig withStopBits(StopBits s) {
+        return new SerialConfig(baudRateValue, BaudRate, Parity, s, DataBits, FlowControl, xonLimit, xoffLimit);
+    }
+
+    /**
+     * Creates a configuration with another number of data bits, this one
+     * is unchanged.
+     *
+     * @param d The number of data bits.
+     * @return A copy of this configuration with the new data bits.
+     */
+    public SerialConfig withDataBits(DataBits d) {
+        return new SerialConfig(baudRateValue, BaudRate, Parity, StopBits, d, FlowControl, xonLimit, xoffLimit);
+    }
+
+    /**
+     * Creates a configuration with another flow control, this one is
+     * unchanged. The XON/XOFF thresholds are kept.
+     *
+     * @param f The flow control.
+     * @return A copy of this configuration with the new flow control.
+     */
+    public SerialConfig withFlowControl(FlowControl f) {
+        return new SerialConfig(baudRateValue, BaudRate, Parity, StopBits, DataBits, f, xonLimit, xoffLimit);
+    }
+
+    /**
+     * Creates a configuration with other thresholds for {@link FlowControl#XON_XOFF},
+     * this one is unchanged. They are only used on Windows, the Linux
+     * thresholds are fixed by the kernel.
+     *
+     * @param xonLimit The number of bytes left in the receive buffer
+     *      below which XON is sent, 0 for the driver default.
+     * @param xoffLimit The number of free bytes in the receive buffer
+     *      below which XOFF is sent, 0 for the driver default.
+     * @return A copy of this configuration with the new thresholds.
+     */
+    public SerialConfig withXonXoffLimits(int xonLimit, int xoffLimit) {
+        return new SerialConfig(baudRateValue, BaudRate, Parity, StopBits, DataBits, FlowControl, xonLimit, xoffLimit);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SerialConfig))
+            return false;
+        SerialConfig other = (SerialConfig) o;
+        return baudRateValue == other.baudRateValue && Parity == other.Parity
+            && StopBits == other.StopBits && DataBits == other.DataBits
+            && FlowControl == other.FlowControl && xonLimit == other.xonLimit
+            && xoffLimit == other.xoffLimit;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = ((baudRateValue * 31 + Parity.hashCode()) * 31
+            + StopBits.hashCode()) * 31 + DataBits.hashCode();
+        return (hash * 31 + FlowControl.hashCode()) * 31 + xonLimit * 17 + xoffLimit;
     }
 
     @Override
     public String toString() {
-        return String.format("SerialConfig(BaudRate=%s, Parity=%s, StopBits=%s, DataBits=%s",
-            BaudRate, Parity, StopBits, DataBits);
+        return String.format("SerialConfig(BaudRate=%d, Parity=%s, StopBits=%s, DataBits=%s, FlowControl=%s)",
+            baudRateValue, Parity, StopBits, DataBits, FlowControl);
     }
 
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A buffered {@link InputStream} reading from a {@link SerialPort}.
+ * <p>
+ * Bytes are read in a direct buffer allocated once, and reads are served
+ * from it: reading byte by byte doesn't do one native call per byte, and
+ * nothing is allocated. When the buffer is empty, a single native read is
+ * done, sized to what the driver has queued (or to what was requested if
+ * it's more), so that the port timeout behaves as with an unbuffered stream.
+ * <p>
+ * When the timeout expires without any byte received, {@link #read()}
+ * returns -1 and {@link #read(byte[], int, int)} returns 0, like the stream
+ * returned by {@link java.nio.channels.Channels#newInputStream}. This is
+ * always the case with {@link SerialPort#TIMEOUT_IMMEDIATE} when nothing
+ * is available.
+ */
+public class SerialInputStream extends InputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    private final SerialPort port;
+    private final SerialChannel channel;
+    /* Not synchronized, it would pin virtual threads while reading. */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ByteBuffer buffer;
+
+    public SerialInputStream(SerialPort port) throws IOException {
+        this(port, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param port The port to read from.
+     * @param bufferSize The size of the buffer, the maximum read at once.
+     * @throws IOException If the port channel can't be retrieved.
+     */
+    public SerialInputStream(SerialPort port, int bufferSize) throws IOException {
+        this(port, port.getChannel(), bufferSize);
+    }
+
+    SerialInputStream(SerialPort port, SerialChannel channel, int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+        this.port = port;
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.buffer.limit(0);
+    }
+
+    @Override
+    public int read() throws IOException {
+        lock.lock();
+        try {
+            if (!buffer.hasRemaining() && fill(1) <= 0)
+                return -1;
+            return buffer.get() & 0xFF;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        lock.lock();
+        try {
+            if (!buffer.hasRemaining() && fill(len) <= 0)
+                return 0;
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Skip bytes, reading them if needed. Less bytes are skipped if
+     * a read returns no bytes, depending on the port timeout.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0)
+            return 0;
+        lock.lock();
+        try {
+            long skipped = 0;
+            while (skipped < n) {
+                if (!buffer.hasRemaining() && fill((int) Math.min(n - skipped, buffer.capacity())) <= 0)
+                    break;
+                int count = (int) Math.min(n - skipped, buffer.remaining());
+                buffer.position(buffer.position() + count);
+                skipped += count;
+            }
+            return skipped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of bytes buffered, plus the bytes queued by the driver.
+     */
+    @Override
+    public int available() throws IOException {
+        lock.lock();
+        try {
+            return buffer.remaining() + channel.available();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the port.
+     */
+    @Override
+    public void close() throws IOException {
+        port.close();
+    }
+
+    /* Called with the lock held, when the buffer is empty. */
+    private int fill(int wanted) throws IOException {
+        int toRead = Math.min(buffer.capacity(), Math.max(wanted, channel.available()));
+        buffer.clear();
+        buffer.limit(toRead);
+        int count;
+        try {
+            count = channel.read(buffer);
+        } finally {
+            buffer.flip();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.CancelledKeyException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A shared thread waiting for ports readiness on behalf of other threads.
+ * <p>
+ * It's used by ports in polled mode (see {@link SerialPort#setPolled(boolean)}):
+ * instead of blocking inside a native call, a reader or a writer parks until
+ * this thread finds the port ready. A parked virtual thread doesn't pin its
+ * carrier thread, unlike a virtual thread blocked in a native call.
+ * <p>
+ * It also watches the modem lines of the ports having a {@link ModemLineListener},
+ * the listeners being called from another shared thread.
+ * <p>
+ * No monitor is held while parking, as it would also pin the carrier.
+ */
+final class SerialPoller {
+
+    private static SerialPoller instance;
+
+    /* Delay before trying again to open a selector, in nanoseconds. */
+    private static final long REOPEN_DELAY = 100000000L;
+
+    /* Replaced by the poller thread if it's ever closed. */
+    private volatile SerialSelector selector;
+    private final Queue<Waiter> requests = new ConcurrentLinkedQueue<>();
+    private final Queue<ModemWatch> modemRequests = new ConcurrentLinkedQueue<>();
+    private final ExecutorService modemDispatcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SerialModemEvents");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /* Only accessed by the poller thread. */
+    private final Map<SerialChannel, Waiters> waiters = new HashMap<>();
+
+    private static class Waiter {
+        final SerialChannel channel;
+        final int op;
+        final Thread thread;
+        volatile boolean ready;
+        volatile boolean cancelled;
+
+        Waiter(SerialChannel channel, int op, Thread thread) {
+            this.channel = channel;
+            this.op = op;
+            this.thread = thread;
+        }
+
+        void signal() {
+            ready = true;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /* A port whose listeners are called when its modem status changes. */
+    private static class ModemWatch {
+        final SerialPort port;
+        final SerialChannel channel;
+        final boolean cancelled;
+        /* Only accessed by the poller thread. */
+        ModemStatus status;
+
+        ModemWatch(SerialPort port, SerialChannel channel, boolean cancelled) {
+            this.port = port;
+            this.channel = channel;
+            this.cancelled = cancelled;
+        }
+    }
+
+    /* The threads waiting for a channel, one reader and one writer,
+     * and the modem watch of its port. */
+    private static class Waiters {
+        Waiter read;
+        Waiter write;
+        ModemWatch modem;
+
+        int interestOps() {
+            return (read != null ? SerialSelectionKey.OP_READ : 0)
+                | (write != null ? SerialSelectionKey.OP_WRITE : 0)
+                | (modem != null ? SerialSelectionKey.OP_MODEM : 0);
+        }
+    }
+
+    private SerialPoller() throws IOException {
+        selector = SerialSelector.open();
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                poll();
+            }
+        }, "SerialPoller");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static synchronized SerialPoller get() throws IOException {
+        if (instance == null)
+            instance = new SerialPoller();
+        return instance;
+    }
+
+    /**
+     * Must be called when a channel in polled mode is closed, so that
+     * threads waiting for it are released.
+     */
+    static synchronized void channelClosed() {
+        if (instance != null)
+            instance.selector.wakeup();
+    }
+
+    /**
+     * Computes the deadline to pass to {@link #await} for a read timeout.
+     */
+    static long deadline(int timeout) {
+        return timeout > 0 ? System.nanoTime() + timeout * 1000000L : 0;
+    }
+
+    /**
+     * Parks the current thread until the channel is ready for the operation.
+     *
+     * @param channel The channel to wait for.
+     * @param op {@link SerialSelectionKey#OP_READ} or {@link SerialSelectionKey#OP_WRITE}.
+     * @param deadline The {@link System#nanoTime()} at which to give up, or 0 to wait indefinitely.
+     * @return True if the channel is ready (or has been closed), false if the deadline passed.
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+    boolean await(SerialChannel channel, int op, long deadline) throws InterruptedIOException {
+        Waiter waiter = new Waiter(channel, op, Thread.currentThread());
+        submit(waiter);
+        while (!waiter.ready) {
+            if (deadline == 0) {
+                LockSupport.park(this);
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    cancel(waiter);
+                    return waiter.ready;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            if (Thread.currentThread().isInterrupted() && !waiter.ready) {
+                cancel(waiter);
+                throw new InterruptedIOException();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts calling the modem listeners of the port when its status changes.
+     */
+    void watchModem(SerialPort port, SerialChannel channel) {
+        modemRequests.add(new ModemWatch(port, channel, false));
+        selector.wakeup();
+    }
+
+    void unwatchModem(SerialChannel channel) {
+        modemRequests.add(new ModemWatch(null, channel, true));
+        selector.wakeup();
+    }
+
+    private void submit(Waiter waiter) {
+        requests.add(waiter);
+        selector.wakeup();
+    }
+
+    private void cancel(Waiter waiter) {
+        waiter.cancelled = true;
+        submit(waiter);
+    }
+
+    private void poll() {
+        boolean reattach = false;
+        while (true) {
+            try {
+                if (reattach) {
+                    reattach = false;
+                    reattach();
+                }
+                processRequests();
+                selector.select();
+                Iterator<SerialSelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SerialSelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid())
+                        continue;
+                    Waiters channelWaiters = (Waiters) key.attachment();
+                    int readyOps;
+                    try {
+                        readyOps = key.readyOps();
+                    } catch (CancelledKeyException e) {
+                        /* Closed since select() returned, its waiters
+                         * are released by processRequests(). */
+                        continue;
+                    }
+                    if ((readyOps & SerialSelectionKey.OP_READ) != 0 && channelWaiters.read != null) {
+                        channelWaiters.read.signal();
+                        channelWaiters.read = null;
+                    }
+                    if ((readyOps & SerialSelectionKey.OP_WRITE) != 0 && channelWaiters.write != null) {
+                        channelWaiters.write.signal();
+                        channelWaiters.write = null;
+                    }
+                    if ((readyOps & SerialSelectionKey.OP_MODEM) != 0 && channelWaiters.modem != null)
+                        modemChanged(channelWaiters.modem);
+                    update(key.channel(), channelWaiters);
+                }
+            } catch (IOException | RuntimeException e) {
+                /* A channel is probably in a bad state, signal everyone so
+                 * that the error is reported by the native calls. The modem
+                 * watches are kept, and registered again if the selector had
+                 * to be replaced. */
+                Iterator<Waiters> iterator = waiters.values().iterator();
+                while (iterator.hasNext()) {
+                    Waiters channelWaiters = iterator.next();
+                    signalAll(channelWaiters);
+                    if (channelWaiters.modem == null)
+                        iterator.remove();
+                }
+                if (!selector.isOpen())
+                    reopen();
+                reattach = true;
+            }
+        }
+    }
+
+    /* Keys of channels nobody waits for anymore are left without
+     * interest, the others get their remaining waiters. */
+    private void reattach() throws IOException {
+        for (SerialSelectionKey key : new ArrayList<>(selector.keys())) {
+            if (!waiters.containsKey(key.channel())) {
+                try {
+                    key.interestOps(0);
+                    key.attach(new Waiters());
+                } catch (CancelledKeyException e) {
+                    /* The channel was closed concurrently. */
+                }
+            }
+        }
+        for (Map.Entry<SerialChannel, Waiters> entry : waiters.entrySet())
+            update(entry.getKey(), entry.getValue());
+    }
+
+    /* Threads waiting for the closed selector were released, the
+     * ones waiting from now on use the new selector. */
+    private void reopen() {
+        while (true) {
+            try {
+                selector = SerialSelector.open();
+                return;
+            } catch (IOException e) {
+                LockSupport.parkNanos(REOPEN_DELAY);
+            }
+        }
+    }
+
+    private void processRequests() throws IOException {
+        Waiter waiter;
+        while ((waiter = requests.poll()) != null) {
+            Waiters channelWaiters = waiters.get(waiter.channel);
+            if (waiter.cancelled) {
+                if (channelWaiters == null)
+                    continue;
+                if (channelWaiters.read == waiter)
+                    channelWaiters.read = null;
+                if (channelWaiters.write == waiter)
+                    channelWaiters.write = null;
+            } else {
+                if (channelWaiters == null) {
+                    channelWaiters = new Waiters();
+                    waiters.put(waiter.channel, channelWaiters);
+                }
+                if (waiter.op == SerialSelectionKey.OP_READ)
+                    channelWaiters.read = waiter;
+                else
+                    channelWaiters.write = waiter;
+            }
+            update(waiter.channel, channelWaiters);
+        }
+
+        ModemWatch watch;
+        while ((watch = modemRequests.poll()) != null) {
+            Waiters channelWaiters = waiters.get(watch.channel);
+            if (watch.cancelled) {
+                if (channelWaiters == null)
+                    continue;
+                channelWaiters.modem = null;
+            } else {
+                if (channelWaiters == null) {
+                    channelWaiters = new Waiters();
+                    waiters.put(watch.channel, channelWaiters);
+                }
+                watch.status = readModemStatus(watch.port);
+                channelWaiters.modem = watch;
+            }
+            update(watch.channel, channelWaiters);
+        }
+
+        /* Threads waiting for a closed channel are released, the
+         * native call they will do reports the error. */
+        Iterator<Map.Entry<SerialChannel, Waiters>> iterator = waiters.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<SerialChannel, Waiters> entry = iterator.next();
+            if (!entry.getKey().isOpen()) {
+                signalAll(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    /* Keys are kept with an empty interest set when nobody is waiting,
+     * they are removed by the selector when the channel is closed. */
+    private void update(SerialChannel channel, Waiters channelWaiters) throws IOException {
+        if (!channel.isOpen())
+            return;
+        int ops = channelWaiters.interestOps();
+        SerialSelectionKey key = selector.keyFor(channel);
+        try {
+            if (key == null)
+                selector.register(channel, ops, channelWaiters);
+            else {
+                key.interestOps(ops);
+                key.attach(channelWaiters);
+            }
+        } catch (CancelledKeyException e) {
+            /* The channel was closed concurrently. */
+        }
+    }
+
+    /* The selector only tells that something changed, the
+     * listeners are given the events since the last status. */
+    private void modemChanged(final ModemWatch watch) {
+        final ModemStatus status = readModemStatus(watch.port);
+        if (status == null)
+            return;
+        final int events = watch.status == null ? 0 : status.changes(watch.status);
+        watch.status = status;
+        if (events == 0)
+            return;
+        modemDispatcher.execute(new Runnable() {
+            public void run() {
+                for (ModemLineListener listener : watch.port.getModemLineListeners()) {
+                    try {
+                        listener.modemLinesChanged(watch.port, events, status);
+                    } catch (RuntimeException e) {
+                        /* A failing listener doesn't prevent the others from being called. */
+                    }
+                }
+            }
+        });
+    }
+
+    /* Ports without modem lines (pseudo-terminals...) are watched, but never report events. */
+    private static ModemStatus readModemStatus(SerialPort port) {
+        try {
+            return port.getModemStatus();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void signalAll(Waiters channelWaiters) {
+        if (channelWaiters.read != null)
+            channelWaiters.read.signal();
+        if (channelWaiters.write != null)
+            channelWaiters.write.signal();
+        channelWaiters.read = null;
+        channelWaiters.write = null;
+    }
+}
@@ -10,6 +10,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.channels.ClosedChannelException;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * This class represents a physical serial port.
@@ -17,7 +18,9 @@ import java.util.List;
  * You will never instantiate it directly, instead you must use the
  * {@link #getAvailablePortsNames} static function to retrieve a list of
  * currently available ports name and get an instance of {@link SerialPort}
- * by calling the {@link #open(String)} static method.
+ * by calling the {@link #open(String)} static method. {@link SerialPortRegistry}
+ * keeps a cached list of the ports with the metadata of their devices, and
+ * reports the ports plugged and unplugged.
  * <p>
  * You can configure the serial connection using {@link #setConfig(SerialConfig)}
  * and {@link #setTimeout}. After calling {@link #open(String)}, you can call
@@ -31,14 +34,38 @@ public abstract class SerialPort {
     public static final int TIMEOUT_INFINITE = -1;
     public static final int TIMEOUT_IMMEDIATE = 0;
 
+    /**
+     * The prefix of the names of the in-process loopback ports,
+     * see {@link #open(String)}.
+     */
+    public static final String LOOPBACK_PREFIX = "loop:";
+
     protected InputStream inputStream;
-    protected OutputStream outputStream;
+    protected CoalescingOutputStream outputStream;
     protected String name;
+    private BackgroundReader backgroundReader;
+    private volatile SerialConfig configSnapshot;
+    private volatile SerialPortMetrics metrics;
+    private final List<ModemLineListener> modemListeners = new CopyOnWriteArrayList<>();
 
     protected SerialPort(String portName) {
         this.name = portName;
     }
 
+    /**
+     * Returns the backend making the native calls of the reads and writes.
+     * <p>
+     * It's "ffm" on Java 22 and later, where the multi-release JAR binds them
+     * with the Foreign Function and Memory API, and "jna" on older JDKs,
+     * 32-bit JVMs, or when the {@code dk.thibaut.serial.backend} system
+     * property is "jna". The other native calls always go through JNA.
+     *
+     * @return The name of the backend, "ffm" or "jna".
+     */
+    public static String getNativeBackend() {
+        return NativeIO.INSTANCE.getName();
+    }
+
     /**
      * Get the list of available serial ports on the system.
      * <p>
@@ -51,6 +78,8 @@ public abstract class SerialPort {
         String os = System.getProperty("os.name").toLowerCase();
         if (os.startsWith("windows"))
             return SerialPortWindows.getAvailablePortsNames();
+        if (os.startsWith("linux"))
+            return SerialPortPosix.getAvailablePortsNames();
         throw new RuntimeException("Platform not supported by SerialPort.");
     }
 
@@ -63,6 +92,23 @@ public abstract class SerialPort {
      * The port will remain opened until the underlying {@link SerialChannel}
      * is closed, or the {@link #close()} method is called. A closed port cannot
      * be opened again, you must get a new instance using this function.
+     * <p>
+     * Names starting with {@link #LOOPBACK_PREFIX} open pure Java ports, on any
+     * platform, to test and benchmark without any device:
+     * <code>loop:name/A</code> and <code>loop:name/B</code> are the two ends of
+     * a null-modem cable, and <code>loop:name</code> is connected to itself.
+     * Writes take the time the bytes would take on the wire, according to the
+     * configuration of the writing port, and the bytes which don't fit in the
+     * receive queue are lost (see {@link #setQueueSizes(int, int)}), unless both
+     * ports use the same flow control. Options can be appended to configure the
+     * bytes received by the port, like <code>loop:name/A?drop=0.01&amp;seed=1</code>:
+     * <ul>
+     *  <li><code>timing=false</code>: bytes are received as soon as they are written.</li>
+     *  <li><code>drop=p</code>: each byte is lost with the probability p.</li>
+     *  <li><code>errors=p</code>: each byte is received as 0 with a framing error,
+     *  with the probability p.</li>
+     *  <li><code>seed=n</code>: the seed of the random faults, 0 by default.</li>
+     * </ul>
      *
      * @param portName The platform-specific name of the port.
      * @return An opened {@link SerialPort}.
@@ -70,9 +116,13 @@ public abstract class SerialPort {
      * @throws RuntimeException If the platform is not supported.
      */
     public static SerialPort open(String portName) throws IOException {
+        if (portName.startsWith(LOOPBACK_PREFIX))
+            return SerialPortLoopback.openLoopback(portName);
         String os = System.getProperty("os.name").toLowerCase();
         if (os.startsWith("windows"))
             return new SerialPortWindows(portName);
+        if (os.startsWith("linux"))
+            return new SerialPortPosix(portName);
         throw new RuntimeException("Platform not supported by SerialPort.");
     }
 
@@ -87,6 +137,8 @@ public abstract class SerialPort {
 
     /**
      * Get an {@link InputStream} that can be used to read data from the port.
+     * <p>
+     * The stream is buffered, see {@link SerialInputStream}.
      *
      * @return An InputStream object, wrapping the native {@link SerialChannel}
      * @throws ClosedChannelException If the serial port is closed.
@@ -109,6 +161,104 @@ public abstract class SerialPort {
         return outputStream;
     }
 
+    /**
+     * Start reading the port from a dedicated thread.
+     * <p>
+     * Received bytes are stored in a ring buffer until the application reads
+     * them, so they are not lost when the application stalls. Once started,
+     * the port must only be read using the returned {@link BackgroundReader},
+     * until it's closed. The port is switched to polled mode while the reader
+     * runs (see {@link #setPolled(boolean)}).
+     *
+     * @param capacity The size of the ring buffer, rounded up to a power of two.
+     * @return The reader.
+     * @throws IllegalStateException If a reader is already running.
+     * @throws IOException If an error occurs when calling the native function.
+     * @throws ClosedChannelException If the serial port is closed.
+     */
+    public synchronized BackgroundReader startBackgroundReader(int capacity) throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        if (backgroundReader != null)
+            throw new IllegalStateException("A background reader is already running");
+        backgroundReader = new BackgroundReader(this, capacity);
+        return backgroundReader;
+    }
+
+    /**
+     * Get the background reader started by {@link #startBackgroundReader(int)}.
+     *
+     * @return The reader, or null if none is running.
+     */
+    public synchronized BackgroundReader getBackgroundReader() {
+        return backgroundReader;
+    }
+
+    synchronized void stopBackgroundReader(BackgroundReader reader) throws IOException {
+        if (backgroundReader != reader)
+            return;
+        backgroundReader = null;
+        reader.stop();
+    }
+
+    /**
+     * Enable write coalescing on the stream returned by {@link #getOutputStream()}.
+     * <p>
+     * Small writes are batched in a buffer, written when full, when the stream
+     * is flushed, or at most <code>lingerMillis</code> after the first buffered
+     * byte was written. Writes done on the {@link SerialChannel} aren't affected.
+     * By default, nothing is buffered.
+     *
+     * @param threshold The buffer size, 0 to disable coalescing.
+     * @param lingerMillis The maximum time bytes stay in the buffer.
+     * @see CoalescingOutputStream
+     * @throws IOException If an error occurs while writing the buffered bytes.
+     * @throws ClosedChannelException If the serial port is closed.
+     */
+    public void setOutputCoalescing(int threshold, int lingerMillis) throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        outputStream.setCoalescing(threshold, lingerMillis);
+    }
+
+    /**
+     * Enable or disable the I/O metrics of this port.
+     * <p>
+     * Metrics are disabled by default. Once enabled, the reads and writes of
+     * the {@link SerialChannel} (and so of the streams) are counted, and the
+     * {@link SerialPortMetrics} are published in the platform MBean server
+     * until the port is closed. Disabling them discards the counts.
+     *
+     * @param enabled True to enable the metrics.
+     * @throws IOException If the metrics can't be published.
+     * @throws ClosedChannelException If the serial port is closed.
+     */
+    public synchronized void setMetricsEnabled(boolean enabled) throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        AbstractSerialChannel channel = (AbstractSerialChannel) getChannel();
+        if (enabled && metrics == null) {
+            SerialPortMetrics created = new SerialPortMetrics(this);
+            created.register();
+            channel.setMetrics(created);
+            metrics = created;
+        } else if (!enabled && metrics != null) {
+            channel.setMetrics(null);
+            metrics.unregister();
+            metrics = null;
+        }
+    }
+
+    /**
+     * Get the metrics enabled by {@link #setMetricsEnabled(boolean)}.
+     * They stay readable once the port is closed.
+     *
+     * @return The metrics, or null if they are disabled.
+     */
+    public SerialPortMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * A shortcut to {@link #setConfig(SerialConfig)}.
      *
@@ -125,21 +275,59 @@ public abstract class SerialPort {
 
     /**
      * Sets the configuration to use for this port.
+     * <p>
+     * The configuration is applied in a single native call, then
+     * read back to update the snapshot returned by {@link #getConfig()}.
      *
      * @param config The configuration to apply.
      * @see #setConfig(BaudRate, Parity, StopBits, DataBits)
      * @throws IOException If an error occurs when calling the native function.
      * @throws ClosedChannelException If the serial port is closed.
      */
-    public abstract void setConfig(SerialConfig config) throws IOException;
+    public synchronized void setConfig(SerialConfig config) throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        configSnapshot = null;
+        configSnapshot = applyConfig(config);
+    }
 
     /**
      * Returns the current configuration of this port.
+     * <p>
+     * The configuration is read from the driver once, then cached until
+     * the next {@link #setConfig(SerialConfig)} or {@link #invalidateConfig()}.
+     * It may differ from the one given to {@link #setConfig(SerialConfig)}
+     * when the driver doesn't support some settings.
      *
      * @return A SerialConfig object containing current settings.
      * @throws IOException If an error occurs when calling the native function.
+     * @throws ClosedChannelException If the serial port is closed.
      */
-    public abstract SerialConfig getConfig() throws IOException;
+    public SerialConfig getConfig() throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        SerialConfig snapshot = configSnapshot;
+        if (snapshot != null)
+            return snapshot;
+        synchronized (this) {
+            if (configSnapshot == null)
+                configSnapshot = readConfig();
+            return configSnapshot;
+        }
+    }
+
+    /**
+     * Forces the next {@link #getConfig()} to read the configuration from the
+     * driver, when it may have been changed outside of this object.
+     */
+    public void invalidateConfig() {
+        configSnapshot = null;
+    }
+
+    /* Both return the configuration actually used by the driver. */
+    abstract SerialConfig applyConfig(SerialConfig config) throws IOException;
+
+    abstract SerialConfig readConfig() throws IOException;
 
     /**
      * Sets the read timeout for this port.
@@ -149,6 +337,13 @@ public abstract class SerialPort {
      *  <li>{@link #TIMEOUT_INFINITE}: Read calls won't return until some bytes are available.</li>
      *  <li>{@link #TIMEOUT_IMMEDIATE}: Read calls will return immediately, even if no bytes are available.</li>
      * </ul>
+     * <p>
+     * On Linux, a blocking read returns as soon as some bytes are available,
+     * it doesn't wait for the buffer to be filled or for an inter-byte gap.
+     * On Windows, with {@link #TIMEOUT_INFINITE} a read returns after an
+     * inter-byte gap of 10ms, and with a positive timeout it waits for the
+     * buffer to be filled. Use {@link #setReadTimeouts(ReadTimeouts)} to
+     * choose this behavior; this function also disables the low-latency mode.
      *
      * @param timeout The timeout value, in milliseconds.
      * @throws IOException If an error occurs when calling the native function.
@@ -168,6 +363,71 @@ public abstract class SerialPort {
      */
     public abstract int getTimeout() throws IOException;
 
+    /**
+     * Sets both the total and inter-byte read timeouts, and the low-latency
+     * mode. See {@link ReadTimeouts} for their meaning.
+     *
+     * @param timeouts The new timeouts.
+     * @throws IOException If an error occurs when calling the native function.
+     * @throws ClosedChannelException If the serial port is closed.
+     */
+    public abstract void setReadTimeouts(ReadTimeouts timeouts) throws IOException;
+
+    /**
+     * Returns the current read timeouts, as set by {@link #setTimeout(int)}
+     * or {@link #setReadTimeouts(ReadTimeouts)}.
+     *
+     * @return The current timeouts.
+     * @throws IOException If an error occurs when calling the native function.
+     * @throws ClosedChannelException If the serial port is closed.
+     */
+    public abstract ReadTimeouts getReadTimeouts() throws IOException;
+
+    /**
+     * Sets the size of the driver receive and transmit queues.
+     * <p>
+     * On Windows, this calls SetupComm(), and the driver may choose other
+     * sizes. On Linux, the tty buffers are sized by the kernel, the
+     * arguments are only checked.
+     * Use {@link SerialChannel#available()} and {@link SerialChannel#pendingOutput()}
+     * to know how many bytes are in these queues.
+     *
+     * @param rx The recommended receive queue size, in bytes.
+     * @param tx The recommended transmit queue size, in bytes.
+     * @throws IOException If an error occurs when calling the native function.
+     * @throws ClosedChannelException If the serial port is closed.
+     */
+    public abstract void setQueueSizes(int rx, int tx) throws IOException;
+
+    /**
+     * Enable or disable the polled I/O mode.
+     * <p>
+     * By default, a blocking read waits inside the native read call, which
+     * occupies the calling thread and, for a virtual thread, its carrier.
+     * In polled mode, the port is switched to non-blocking I/O and waiting
+     * threads are parked while a single shared thread waits for all the
+     * polled ports using a {@link SerialSelector}. Read calls keep the
+     * semantic of the current timeout, and no monitor is held while waiting,
+     * so thousands of virtual threads can wait on ports using only a few
+     * carrier threads.
+     * <p>
+     * On Windows, writes still block in the driver until the data is queued,
+     * and a polled port can't be registered in another {@link SerialSelector}.
+     *
+     * @param polled True to enable the polled mode.
+     * @throws IOException If an error occurs when calling the native function.
+     * @throws ClosedChannelException If the serial port is closed.
+     */
+    public abstract void setPolled(boolean polled) throws IOException;
+
+    /**
+     * Get the current I/O mode, the default being not polled.
+     *
+     * @return True if the polled mode is enabled.
+     * @see #setPolled(boolean)
+     */
+    public abstract boolean isPolled();
+
     /**
      * Get the associated {@link SerialChannel} that can used to read and write data.
      * <p>
@@ -192,6 +452,12 @@ public abstract class SerialPort {
      * Close the port.
      * <p>
      * After closing the port, you can't re-open it, and you should not use it.
+     * Closing a closed port has no effect.
+     * <p>
+     * On Linux, a thread blocked in a read with {@link #TIMEOUT_INFINITE} is
+     * not woken up by closing the port, it returns once a byte is received.
+     * Use another timeout, or the polled mode (see {@link #setPolled(boolean)})
+     * whose waiting threads are released when the port is closed.
      *
      * @throws IOException If an error occurs when calling the native function.
      */
@@ -233,4 +499,50 @@ public abstract class SerialPort {
      */
     public abstract boolean getDsr() throws IOException;
 
+    /**
+     * Get the state of all the modem input lines, and the number of
+     * breaks and line errors received, with a single call.
+     *
+     * @return A snapshot of the modem status.
+     * @throws IOException If an error occurs when calling the native function.
+     * @throws ClosedChannelException If the serial port is closed.
+     */
+    public abstract ModemStatus getModemStatus() throws IOException;
+
+    /**
+     * Registers a listener called when the modem lines change, or when a
+     * break or a line error is received. All the ports share the same
+     * watcher thread, see {@link ModemLineListener}.
+     *
+     * @param listener The listener to add.
+     * @throws IOException If the port can't be watched.
+     * @throws ClosedChannelException If the serial port is closed.
+     */
+    public void addModemLineListener(ModemLineListener listener) throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        synchronized (modemListeners) {
+            modemListeners.add(listener);
+            if (modemListeners.size() == 1)
+                SerialPoller.get().watchModem(this, getChannel());
+        }
+    }
+
+    /**
+     * Removes a listener added by {@link #addModemLineListener(ModemLineListener)}.
+     * A closed port isn't watched anymore, whatever its listeners.
+     *
+     * @param listener The listener to remove.
+     * @throws IOException If the port can't be watched anymore.
+     */
+    public void removeModemLineListener(ModemLineListener listener) throws IOException {
+        synchronized (modemListeners) {
+            if (modemListeners.remove(listener) && modemListeners.isEmpty() && isOpen())
+                SerialPoller.get().unwatchModem(getChannel());
+        }
+    }
+
+    List<ModemLineListener> getModemLineListeners() {
+        return modemListeners;
+    }
 }
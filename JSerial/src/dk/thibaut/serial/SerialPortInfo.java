@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+/**
+ * Describes a serial port of the system, as listed by {@link SerialPortRegistry}.
+ * <p>
+ * Besides the name to give to {@link SerialPort#open(String)}, it has the
+ * metadata of the device, so that the right port can be found without
+ * opening each one. Metadata not reported by the device or the platform
+ * is {@code null}, or {@link #ID_UNKNOWN} for the USB identifiers.
+ * Instances are immutable.
+ */
+public final class SerialPortInfo {
+
+    /** Vendor or product ID of a device which isn't an USB one. */
+    public static final int ID_UNKNOWN = -1;
+
+    private final String name;
+    private final String description;
+    private final String manufacturer;
+    private final String serialNumber;
+    private final String driver;
+    private final int vendorId;
+    private final int productId;
+
+    SerialPortInfo(String name, String description, String manufacturer,
+                   String serialNumber, String driver, int vendorId, int productId) {
+        this.name = name;
+        this.description = description;
+        this.manufacturer = manufacturer;
+        this.serialNumber = serialNumber;
+        this.driver = driver;
+        this.vendorId = vendorId;
+        this.productId = productId;
+    }
+
+    /** A port without any metadata. */
+    SerialPortInfo(String name) {
+        this(name, null, null, null, null, ID_UNKNOWN, ID_UNKNOWN);
+    }
+
+    /** @return The platform-specific name, to give to {@link SerialPort#open(String)}. */
+    public String getName() {
+        return name;
+    }
+
+    /** @return The product name or the friendly name of the device. */
+    public String getDescription() {
+        return description;
+    }
+
+    public String getManufacturer() {
+        return manufacturer;
+    }
+
+    /** @return The serial number of an USB device, which identifies it whatever the USB port used. */
+    public String getSerialNumber() {
+        return serialNumber;
+    }
+
+    /** @return The name of the kernel driver (Linux) or of the driver service (Windows). */
+    public String getDriver() {
+        return driver;
+    }
+
+    /** @return The USB vendor ID, or {@link #ID_UNKNOWN}. */
+    public int getVendorId() {
+        return vendorId;
+    }
+
+    /** @return The USB product ID, or {@link #ID_UNKNOWN}. */
+    public int getProductId() {
+        return productId;
+    }
+
+    public boolean isUsb() {
+        return vendorId != ID_UNKNOWN;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SerialPortInfo))
+            return false;
+        SerialPortInfo other = (SerialPortInfo) o;
+        return name.equals(other.name) && vendorId == other.vendorId
+            && productId == other.productId && equal(description, other.description)
+            && equal(manufacturer, other.manufacturer) && equal(serialNumber, other.serialNumber)
+            && equal(driver, other.driver);
+    }
+
+    @Override
+    public int hashCode() {
+        return (name.hashCode() * 31 + vendorId) * 31 + productId;
+    }
+
+    @Override
+    public String toString() {
+        if (!isUsb())
+            return String.format("SerialPortInfo(%s, Driver=%s)", name, driver);
+        return String.format("SerialPortInfo(%s, Driver=%s, VID=%04x, PID=%04x, Serial=%s, %s %s)",
+            name, driver, vendorId, productId, serialNumber, manufacturer, description);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
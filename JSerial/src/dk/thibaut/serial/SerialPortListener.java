@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+/**
+ * Receives the ports plugged and unplugged, as seen by {@link SerialPortRegistry}.
+ * <p>
+ * Listeners are called from the registry thread, or from the thread calling
+ * {@link SerialPortRegistry#refresh()}, never concurrently. A device whose
+ * metadata changed is reported as removed, then added again.
+ */
+public interface SerialPortListener {
+
+    /**
+     * Called when a port appeared.
+     *
+     * @param port The new port.
+     */
+    void portAdded(SerialPortInfo port);
+
+    /**
+     * Called when a port disappeared. Opened instances of this port
+     * fail with an {@link java.io.IOException} on their next operation.
+     *
+     * @param port The port removed, as it was last seen.
+     */
+    void portRemoved(SerialPortInfo port);
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import dk.thibaut.serial.enums.BaudRate;
+import dk.thibaut.serial.enums.DataBits;
+import dk.thibaut.serial.enums.FlowControl;
+import dk.thibaut.serial.enums.Parity;
+import dk.thibaut.serial.enums.StopBits;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * The ports of a pair are connected by a null-modem cable: the data lines
+ * and RTS to CTS, DTR to DSR and DCD. A port without an end letter is
+ * connected to itself the same way, like a loopback plug.
+ */
+class SerialPortLoopback extends SerialPort {
+
+    /* errno values, as reported by the Linux ports. */
+    private static final int EBUSY = 16;
+    private static final int EINVAL = 22;
+
+    private static final Map<String, Pair> pairs = new HashMap<>();
+
+    private final String pairName;
+    private final Pair pair;
+    private final int end;
+    private final LoopbackLine rxLine;
+    private final LoopbackLine txLine;
+    private final SerialChannelLoopback channel;
+    private SerialConfig config = new SerialConfig(BaudRate.B9600, Parity.NONE, StopBits.ONE, DataBits.D8);
+    private ReadTimeouts readTimeouts = new ReadTimeouts(TIMEOUT_INFINITE, 0);
+    private volatile boolean polled;
+    private volatile boolean rts = true;
+    private volatile boolean dtr = true;
+
+    /* The ends of a pair, each one receiving from its own line. */
+    private static final class Pair {
+        final boolean looped;
+        final LoopbackLine[] lines;
+        final SerialPortLoopback[] ends;
+
+        Pair(boolean looped) {
+            this.looped = looped;
+            lines = looped ? new LoopbackLine[] { new LoopbackLine() }
+                : new LoopbackLine[] { new LoopbackLine(), new LoopbackLine() };
+            ends = new SerialPortLoopback[lines.length];
+        }
+    }
+
+    /* Parses loop:<pair>[/A|/B][?option=value&...] and opens the port. */
+    static SerialPort openLoopback(String portName) throws IOException {
+        String path = portName.substring(LOOPBACK_PREFIX.length());
+        String query = null;
+        int question = path.indexOf('?');
+        if (question >= 0) {
+            query = path.substring(question + 1);
+            path = path.substring(0, question);
+        }
+        int end = 0;
+        boolean looped = true;
+        if (path.endsWith("/A") || path.endsWith("/B")) {
+            end = path.charAt(path.length() - 1) - 'A';
+            looped = false;
+            path = path.substring(0, path.length() - 2);
+        }
+        if (path.isEmpty() || path.indexOf('/') >= 0)
+            throw new SerialException(EINVAL, "Invalid loopback port name: " + portName);
+
+        boolean timed = true;
+        double dropRate = 0;
+        double errorRate = 0;
+        long seed = 0;
+        if (query != null && !query.isEmpty()) {
+            for (String option : query.split("&")) {
+                int equal = option.indexOf('=');
+                String key = equal < 0 ? option : option.substring(0, equal);
+                String value = equal < 0 ? "" : option.substring(equal + 1);
+                try {
+                    if (key.equals("timing") && (value.equals("true") || value.equals("false")))
+                        timed = Boolean.parseBoolean(value);
+                    else if (key.equals("drop"))
+                        dropRate = parseRate(value);
+                    else if (key.equals("errors"))
+                        errorRate = parseRate(value);
+                    else if (key.equals("seed"))
+                        seed = Long.parseLong(value);
+                    else
+                        throw new NumberFormatException();
+                } catch (NumberFormatException e) {
+                    throw new SerialException(EINVAL, "Invalid loopback option: " + option);
+                }
+            }
+        }
+
+        synchronized (pairs) {
+            Pair pair = pairs.get(path);
+            if (pair == null) {
+                pair = new Pair(looped);
+                pairs.put(path, pair);
+            }
+            if (pair.looped != looped || pair.ends[end] != null)
+                throw new SerialException(EBUSY, "Device or resource busy");
+            SerialPortLoopback port = new SerialPortLoopback(portName, path, pair, end,
+                timed, dropRate, errorRate, seed);
+            pair.ends[end] = port;
+            return port;
+        }
+    }
+
+    private static double parseRate(String value) {
+        double rate = Double.parseDouble(value);
+        if (!(rate >= 0 && rate <= 1))
+            throw new NumberFormatException();
+        return rate;
+    }
+
+    private SerialPortLoopback(String portName, String pairName, Pair pair, int end,
+                               boolean timed, double dropRate, double errorRate, long seed) {
+        super(portName);
+        this.pairName = pairName;
+        this.pair = pair;
+        this.end = end;
+        rxLine = pair.lines[end];
+        txLine = pair.lines[pair.looped ? 0 : 1 - end];
+        channel = new SerialChannelLoopback(this, rxLine, txLine);
+        rxLine.attachReceiver(channel, timed, dropRate, errorRate, seed);
+        txLine.attachSender(channel);
+        txLine.setSenderConfig(byteNanos(config), 0xff, FlowControl.NONE);
+        this.inputStream = new SerialInputStream(this, channel, SerialInputStream.DEFAULT_BUFFER_SIZE);
+        this.outputStream = new CoalescingOutputStream(channel);
+    }
+
+    /* Called once the channel is closed, the pair is forgotten
+     * when both ends are closed. */
+    void channelClosed() {
+        synchronized (pairs) {
+            pair.ends[end] = null;
+            for (SerialPortLoopback port : pair.ends)
+                if (port != null)
+                    return;
+            if (pairs.get(pairName) == pair)
+                pairs.remove(pairName);
+        }
+    }
+
+    @Override
+    SerialConfig applyConfig(SerialConfig config) throws IOException {
+        int baudRate = config.getBaudRateValue();
+        if (baudRate <= 0)
+            throw new SerialException(EINVAL, "Unsupported baudrate: " + baudRate);
+        if (config.DataBits == DataBits.UNKNOWN)
+            throw new SerialException(EINVAL, "Unsupported data bits: " + config.DataBits);
+        if (config.Parity == Parity.UNKNOWN)
+            throw new SerialException(EINVAL, "Unsupported parity: " + config.Parity);
+        if (config.StopBits == StopBits.UNKNOWN)
+            throw new SerialException(EINVAL, "Unsupported stop bits: " + config.StopBits);
+        if (config.FlowControl == FlowControl.UNKNOWN)
+            throw new SerialException(EINVAL, "Unsupported flow control: " + config.FlowControl);
+        txLine.setSenderConfig(byteNanos(config), (1 << config.DataBits.toInteger()) - 1, config.FlowControl);
+        rxLine.setReceiverFlow(config.FlowControl);
+        this.config = config;
+        return config;
+    }
+
+    @Override
+    synchronized SerialConfig readConfig() throws IOException {
+        return config;
+    }
+
+    /* The duration of a character: start bit, data bits, parity and stop bits. */
+    private static long byteNanos(SerialConfig config) {
+        int halfBits = 2 * (1 + config.DataBits.toInteger() + (config.Parity == Parity.NONE ? 0 : 1));
+        switch (config.StopBits) {
+            case ONE_HALF: halfBits += 3;
+                break;
+            case TWO: halfBits += 4;
+                break;
+            default: halfBits += 2;
+        }
+        return halfBits * 500000000L / config.getBaudRateValue();
+    }
+
+    @Override
+    public void setTimeout(int timeout) throws IOException {
+        setReadTimeouts(new ReadTimeouts(timeout, 0));
+    }
+
+    @Override
+    public synchronized void setReadTimeouts(ReadTimeouts timeouts) throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        channel.setTimeouts(timeouts.getTotalTimeout(), timeouts.getIntervalTimeout());
+        readTimeouts = timeouts;
+    }
+
+    @Override
+    public synchronized ReadTimeouts getReadTimeouts() throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        return readTimeouts;
+    }
+
+    @Override
+    public int getTimeout() throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        return channel.getTimeout();
+    }
+
+    @Override
+    public void setQueueSizes(int rx, int tx) throws IOException {
+        if (rx <= 0 || tx <= 0)
+            throw new IllegalArgumentException("Invalid queue sizes: " + rx + ", " + tx);
+        if (!isOpen())
+            throw new ClosedChannelException();
+        rxLine.setReceiveSize(rx);
+        txLine.setTransmitSize(tx);
+        channel.setTransferChunk(tx);
+    }
+
+    /* Waiting threads always park, there is nothing to switch. */
+    @Override
+    public void setPolled(boolean polled) throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        this.polled = polled;
+    }
+
+    @Override
+    public boolean isPolled() {
+        return polled;
+    }
+
+    @Override
+    public SerialChannel getChannel() throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        return channel;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (isOpen())
+                outputStream.flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public void setRts(boolean enabled) throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        rts = enabled;
+        txLine.modemChanged();
+    }
+
+    @Override
+    public void setDtr(boolean enabled) throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        dtr = enabled;
+        txLine.modemChanged();
+    }
+
+    @Override
+    public boolean getCts() throws IOException {
+        return getModemStatus().isCts();
+    }
+
+    @Override
+    public boolean getDsr() throws IOException {
+        return getModemStatus().isDsr();
+    }
+
+    @Override
+    public ModemStatus getModemStatus() throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        SerialPortLoopback peer;
+        synchronized (pairs) {
+            peer = pair.ends[pair.looped ? 0 : 1 - end];
+        }
+        int lines = 0;
+        if (peer != null && peer.rts)
+            lines |= ModemLineListener.CTS;
+        if (peer != null && peer.dtr)
+            lines |= ModemLineListener.DSR | ModemLineListener.DCD;
+        return new ModemStatus(lines, 0, rxLine.getFramingErrors(), rxLine.getOverruns(), 0);
+    }
+}
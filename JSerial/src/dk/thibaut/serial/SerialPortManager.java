@@ -0,0 +1,482 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps many ports open with a fixed number of threads.
+ * <p>
+ * Each port added with {@link #add(String, SerialConfig, ManagedPortHandler)}
+ * is served by one of the I/O threads of the manager, the least loaded one.
+ * An I/O thread waits for all its ports with a {@link SerialSelector}, reads
+ * the bytes received and gives them to the {@link ManagedPortHandler} of the
+ * port, so hundreds of ports only need a few threads.
+ * <p>
+ * When a port fails, typically because its USB adapter was unplugged, it's
+ * closed and the I/O thread tries to open it again, waiting between the
+ * attempts from the minimum to the maximum backoff set with
+ * {@link #setReconnectBackoff(int, int)}, doubling the delay after each
+ * failed attempt. Delays are randomized, so that ports lost together (a hub
+ * unplugged) don't retry together. Once opened again, the port gets the
+ * last {@link SerialConfig} given to the manager.
+ * <p>
+ * The ports opened by the manager have an immediate read timeout, which
+ * must not be changed. A port which is readable but has nothing to read
+ * is checked with {@link SerialChannel#available()}, which fails once its
+ * device is gone: on Linux, the reads of a hung up terminal return 0
+ * instead of failing. Ports closed by others are noticed every
+ * {@link #CHECK_INTERVAL} milliseconds.
+ * <p>
+ * This class is thread-safe.
+ */
+public class SerialPortManager implements Closeable {
+
+    /** Default minimum delay (in milliseconds) before opening a lost port again. */
+    public static final int DEFAULT_MIN_BACKOFF = 100;
+
+    /** Default maximum delay (in milliseconds) between the attempts to open a port. */
+    public static final int DEFAULT_MAX_BACKOFF = 30000;
+
+    /** Interval (in milliseconds) at which the I/O threads check that their ports are still open. */
+    public static final int CHECK_INTERVAL = 1000;
+
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    /* Readable but empty reads within a check interval after which a port
+     * is considered hung up, should available() keep succeeding. */
+    private static final int MAX_EMPTY_READS = 64;
+
+    private final Worker[] workers;
+    private final List<ManagedPort> ports = new CopyOnWriteArrayList<>();
+    private final AtomicLong handlerErrors = new AtomicLong();
+    private volatile int minBackoff = DEFAULT_MIN_BACKOFF;
+    private volatile int maxBackoff = DEFAULT_MAX_BACKOFF;
+    private volatile boolean closed;
+
+    /**
+     * Creates a manager and starts its I/O threads.
+     *
+     * @param threads The number of I/O threads.
+     * @throws IOException If a selector can't be opened.
+     * @throws IllegalArgumentException If the number of threads is not positive.
+     */
+    public SerialPortManager(int threads) throws IOException {
+        if (threads <= 0)
+            throw new IllegalArgumentException("The number of threads must be positive");
+        workers = new Worker[threads];
+        try {
+            for (int i = 0; i < threads; i++)
+                workers[i] = new Worker(SerialSelector.open());
+        } catch (IOException e) {
+            for (Worker worker : workers)
+                if (worker != null)
+                    worker.selector.close();
+            throw e;
+        }
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(workers[i], "SerialPortManager-" + (i + 1));
+            thread.setDaemon(true);
+            workers[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Sets the delays between the attempts to open a lost port. The current
+     * delay of a port is left unchanged until its next attempt.
+     *
+     * @param minMillis The delay before the first attempt.
+     * @param maxMillis The delay once the port failed many times.
+     * @throws IllegalArgumentException If the delays aren't positive
+     *     or the minimum is greater than the maximum.
+     */
+    public void setReconnectBackoff(int minMillis, int maxMillis) {
+        if (minMillis <= 0 || maxMillis < minMillis)
+            throw new IllegalArgumentException("Invalid backoff: " + minMillis + ", " + maxMillis);
+        minBackoff = minMillis;
+        maxBackoff = maxMillis;
+    }
+
+    /**
+     * Adds a port to the manager. The port is opened asynchronously by an
+     * I/O thread, which calls {@link ManagedPortHandler#connected(ManagedPort)}
+     * once done. If it can't be opened, the attempts are repeated as for
+     * a lost port.
+     *
+     * @param name The name of the port, as given to {@link SerialPort#open(String)}.
+     * @param config The configuration set each time the port is opened,
+     *     {@code null} to keep the one of the system.
+     * @param handler The handler of the port.
+     * @return The managed port.
+     * @throws IllegalArgumentException If the port is already managed.
+     * @throws IllegalStateException If the manager is closed.
+     */
+    public synchronized ManagedPort add(String name, SerialConfig config, ManagedPortHandler handler) {
+        if (name == null || handler == null)
+            throw new NullPointerException();
+        if (closed)
+            throw new IllegalStateException("The manager is closed");
+        if (getPort(name) != null)
+            throw new IllegalArgumentException("Port already managed: " + name);
+        Worker worker = workers[0];
+        for (Worker candidate : workers)
+            if (candidate.load < worker.load)
+                worker = candidate;
+        final ManagedPort port = new ManagedPort(this, worker, name, config, handler);
+        worker.load++;
+        ports.add(port);
+        worker.execute(new Runnable() {
+            public void run() {
+                port.getWorker().attach(port);
+            }
+        });
+        return port;
+    }
+
+    synchronized void remove(final ManagedPort port) {
+        if (!ports.remove(port))
+            return;
+        port.getWorker().load--;
+        port.getWorker().execute(new Runnable() {
+            public void run() {
+                port.getWorker().detach(port);
+            }
+        });
+    }
+
+    /**
+     * @return The managed ports, in the order they were added.
+     */
+    public List<ManagedPort> getPorts() {
+        return Collections.unmodifiableList(new ArrayList<>(ports));
+    }
+
+    /**
+     * Finds a managed port by name.
+     *
+     * @param name The name given to {@link #add(String, SerialConfig, ManagedPortHandler)}.
+     * @return The port, or {@code null} if it's not managed.
+     */
+    public ManagedPort getPort(String name) {
+        for (ManagedPort port : ports)
+            if (port.getName().equals(name))
+                return port;
+        return null;
+    }
+
+    /**
+     * Sums up the state of the managed ports.
+     *
+     * @return A snapshot of the counters.
+     */
+    public ManagerHealth getHealth() {
+        int count = 0;
+        int connected = 0;
+        long reconnects = 0;
+        long failures = 0;
+        long received = 0;
+        long sent = 0;
+        for (ManagedPort port : ports) {
+            count++;
+            if (port.isConnected())
+                connected++;
+            reconnects += port.getReconnectCount();
+            failures += port.getFailureCount();
+            received += port.getBytesReceived();
+            sent += port.getBytesSent();
+        }
+        return new ManagerHealth(count, connected, reconnects, failures,
+            received, sent, handlerErrors.get());
+    }
+
+    /**
+     * @return True if the manager is closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops the I/O threads and closes all the ports, without
+     * calling their handlers.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            for (ManagedPort port : ports)
+                port.close();
+        }
+        for (Worker worker : workers) {
+            worker.shutdown = true;
+            worker.selector.wakeup();
+        }
+        for (Worker worker : workers) {
+            if (worker.thread == Thread.currentThread())
+                continue;
+            try {
+                worker.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /*
+     * An I/O thread. The state of its ports is only changed by this thread,
+     * other threads give it tasks to run.
+     */
+    final class Worker implements Runnable {
+
+        final SerialSelector selector;
+        final List<ManagedPort> served = new ArrayList<>();
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        final Random random = new Random();
+        Thread thread;
+        /* Guarded by the manager. */
+        int load;
+        volatile boolean shutdown;
+        int disconnected;
+        long nextCheck;
+
+        Worker(SerialSelector selector) {
+            this.selector = selector;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /* Called from other threads when a write failed. */
+        void failLater(final ManagedPort port, final SerialPort failed, final IOException cause) {
+            execute(new Runnable() {
+                public void run() {
+                    if (port.getPort() == failed)
+                        fail(port, cause);
+                }
+            });
+        }
+
+        public void run() {
+            nextCheck = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL);
+            try {
+                while (!shutdown) {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+                    select();
+                    long now = System.nanoTime();
+                    if (disconnected > 0)
+                        for (ManagedPort port : new ArrayList<>(served))
+                            if (port.getPort() == null && now - port.nextAttempt >= 0)
+                                connect(port);
+                    if (now - nextCheck >= 0) {
+                        nextCheck = now + TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL);
+                        for (ManagedPort port : new ArrayList<>(served)) {
+                            SerialPort current = port.getPort();
+                            port.emptyReads = 0;
+                            if (current != null && !current.isOpen())
+                                fail(port, new ClosedChannelException());
+                        }
+                    }
+                }
+            } finally {
+                for (ManagedPort port : served) {
+                    closeQuietly(port.getPort());
+                    port.setPort(null);
+                }
+                served.clear();
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void select() {
+            long now = System.nanoTime();
+            long wait = nextCheck - now;
+            if (disconnected > 0)
+                for (ManagedPort port : served)
+                    if (port.getPort() == null)
+                        wait = Math.min(wait, port.nextAttempt - now);
+            try {
+                if (wait > 0)
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                else
+                    selector.selectNow();
+            } catch (IOException e) {
+                /* The ports are registered again once opened. */
+                for (ManagedPort port : new ArrayList<>(served))
+                    if (port.getPort() != null)
+                        fail(port, e);
+                return;
+            }
+            Iterator<SerialSelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SerialSelectionKey key = it.next();
+                it.remove();
+                ManagedPort port = (ManagedPort) key.attachment();
+                if (key.isValid() && port.key == key)
+                    read(port);
+            }
+        }
+
+        void attach(ManagedPort port) {
+            served.add(port);
+            disconnected++;
+            connect(port);
+        }
+
+        void detach(ManagedPort port) {
+            if (!served.remove(port))
+                return;
+            if (port.key != null)
+                port.key.cancel();
+            port.key = null;
+            port.channel = null;
+            SerialPort current = port.getPort();
+            if (current == null)
+                disconnected--;
+            port.setPort(null);
+            closeQuietly(current);
+        }
+
+        private void connect(ManagedPort port) {
+            SerialPort opened = null;
+            try {
+                opened = SerialPort.open(port.getName());
+                opened.setTimeout(SerialPort.TIMEOUT_IMMEDIATE);
+                synchronized (port) {
+                    if (port.getConfig() != null)
+                        opened.setConfig(port.getConfig());
+                    port.setPort(opened);
+                }
+                disconnected--;
+                port.channel = opened.getChannel();
+                port.key = selector.register(port.channel, SerialSelectionKey.OP_READ, port);
+            } catch (IOException e) {
+                if (port.getPort() == null)
+                    closeQuietly(opened);
+                fail(port, e);
+                return;
+            }
+            if (port.everConnected)
+                port.reconnects++;
+            port.everConnected = true;
+            port.up = true;
+            port.backoff = 0;
+            port.emptyReads = 0;
+            try {
+                port.getHandler().connected(port);
+            } catch (RuntimeException e) {
+                handlerErrors.incrementAndGet();
+            }
+        }
+
+        private void read(ManagedPort port) {
+            SerialChannel channel = port.channel;
+            try {
+                int n;
+                int total = 0;
+                do {
+                    buffer.clear();
+                    n = channel.read(buffer);
+                    if (n <= 0)
+                        break;
+                    total += n;
+                    port.bytesReceived += n;
+                    buffer.flip();
+                    try {
+                        port.getHandler().dataReceived(port, buffer);
+                    } catch (RuntimeException e) {
+                        handlerErrors.incrementAndGet();
+                    }
+                } while (n == READ_BUFFER_SIZE && port.channel == channel);
+                if (total > 0) {
+                    port.emptyReads = 0;
+                } else if (channel.available() == 0 && ++port.emptyReads >= MAX_EMPTY_READS) {
+                    throw new SerialException(0, "The port hung up");
+                }
+            } catch (IOException e) {
+                /* The handler may have closed the port. */
+                if (port.channel == channel)
+                    fail(port, e);
+            }
+        }
+
+        private void fail(ManagedPort port, IOException cause) {
+            if (port.key != null)
+                port.key.cancel();
+            port.key = null;
+            port.channel = null;
+            SerialPort current = port.getPort();
+            if (current != null) {
+                port.setPort(null);
+                disconnected++;
+                closeQuietly(current);
+            }
+            port.failures++;
+            port.lastFailure = cause;
+            int min = minBackoff;
+            port.backoff = port.backoff == 0 ? min : Math.min(port.backoff * 2, maxBackoff);
+            int delay = port.backoff / 2 + random.nextInt(port.backoff / 2 + 1);
+            port.nextAttempt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            if (port.up) {
+                port.up = false;
+                try {
+                    port.getHandler().disconnected(port, cause);
+                } catch (RuntimeException e) {
+                    handlerErrors.incrementAndGet();
+                }
+            }
+        }
+
+        private void closeQuietly(SerialPort port) {
+            if (port == null)
+                return;
+            try {
+                port.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * The I/O metrics of a port, enabled with {@link SerialPort#setMetricsEnabled(boolean)}.
+ * <p>
+ * Counters are updated by the reading and writing threads without locks
+ * nor contention, and are only summed when read: values are exact once
+ * the threads are done, but calls in progress may be partially counted.
+ * A read or write call of the channel can make several native calls, each
+ * one is counted. Reads which returned no byte although they could wait for
+ * some are counted as timeouts.
+ * <p>
+ * Histograms are arrays of {@link #HISTOGRAM_SIZE} counts: the first one counts
+ * the zero values, the one at index i counts the values from 2^(i-1) (inclusive)
+ * to 2^i (exclusive), and the last one also counts all the larger values.
+ * Read sizes are in bytes, latencies of the native calls in microseconds.
+ * <p>
+ * Driver errors are counted since the metrics were enabled. They are -1 when they
+ * can't be read (pseudo-terminals, closed port), and stay at 0 with the drivers not
+ * counting them.
+ * <p>
+ * While the port is open, the metrics are also published as an MBean in the
+ * platform MBean server, named {@code dk.thibaut.serial:type=SerialPort,name="<port name>"}.
+ */
+public final class SerialPortMetrics implements SerialPortMetricsMBean {
+
+    public static final int HISTOGRAM_SIZE = 32;
+
+    private static final int BYTES_READ = 0;
+    private static final int BYTES_WRITTEN = 1;
+    private static final int READ_CALLS = 2;
+    private static final int WRITE_CALLS = 3;
+    private static final int TIMEOUTS = 4;
+    private static final int READ_SIZES = 5;
+    private static final int READ_LATENCIES = READ_SIZES + HISTOGRAM_SIZE;
+    private static final int WRITE_LATENCIES = READ_LATENCIES + HISTOGRAM_SIZE;
+    private static final int COUNTERS = WRITE_LATENCIES + HISTOGRAM_SIZE;
+
+    private final SerialPort port;
+    private final StripedCounters counters = new StripedCounters(COUNTERS);
+    private final ModemStatus baseline;
+    private final ObjectName objectName;
+
+    SerialPortMetrics(SerialPort port) throws IOException {
+        this.port = port;
+        this.baseline = queryModemStatus();
+        try {
+            objectName = new ObjectName("dk.thibaut.serial:type=SerialPort,name=" + ObjectName.quote(port.getName()));
+        } catch (JMException e) {
+            throw new IOException("Invalid MBean name for " + port.getName(), e);
+        }
+    }
+
+    void register() throws IOException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            throw new IOException("Can't publish the metrics of " + port.getName(), e);
+        }
+    }
+
+    void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (InstanceNotFoundException e) {
+            /* Already unregistered. */
+        } catch (JMException e) {
+            /* Not ours to unregister. */
+        }
+    }
+
+    /** @return The name of this metrics MBean. */
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    void read(long readBytes, long nanos) {
+        counters.add(BYTES_READ, readBytes);
+        counters.add(READ_CALLS, 1);
+        counters.add(READ_SIZES + bucket(readBytes), 1);
+        counters.add(READ_LATENCIES + bucket(nanos / 1000), 1);
+    }
+
+    void write(long written, long nanos) {
+        counters.add(BYTES_WRITTEN, written);
+        counters.add(WRITE_CALLS, 1);
+        counters.add(WRITE_LATENCIES + bucket(nanos / 1000), 1);
+    }
+
+    void timeout() {
+        counters.add(TIMEOUTS, 1);
+    }
+
+    private static int bucket(long value) {
+        if (value <= 0)
+            return 0;
+        return Math.min(64 - Long.numberOfLeadingZeros(value), HISTOGRAM_SIZE - 1);
+    }
+
+    public String getPortName() {
+        return port.getName();
+    }
+
+    public long getBytesRead() {
+        return counters.get(BYTES_READ);
+    }
+
+    public long getBytesWritten() {
+        return counters.get(BYTES_WRITTEN);
+    }
+
+    /** @return The number of native read calls. */
+    public long getReadCalls() {
+        return counters.get(READ_CALLS);
+    }
+
+    /** @return The number of native write calls. */
+    public long getWriteCalls() {
+        return counters.get(WRITE_CALLS);
+    }
+
+    public long getTimeouts() {
+        return counters.get(TIMEOUTS);
+    }
+
+    /** @return The number of native reads by number of bytes read. */
+    public long[] getReadSizeHistogram() {
+        return histogram(READ_SIZES);
+    }
+
+    /** @return The number of native reads by duration, in microseconds. */
+    public long[] getReadLatencyHistogram() {
+        return histogram(READ_LATENCIES);
+    }
+
+    /** @return The number of native writes by duration, in microseconds. */
+    public long[] getWriteLatencyHistogram() {
+        return histogram(WRITE_LATENCIES);
+    }
+
+    private long[] histogram(int first) {
+        long[] histogram = new long[HISTOGRAM_SIZE];
+        for (int i = 0; i < HISTOGRAM_SIZE; i++)
+            histogram[i] = counters.get(first + i);
+        return histogram;
+    }
+
+    public long getBreaks() {
+        ModemStatus status = readModemStatus();
+        return status == null ? -1 : status.getBreakCount() - baseline.getBreakCount();
+    }
+
+    public long getFramingErrors() {
+        ModemStatus status = readModemStatus();
+        return status == null ? -1 : status.getFramingErrorCount() - baseline.getFramingErrorCount();
+    }
+
+    /** @return The number of bytes lost because the hardware or the driver buffer was full. */
+    public long getOverruns() {
+        ModemStatus status = readModemStatus();
+        return status == null ? -1 : status.getOverrunCount() - baseline.getOverrunCount();
+    }
+
+    public long getParityErrors() {
+        ModemStatus status = readModemStatus();
+        return status == null ? -1 : status.getParityErrorCount() - baseline.getParityErrorCount();
+    }
+
+    private ModemStatus readModemStatus() {
+        return baseline == null ? null : queryModemStatus();
+    }
+
+    private ModemStatus queryModemStatus() {
+        try {
+            return port.getModemStatus();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SerialPortMetrics(%s, Read=%d bytes/%d calls, Written=%d bytes/%d calls, Timeouts=%d)",
+            port.getName(), getBytesRead(), getReadCalls(), getBytesWritten(), getWriteCalls(), getTimeouts());
+    }
+}
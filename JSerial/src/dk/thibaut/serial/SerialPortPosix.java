@@ -0,0 +1,492 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import dk.thibaut.serial.enums.DataBits;
+import dk.thibaut.serial.enums.FlowControl;
+import dk.thibaut.serial.enums.Parity;
+import dk.thibaut.serial.enums.StopBits;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class SerialPortPosix extends SerialPort {
+
+    private static final String SYS_CLASS_TTY = "/sys/class/tty";
+
+    private int fd;
+    private SerialChannelPosix channel;
+    private ReadTimeouts readTimeouts = new ReadTimeouts(TIMEOUT_INFINITE, 0);
+    private volatile boolean polled;
+    private final LibC.Termios termios = new LibC.Termios();
+    private final Memory termios2 = new Memory(LibC.TERMIOS2_SIZE);
+    /* Modem lines and serial_icounter_struct, guarded by modemBits. */
+    private final int[] modemBits = new int[1];
+    private final Memory modemCounters = new Memory(LibC.ICOUNTER_SIZE);
+
+    public static List<String> getAvailablePortsNames() {
+        List<String> portsNames = new ArrayList<>();
+        String[] ttys = new File(SYS_CLASS_TTY).list();
+        if (ttys == null)
+            return portsNames;
+        Arrays.sort(ttys);
+        /* Only TTYs backed by a device are serial ports, others
+         * are virtual consoles, pseudo-terminals, etc. */
+        for (String tty : ttys)
+            if (new File(SYS_CLASS_TTY + "/" + tty + "/device").exists())
+                portsNames.add("/dev/" + tty);
+        return portsNames;
+    }
+
+    static List<SerialPortInfo> getAvailablePorts() {
+        List<SerialPortInfo> ports = new ArrayList<>();
+        for (String portName : getAvailablePortsNames())
+            ports.add(getPortInfo(portName));
+        return ports;
+    }
+
+    private static SerialPortInfo getPortInfo(String portName) {
+        File device;
+        String driver;
+        try {
+            device = new File(SYS_CLASS_TTY + "/" + new File(portName).getName() + "/device").getCanonicalFile();
+            /* Since Linux 6.5, serial core devices sit between
+             * the tty and the actual device, with generic drivers. */
+            while (new File(device, "subsystem").getCanonicalFile().getName().equals("serial-base"))
+                device = device.getParentFile();
+            driver = new File(device, "driver").getCanonicalFile().getName();
+        } catch (IOException e) {
+            return new SerialPortInfo(portName);
+        }
+        /* The tty belongs to an interface of the USB device, which
+         * is the first parent having the USB identifiers. */
+        File usb = device;
+        while (usb != null && !new File(usb, "idVendor").exists())
+            usb = usb.getParentFile();
+        if (usb == null)
+            return new SerialPortInfo(portName, null, null, null, driver,
+                SerialPortInfo.ID_UNKNOWN, SerialPortInfo.ID_UNKNOWN);
+        return new SerialPortInfo(portName, readAttribute(usb, "product"),
+            readAttribute(usb, "manufacturer"), readAttribute(usb, "serial"), driver,
+            parseId(readAttribute(usb, "idVendor")), parseId(readAttribute(usb, "idProduct")));
+    }
+
+    /* Reads a sysfs attribute, null if the device doesn't have it. */
+    private static String readAttribute(File device, String attribute) {
+        try {
+            byte[] value = Files.readAllBytes(new File(device, attribute).toPath());
+            return new String(value, StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static int parseId(String id) {
+        try {
+            return Integer.parseInt(id, 16);
+        } catch (NumberFormatException e) {
+            return SerialPortInfo.ID_UNKNOWN;
+        }
+    }
+
+    SerialPortPosix(String portName) throws SerialException {
+        super(portName);
+        /* O_NONBLOCK so that open() doesn't wait for the carrier
+         * detect line, blocking mode is restored right after. */
+        fd = LibC.open(portName, LibC.O_RDWR | LibC.O_NOCTTY | LibC.O_NONBLOCK);
+        if (fd < 0)
+            throw LibC.getLastException();
+        try {
+            if (LibC.ioctl(fd, LibC.TIOCEXCL, (Pointer) null) != 0)
+                throw LibC.getLastException();
+            if (LibC.fcntl(fd, LibC.F_SETFL, 0) != 0)
+                throw LibC.getLastException();
+            if (LibC.tcgetattr(fd, termios) != 0)
+                throw LibC.getLastException();
+            /* Like cfmakeraw(), but the line settings (c_cflag) are
+             * kept, as the Windows implementation does. */
+            termios.c_iflag &= ~(LibC.IGNBRK | LibC.BRKINT | LibC.PARMRK | LibC.ISTRIP
+                | LibC.INLCR | LibC.IGNCR | LibC.ICRNL | LibC.IXON);
+            termios.c_oflag &= ~LibC.OPOST;
+            termios.c_lflag &= ~(LibC.ECHO | LibC.ECHONL | LibC.ICANON | LibC.ISIG | LibC.IEXTEN);
+            termios.c_cflag |= LibC.CLOCAL | LibC.CREAD;
+            termios.c_cc[LibC.VMIN] = vmin(readTimeouts);
+            termios.c_cc[LibC.VTIME] = vtime(readTimeouts);
+            if (LibC.tcsetattr(fd, LibC.TCSANOW, termios) != 0)
+                throw LibC.getLastException();
+            if (LibC.tcflush(fd, LibC.TCIOFLUSH) != 0)
+                throw LibC.getLastException();
+        } catch (SerialException e) {
+            LibC.close(fd);
+            throw e;
+        }
+        this.channel = new SerialChannelPosix(fd);
+        this.inputStream = new SerialInputStream(this, channel, SerialInputStream.DEFAULT_BUFFER_SIZE);
+        this.outputStream = new CoalescingOutputStream(channel);
+    }
+
+    @Override
+    SerialConfig applyConfig(SerialConfig config) throws IOException {
+        if (LibC.tcgetattr(fd, termios) != 0)
+            throw LibC.getLastException();
+
+        /* Rates without a Bxxx constant are set afterwards with termios2. */
+        int baudRate = config.getBaudRateValue();
+        if (baudRate <= 0)
+            throw new SerialException(LibC.EINVAL, "Unsupported baudrate: " + baudRate);
+        int speed = LibC.baudRateToSpeed(baudRate);
+        if (speed >= 0) {
+            LibC.cfsetispeed(termios, speed);
+            LibC.cfsetospeed(termios, speed);
+        }
+
+        int cflag = termios.c_cflag & ~(LibC.CSIZE | LibC.CSTOPB | LibC.PARENB | LibC.PARODD
+            | LibC.CMSPAR | LibC.CRTSCTS);
+        int iflag = termios.c_iflag & ~(LibC.INPCK | LibC.IXON | LibC.IXOFF | LibC.IXANY);
+
+        switch (config.DataBits) {
+            case D5: cflag |= LibC.CS5;
+                break;
+            case D7: cflag |= LibC.CS7;
+                break;
+            case D8: cflag |= LibC.CS8;
+                break;
+            default:
+                throw new SerialException(LibC.EINVAL, "Unsupported data bits: " + config.DataBits);
+        }
+
+        switch (config.Parity) {
+            case NONE:
+                break;
+            case ODD: cflag |= LibC.PARENB | LibC.PARODD;
+                break;
+            case EVEN: cflag |= LibC.PARENB;
+                break;
+            case MARK: cflag |= LibC.PARENB | LibC.CMSPAR | LibC.PARODD;
+                break;
+            case SPACE: cflag |= LibC.PARENB | LibC.CMSPAR;
+                break;
+            default:
+                throw new SerialException(LibC.EINVAL, "Unsupported parity: " + config.Parity);
+        }
+
+        switch (config.StopBits) {
+            case ONE:
+                break;
+            case TWO: cflag |= LibC.CSTOPB;
+                break;
+            default:
+                throw new SerialException(LibC.EINVAL, "Unsupported stop bits: " + config.StopBits);
+        }
+
+        /* The XON/XOFF thresholds of the kernel are fixed. There is
+         * no DTR/DSR flow control in termios. */
+        switch (config.FlowControl) {
+            case NONE:
+                break;
+            case RTS_CTS: cflag |= LibC.CRTSCTS;
+                break;
+            case XON_XOFF: iflag |= LibC.IXON | LibC.IXOFF;
+                break;
+            default:
+                throw new SerialException(LibC.EINVAL, "Unsupported flow control: " + config.FlowControl);
+        }
+
+        if (config.Parity != Parity.NONE)
+            iflag |= LibC.INPCK;
+        termios.c_cflag = cflag;
+        termios.c_iflag = iflag;
+
+        if (LibC.tcsetattr(fd, LibC.TCSANOW, termios) != 0)
+            throw LibC.getLastException();
+        if (speed < 0)
+            setCustomBaudRate(baudRate);
+        return readConfig();
+    }
+
+    private void setCustomBaudRate(int baudRate) throws IOException {
+        if (LibC.ioctl(fd, LibC.TCGETS2, termios2) != 0)
+            throw LibC.getLastException();
+        int cflag = termios2.getInt(LibC.TERMIOS2_CFLAG_OFFSET);
+        /* Clearing CIBAUD makes the input speed follow the output one. */
+        cflag = (cflag & ~(LibC.CBAUD | LibC.CIBAUD)) | LibC.BOTHER;
+        termios2.setInt(LibC.TERMIOS2_CFLAG_OFFSET, cflag);
+        termios2.setInt(LibC.TERMIOS2_ISPEED_OFFSET, baudRate);
+        termios2.setInt(LibC.TERMIOS2_OSPEED_OFFSET, baudRate);
+        if (LibC.ioctl(fd, LibC.TCSETS2, termios2) != 0)
+            throw LibC.getLastException();
+    }
+
+    @Override
+    SerialConfig readConfig() throws IOException {
+        /* struct termios2 has both the flags and the actual speed,
+         * the kernel always fills c_ospeed whatever the speed bits. */
+        if (LibC.ioctl(fd, LibC.TCGETS2, termios2) != 0)
+            throw LibC.getLastException();
+        int cflag = termios2.getInt(LibC.TERMIOS2_CFLAG_OFFSET);
+        int iflag = termios2.getInt(LibC.TERMIOS2_IFLAG_OFFSET);
+
+        DataBits dataBits;
+        switch (cflag & LibC.CSIZE) {
+            case LibC.CS5: dataBits = DataBits.D5;
+                break;
+            case LibC.CS7: dataBits = DataBits.D7;
+                break;
+            case LibC.CS8: dataBits = DataBits.D8;
+                break;
+            default: dataBits = DataBits.UNKNOWN;
+        }
+
+        Parity parity;
+        if ((cflag & LibC.PARENB) == 0)
+            parity = Parity.NONE;
+        else if ((cflag & LibC.CMSPAR) != 0)
+            parity = (cflag & LibC.PARODD) != 0 ? Parity.MARK : Parity.SPACE;
+        else
+            parity = (cflag & LibC.PARODD) != 0 ? Parity.ODD : Parity.EVEN;
+
+        StopBits stopBits = (cflag & LibC.CSTOPB) != 0 ? StopBits.TWO : StopBits.ONE;
+
+        FlowControl flowControl;
+        boolean software = (iflag & (LibC.IXON | LibC.IXOFF)) == (LibC.IXON | LibC.IXOFF);
+        if ((cflag & LibC.CRTSCTS) != 0)
+            flowControl = software ? FlowControl.UNKNOWN : FlowControl.RTS_CTS;
+        else if (software)
+            flowControl = FlowControl.XON_XOFF;
+        else if ((iflag & (LibC.IXON | LibC.IXOFF)) != 0)
+            flowControl = FlowControl.UNKNOWN;
+        else
+            flowControl = FlowControl.NONE;
+
+        return new SerialConfig(termios2.getInt(LibC.TERMIOS2_OSPEED_OFFSET),
+            parity, stopBits, dataBits, flowControl, 0, 0);
+    }
+
+    @Override
+    public void setTimeout(int timeout) throws IOException {
+        setReadTimeouts(new ReadTimeouts(timeout, 0));
+    }
+
+    @Override
+    public synchronized void setReadTimeouts(ReadTimeouts timeouts) throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        /* The driver is only reprogrammed when VMIN or VTIME change. */
+        byte vmin = vmin(timeouts);
+        byte vtime = vtime(timeouts);
+        if (termios.c_cc[LibC.VMIN] != vmin || termios.c_cc[LibC.VTIME] != vtime) {
+            if (LibC.tcgetattr(fd, termios) != 0)
+                throw LibC.getLastException();
+            termios.c_cc[LibC.VMIN] = vmin;
+            termios.c_cc[LibC.VTIME] = vtime;
+            if (LibC.tcsetattr(fd, LibC.TCSANOW, termios) != 0)
+                throw LibC.getLastException();
+        }
+        if (timeouts.isLowLatency() != readTimeouts.isLowLatency())
+            setLowLatency(timeouts.isLowLatency());
+        channel.setTimeouts(timeouts.getTotalTimeout(),
+            timeouts.getIntervalTimeout() == ReadTimeouts.INTERVAL_NONE);
+        readTimeouts = timeouts;
+    }
+
+    @Override
+    public synchronized ReadTimeouts getReadTimeouts() throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        return readTimeouts;
+    }
+
+    @Override
+    public int getTimeout() throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        return channel.getTimeout();
+    }
+
+    @Override
+    public void setQueueSizes(int rx, int tx) throws IOException {
+        if (rx <= 0 || tx <= 0)
+            throw new IllegalArgumentException("Invalid queue sizes: " + rx + ", " + tx);
+        if (!isOpen())
+            throw new ClosedChannelException();
+        /* The n_tty and driver buffers can't be resized from user space,
+         * file transfers keep the default chunk, the tty output buffer size. */
+    }
+
+    @Override
+    public synchronized void setPolled(boolean polled) throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        if (LibC.fcntl(fd, LibC.F_SETFL, polled ? LibC.O_NONBLOCK : 0) != 0)
+            throw LibC.getLastException();
+        channel.setPolled(polled);
+        this.polled = polled;
+    }
+
+    @Override
+    public boolean isPolled() {
+        return polled;
+    }
+
+    @Override
+    public SerialChannel getChannel() throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        return channel;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (isOpen())
+                outputStream.flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public void setRts(boolean enabled) throws IOException {
+        setModemLine(LibC.TIOCM_RTS, enabled);
+    }
+
+    @Override
+    public void setDtr(boolean enabled) throws IOException {
+        setModemLine(LibC.TIOCM_DTR, enabled);
+    }
+
+    @Override
+    public boolean getCts() throws IOException {
+        return (getModemLines() & LibC.TIOCM_CTS) != 0;
+    }
+
+    @Override
+    public boolean getDsr() throws IOException {
+        return (getModemLines() & LibC.TIOCM_DSR) != 0;
+    }
+
+    @Override
+    public ModemStatus getModemStatus() throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        synchronized (modemBits) {
+            if (LibC.ioctl(fd, LibC.TIOCMGET, modemBits) != 0)
+                throw LibC.getLastException();
+            int bits = modemBits[0];
+            int lines = ((bits & LibC.TIOCM_CTS) != 0 ? ModemLineListener.CTS : 0)
+                | ((bits & LibC.TIOCM_DSR) != 0 ? ModemLineListener.DSR : 0)
+                | ((bits & LibC.TIOCM_RNG) != 0 ? ModemLineListener.RI : 0)
+                | ((bits & LibC.TIOCM_CAR) != 0 ? ModemLineListener.DCD : 0);
+            /* Not all the drivers count line events. */
+            if (LibC.ioctl(fd, LibC.TIOCGICOUNT, modemCounters) != 0)
+                return new ModemStatus(lines, 0, 0, 0, 0);
+            /* Overruns of the UART and of the tty buffer. */
+            return new ModemStatus(lines, modemCounters.getInt(LibC.ICOUNTER_BRK),
+                modemCounters.getInt(LibC.ICOUNTER_FRAME),
+                modemCounters.getInt(LibC.ICOUNTER_OVERRUN) + modemCounters.getInt(LibC.ICOUNTER_BUF_OVERRUN),
+                modemCounters.getInt(LibC.ICOUNTER_PARITY));
+        }
+    }
+
+    /*
+     * Unlike Windows, the total timeout is not handled by the driver:
+     *  - TIMEOUT_INFINITE: VMIN=1, read() blocks until at least one
+     *    byte is available and returns as soon as it is.
+     *  - TIMEOUT_IMMEDIATE: VMIN=0, VTIME=0, read() never blocks.
+     *  - Positive timeout: same as immediate, the channel polls the
+     *    file descriptor before reading.
+     * With an interval timeout, VMIN=255 and VTIME is the interval: once
+     * the first byte is received (the channel polls for it if needed),
+     * read() returns after a silence of VTIME tenths of a second, or when
+     * min(VMIN, requested) bytes are received.
+     * INTERVAL_NONE is handled by the channel, reading until the buffer
+     * is full.
+     */
+    private static byte vmin(ReadTimeouts timeouts) {
+        if (timeouts.getTotalTimeout() == TIMEOUT_IMMEDIATE)
+            return 0;
+        if (timeouts.getIntervalTimeout() > 0)
+            return (byte) 255;
+        return (byte) (timeouts.getTotalTimeout() == TIMEOUT_INFINITE ? 1 : 0);
+    }
+
+    private static byte vtime(ReadTimeouts timeouts) {
+        int interval = timeouts.getIntervalTimeout();
+        if (timeouts.getTotalTimeout() == TIMEOUT_IMMEDIATE || interval <= 0)
+            return 0;
+        return (byte) Math.min(255, (interval + 99) / 100);
+    }
+
+    private void setLowLatency(boolean enabled) throws IOException {
+        Memory serial = new Memory(LibC.SERIAL_STRUCT_SIZE);
+        if (LibC.ioctl(fd, LibC.TIOCGSERIAL, serial) != 0) {
+            /* Not a serial driver, a pseudo-terminal for example. */
+            int error = Native.getLastError();
+            if (error == LibC.ENOTTY || error == LibC.EINVAL)
+                return;
+            throw LibC.getLastException();
+        }
+        int flags = serial.getInt(LibC.SERIAL_FLAGS_OFFSET);
+        if (enabled)
+            flags |= LibC.ASYNC_LOW_LATENCY;
+        else
+            flags &= ~LibC.ASYNC_LOW_LATENCY;
+        serial.setInt(LibC.SERIAL_FLAGS_OFFSET, flags);
+        if (LibC.ioctl(fd, LibC.TIOCSSERIAL, serial) != 0)
+            throw LibC.getLastException();
+    }
+
+    private void setModemLine(int line, boolean enabled) throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        synchronized (modemBits) {
+            modemBits[0] = line;
+            if (LibC.ioctl(fd, enabled ? LibC.TIOCMBIS : LibC.TIOCMBIC, modemBits) != 0)
+                throw LibC.getLastException();
+        }
+    }
+
+    private int getModemLines() throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        synchronized (modemBits) {
+            if (LibC.ioctl(fd, LibC.TIOCMGET, modemBits) != 0)
+                throw LibC.getLastException();
+            return modemBits[0];
+        }
+    }
+}
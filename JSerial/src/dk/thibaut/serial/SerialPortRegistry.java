@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A cached list of the serial ports of the system, kept up to date
+ * when devices are plugged or unplugged.
+ * <p>
+ * Unlike {@link SerialPort#getAvailablePortsNames()}, which lists the ports
+ * on each call, {@link #getPorts()} returns the last list without any system
+ * call, and {@link SerialPortListener}s are told about the ports added and
+ * removed. Each port comes with the metadata of its device ({@link SerialPortInfo}),
+ * such as the USB identifiers and serial number, so that the right device
+ * can be opened without probing the ports.
+ * <p>
+ * A single daemon thread, started along with the registry, waits for changes:
+ * on Linux, it watches /dev with inotify and reads the metadata from sysfs.
+ * On Windows, it's notified of the changes of the registry key listing the
+ * ports, and reads the metadata with the SetupAPI. When changes can't be
+ * watched, the ports are listed every {@link #POLL_INTERVAL} milliseconds.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class SerialPortRegistry {
+
+    /**
+     * Interval (in milliseconds) at which ports are listed
+     * when the platform can't notify changes.
+     */
+    public static final int POLL_INTERVAL = 2000;
+
+    /* Time given to a device to be fully set up once a change was seen,
+     * so that a burst of changes (a hub plugged) is reported at once. */
+    private static final int SETTLE_DELAY = 100;
+
+    private static SerialPortRegistry instance;
+
+    private final PortsWatcher watcher;
+    private final List<SerialPortListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile List<SerialPortInfo> ports;
+
+    private SerialPortRegistry() throws IOException {
+        watcher = PortsWatcher.open();
+        ports = Collections.unmodifiableList(watcher.scan());
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "SerialPortRegistry");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets the registry, listing the ports and starting to
+     * watch them on the first call.
+     *
+     * @return The registry.
+     * @throws IOException If the ports can't be watched.
+     * @throws RuntimeException If the platform is not supported.
+     */
+    public static synchronized SerialPortRegistry get() throws IOException {
+        if (instance == null)
+            instance = new SerialPortRegistry();
+        return instance;
+    }
+
+    /**
+     * Returns the ports as last seen, without listing them again.
+     *
+     * @return An unmodifiable list of ports, sorted by name.
+     */
+    public List<SerialPortInfo> getPorts() {
+        return ports;
+    }
+
+    /**
+     * Finds a port by name.
+     *
+     * @param name The platform-specific name of the port.
+     * @return The port, or {@code null} if it's not present.
+     */
+    public SerialPortInfo getPort(String name) {
+        for (SerialPortInfo port : ports)
+            if (port.getName().equals(name))
+                return port;
+        return null;
+    }
+
+    /**
+     * Finds the ports of the USB devices with the given identifiers.
+     *
+     * @param vendorId The USB vendor ID.
+     * @param productId The USB product ID, or {@link SerialPortInfo#ID_UNKNOWN} for any product.
+     * @return The ports found, sorted by name.
+     */
+    public List<SerialPortInfo> findPorts(int vendorId, int productId) {
+        List<SerialPortInfo> found = new ArrayList<>();
+        for (SerialPortInfo port : ports)
+            if (port.isUsb() && port.getVendorId() == vendorId
+                    && (productId == SerialPortInfo.ID_UNKNOWN || port.getProductId() == productId))
+                found.add(port);
+        return found;
+    }
+
+    /**
+     * Adds a listener called for each port added or removed from now on.
+     * The ports already present are not reported, see {@link #getPorts()}.
+     *
+     * @param listener The listener to add.
+     */
+    public void addListener(SerialPortListener listener) {
+        if (listener == null)
+            throw new NullPointerException("listener");
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener added by {@link #addListener(SerialPortListener)}.
+     *
+     * @param listener The listener to remove.
+     */
+    public void removeListener(SerialPortListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Lists the ports now, instead of waiting for the registry thread to
+     * see the changes. The listeners are called before returning.
+     *
+     * @return The ports, as {@link #getPorts()}.
+     */
+    public synchronized List<SerialPortInfo> refresh() {
+        List<SerialPortInfo> previous = ports;
+        List<SerialPortInfo> current = Collections.unmodifiableList(watcher.scan());
+        ports = current;
+        if (listeners.isEmpty() || previous.equals(current))
+            return current;
+
+        Map<String, SerialPortInfo> removed = new HashMap<>();
+        for (SerialPortInfo port : previous)
+            removed.put(port.getName(), port);
+        List<SerialPortInfo> added = new ArrayList<>();
+        for (SerialPortInfo port : current) {
+            SerialPortInfo old = removed.remove(port.getName());
+            if (port.equals(old))
+                continue;
+            /* Another device now uses this name. */
+            if (old != null)
+                fire(old, false);
+            added.add(port);
+        }
+        for (SerialPortInfo port : previous)
+            if (removed.containsKey(port.getName()))
+                fire(port, false);
+        for (SerialPortInfo port : added)
+            fire(port, true);
+        return current;
+    }
+
+    private void fire(SerialPortInfo port, boolean added) {
+        for (SerialPortListener listener : listeners) {
+            try {
+                if (added)
+                    listener.portAdded(port);
+                else
+                    listener.portRemoved(port);
+            } catch (RuntimeException e) {
+                /* A failing listener doesn't prevent the others from being called. */
+            }
+        }
+    }
+
+    private void watch() {
+        boolean polling = false;
+        try {
+            while (true) {
+                if (polling) {
+                    Thread.sleep(POLL_INTERVAL);
+                } else {
+                    try {
+                        watcher.await();
+                        Thread.sleep(SETTLE_DELAY);
+                    } catch (IOException e) {
+                        polling = true;
+                    }
+                }
+                refresh();
+            }
+        } catch (InterruptedException e) {
+            /* Only a daemon thread, nothing to clean. */
+        }
+    }
+}
@@ -25,20 +25,22 @@ package dk.thibaut.serial;
 import com.sun.jna.Native;
 import com.sun.jna.NativeLibrary;
 import com.sun.jna.Pointer;
-import com.sun.jna.ptr.IntByReference;
 import com.sun.jna.win32.W32APIOptions;
-import dk.thibaut.serial.enums.BaudRate;
 import dk.thibaut.serial.enums.DataBits;
+import dk.thibaut.serial.enums.FlowControl;
 import dk.thibaut.serial.enums.Parity;
 import dk.thibaut.serial.enums.StopBits;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
 import java.nio.channels.ClosedChannelException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 class SerialPortWindows extends SerialPort {
 
@@ -50,42 +52,153 @@ class SerialPortWindows extends SerialPort {
     native static Pointer NativeGetErrorString(int error);
     native static Pointer NativeFreeErrorString(Pointer messagePtr);
     native static Pointer NativeOpen(String portName);
-    native static boolean NativeRead(Pointer handle, ByteBuffer buffer, int numberOfBytes, IntByReference readBytes);
+    native static boolean NativeRead(Pointer handle, ByteBuffer buffer, int numberOfBytes, Pointer readBytes);
+    native static boolean NativeRead(Pointer handle, Pointer buffer, int numberOfBytes, Pointer readBytes);
+    native static boolean NativeReadTimeout(Pointer handle, ByteBuffer buffer, int numberOfBytes, Pointer readBytes, int timeout);
+    native static boolean NativeReadTimeout(Pointer handle, Pointer buffer, int numberOfBytes, Pointer readBytes, int timeout);
     native static boolean NativeWrite(Pointer handle, ByteBuffer buffer, int numberOfBytes);
+    native static boolean NativeWrite(Pointer handle, Pointer buffer, int numberOfBytes);
     native static boolean NativeClose(Pointer handle);
-    native static int NativeGetBaudRate(Pointer handle);
-    native static int NativeGetParity(Pointer handle);
-    native static int NativeGetStopBits(Pointer handle);
-    native static int NativeGetDataBits(Pointer handle);
-    native static void NativeSetBaudRate(Pointer handle, int baudRate);
-    native static void NativeSetParity(Pointer handle, int parity);
-    native static void NativeSetStopBits(Pointer handle, int stopBits);
-    native static void NativeSetDataBits(Pointer handle, int dataBits);
-    native static boolean NativeSetConfig(Pointer handle);
+    native static boolean NativeApplyConfig(Pointer handle, int[] values);
+    native static boolean NativeGetConfig(Pointer handle, int[] values);
     native static boolean NativeSetTimeout(Pointer handle, int timeout);
     native static int NativeGetTimeout(Pointer handle);
+    native static boolean NativeSetReadTimeouts(Pointer handle, int total, int interval);
     native static boolean NativeSetRts(Pointer handle, boolean value);
     native static boolean NativeSetDtr(Pointer handle, boolean value);
-    native static boolean NativeGetCts(Pointer handle, IntByReference result);
-    native static boolean NativeGetDsr(Pointer handle, IntByReference result);
+    native static boolean NativeGetModemStatus(Pointer handle, int[] values);
     native static boolean NativeFlush(Pointer handle, boolean flushRx, boolean flushTx);
+    native static boolean NativeGetQueues(Pointer handle, int[] queues);
+    native static boolean NativeSetQueueSizes(Pointer handle, int rx, int tx);
     native static Pointer NativeGetAvailablePorts();
     native static void NativeFreeAvailablePorts(Pointer portsNames);
+    native static Pointer NativeGetPortsInfo();
+    native static Pointer NativePortsWatcherOpen();
+    native static boolean NativePortsWatcherWait(Pointer watcher);
+    native static Pointer NativeSelectorOpen();
+    native static boolean NativeSelectorClose(Pointer selector);
+    native static boolean NativeSelectorWakeup(Pointer selector);
+    native static boolean NativeSelectorCancel(Pointer handle);
+    native static int NativeSelect(Pointer selector, Pointer handles, int[] interests, int[] ready, int count, int timeout);
+
+    private static final int ERROR_INVALID_PARAMETER = 87;
+
+    /* GetCommModemStatus() bits, first value of NativeGetModemStatus(). */
+    private static final int MS_CTS_ON = 0x10;
+    private static final int MS_DSR_ON = 0x20;
+    private static final int MS_RING_ON = 0x40;
+    private static final int MS_RLSD_ON = 0x80;
+
+    /* Indexes in the values array of NativeApplyConfig() and NativeGetConfig(). */
+    private static final int CONFIG_BAUDRATE = 0;
+    private static final int CONFIG_DATABITS = 1;
+    private static final int CONFIG_PARITY = 2;
+    private static final int CONFIG_STOPBITS = 3;
+    private static final int CONFIG_FLOWCONTROL = 4;
+    private static final int CONFIG_XONLIMIT = 5;
+    private static final int CONFIG_XOFFLIMIT = 6;
+    private static final int CONFIG_SIZE = 7;
+
+    /* Fields of each port returned by NativeGetPortsInfo(). */
+    private static final int PORT_INFO_NAME = 0;
+    private static final int PORT_INFO_DESCRIPTION = 1;
+    private static final int PORT_INFO_MANUFACTURER = 2;
+    private static final int PORT_INFO_HARDWARE_ID = 3;
+    private static final int PORT_INFO_INSTANCE_ID = 4;
+    private static final int PORT_INFO_DRIVER = 5;
+    private static final int PORT_INFO_SIZE = 6;
+
+    /* USB\VID_0403&PID_6001 for most devices, FTDIBUS\VID_0403+PID_6001+<serial> for FTDI ones. */
+    private static final Pattern USB_IDS = Pattern.compile(
+        "VID_([0-9A-F]{4})[&+]PID_([0-9A-F]{4})", Pattern.CASE_INSENSITIVE);
+    private static final Pattern FTDI_SERIAL = Pattern.compile(
+        "\\+PID_[0-9A-F]{4}\\+([^\\\\]+)", Pattern.CASE_INSENSITIVE);
+
+    /* DCB values, indexed by their native value. */
+    private static final Parity[] PARITIES = {
+        Parity.NONE, Parity.ODD, Parity.EVEN, Parity.MARK, Parity.SPACE
+    };
+    private static final StopBits[] STOP_BITS = {
+        StopBits.ONE, StopBits.ONE_HALF, StopBits.TWO
+    };
+    /* FLOW_* values of JSerial.h, FLOW_UNKNOWN (-1) for other DCB settings. */
+    private static final FlowControl[] FLOW_CONTROLS = {
+        FlowControl.NONE, FlowControl.RTS_CTS, FlowControl.DTR_DSR, FlowControl.XON_XOFF
+    };
 
     private Pointer handle;
+    private final int[] configValues = new int[CONFIG_SIZE];
+    private final int[] modemValues = new int[5];
     private SerialChannelWindows channel;
+    private boolean polled;
+    private ReadTimeouts readTimeouts = new ReadTimeouts(TIMEOUT_INFINITE, 10);
 
     public static List<String> getAvailablePortsNames() {
         Pointer portsNamesArray = NativeGetAvailablePorts();
         List<String> portsNames = new ArrayList<>();
+        /* The SERIALCOMM key doesn't exist until a port is installed. */
+        if (portsNamesArray == null)
+            return portsNames;
         Collections.addAll(portsNames,
             portsNamesArray.getWideStringArray(0));
         NativeFreeAvailablePorts(portsNamesArray);
         return portsNames;
     }
 
+    static List<SerialPortInfo> getAvailablePorts() {
+        /* Legacy ports are only listed in SERIALCOMM, and
+         * virtual ones may not be known by the SetupAPI. */
+        Map<String, SerialPortInfo> devices = new HashMap<>();
+        Pointer portsInfoArray = NativeGetPortsInfo();
+        if (portsInfoArray != null) {
+            String[] fields = portsInfoArray.getWideStringArray(0);
+            NativeFreeAvailablePorts(portsInfoArray);
+            for (int i = 0; i + PORT_INFO_SIZE <= fields.length; i += PORT_INFO_SIZE)
+                devices.put(fields[i + PORT_INFO_NAME], toPortInfo(fields, i));
+        }
+        List<String> portsNames = getAvailablePortsNames();
+        Collections.sort(portsNames);
+        List<SerialPortInfo> ports = new ArrayList<>();
+        for (String portName : portsNames) {
+            SerialPortInfo port = devices.get(portName);
+            ports.add(port != null ? port : new SerialPortInfo(portName));
+        }
+        return ports;
+    }
+
+    private static SerialPortInfo toPortInfo(String[] fields, int offset) {
+        String instanceId = fields[offset + PORT_INFO_INSTANCE_ID];
+        int vendorId = SerialPortInfo.ID_UNKNOWN;
+        int productId = SerialPortInfo.ID_UNKNOWN;
+        String serialNumber = null;
+        Matcher ids = USB_IDS.matcher(fields[offset + PORT_INFO_HARDWARE_ID]);
+        if (ids.find() || (ids = USB_IDS.matcher(instanceId)).find()) {
+            vendorId = Integer.parseInt(ids.group(1), 16);
+            productId = Integer.parseInt(ids.group(2), 16);
+            Matcher ftdi = FTDI_SERIAL.matcher(instanceId);
+            /* The last part of an USB instance ID is the serial number,
+             * or an ID made up by Windows (with '&') if there is none. */
+            String last = instanceId.substring(instanceId.lastIndexOf('\\') + 1);
+            if (ftdi.find())
+                serialNumber = ftdi.group(1);
+            else if (instanceId.toUpperCase().startsWith("USB\\") && !last.contains("&"))
+                serialNumber = last;
+        }
+        return new SerialPortInfo(fields[offset + PORT_INFO_NAME],
+            emptyToNull(fields[offset + PORT_INFO_DESCRIPTION]),
+            emptyToNull(fields[offset + PORT_INFO_MANUFACTURER]), serialNumber,
+            emptyToNull(fields[offset + PORT_INFO_DRIVER]), vendorId, productId);
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
     static SerialException getLastException() {
-        int error = Native.getLastError();
+        return getException(Native.getLastError());
+    }
+
+    static SerialException getException(int error) {
         Pointer messagePtr = NativeGetErrorString(error);
         String message = messagePtr.getWideString(0);
         NativeFreeErrorString(messagePtr);
@@ -98,100 +211,145 @@ class SerialPortWindows extends SerialPort {
         if (this.handle == Pointer.NULL)
             throw getLastException();
         this.channel = new SerialChannelWindows(handle);
-        this.inputStream = Channels.newInputStream(channel);
-        this.outputStream = Channels.newOutputStream(channel);
+        this.inputStream = new SerialInputStream(this, channel, SerialInputStream.DEFAULT_BUFFER_SIZE);
+        this.outputStream = new CoalescingOutputStream(channel);
     }
 
     @Override
-    public void setConfig(SerialConfig config) throws IOException {
-        if (!isOpen())
-            throw new ClosedChannelException();
-
-        NativeSetBaudRate(handle, config.BaudRate.toInteger());
-        NativeSetDataBits(handle, config.DataBits.toInteger());
+    SerialConfig applyConfig(SerialConfig config) throws IOException {
+        configValues[CONFIG_BAUDRATE] = config.getBaudRateValue();
+        configValues[CONFIG_DATABITS] = config.DataBits.toInteger();
 
         switch (config.Parity) {
-            case NONE: NativeSetParity(handle, 0);
+            case NONE: configValues[CONFIG_PARITY] = 0;
                 break;
-            case ODD: NativeSetParity(handle, 1);
+            case ODD: configValues[CONFIG_PARITY] = 1;
                 break;
-            case EVEN: NativeSetParity(handle, 2);
+            case EVEN: configValues[CONFIG_PARITY] = 2;
                 break;
-            case MARK: NativeSetParity(handle, 3);
+            case MARK: configValues[CONFIG_PARITY] = 3;
                 break;
-            case SPACE: NativeSetParity(handle, 4);
+            case SPACE: configValues[CONFIG_PARITY] = 4;
                 break;
         }
 
         switch (config.StopBits) {
-            case ONE: NativeSetStopBits(handle, 0);
+            case ONE: configValues[CONFIG_STOPBITS] = 0;
                 break;
-            case ONE_HALF: NativeSetStopBits(handle, 1);
+            case ONE_HALF: configValues[CONFIG_STOPBITS] = 1;
                 break;
-            case TWO: NativeSetStopBits(handle, 2);
+            case TWO: configValues[CONFIG_STOPBITS] = 2;
                 break;
         }
 
-        if (!NativeSetConfig(handle))
+        switch (config.FlowControl) {
+            case NONE: configValues[CONFIG_FLOWCONTROL] = 0;
+                break;
+            case RTS_CTS: configValues[CONFIG_FLOWCONTROL] = 1;
+                break;
+            case DTR_DSR: configValues[CONFIG_FLOWCONTROL] = 2;
+                break;
+            case XON_XOFF: configValues[CONFIG_FLOWCONTROL] = 3;
+                break;
+            default:
+                throw new SerialException(ERROR_INVALID_PARAMETER, "Unsupported flow control: " + config.FlowControl);
+        }
+        configValues[CONFIG_XONLIMIT] = config.getXonLimit();
+        configValues[CONFIG_XOFFLIMIT] = config.getXoffLimit();
+
+        /* The native side reads the DCB back into configValues. */
+        if (!NativeApplyConfig(handle, configValues))
             throw getLastException();
+        return toConfig(configValues);
     }
 
     @Override
-    public SerialConfig getConfig() throws IOException {
-        SerialConfig config = new SerialConfig(BaudRate.UNKNOWN,
-            Parity.UNKNOWN, StopBits.UNKNOWN, DataBits.UNKNOWN);
-
-        int baudrate = NativeGetBaudRate(handle);
-        int parity = NativeGetParity(handle);
-        int stopbits = NativeGetStopBits(handle);
-        int databits = NativeGetDataBits(handle);
+    SerialConfig readConfig() throws IOException {
+        if (!NativeGetConfig(handle, configValues))
+            throw getLastException();
+        return toConfig(configValues);
+    }
 
-        /* A better solution would be to use a BiMap available
-         * in Guava. But I don't won't to add a dependency to
-         * Guava. Usually this function is called once or twice,
-         * so performance really isn't an issue. */
+    private static SerialConfig toConfig(int[] values) {
+        int parity = values[CONFIG_PARITY];
+        int stopBits = values[CONFIG_STOPBITS];
+        int flowControl = values[CONFIG_FLOWCONTROL];
+        return new SerialConfig(values[CONFIG_BAUDRATE],
+            parity < PARITIES.length ? PARITIES[parity] : Parity.UNKNOWN,
+            stopBits < STOP_BITS.length ? STOP_BITS[stopBits] : StopBits.UNKNOWN,
+            DataBits.fromInteger(values[CONFIG_DATABITS]),
+            flowControl >= 0 && flowControl < FLOW_CONTROLS.length
+                ? FLOW_CONTROLS[flowControl] : FlowControl.UNKNOWN,
+            values[CONFIG_XONLIMIT], values[CONFIG_XOFFLIMIT]);
+    }
 
-        config.BaudRate = BaudRate.fromInteger(baudrate);
-        config.DataBits = DataBits.fromInteger(databits);
+    @Override
+    public void setTimeout(int timeout) throws IOException {
+        /* Same driver timeouts as NativeSetTimeout(). */
+        int interval = timeout == TIMEOUT_INFINITE ? 10 : ReadTimeouts.INTERVAL_NONE;
+        setReadTimeouts(new ReadTimeouts(timeout, timeout == TIMEOUT_IMMEDIATE ? 0 : interval));
+    }
 
-        switch (parity) {
-            case 0: config.Parity = Parity.NONE;
-                break;
-            case 1: config.Parity = Parity.ODD;
-                break;
-            case 2: config.Parity = Parity.EVEN;
-                break;
-            case 3: config.Parity = Parity.MARK;
-                break;
-            case 4: config.Parity = Parity.SPACE;
-                break;
-        }
+    @Override
+    public synchronized int getTimeout() throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        return readTimeouts.getTotalTimeout();
+    }
 
-        switch (stopbits) {
-            case 0: config.StopBits = StopBits.ONE;
-                break;
-            case 1: config.StopBits = StopBits.ONE_HALF;
-                break;
-            case 2: config.StopBits = StopBits.TWO;
-                break;
-        }
+    @Override
+    public synchronized void setReadTimeouts(ReadTimeouts timeouts) throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        /* The low-latency mode is the interval 0, the latency timer
+         * of USB adapters can't be changed from here. */
+        if (!polled && !NativeSetReadTimeouts(handle, timeouts.getTotalTimeout(), timeouts.getIntervalTimeout()))
+            throw getLastException();
+        channel.setPolled(polled, timeouts.getTotalTimeout());
+        readTimeouts = timeouts;
+    }
 
-        return config;
+    @Override
+    public synchronized ReadTimeouts getReadTimeouts() throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        return readTimeouts;
     }
 
     @Override
-    public void setTimeout(int timeout) throws IOException {
+    public void setQueueSizes(int rx, int tx) throws IOException {
+        if (rx <= 0 || tx <= 0)
+            throw new IllegalArgumentException("Invalid queue sizes: " + rx + ", " + tx);
         if (!isOpen())
             throw new ClosedChannelException();
-        if (!NativeSetTimeout(handle, timeout))
+        if (!NativeSetQueueSizes(handle, rx, tx))
             throw getLastException();
+        channel.setTransferChunk(tx);
     }
 
     @Override
-    public int getTimeout() throws IOException {
+    public synchronized void setPolled(boolean polled) throws IOException {
         if (!isOpen())
             throw new ClosedChannelException();
-        return NativeGetTimeout(handle);
+        if (polled == this.polled)
+            return;
+        int timeout = readTimeouts.getTotalTimeout();
+        if (polled) {
+            /* The driver returns immediately, the channel waits. */
+            if (!NativeSetTimeout(handle, TIMEOUT_IMMEDIATE))
+                throw getLastException();
+            channel.setPolled(true, timeout);
+        } else {
+            if (!NativeSetReadTimeouts(handle, timeout, readTimeouts.getIntervalTimeout()))
+                throw getLastException();
+            channel.setPolled(false, timeout);
+        }
+        this.polled = polled;
+    }
+
+    @Override
+    public boolean isPolled() {
+        return polled;
     }
 
     @Override
@@ -208,7 +366,12 @@ class SerialPortWindows extends SerialPort {
 
     @Override
     public void close() throws IOException {
-        channel.close();
+        try {
+            if (isOpen())
+                outputStream.flush();
+        } finally {
+            channel.close();
+        }
     }
 
     @Override
@@ -229,21 +392,34 @@ class SerialPortWindows extends SerialPort {
 
     @Override
     public boolean getCts() throws IOException {
-        if (!isOpen())
-            throw new ClosedChannelException();
-        IntByReference result = new IntByReference(0);
-        if (!NativeGetCts(handle, result))
-            throw getLastException();
-        return result.getValue() == 1;
+        return (getModemLines() & MS_CTS_ON) != 0;
     }
 
     @Override
     public boolean getDsr() throws IOException {
+        return (getModemLines() & MS_DSR_ON) != 0;
+    }
+
+    @Override
+    public ModemStatus getModemStatus() throws IOException {
+        synchronized (modemValues) {
+            int bits = getModemLines();
+            int lines = ((bits & MS_CTS_ON) != 0 ? ModemLineListener.CTS : 0)
+                | ((bits & MS_DSR_ON) != 0 ? ModemLineListener.DSR : 0)
+                | ((bits & MS_RING_ON) != 0 ? ModemLineListener.RI : 0)
+                | ((bits & MS_RLSD_ON) != 0 ? ModemLineListener.DCD : 0);
+            return new ModemStatus(lines, modemValues[1], modemValues[2], modemValues[3], modemValues[4]);
+        }
+    }
+
+    /* Fills modemValues with the lines, the breaks, framing errors, overruns and parity errors counts. */
+    private int getModemLines() throws IOException {
         if (!isOpen())
             throw new ClosedChannelException();
-        IntByReference result = new IntByReference(0);
-        if (!NativeGetDsr(handle, result))
-            throw getLastException();
-        return result.getValue() == 1;
+        synchronized (modemValues) {
+            if (!NativeGetModemStatus(handle, modemValues))
+                throw getLastException();
+            return modemValues[0];
+        }
     }
 }
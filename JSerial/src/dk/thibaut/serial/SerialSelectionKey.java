@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.nio.channels.CancelledKeyException;
+
+/**
+ * A token representing the registration of a {@link SerialChannel}
+ * with a {@link SerialSelector}.
+ * <p>
+ * It works like a {@link java.nio.channels.SelectionKey}: the interest set
+ * tells the selector which operations to wait for, and the ready set
+ * tells which ones the channel is ready for after a selection.
+ * <p>
+ * A key remains valid until it is cancelled, its channel is closed, or its
+ * selector is closed.
+ */
+public class SerialSelectionKey {
+
+    /**
+     * Data can be read from the channel without waiting.
+     */
+    public static final int OP_READ = 1;
+
+    /**
+     * The transmit buffer can accept more data.
+     */
+    public static final int OP_WRITE = 4;
+
+    /**
+     * A modem line (CTS, DSR, RI or DCD) changed, or a line error
+     * (break, framing, parity, overrun) has been detected.
+     */
+    public static final int OP_MODEM = 8;
+
+    private static final int ALL_OPS = OP_READ | OP_WRITE | OP_MODEM;
+
+    private final SerialSelector selector;
+    private final SerialChannel channel;
+    volatile int interestOps;
+    private volatile Object attachment;
+    volatile boolean valid = true;
+
+    /* Only accessed by the selecting thread. */
+    int readyOps;
+    int polledOps;
+
+    /* Platform-specific state, used by the selector implementation,
+     * -1 until the selector reads it for the first time. */
+    int modemState = -1;
+
+    SerialSelectionKey(SerialSelector selector, SerialChannel channel, int ops, Object attachment) {
+        checkOps(ops);
+        this.selector = selector;
+        this.channel = channel;
+        this.interestOps = ops;
+        this.attachment = attachment;
+    }
+
+    static void checkOps(int ops) {
+        if ((ops & ~ALL_OPS) != 0)
+            throw new IllegalArgumentException("Invalid operations: " + ops);
+    }
+
+    /**
+     * @return The channel for which this key was created.
+     */
+    public SerialChannel channel() {
+        return channel;
+    }
+
+    /**
+     * @return The selector for which this key was created.
+     */
+    public SerialSelector selector() {
+        return selector;
+    }
+
+    /**
+     * @return The interest set of this key.
+     * @throws CancelledKeyException If this key has been cancelled.
+     */
+    public int interestOps() {
+        checkValid();
+        return interestOps;
+    }
+
+    /**
+     * Sets the interest set of this key.
+     * <p>
+     * The new interest set will be used by the next selection
+     * operation, an ongoing one is woken up.
+     *
+     * @param ops A combination of {@link #OP_READ}, {@link #OP_WRITE} and {@link #OP_MODEM}.
+     * @return This key.
+     * @throws CancelledKeyException If this key has been cancelled.
+     */
+    public SerialSelectionKey interestOps(int ops) {
+        checkValid();
+        checkOps(ops);
+        interestOps = ops;
+        selector.keysChanged();
+        return this;
+    }
+
+    /**
+     * @return The ready set of this key, updated by the selector.
+     * @throws CancelledKeyException If this key has been cancelled.
+     */
+    public int readyOps() {
+        checkValid();
+        return readyOps;
+    }
+
+    public boolean isReadable() {
+        return (readyOps() & OP_READ) != 0;
+    }
+
+    public boolean isWritable() {
+        return (readyOps() & OP_WRITE) != 0;
+    }
+
+    public boolean isModemEvent() {
+        return (readyOps() & OP_MODEM) != 0;
+    }
+
+    /**
+     * Attaches an object to this key, replacing the previous one.
+     *
+     * @param attachment The object to attach, may be null.
+     * @return The previously attached object.
+     */
+    public Object attach(Object attachment) {
+        Object previous = this.attachment;
+        this.attachment = attachment;
+        return previous;
+    }
+
+    /**
+     * @return The attached object, or null.
+     */
+    public Object attachment() {
+        return attachment;
+    }
+
+    /**
+     * Tells whether this key is still valid.
+     *
+     * @return False if the key has been cancelled, its channel closed or its selector closed.
+     */
+    public boolean isValid() {
+        return valid && channel.isOpen() && selector.isOpen();
+    }
+
+    /**
+     * Cancels the registration of the channel with the selector.
+     * <p>
+     * The key is removed from the selector during the next selection operation.
+     */
+    public void cancel() {
+        if (!valid)
+            return;
+        valid = false;
+        selector.cancel(this);
+    }
+
+    private void checkValid() {
+        if (!isValid())
+            throw new CancelledKeyException();
+    }
+}
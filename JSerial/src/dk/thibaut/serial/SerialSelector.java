@@ -0,0 +1,504 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.IllegalSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A multiplexor of {@link SerialChannel} objects.
+ * <p>
+ * This class works like a {@link java.nio.channels.Selector}: channels are
+ * registered with {@link #register(SerialChannel, int, Object)}, and a single
+ * thread calls {@link #select()} to wait until one or more of them are ready
+ * for reading, writing, or have a modem event pending. This avoids having
+ * a thread blocked on each port.
+ * <p>
+ * Registered channels are not switched to a non-blocking mode. Once a channel
+ * is selected for reading, a read returns immediately with the available
+ * bytes, but using {@link SerialPort#TIMEOUT_IMMEDIATE} is recommended so that
+ * a read never blocks the selecting thread.
+ * <p>
+ * On Linux, the selector relies on poll(). Modem events can't be polled, so
+ * when a key is interested in {@link SerialSelectionKey#OP_MODEM} the modem
+ * status is checked every {@link #MODEM_POLL_INTERVAL} milliseconds. On
+ * Windows, it relies on WaitCommEvent() and a single event shared by all
+ * registered ports, so there is no limit on the number of ports.
+ * <p>
+ * The channels of loopback ports (see {@link SerialPort#open(String)}) can be
+ * registered with any selector, along with the channels of the platform.
+ * <p>
+ * A selector is safe for use by multiple threads, but only one thread
+ * should select at a time.
+ */
+public abstract class SerialSelector implements Closeable {
+
+    /**
+     * Interval (in milliseconds) at which modem lines are checked on
+     * platforms not able to wait for modem events.
+     */
+    public static final int MODEM_POLL_INTERVAL = 10;
+
+    private final Set<SerialSelectionKey> keys = new HashSet<>();
+    private final Set<SerialSelectionKey> publicKeys = Collections.unmodifiableSet(keys);
+    private final Set<SerialSelectionKey> selectedKeys = new HashSet<>();
+    private final Set<SerialSelectionKey> cancelledKeys = new HashSet<>();
+    private final List<SerialSelectionKey> selectable = new ArrayList<>();
+    private final List<SerialSelectionKey> nativeKeys = new ArrayList<>();
+    private final List<SerialSelectionKey> loopbackKeys = new ArrayList<>();
+    private volatile boolean open = true;
+    private volatile boolean selecting;
+    private final Interruptor interruptor = new Interruptor(this);
+
+    SerialSelector() {
+    }
+
+    /**
+     * Opens a selector for the running platform.
+     *
+     * @return A new selector.
+     * @throws IOException If the native resources can't be allocated.
+     * @throws RuntimeException If the platform is not supported.
+     */
+    public static SerialSelector open() throws IOException {
+        String os = System.getProperty("os.name").toLowerCase();
+        if (os.startsWith("windows"))
+            return new SerialSelectorWindows();
+        if (os.startsWith("linux"))
+            return new SerialSelectorPosix();
+        throw new RuntimeException("Platform not supported by SerialSelector.");
+    }
+
+    /**
+     * Registers a channel with this selector.
+     * <p>
+     * If the channel is already registered, its key is returned after
+     * updating its interest set and attachment.
+     *
+     * @param channel The channel to register, it must be obtained from {@link SerialPort#getChannel()}.
+     * @param ops The interest set, see {@link SerialSelectionKey}.
+     * @param attachment An object to attach to the key, may be null.
+     * @return The key representing the registration.
+     * @throws ClosedSelectorException If the selector is closed.
+     * @throws IllegalSelectorException If the channel doesn't belong to the running platform
+     *      or to a loopback port.
+     * @throws IOException If the channel is closed.
+     */
+    public SerialSelectionKey register(SerialChannel channel, int ops, Object attachment) throws IOException {
+        checkOpen();
+        boolean loopback = channel instanceof SerialChannelLoopback;
+        if (!loopback && !accepts(channel))
+            throw new IllegalSelectorException();
+        if (!channel.isOpen())
+            throw new ClosedChannelException();
+        SerialSelectionKey key;
+        synchronized (keys) {
+            key = keyFor(channel);
+            if (key != null) {
+                key.interestOps(ops);
+                key.attach(attachment);
+                return key;
+            }
+            key = new SerialSelectionKey(this, channel, ops, attachment);
+            keys.add(key);
+            if (loopback)
+                ((SerialChannelLoopback) channel).addSelector(this);
+            else
+                registered(key);
+        }
+        keysChanged();
+        return key;
+    }
+
+    /**
+     * Get the key representing the registration of a channel.
+     *
+     * @param channel A channel.
+     * @return The key, or null if the channel is not registered.
+     */
+    public SerialSelectionKey keyFor(SerialChannel channel) {
+        synchronized (keys) {
+            for (SerialSelectionKey key : keys)
+                if (key.channel() == channel && key.valid)
+                    return key;
+        }
+        return null;
+    }
+
+    /**
+     * Get the registered keys.
+     * <p>
+     * The returned set can't be modified. Use {@link SerialSelectionKey#cancel()}
+     * to remove a key.
+     *
+     * @return The set of keys.
+     * @throws ClosedSelectorException If the selector is closed.
+     */
+    public Set<SerialSelectionKey> keys() {
+        checkOpen();
+        return publicKeys;
+    }
+
+    /**
+     * Get the keys selected by the last selection operations.
+     * <p>
+     * Keys are never removed from this set by the selector, you must remove
+     * them once they are processed. Keys can't be added to this set.
+     *
+     * @return The set of selected keys.
+     * @throws ClosedSelectorException If the selector is closed.
+     */
+    public Set<SerialSelectionKey> selectedKeys() {
+        checkOpen();
+        return selectedKeys;
+    }
+
+    /**
+     * Waits until at least one channel is selected, {@link #wakeup()} is
+     * called or the thread is interrupted.
+     *
+     * @return The number of keys whose ready set has been updated, possibly zero.
+     * @throws IOException If an error occurs when calling the native function.
+     * @throws ClosedSelectorException If the selector is closed.
+     */
+    public int select() throws IOException {
+        return doSelect(SerialPort.TIMEOUT_INFINITE);
+    }
+
+    /**
+     * Same as {@link #select()}, but returns after {@code timeout}
+     * milliseconds if no channel is selected.
+     *
+     * @param timeout The timeout in milliseconds, 0 to wait indefinitely.
+     * @return The number of keys whose ready set has been updated, possibly zero.
+     * @throws IOException If an error occurs when calling the native function.
+     * @throws ClosedSelectorException If the selector is closed.
+     * @throws IllegalArgumentException If the timeout is negative.
+     */
+    public int select(long timeout) throws IOException {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Negative timeout");
+        if (timeout == 0)
+            return doSelect(SerialPort.TIMEOUT_INFINITE);
+        return doSelect((int) Math.min(timeout, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Selects the channels which are ready, without waiting.
+     *
+     * @return The number of keys whose ready set has been updated, possibly zero.
+     * @throws IOException If an error occurs when calling the native function.
+     * @throws ClosedSelectorException If the selector is closed.
+     */
+    public int selectNow() throws IOException {
+        return doSelect(SerialPort.TIMEOUT_IMMEDIATE);
+    }
+
+    /**
+     * Causes the current (or next) selection operation to return immediately.
+     *
+     * @return This selector.
+     */
+    public abstract SerialSelector wakeup();
+
+    /**
+     * Tells whether this selector is open.
+     *
+     * @return True if the selector is open.
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closes this selector.
+     * <p>
+     * All keys are cancelled, but channels are not closed.
+     *
+     * @throws IOException If an error occurs when calling the native function.
+     */
+    public void close() throws IOException {
+        if (!open)
+            return;
+        open = false;
+        wakeup();
+        synchronized (this) {
+            synchronized (keys) {
+                for (SerialSelectionKey key : keys) {
+                    key.valid = false;
+                    release(key);
+                }
+                keys.clear();
+                cancelledKeys.clear();
+            }
+            selectedKeys.clear();
+            implClose();
+        }
+    }
+
+    void cancel(SerialSelectionKey key) {
+        synchronized (keys) {
+            cancelledKeys.add(key);
+        }
+        keysChanged();
+    }
+
+    /* Wakes up an ongoing selection, so that it takes the new keys or
+     * interest sets into account. Without an ongoing selection, the next
+     * one will use them anyway, so there is no need for a wakeup. */
+    void keysChanged() {
+        if (selecting)
+            wakeup();
+    }
+
+    private synchronized int doSelect(int timeout) throws IOException {
+        checkOpen();
+        selecting = true;
+        try {
+            processCancelledKeys();
+            if (Thread.currentThread().isInterrupted())
+                return 0;
+            interruptor.enter();
+            try {
+                poll(nativeKeys, pollLoopback(timeout));
+            } finally {
+                interruptor.exit();
+            }
+            /* Bytes may have been received while waiting. */
+            if (!loopbackKeys.isEmpty())
+                pollLoopback(SerialPort.TIMEOUT_IMMEDIATE);
+        } finally {
+            selecting = false;
+        }
+        /* Channels closed while waiting are reported as ready by poll(),
+         * their keys are removed instead of being counted. */
+        processCancelledKeys();
+        int updated = 0;
+        for (SerialSelectionKey key : selectable) {
+            int ready = key.polledOps & key.interestOps;
+            key.polledOps = 0;
+            if (ready == 0)
+                continue;
+            if (selectedKeys.contains(key)) {
+                int previous = key.readyOps;
+                key.readyOps = ready | previous;
+                if (key.readyOps != previous)
+                    updated++;
+            } else {
+                key.readyOps = ready;
+                selectedKeys.add(key);
+                updated++;
+            }
+        }
+        return updated;
+    }
+
+    /* Removes cancelled keys and keys of closed channels, and
+     * rebuilds the list of keys to pass to poll(). */
+    private void processCancelledKeys() {
+        synchronized (keys) {
+            for (SerialSelectionKey key : keys)
+                if (!key.channel().isOpen())
+                    cancelledKeys.add(key);
+            for (SerialSelectionKey key : cancelledKeys) {
+                key.valid = false;
+                if (keys.remove(key))
+                    release(key);
+                selectedKeys.remove(key);
+            }
+            cancelledKeys.clear();
+            selectable.clear();
+            selectable.addAll(keys);
+            nativeKeys.clear();
+            loopbackKeys.clear();
+            for (SerialSelectionKey key : keys) {
+                if (key.channel() instanceof SerialChannelLoopback)
+                    loopbackKeys.add(key);
+                else
+                    nativeKeys.add(key);
+            }
+        }
+    }
+
+    /*
+     * Sets the polledOps of the loopback keys, and returns the timeout
+     * to wait for the native keys: loopback channels wake up the selector
+     * when the other port writes or reads, but received bytes also become
+     * readable as time passes, so the wait is shortened until then.
+     */
+    private int pollLoopback(int timeout) {
+        long wait = Long.MAX_VALUE;
+        for (SerialSelectionKey key : loopbackKeys) {
+            SerialChannelLoopback channel = (SerialChannelLoopback) key.channel();
+            key.polledOps |= channel.readyOps(key);
+            wait = key.polledOps != 0 ? 0 : Math.min(wait, channel.untilReady(key));
+        }
+        if (wait == 0)
+            return SerialPort.TIMEOUT_IMMEDIATE;
+        if (wait == Long.MAX_VALUE || timeout == SerialPort.TIMEOUT_IMMEDIATE)
+            return timeout;
+        int millis = Math.max(1, AbstractSerialChannel.toMillis(wait));
+        return timeout < 0 ? millis : Math.min(timeout, millis);
+    }
+
+    private void release(SerialSelectionKey key) {
+        if (key.channel() instanceof SerialChannelLoopback)
+            ((SerialChannelLoopback) key.channel()).removeSelector(this);
+        else
+            deregister(key);
+    }
+
+    private void checkOpen() {
+        if (!open)
+            throw new ClosedSelectorException();
+    }
+
+    /**
+     * Tells whether the channel can be registered with this selector.
+     */
+    abstract boolean accepts(SerialChannel channel);
+
+    /**
+     * Waits for the given keys, and sets the {@code polledOps} field of each
+     * of them. Ready operations not in the interest set are ignored.
+     *
+     * @param keys The keys to wait for, all of them are valid.
+     * @param timeout Same semantic as {@link SerialPort#setTimeout(int)}.
+     */
+    abstract void poll(List<SerialSelectionKey> keys, int timeout) throws IOException;
+
+    /**
+     * Called when a platform channel is registered, before any
+     * {@link #poll} with its key.
+     */
+    void registered(SerialSelectionKey key) {
+    }
+
+    /**
+     * Waits until the selection holding {@code pollLock} has returned. The
+     * selector is woken up again until the lock is obtained, as the polling
+     * thread may consume a wakeup and start a new selection first.
+     */
+    final void awaitRelease(Lock pollLock) {
+        boolean interrupted = false;
+        for (;;) {
+            wakeup();
+            try {
+                if (pollLock.tryLock(10, TimeUnit.MILLISECONDS))
+                    break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        pollLock.unlock();
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Releases the native resources associated to a key.
+     */
+    abstract void deregister(SerialSelectionKey key);
+
+    /**
+     * Releases the native resources of the selector.
+     */
+    abstract void implClose() throws IOException;
+
+    /*
+     * Makes Thread.interrupt() wake up the selection, with the hook used
+     * by the selectors of the JDK: between begin() and end(), interrupting
+     * the thread calls wakeup(). Nothing else of Selector is used.
+     */
+    private static final class Interruptor extends AbstractSelector {
+
+        private final SerialSelector selector;
+
+        Interruptor(SerialSelector selector) {
+            super(null);
+            this.selector = selector;
+        }
+
+        void enter() {
+            begin();
+        }
+
+        void exit() {
+            end();
+        }
+
+        @Override
+        public Selector wakeup() {
+            selector.wakeup();
+            return this;
+        }
+
+        @Override
+        protected void implCloseSelector() {
+        }
+
+        @Override
+        protected SelectionKey register(AbstractSelectableChannel ch, int ops, Object att) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<SelectionKey> keys() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<SelectionKey> selectedKeys() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int selectNow() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int select(long timeout) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int select() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
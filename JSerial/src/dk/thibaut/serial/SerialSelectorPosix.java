@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import com.sun.jna.Memory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+class SerialSelectorPosix extends SerialSelector {
+
+    private final int[] wakeupPipe = new int[2];
+    private final Memory wakeupByte = new Memory(1);
+    private final Memory drainBuffer = new Memory(64);
+    private final Memory modemBuffer = new Memory(LibC.ICOUNTER_SIZE);
+    private Memory pollFds = new Memory(LibC.POLLFD_SIZE * 16);
+
+    /* Held while poll() uses the descriptors of the channels, so that a
+     * channel being closed doesn't close a descriptor still polled, whose
+     * number could be reused. It's fair, so that a select loop can't
+     * starve the closing thread. */
+    private final ReentrantLock pollLock = new ReentrantLock(true);
+
+    SerialSelectorPosix() throws IOException {
+        if (LibC.pipe(wakeupPipe) != 0)
+            throw LibC.getLastException();
+        for (int fd : wakeupPipe) {
+            if (LibC.fcntl(fd, LibC.F_SETFL, LibC.O_NONBLOCK) != 0) {
+                SerialException e = LibC.getLastException();
+                implClose();
+                throw e;
+            }
+        }
+        wakeupByte.setByte(0, (byte) 1);
+    }
+
+    @Override
+    boolean accepts(SerialChannel channel) {
+        return channel instanceof SerialChannelPosix;
+    }
+
+    @Override
+    public SerialSelector wakeup() {
+        synchronized (wakeupPipe) {
+            /* If the pipe is full, a wakeup is already pending. */
+            if (wakeupPipe[1] >= 0)
+                LibC.write(wakeupPipe[1], wakeupByte, 1);
+        }
+        return this;
+    }
+
+    @Override
+    void poll(List<SerialSelectionKey> keys, int timeout) throws IOException {
+        pollLock.lock();
+        try {
+            pollLocked(keys, timeout);
+        } finally {
+            pollLock.unlock();
+        }
+    }
+
+    /* A channel closed since the keys were processed has a
+     * negative descriptor, which poll() ignores. */
+    private void pollLocked(List<SerialSelectionKey> keys, int timeout) throws IOException {
+        int count = keys.size() + 1;
+        if (pollFds.size() < count * LibC.POLLFD_SIZE)
+            pollFds = new Memory(count * 2 * LibC.POLLFD_SIZE);
+
+        setPollFd(0, wakeupPipe[0], LibC.POLLIN);
+        boolean modem = false;
+        for (int i = 0; i < keys.size(); i++) {
+            SerialSelectionKey key = keys.get(i);
+            int ops = key.interestOps;
+            short events = 0;
+            if ((ops & SerialSelectionKey.OP_READ) != 0)
+                events |= LibC.POLLIN;
+            if ((ops & SerialSelectionKey.OP_WRITE) != 0)
+                events |= LibC.POLLOUT;
+            if ((ops & SerialSelectionKey.OP_MODEM) != 0)
+                modem = true;
+            setPollFd(i + 1, ((SerialChannelPosix) key.channel()).getFd(), events);
+        }
+
+        long deadline = System.nanoTime() + timeout * 1000000L;
+        while (true) {
+            int wait = timeout;
+            if (modem && timeout != SerialPort.TIMEOUT_IMMEDIATE) {
+                long remaining = (deadline - System.nanoTime()) / 1000000L;
+                wait = timeout < 0 ? MODEM_POLL_INTERVAL
+                    : (int) Math.max(0, Math.min(remaining, MODEM_POLL_INTERVAL));
+            }
+
+            int result = NativeIO.INSTANCE.poll(pollFds, count, wait);
+            if (result < 0) {
+                if (NativeIO.INSTANCE.lastError() == LibC.EINTR)
+                    return;
+                throw LibC.getException(NativeIO.INSTANCE.lastError());
+            }
+
+            boolean woken = (pollFds.getShort(6) & LibC.POLLIN) != 0;
+            if (woken)
+                while (LibC.read(wakeupPipe[0], drainBuffer, (int) drainBuffer.size()) > 0)
+                    continue;
+
+            boolean selected = false;
+            for (int i = 0; i < keys.size(); i++) {
+                SerialSelectionKey key = keys.get(i);
+                short revents = pollFds.getShort((i + 1) * LibC.POLLFD_SIZE + 6);
+                int ready = 0;
+                if ((revents & (LibC.POLLIN | LibC.POLLERR | LibC.POLLHUP | LibC.POLLNVAL)) != 0)
+                    ready |= SerialSelectionKey.OP_READ;
+                if ((revents & LibC.POLLOUT) != 0)
+                    ready |= SerialSelectionKey.OP_WRITE;
+                if ((key.interestOps & SerialSelectionKey.OP_MODEM) != 0 && modemChanged(key))
+                    ready |= SerialSelectionKey.OP_MODEM;
+                key.polledOps = ready & key.interestOps;
+                selected |= key.polledOps != 0;
+            }
+
+            if (selected || woken || !modem || timeout == SerialPort.TIMEOUT_IMMEDIATE)
+                return;
+            if (timeout > 0 && System.nanoTime() - deadline >= 0)
+                return;
+            if (Thread.currentThread().isInterrupted())
+                return;
+        }
+    }
+
+    @Override
+    void registered(SerialSelectionKey key) {
+        ((SerialChannelPosix) key.channel()).addSelector(this);
+    }
+
+    @Override
+    void deregister(SerialSelectionKey key) {
+        ((SerialChannelPosix) key.channel()).removeSelector(this);
+    }
+
+    /* Waits until an ongoing selection returns, see SerialChannelPosix.close(). */
+    void awaitRelease() {
+        awaitRelease(pollLock);
+    }
+
+    @Override
+    void implClose() {
+        synchronized (wakeupPipe) {
+            for (int i = 0; i < wakeupPipe.length; i++) {
+                if (wakeupPipe[i] >= 0)
+                    LibC.close(wakeupPipe[i]);
+                wakeupPipe[i] = -1;
+            }
+        }
+    }
+
+    private void setPollFd(int index, int fd, short events) {
+        int offset = index * LibC.POLLFD_SIZE;
+        pollFds.setInt(offset, fd);
+        pollFds.setShort(offset + 4, events);
+        pollFds.setShort(offset + 6, (short) 0);
+    }
+
+    /*
+     * TIOCGICOUNT counts modem lines transitions and line errors, so no
+     * event is missed between two checks. Drivers not supporting it
+     * fall back to the current state of the modem lines.
+     */
+    private boolean modemChanged(SerialSelectionKey key) {
+        int fd = ((SerialChannelPosix) key.channel()).getFd();
+        int state;
+        if (LibC.ioctl(fd, LibC.TIOCGICOUNT, modemBuffer) == 0) {
+            /* cts, dsr, rng, dcd, then frame, overrun, parity, brk. */
+            state = 0;
+            for (int i = 0; i < 4; i++)
+                state += modemBuffer.getInt(i * 4);
+            for (int i = 6; i < 10; i++)
+                state += modemBuffer.getInt(i * 4);
+            state &= Integer.MAX_VALUE;
+        } else if (LibC.ioctl(fd, LibC.TIOCMGET, modemBuffer) == 0) {
+            state = modemBuffer.getInt(0) & (LibC.TIOCM_CTS | LibC.TIOCM_DSR
+                | LibC.TIOCM_RNG | LibC.TIOCM_CAR);
+        } else {
+            return false;
+        }
+        boolean changed = key.modemState >= 0 && key.modemState != state;
+        key.modemState = state;
+        return changed;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * A channel can only be registered with one selector at a time on
+ * Windows, because a port can only have one pending WaitCommEvent().
+ */
+class SerialSelectorWindows extends SerialSelector {
+
+    private final Object lock = new Object();
+
+    /* Held while native code uses the handles of the channels, so that
+     * a channel being closed doesn't free a handle still in use. It's
+     * fair, so that a select loop can't starve the closing thread. */
+    private final ReentrantLock pollLock = new ReentrantLock(true);
+    private Pointer selector;
+    private Memory handles = new Memory(Pointer.SIZE * 16);
+    private int[] interests = new int[16];
+    private int[] ready = new int[16];
+
+    SerialSelectorWindows() throws IOException {
+        selector = SerialPortWindows.NativeSelectorOpen();
+        if (selector == null)
+            throw SerialPortWindows.getLastException();
+    }
+
+    @Override
+    boolean accepts(SerialChannel channel) {
+        return channel instanceof SerialChannelWindows;
+    }
+
+    @Override
+    public SerialSelector wakeup() {
+        synchronized (lock) {
+            if (selector != null)
+                SerialPortWindows.NativeSelectorWakeup(selector);
+        }
+        return this;
+    }
+
+    @Override
+    void poll(List<SerialSelectionKey> keys, int timeout) throws IOException {
+        int count = keys.size();
+        if (interests.length < count) {
+            handles = new Memory(Pointer.SIZE * count * 2);
+            interests = new int[count * 2];
+            ready = new int[count * 2];
+        }
+        pollLock.lock();
+        try {
+            /* A channel closed since the keys were processed has a
+             * null handle, which is skipped by the native code. */
+            for (int i = 0; i < count; i++) {
+                SerialSelectionKey key = keys.get(i);
+                handles.setPointer(i * Pointer.SIZE, ((SerialChannelWindows) key.channel()).getHandle(this));
+                interests[i] = key.interestOps;
+            }
+            if (SerialPortWindows.NativeSelect(selector, handles, interests, ready, count, timeout) < 0)
+                throw SerialPortWindows.getLastException();
+        } finally {
+            pollLock.unlock();
+        }
+        for (int i = 0; i < count; i++)
+            keys.get(i).polledOps = ready[i];
+    }
+
+    @Override
+    void deregister(SerialSelectionKey key) {
+        pollLock.lock();
+        try {
+            Pointer handle = ((SerialChannelWindows) key.channel()).getHandle(this);
+            if (handle != null)
+                SerialPortWindows.NativeSelectorCancel(handle);
+        } finally {
+            pollLock.unlock();
+        }
+    }
+
+    /* Waits until an ongoing selection returns, see SerialChannelWindows.close(). */
+    void awaitRelease() {
+        awaitRelease(pollLock);
+    }
+
+    @Override
+    void implClose() {
+        synchronized (lock) {
+            SerialPortWindows.NativeSelectorClose(selector);
+            selector = null;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Counters updated by several threads without contending: each thread
+ * adds to one of STRIPES copies, picked by its ID, and values are only
+ * summed when read. Stripes are padded to their own cache lines so that
+ * threads don't share one. (LongAdder does the same, but needs Java 8.)
+ */
+final class StripedCounters {
+
+    private static final int STRIPES = 8;
+    /* 64 bytes, a cache line on current CPUs. */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray values;
+    private final int stride;
+
+    StripedCounters(int count) {
+        stride = count + PADDING;
+        values = new AtomicLongArray(stride * STRIPES + PADDING);
+    }
+
+    void add(int counter, long delta) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        values.getAndAdd(PADDING + stripe * stride + counter, delta);
+    }
+
+    long get(int counter) {
+        long sum = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++)
+            sum += values.get(PADDING + stripe * stride + counter);
+        return sum;
+    }
+}
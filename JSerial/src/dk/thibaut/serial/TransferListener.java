@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial;
+
+/**
+ * Follows the progress of {@link SerialChannel#transferFrom} and
+ * {@link SerialChannel#transferTo}.
+ * <p>
+ * The listener is called by the transferring thread after each chunk, so
+ * a slow listener slows the transfer down. A runtime exception thrown by
+ * the listener stops the transfer, and is propagated to the caller.
+ */
+public interface TransferListener {
+
+    /**
+     * Called each time a chunk was transferred.
+     *
+     * @param transferred The number of bytes transferred so far.
+     * @param count The number of bytes to transfer. When receiving, the
+     *      transfer may stop before, if the port times out.
+     */
+    void transferred(long transferred, long count);
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the records of a capture written by {@link CaptureWriter}.
+ * <p>
+ * Segments are mapped in memory one at a time, and the data of a record
+ * is a read-only view of the mapped segment, without any copy. A capture
+ * can be read while it's being written, up to the segments present when
+ * the reader was opened: the records complete when {@link #next()} is
+ * called are returned.
+ * <p>
+ * This class isn't thread-safe.
+ */
+public class CaptureReader implements Closeable {
+
+    private final List<Path> segments;
+    private int segmentIndex = -1;
+    private MappedByteBuffer segment;
+    private long startMillis;
+
+    private Direction direction;
+    private long timestamp;
+    private ByteBuffer data;
+
+    private CaptureReader(List<Path> segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * Opens a capture. Segments deleted by the writer are skipped,
+     * the capture starts with the oldest one left.
+     *
+     * @param directory The directory given to {@link CaptureWriter#open(Path)}.
+     * @return The capture reader.
+     * @throws NoSuchFileException If the directory contains no segment.
+     * @throws IOException If the directory can't be listed.
+     */
+    public static CaptureReader open(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.cap")) {
+            for (Path segment : stream)
+                segments.add(segment);
+        }
+        if (segments.isEmpty())
+            throw new NoSuchFileException(directory.toString(), null, "No capture segment");
+        /* Names are zero-padded, their order is the order of the segments. */
+        Collections.sort(segments);
+        return new CaptureReader(segments);
+    }
+
+    private boolean nextSegment() throws IOException {
+        segment = null;
+        if (segmentIndex + 1 >= segments.size())
+            return false;
+        segmentIndex++;
+        MappedByteBuffer mapped;
+        try (FileChannel file = FileChannel.open(segments.get(segmentIndex), StandardOpenOption.READ)) {
+            mapped = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+        }
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (mapped.remaining() < CaptureWriter.SEGMENT_HEADER_SIZE || mapped.getInt() != CaptureWriter.MAGIC)
+            throw new IOException("Not a capture segment: " + segments.get(segmentIndex));
+        if (mapped.getShort() != CaptureWriter.VERSION)
+            throw new IOException("Unsupported capture version: " + segments.get(segmentIndex));
+        mapped.position(16);
+        startMillis = mapped.getLong();
+        segment = mapped;
+        return true;
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return False if there are no more records.
+     * @throws IOException If a segment can't be read.
+     */
+    public boolean next() throws IOException {
+        data = null;
+        while (true) {
+            if (segment == null && !nextSegment())
+                return false;
+            int length = segment.remaining() >= CaptureWriter.RECORD_HEADER_SIZE ? segment.getInt(segment.position()) : 0;
+            if (length <= 0) {
+                segment = null;
+                continue;
+            }
+            int start = segment.position();
+            direction = Direction.values()[segment.get(start + 4)];
+            timestamp = segment.getLong(start + 8);
+            int from = start + CaptureWriter.RECORD_HEADER_SIZE;
+            ByteBuffer view = segment.duplicate();
+            view.limit(from + length).position(from);
+            data = view.slice().asReadOnlyBuffer();
+            segment.position(Math.min(segment.limit(), (from + length + 7) & ~7));
+            return true;
+        }
+    }
+
+    /**
+     * @return The direction of the current record.
+     */
+    public Direction getDirection() {
+        checkRecord();
+        return direction;
+    }
+
+    /**
+     * @return The time at which the current record was captured, in
+     *     nanoseconds since the start of the capture.
+     */
+    public long getTimestamp() {
+        checkRecord();
+        return timestamp;
+    }
+
+    /**
+     * @return The wall clock time at which the capture started,
+     *     in milliseconds since the epoch.
+     */
+    public long getStartTime() {
+        checkRecord();
+        return startMillis;
+    }
+
+    /**
+     * Returns the bytes of the current record.
+     *
+     * @return A read-only buffer, whose position is 0 and limit the
+     *     number of bytes. It is valid until the reader is closed.
+     */
+    public ByteBuffer getData() {
+        checkRecord();
+        return data;
+    }
+
+    private void checkRecord() {
+        if (data == null)
+            throw new IllegalStateException("No current record");
+    }
+
+    /**
+     * Releases the mapped segment. Buffers returned by
+     * {@link #getData()} must not be used anymore.
+     */
+    public void close() {
+        segment = null;
+        data = null;
+        segmentIndex = segments.size();
+    }
+}
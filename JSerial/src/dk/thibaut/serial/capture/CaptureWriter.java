@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Appends timestamped chunks of serial traffic to memory-mapped files.
+ * <p>
+ * A capture is a directory of segments of a fixed size, named
+ * {@code segment-00000000.cap}, {@code segment-00000001.cap}, and so on.
+ * Recording a chunk only copies it to the mapped memory of the current
+ * segment: there is no file I/O on the path of the reads and writes
+ * captured. A background thread maps the next segment in advance, flushes
+ * the full ones to the disk, and deletes the oldest ones beyond the
+ * maximum number of segments, so that a capture can run for days within
+ * a bounded space. Should the next segment not be ready when the current
+ * one is full, chunks are dropped and counted by {@link #getDroppedBytes()}
+ * instead of waiting.
+ * <p>
+ * Each chunk is stored with its {@link Direction} and a timestamp in
+ * nanoseconds since the start of the capture, whose wall clock time is
+ * written in each segment. Chunks are split at the end of a segment; as a
+ * single segment is mapped in advance, they should be smaller than a segment
+ * not to be partly dropped. Use
+ * {@link CapturingChannel} to record the traffic of a port, and
+ * {@link CaptureReader} or {@link ReplayChannel} to read it back.
+ * <p>
+ * This class is thread-safe: the reads and writes of a port, done from
+ * different threads, can be recorded at the same time.
+ */
+public class CaptureWriter implements Closeable {
+
+    /** Minimum size of a segment, in bytes. */
+    public static final int MIN_SEGMENT_SIZE = 1024;
+
+    /** Default size of a segment, in bytes. */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /* Segment header: magic, version, index, capture start (epoch milliseconds). */
+    static final int MAGIC = 0x4A534350;
+    static final short VERSION = 1;
+    static final int SEGMENT_HEADER_SIZE = 24;
+
+    /* Record header: data length, direction, timestamp. Records are aligned
+     * on 8 bytes, and a zero length marks the end of the segment data. */
+    static final int RECORD_HEADER_SIZE = 16;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long startMillis;
+    private final long startNanos;
+    private final Thread thread;
+
+    /* Guarded by this object. */
+    private MappedByteBuffer current;
+    private int currentIndex;
+
+    /* Handed over by the background thread. */
+    private volatile MappedByteBuffer next;
+    private final Queue<MappedByteBuffer> full = new ConcurrentLinkedQueue<>();
+    private final AtomicLong droppedBytes = new AtomicLong();
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+    private CaptureWriter(Path directory, int segmentSize, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        current = map(0);
+        thread = new Thread(new Runnable() {
+            public void run() {
+                roll();
+            }
+        }, "CaptureWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts a capture with the default segment size and no limit
+     * on the number of segments.
+     *
+     * @param directory The directory of the segments, created if needed.
+     * @return The capture writer.
+     * @throws FileAlreadyExistsException If the directory already contains a capture.
+     * @throws IOException If the first segment can't be created.
+     */
+    public static CaptureWriter open(Path directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_SIZE, 0);
+    }
+
+    /**
+     * Starts a capture.
+     *
+     * @param directory The directory of the segments, created if needed.
+     * @param segmentSize The size of each segment file, in bytes.
+     * @param maxSegments The number of segments kept, the oldest ones being
+     *     deleted, or 0 to keep all of them.
+     * @return The capture writer.
+     * @throws FileAlreadyExistsException If the directory already contains a capture.
+     * @throws IOException If the first segment can't be created.
+     * @throws IllegalArgumentException If the segment size is lower than
+     *     {@link #MIN_SEGMENT_SIZE} or the number of segments is negative.
+     */
+    public static CaptureWriter open(Path directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < MIN_SEGMENT_SIZE)
+            throw new IllegalArgumentException("Segment size lower than " + MIN_SEGMENT_SIZE);
+        if (maxSegments < 0)
+            throw new IllegalArgumentException("Negative number of segments");
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, "segment-*.cap")) {
+            if (segments.iterator().hasNext())
+                throw new FileAlreadyExistsException(directory.toString(), null, "Directory already contains a capture");
+        }
+        return new CaptureWriter(directory, segmentSize & ~7, maxSegments);
+    }
+
+    static Path segmentPath(Path directory, int index) {
+        return directory.resolve(String.format("segment-%08d.cap", index));
+    }
+
+    private MappedByteBuffer map(int index) throws IOException {
+        MappedByteBuffer segment;
+        try (FileChannel file = FileChannel.open(segmentPath(directory, index), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = file.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+        segment.putInt(MAGIC);
+        segment.putShort(VERSION);
+        segment.putShort((short) 0);
+        segment.putInt(index);
+        segment.putInt(0);
+        segment.putLong(startMillis);
+        return segment;
+    }
+
+    /**
+     * @return The directory of the segments.
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Records the bytes between the position and the limit of a buffer,
+     * without changing its position.
+     *
+     * @param direction The direction of the bytes.
+     * @param data The bytes to record.
+     */
+    public void record(Direction direction, ByteBuffer data) {
+        record(direction, System.nanoTime(), data, data.position(), data.limit());
+    }
+
+    /* Records the bytes from index 'from' to 'to' of the buffer,
+     * whose position and limit are restored. */
+    void record(Direction direction, long nanoTime, ByteBuffer data, int from, int to) {
+        if (from >= to || closed)
+            return;
+        long timestamp = nanoTime - startNanos;
+        int position = data.position();
+        int limit = data.limit();
+        try {
+            synchronized (this) {
+                while (from < to) {
+                    if (current.remaining() < RECORD_HEADER_SIZE + 8) {
+                        if (!nextSegment()) {
+                            droppedBytes.addAndGet(to - from);
+                            return;
+                        }
+                        continue;
+                    }
+                    int length = Math.min(to - from, current.remaining() - RECORD_HEADER_SIZE);
+                    int start = current.position();
+                    current.position(start + 4);
+                    current.put((byte) direction.ordinal());
+                    current.put((byte) 0);
+                    current.putShort((short) 0);
+                    current.putLong(timestamp);
+                    data.limit(from + length).position(from);
+                    current.put(data);
+                    /* The length is written last: a record is only
+                     * visible to readers once complete. */
+                    current.putInt(start, length);
+                    current.position(Math.min(current.limit(), (current.position() + 7) & ~7));
+                    from += length;
+                }
+            }
+        } finally {
+            data.limit(limit).position(position);
+        }
+    }
+
+    /* Switches to the segment prepared by the background thread. */
+    private boolean nextSegment() {
+        MappedByteBuffer prepared = next;
+        if (prepared == null) {
+            LockSupport.unpark(thread);
+            return false;
+        }
+        next = null;
+        full.add(current);
+        current = prepared;
+        currentIndex++;
+        LockSupport.unpark(thread);
+        return true;
+    }
+
+    private void roll() {
+        Deque<Integer> kept = new ArrayDeque<>();
+        kept.add(0);
+        int prepared = 0;
+        while (!closed) {
+            try {
+                if (next == null && failure == null) {
+                    next = map(prepared + 1);
+                    prepared++;
+                    kept.add(prepared);
+                }
+                MappedByteBuffer segment;
+                while ((segment = full.poll()) != null)
+                    segment.force();
+            } catch (IOException e) {
+                failure = e;
+            }
+            /* The prepared segment counts as one. A segment still mapped
+             * can't be deleted on Windows, this is tried again later. */
+            try {
+                while (maxSegments > 0 && kept.size() > maxSegments + 1) {
+                    Files.deleteIfExists(segmentPath(directory, kept.peek()));
+                    kept.poll();
+                }
+            } catch (IOException ignored) {
+            }
+            LockSupport.park(this);
+        }
+    }
+
+    /**
+     * @return The number of bytes not recorded because the next segment
+     *     wasn't ready, or couldn't be created.
+     */
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    /**
+     * @return The number of the segment being written, starting at 0.
+     */
+    public synchronized int getSegmentIndex() {
+        return currentIndex;
+    }
+
+    /**
+     * Flushes the recorded chunks to the disk and stops the capture.
+     * The segment prepared in advance is deleted.
+     *
+     * @throws IOException If a segment couldn't be created or written.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        MappedByteBuffer segment;
+        while ((segment = full.poll()) != null)
+            segment.force();
+        int last;
+        synchronized (this) {
+            current.force();
+            last = currentIndex;
+        }
+        try {
+            if (next != null) {
+                next = null;
+                Files.deleteIfExists(segmentPath(directory, last + 1));
+            }
+            if (maxSegments > 0)
+                for (int index = last - maxSegments; index >= 0; index--)
+                    if (!Files.deleteIfExists(segmentPath(directory, index)))
+                        break;
+        } catch (IOException ignored) {
+        }
+        if (failure != null)
+            throw failure;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.capture;
+
+import dk.thibaut.serial.FileTransfers;
+import dk.thibaut.serial.SerialChannel;
+import dk.thibaut.serial.TransferListener;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A tap recording the traffic of a {@link SerialChannel} to a {@link CaptureWriter}.
+ * <p>
+ * All the calls are forwarded to the channel; the bytes read and written are
+ * then recorded, which only costs a copy to the mapped memory of the
+ * capture. Timestamps are taken when the reads return: with a long read
+ * timeout, bytes may have been received earlier.
+ * <p>
+ * The tap can't be registered with a {@link dk.thibaut.serial.SerialSelector},
+ * the wrapped channel must be registered instead, and the data read
+ * through the tap. Closing the tap closes the channel, not the capture.
+ */
+public class CapturingChannel implements SerialChannel {
+
+    private final SerialChannel channel;
+    private final CaptureWriter capture;
+    /* Allocated by the first transferTo(), and reused. */
+    private ByteBuffer transferBuffer;
+
+    /**
+     * @param channel The channel whose traffic is recorded.
+     * @param capture The capture to record to.
+     */
+    public CapturingChannel(SerialChannel channel, CaptureWriter capture) {
+        if (channel == null || capture == null)
+            throw new NullPointerException();
+        this.channel = channel;
+        this.capture = capture;
+    }
+
+    /**
+     * @return The channel whose traffic is recorded.
+     */
+    public SerialChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return The capture recorded to.
+     */
+    public CaptureWriter getCapture() {
+        return capture;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        int position = dst.position();
+        int readBytes = channel.read(dst);
+        capture.record(Direction.RX, System.nanoTime(), dst, position, dst.position());
+        return readBytes;
+    }
+
+    public int read(ByteBuffer dst, long timeout, TimeUnit unit) throws IOException {
+        int position = dst.position();
+        int readBytes = channel.read(dst, timeout, unit);
+        capture.record(Direction.RX, System.nanoTime(), dst, position, dst.position());
+        return readBytes;
+    }
+
+    public int readFully(ByteBuffer dst, long timeout, TimeUnit unit) throws IOException {
+        int position = dst.position();
+        int readBytes = channel.readFully(dst, timeout, unit);
+        capture.record(Direction.RX, System.nanoTime(), dst, position, dst.position());
+        return readBytes;
+    }
+
+    public int readUntil(ByteBuffer dst, byte delimiter, long timeout, TimeUnit unit) throws IOException {
+        int position = dst.position();
+        int found = channel.readUntil(dst, delimiter, timeout, unit);
+        capture.record(Direction.RX, System.nanoTime(), dst, position, dst.position());
+        return found;
+    }
+
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        int[] positions = positions(dsts, offset, length);
+        long readBytes = channel.read(dsts, offset, length);
+        record(Direction.RX, dsts, offset, length, positions);
+        return readBytes;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        int position = src.position();
+        try {
+            return channel.write(src);
+        } finally {
+            /* Bytes written before a failure were sent. */
+            capture.record(Direction.TX, System.nanoTime(), src, position, src.position());
+        }
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        int[] positions = positions(srcs, offset, length);
+        try {
+            return channel.write(srcs, offset, length);
+        } finally {
+            record(Direction.TX, srcs, offset, length, positions);
+        }
+    }
+
+    private static int[] positions(ByteBuffer[] buffers, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > buffers.length - length)
+            throw new IndexOutOfBoundsException();
+        int[] positions = new int[length];
+        for (int i = 0; i < length; i++)
+            positions[i] = buffers[offset + i].position();
+        return positions;
+    }
+
+    private void record(Direction direction, ByteBuffer[] buffers, int offset, int length, int[] positions) {
+        long now = System.nanoTime();
+        for (int i = 0; i < length; i++) {
+            ByteBuffer buffer = buffers[offset + i];
+            capture.record(direction, now, buffer, positions[i], buffer.position());
+        }
+    }
+
+    /* Transfers go through the tap to be recorded, by chunks of the
+     * default size as the transmit queue size of the port isn't known. */
+    public long transferFrom(FileChannel src, long position, long count, TransferListener listener) throws IOException {
+        return FileTransfers.transferFrom(this, src, position, count, FileTransfers.DEFAULT_CHUNK, listener);
+    }
+
+    public synchronized long transferTo(FileChannel dst, long position, long count, TransferListener listener)
+            throws IOException {
+        if (transferBuffer == null)
+            transferBuffer = ByteBuffer.allocateDirect(FileTransfers.DEFAULT_CHUNK);
+        return FileTransfers.transferTo(this, dst, position, count, transferBuffer, listener);
+    }
+
+    public void flush(boolean in, boolean out) throws IOException {
+        channel.flush(in, out);
+    }
+
+    public int available() throws IOException {
+        return channel.available();
+    }
+
+    public int pendingOutput() throws IOException {
+        return channel.pendingOutput();
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
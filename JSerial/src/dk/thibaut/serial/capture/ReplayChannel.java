@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.capture;
+
+import dk.thibaut.serial.FileTransfers;
+import dk.thibaut.serial.SerialChannel;
+import dk.thibaut.serial.SerialPort;
+import dk.thibaut.serial.TransferListener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link SerialChannel} playing back the bytes received in a capture,
+ * to reproduce the traffic of a port without its device.
+ * <p>
+ * Reads return the {@link Direction#RX} records of the capture once their
+ * time has come: the first record is available immediately, and the next
+ * ones after the same delays as when they were captured, divided by the
+ * speed. A speed of {@link Double#POSITIVE_INFINITY} plays the capture
+ * back as fast as it's read. Once all the records are read, reads
+ * return -1.
+ * <p>
+ * Bytes written are discarded and counted by {@link #getBytesWritten()}:
+ * the capture is played back whatever the application sends.
+ * <p>
+ * The replay can't be registered with a {@link dk.thibaut.serial.SerialSelector}.
+ * This class isn't thread-safe.
+ */
+public class ReplayChannel implements SerialChannel {
+
+    private final CaptureReader reader;
+    private final double speed;
+    private final long startNanos;
+    private long firstTimestamp = -1;
+    private ByteBuffer pending;
+    private long pendingDue;
+    private int timeout = SerialPort.TIMEOUT_INFINITE;
+    private long bytesWritten;
+    private boolean open = true;
+    /* Allocated by the first transferTo(), and reused. */
+    private ByteBuffer transferBuffer;
+
+    /**
+     * Starts playing back a capture.
+     *
+     * @param reader The capture, which is closed with this channel.
+     * @param speed The playback speed, 1 for the original speed.
+     * @throws IllegalArgumentException If the speed isn't positive.
+     */
+    public ReplayChannel(CaptureReader reader, double speed) {
+        if (!(speed > 0))
+            throw new IllegalArgumentException("The speed must be positive");
+        this.reader = reader;
+        this.speed = speed;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Opens a capture and starts playing it back.
+     *
+     * @param directory The directory of the capture.
+     * @param speed The playback speed, 1 for the original speed.
+     * @return The replay channel.
+     * @throws IOException If the capture can't be opened.
+     */
+    public static ReplayChannel open(Path directory, double speed) throws IOException {
+        return new ReplayChannel(CaptureReader.open(directory), speed);
+    }
+
+    /**
+     * Sets the time {@link #read(ByteBuffer)} waits for the next bytes,
+     * as {@link SerialPort#setTimeout(int)} does for a port.
+     *
+     * @param timeout The timeout in milliseconds, {@link SerialPort#TIMEOUT_INFINITE}
+     *     (the default) or {@link SerialPort#TIMEOUT_IMMEDIATE}.
+     */
+    public void setTimeout(int timeout) {
+        if (timeout < SerialPort.TIMEOUT_INFINITE)
+            throw new IllegalArgumentException("Invalid timeout: " + timeout);
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return The timeout set by {@link #setTimeout(int)}.
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return The number of bytes written, and discarded.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /* Makes the next received bytes pending, false at the end of the capture. */
+    private boolean fetch() throws IOException {
+        if (pending != null && pending.hasRemaining())
+            return true;
+        while (reader.next()) {
+            if (reader.getDirection() != Direction.RX)
+                continue;
+            if (firstTimestamp < 0)
+                firstTimestamp = reader.getTimestamp();
+            pending = reader.getData();
+            pendingDue = startNanos + (long) ((reader.getTimestamp() - firstTimestamp) / speed);
+            return true;
+        }
+        pending = null;
+        return false;
+    }
+
+    /* Waits at most the given time (negative for no limit) for the pending
+     * bytes. Returns -1 at the end of the capture, 0 on timeout. */
+    private int await(long nanos) throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+        if (!fetch())
+            return -1;
+        long wait = pendingDue - System.nanoTime();
+        if (wait <= 0)
+            return 1;
+        if (nanos >= 0 && nanos < wait) {
+            sleep(nanos);
+            return 0;
+        }
+        /* A sleep may end slightly early, the bytes must be due on return. */
+        while (wait > 0) {
+            sleep(wait);
+            wait = pendingDue - System.nanoTime();
+        }
+        return 1;
+    }
+
+    private static void sleep(long nanos) throws InterruptedIOException {
+        if (nanos <= 0)
+            return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /* Copies the bytes due, without waiting. */
+    private int transfer(ByteBuffer dst) throws IOException {
+        int total = 0;
+        long now = System.nanoTime();
+        while (dst.hasRemaining() && fetch() && pendingDue - now <= 0) {
+            int n = Math.min(dst.remaining(), pending.remaining());
+            int limit = pending.limit();
+            pending.limit(pending.position() + n);
+            dst.put(pending);
+            pending.limit(limit);
+            total += n;
+        }
+        return total;
+    }
+
+    private int read(ByteBuffer dst, long nanos) throws IOException {
+        if (!dst.hasRemaining())
+            return 0;
+        int ready = await(nanos);
+        if (ready <= 0)
+            return ready;
+        return transfer(dst);
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        return read(dst, timeout < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(timeout));
+    }
+
+    public int read(ByteBuffer dst, long timeout, TimeUnit unit) throws IOException {
+        return read(dst, Math.max(0, unit.toNanos(timeout)));
+    }
+
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset > dsts.length - length)
+            throw new IndexOutOfBoundsException();
+        int ready = await(timeout < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(timeout));
+        if (ready <= 0)
+            return ready;
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += transfer(dsts[i]);
+            if (dsts[i].hasRemaining())
+                break;
+        }
+        return total;
+    }
+
+    public int readFully(ByteBuffer dst, long timeout, TimeUnit unit) throws IOException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int total = 0;
+        long remaining = unit.toNanos(timeout);
+        do {
+            int n = read(dst, Math.max(0, remaining));
+            if (n < 0)
+                break;
+            total += n;
+        } while (dst.hasRemaining() && (remaining = deadline - System.nanoTime()) > 0);
+        return total;
+    }
+
+    public int readUntil(ByteBuffer dst, byte delimiter, long timeout, TimeUnit unit) throws IOException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int start = dst.position();
+        int scanned = start;
+        long remaining = unit.toNanos(timeout);
+        do {
+            if (read(dst, Math.max(0, remaining)) < 0)
+                return -1;
+            for (; scanned < dst.position(); scanned++)
+                if (dst.get(scanned) == delimiter)
+                    return scanned + 1 - start;
+        } while (dst.hasRemaining() && (remaining = deadline - System.nanoTime()) > 0);
+        return -1;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+        int n = src.remaining();
+        src.position(src.limit());
+        bytesWritten += n;
+        return n;
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++)
+            total += write(srcs[i]);
+        return total;
+    }
+
+    public long transferFrom(FileChannel src, long position, long count, TransferListener listener) throws IOException {
+        return FileTransfers.transferFrom(this, src, position, count, FileTransfers.DEFAULT_CHUNK, listener);
+    }
+
+    public synchronized long transferTo(FileChannel dst, long position, long count, TransferListener listener)
+            throws IOException {
+        if (transferBuffer == null)
+            transferBuffer = ByteBuffer.allocateDirect(FileTransfers.DEFAULT_CHUNK);
+        return FileTransfers.transferTo(this, dst, position, count, transferBuffer, listener);
+    }
+
+    public void flush(boolean in, boolean out) throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+        /* Flushing the input drops the bytes due. */
+        if (in)
+            while (fetch() && pendingDue - System.nanoTime() <= 0)
+                pending.position(pending.limit());
+    }
+
+    /**
+     * @return A number of bytes which can be read without waiting,
+     *     possibly less than all the bytes due.
+     */
+    public int available() throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+        if (!fetch() || pendingDue - System.nanoTime() > 0)
+            return 0;
+        return pending.remaining();
+    }
+
+    public int pendingOutput() throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+        return 0;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void close() {
+        open = false;
+        pending = null;
+        reader.close();
+    }
+}
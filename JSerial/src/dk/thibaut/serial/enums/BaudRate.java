@@ -25,17 +25,26 @@ package dk.thibaut.serial.enums;
 public enum BaudRate {
 
     UNKNOWN(0),
+    B3000000(3000000),
+    B2000000(2000000),
+    B1000000(1000000),
+    B921600(921600),
+    B460800(460800),
     B256000(256000),
+    B230400(230400),
     B115200(115200),
     B57600(57600),
     B38400(38400),
     B19200(19200),
     B9600(9600);
 
-    private int value;
+    /* values() returns a new copy on each call. */
+    private static final BaudRate[] VALUES = values();
+
+    private final int value;
 
     public static BaudRate fromInteger(int value) {
-        for (BaudRate b : BaudRate.values())
+        for (BaudRate b : VALUES)
             if (b.value == value)
                 return b;
         return UNKNOWN;
@@ -29,10 +29,13 @@ public enum DataBits {
     D7(7),
     D8(8);
 
-    private int value;
+    /* values() returns a new copy on each call. */
+    private static final DataBits[] VALUES = values();
+
+    private final int value;
 
     public static DataBits fromInteger(int value) {
-        for (DataBits d : DataBits.values())
+        for (DataBits d : VALUES)
             if (d.value == value)
                 return d;
         return UNKNOWN;
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.framing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Consistent Overhead Byte Stuffing framing, with a zero byte ending each frame.
+ * <p>
+ * The overhead is at most one byte every 254 bytes. Frames are decoded in
+ * place: the decoded frame is a slice of the received bytes, which are
+ * overwritten. Empty frames (two consecutive zeros) are skipped.
+ */
+public class CobsCodec extends DelimitedDecoder implements FrameEncoder {
+
+    private final int maxFrameLength;
+
+    /**
+     * @param maxFrameLength The maximum frame length, before decoding
+     *      and without the ending zero.
+     */
+    public CobsCodec(int maxFrameLength) {
+        super((byte) 0, maxFrameLength);
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    int unwrap(ByteBuffer in, int start, int end) throws FrameException {
+        if (start == end)
+            return -1;
+        int write = start;
+        int read = start;
+        while (read < end) {
+            int code = in.get(read++) & 0xFF;
+            if (read + code - 1 > end)
+                throw new FrameException("Truncated COBS block");
+            for (int i = 1; i < code; i++)
+                in.put(write++, in.get(read++));
+            if (code != 0xFF && read < end)
+                in.put(write++, (byte) 0);
+        }
+        return write;
+    }
+
+    public int maxEncodedLength(int frameLength) {
+        return frameLength + frameLength / 254 + 2;
+    }
+
+    public void encode(ByteBuffer frame, ByteBuffer out) throws FrameException {
+        int framePosition = frame.position();
+        int start = out.position();
+        int codePosition = start;
+        int code = 1;
+        out.put((byte) 0);
+        while (frame.hasRemaining()) {
+            byte b = frame.get();
+            if (b != 0) {
+                out.put(b);
+                code++;
+            }
+            if (b == 0 || code == 0xFF) {
+                out.put(codePosition, (byte) code);
+                codePosition = out.position();
+                code = 1;
+                out.put((byte) 0);
+            }
+        }
+        out.put(codePosition, (byte) code);
+        out.put((byte) 0);
+        Frames.checkEncodedLength(frame, framePosition, out, start, 1, maxFrameLength);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.framing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base of the decoders for frames ending with a delimiter byte.
+ * <p>
+ * The bytes already scanned are remembered, so that each received byte is
+ * only looked at once. When a frame is longer than the maximum, the bytes
+ * are dropped until the next delimiter.
+ */
+abstract class DelimitedDecoder implements FrameDecoder {
+
+    private final byte delimiter;
+    private final int maxFrameLength;
+    private int scanned;
+    private boolean discarding;
+
+    DelimitedDecoder(byte delimiter, int maxFrameLength) {
+        Frames.checkMaxFrameLength(maxFrameLength);
+        this.delimiter = delimiter;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public ByteBuffer decode(ByteBuffer in) throws FrameException {
+        while (true) {
+            int start = in.position();
+            int limit = in.limit();
+            int end = start + scanned;
+            while (end < limit && in.get(end) != delimiter)
+                end++;
+
+            if (end == limit) {
+                scanned = end - start;
+                if (scanned > maxFrameLength) {
+                    in.position(limit);
+                    scanned = 0;
+                    if (!discarding) {
+                        discarding = true;
+                        throw new FrameException("Frame longer than " + maxFrameLength + " bytes");
+                    }
+                }
+                return null;
+            }
+
+            scanned = 0;
+            in.position(end + 1);
+            if (discarding) {
+                discarding = false;
+                continue;
+            }
+            if (end - start > maxFrameLength)
+                throw new FrameException("Frame longer than " + maxFrameLength + " bytes: " + (end - start));
+            int frameEnd = unwrap(in, start, end);
+            if (frameEnd >= 0)
+                return Frames.slice(in, start, frameEnd);
+        }
+    }
+
+    public void reset() {
+        scanned = 0;
+        discarding = false;
+    }
+
+    /**
+     * Decode the frame between start and end (the delimiter position) in place.
+     *
+     * @return The end of the decoded frame, or -1 to skip this frame.
+     * @throws FrameException If the frame is malformed, it has already been consumed.
+     */
+    abstract int unwrap(ByteBuffer in, int start, int end) throws FrameException;
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.framing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frames ending with a delimiter byte, like a line feed for text protocols.
+ * <p>
+ * The decoded frames don't include the delimiter. Frames must not contain
+ * the delimiter, use {@link SlipCodec} or {@link CobsCodec} for binary data.
+ */
+public class DelimiterCodec extends DelimitedDecoder implements FrameEncoder {
+
+    private final byte delimiter;
+    private final int maxFrameLength;
+
+    /**
+     * @param delimiter The byte ending each frame.
+     * @param maxFrameLength The maximum frame length, without the delimiter.
+     */
+    public DelimiterCodec(byte delimiter, int maxFrameLength) {
+        super(delimiter, maxFrameLength);
+        this.delimiter = delimiter;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    int unwrap(ByteBuffer in, int start, int end) {
+        return end;
+    }
+
+    public int maxEncodedLength(int frameLength) {
+        return frameLength + 1;
+    }
+
+    public void encode(ByteBuffer frame, ByteBuffer out) throws FrameException {
+        Frames.checkFrameLength(frame, maxFrameLength);
+        for (int i = frame.position(); i < frame.limit(); i++)
+            if (frame.get(i) == delimiter)
+                throw new FrameException("Frame contains the delimiter at offset " + (i - frame.position()));
+        out.put(frame);
+        out.put(delimiter);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.framing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frames all having the same length.
+ */
+public class FixedLengthCodec implements FrameDecoder, FrameEncoder {
+
+    private final int frameLength;
+
+    public FixedLengthCodec(int frameLength) {
+        Frames.checkMaxFrameLength(frameLength);
+        this.frameLength = frameLength;
+    }
+
+    public ByteBuffer decode(ByteBuffer in) {
+        if (in.remaining() < frameLength)
+            return null;
+        int start = in.position();
+        in.position(start + frameLength);
+        return Frames.slice(in, start, start + frameLength);
+    }
+
+    public void reset() {
+    }
+
+    public int maxEncodedLength(int frameLength) {
+        return this.frameLength;
+    }
+
+    public void encode(ByteBuffer frame, ByteBuffer out) throws FrameException {
+        if (frame.remaining() != frameLength)
+            throw new FrameException("Frame length must be " + frameLength + " bytes: " + frame.remaining());
+        out.put(frame);
+    }
+}
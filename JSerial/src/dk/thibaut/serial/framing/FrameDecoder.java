@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.framing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Extracts frames from a stream of bytes.
+ * <p>
+ * A decoder is stateful and must only be used for a single stream.
+ */
+public interface FrameDecoder {
+
+    /**
+     * Decode the next frame from the bytes remaining in the buffer.
+     * <p>
+     * If a complete frame is available, the buffer position is moved after
+     * it, and the frame is returned as a read-only slice of the buffer: no
+     * bytes are copied, so the frame is only valid until the buffer content
+     * is modified. Some decoders (SLIP and COBS) decode the frame in place,
+     * and require the buffer to be writable.
+     * <p>
+     * If no complete frame is available, null is returned and the position
+     * isn't changed. The decoder may remember how many bytes it already
+     * looked at, the next call must be made with the same bytes, followed
+     * by the newly received ones.
+     *
+     * @param in The received bytes.
+     * @return A frame, or null if no complete frame is available.
+     * @throws FrameException If a malformed frame is found.
+     */
+    ByteBuffer decode(ByteBuffer in) throws FrameException;
+
+    /**
+     * Forget about the bytes already looked at, when the received
+     * bytes are discarded.
+     */
+    void reset();
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.framing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes frames, adding the headers, delimiters or escaping
+ * needed by a {@link FrameDecoder} to extract them.
+ */
+public interface FrameEncoder {
+
+    /**
+     * Get the length of the largest encoded frame, for a given frame length.
+     *
+     * @param frameLength The length of the frame before encoding.
+     * @return The maximum length after encoding.
+     */
+    int maxEncodedLength(int frameLength);
+
+    /**
+     * Encode the bytes remaining in the frame, consuming them.
+     *
+     * @param frame The frame to encode.
+     * @param out The buffer in which the encoded frame is written, it must have
+     *      at least {@link #maxEncodedLength(int)} bytes remaining.
+     * @throws FrameException If the frame can't be encoded.
+     */
+    void encode(ByteBuffer frame, ByteBuffer out) throws FrameException;
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.framing;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads frames from a channel, typically a {@link dk.thibaut.serial.SerialChannel}.
+ * <p>
+ * Received bytes are stored in a {@link RingBuffer} and decoded by a
+ * {@link FrameDecoder}. Frames are returned as read-only slices of the
+ * buffer, without any copy: a frame is only valid until the next call
+ * to {@link #read()}.
+ * <p>
+ * This class isn't thread-safe.
+ */
+public class FrameReader {
+
+    private final ReadableByteChannel channel;
+    private final FrameDecoder decoder;
+    private final RingBuffer buffer;
+
+    /**
+     * @param channel The channel to read from.
+     * @param decoder The decoder extracting the frames.
+     * @param bufferSize The size of the reception buffer, it must be larger
+     *      than the largest encoded frame.
+     */
+    public FrameReader(ReadableByteChannel channel, FrameDecoder decoder, int bufferSize) {
+        this.channel = channel;
+        this.decoder = decoder;
+        this.buffer = new RingBuffer(bufferSize);
+    }
+
+    /**
+     * Read the next frame.
+     * <p>
+     * Frames already received are returned without reading from the channel.
+     * Otherwise, the channel is read until a frame is complete, or until a
+     * read returns no bytes, depending on the timeout of the port.
+     *
+     * @return A read-only frame, or null if no complete frame was received.
+     * @throws FrameException If a malformed frame was received, or a
+     *      frame larger than the buffer. Reading can go on.
+     * @throws EOFException If the end of the stream is reached.
+     * @throws IOException If an error occurs while reading.
+     */
+    public ByteBuffer read() throws IOException {
+        while (true) {
+            ByteBuffer frame = decoder.decode(buffer.readable());
+            if (frame != null)
+                return frame;
+            if (buffer.isFull()) {
+                buffer.clear();
+                decoder.reset();
+                throw new FrameException("Frame larger than the buffer");
+            }
+            int count = buffer.fill(channel);
+            if (count < 0)
+                throw new EOFException();
+            if (count == 0)
+                return null;
+        }
+    }
+
+    /**
+     * @return The buffer of received bytes, not decoded yet.
+     */
+    public RingBuffer getBuffer() {
+        return buffer;
+    }
+}
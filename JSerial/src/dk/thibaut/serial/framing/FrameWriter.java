@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.framing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes frames to a channel, typically a {@link dk.thibaut.serial.SerialChannel}.
+ * <p>
+ * Frames are encoded in a direct buffer allocated once, and written
+ * with a single call to the channel.
+ * <p>
+ * This class isn't thread-safe.
+ */
+public class FrameWriter {
+
+    private final WritableByteChannel channel;
+    private final FrameEncoder encoder;
+    private final int maxFrameLength;
+    private final ByteBuffer buffer;
+
+    /**
+     * @param channel The channel to write to.
+     * @param encoder The encoder adding the framing.
+     * @param maxFrameLength The maximum length of a frame, before encoding.
+     */
+    public FrameWriter(WritableByteChannel channel, FrameEncoder encoder, int maxFrameLength) {
+        Frames.checkMaxFrameLength(maxFrameLength);
+        this.channel = channel;
+        this.encoder = encoder;
+        this.maxFrameLength = maxFrameLength;
+        this.buffer = ByteBuffer.allocateDirect(encoder.maxEncodedLength(maxFrameLength));
+    }
+
+    /**
+     * Encode and write the bytes remaining in the frame.
+     *
+     * @param frame The frame to write, it's consumed.
+     * @throws FrameException If the frame can't be encoded.
+     * @throws IOException If an error occurs while writing.
+     */
+    public void write(ByteBuffer frame) throws IOException {
+        Frames.checkFrameLength(frame, maxFrameLength);
+        buffer.clear();
+        encoder.encode(frame, buffer);
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+}
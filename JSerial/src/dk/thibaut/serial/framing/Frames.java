@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.framing;
+
+import java.nio.ByteBuffer;
+
+final class Frames {
+
+    private Frames() {
+    }
+
+    /* Returns bytes [start, end) of the buffer as a read-only slice,
+     * independently of the buffer position and limit. */
+    static ByteBuffer slice(ByteBuffer in, int start, int end) {
+        ByteBuffer frame = in.asReadOnlyBuffer();
+        frame.limit(end);
+        frame.position(start);
+        return frame.slice();
+    }
+
+    static void checkMaxFrameLength(int maxFrameLength) {
+        if (maxFrameLength <= 0)
+            throw new IllegalArgumentException("Invalid maximum frame length: " + maxFrameLength);
+    }
+
+    static void checkFrameLength(ByteBuffer frame, int maxFrameLength) throws FrameException {
+        if (frame.remaining() > maxFrameLength)
+            throw new FrameException("Frame longer than " + maxFrameLength + " bytes: " + frame.remaining());
+    }
+
+    /* The encoded frame, starting at start, must not be longer than the maximum
+     * length a decoder accepts, else both buffers positions are restored. */
+    static void checkEncodedLength(ByteBuffer frame, int framePosition, ByteBuffer out, int start,
+            int delimiters, int maxFrameLength) throws FrameException {
+        int length = out.position() - start - delimiters;
+        if (length > maxFrameLength) {
+            frame.position(framePosition);
+            out.position(start);
+            throw new FrameException("Encoded frame longer than " + maxFrameLength + " bytes: " + length);
+        }
+    }
+}
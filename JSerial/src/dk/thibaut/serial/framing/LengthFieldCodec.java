@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.framing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Frames prefixed by their length, on 1 to 4 bytes.
+ * <p>
+ * The decoded frames don't include the length field. As the stream can't be
+ * resynchronized after an invalid length, all the received bytes are dropped
+ * when a length greater than the maximum is found.
+ */
+public class LengthFieldCodec implements FrameDecoder, FrameEncoder {
+
+    private final int fieldSize;
+    private final ByteOrder order;
+    private final int maxFrameLength;
+
+    /**
+     * @param fieldSize The size of the length field, from 1 to 4 bytes.
+     * @param order The byte order of the length field.
+     * @param maxFrameLength The maximum frame length, without the length field.
+     */
+    public LengthFieldCodec(int fieldSize, ByteOrder order, int maxFrameLength) {
+        if (fieldSize < 1 || fieldSize > 4)
+            throw new IllegalArgumentException("Invalid length field size: " + fieldSize);
+        Frames.checkMaxFrameLength(maxFrameLength);
+        this.fieldSize = fieldSize;
+        this.order = order;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public ByteBuffer decode(ByteBuffer in) throws FrameException {
+        int position = in.position();
+        if (in.remaining() < fieldSize)
+            return null;
+        long length = 0;
+        for (int i = 0; i < fieldSize; i++)
+            length = (length << 8) | (in.get(position + fieldIndex(i)) & 0xFF);
+        if (length > maxFrameLength) {
+            in.position(in.limit());
+            throw new FrameException("Frame longer than " + maxFrameLength + " bytes: " + length);
+        }
+        if (in.remaining() < fieldSize + length)
+            return null;
+        int start = position + fieldSize;
+        int end = start + (int) length;
+        in.position(end);
+        return Frames.slice(in, start, end);
+    }
+
+    public void reset() {
+    }
+
+    public int maxEncodedLength(int frameLength) {
+        return frameLength + fieldSize;
+    }
+
+    public void encode(ByteBuffer frame, ByteBuffer out) throws FrameException {
+        Frames.checkFrameLength(frame, maxFrameLength);
+        long length = frame.remaining();
+        if (length >>> (fieldSize * 8) != 0)
+            throw new FrameException("Frame length doesn't fit in " + fieldSize + " bytes: " + length);
+        int position = out.position();
+        for (int i = fieldSize - 1; i >= 0; i--) {
+            out.put(position + fieldIndex(i), (byte) length);
+            length >>>= 8;
+        }
+        out.position(position + fieldSize);
+        out.put(frame);
+    }
+
+    /* Position of the i-th most significant byte in the field. */
+    private int fieldIndex(int i) {
+        return order == ByteOrder.BIG_ENDIAN ? i : fieldSize - 1 - i;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.framing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A reusable buffer of received bytes, filled from a channel.
+ * <p>
+ * Bytes are appended at the end and consumed from the start. When the end
+ * of the memory is reached, the unconsumed bytes (usually the beginning of
+ * a frame) are moved back to the start, so that a frame is always
+ * contiguous in memory and can be returned as a slice. When everything has
+ * been consumed, the buffer simply wraps to the start without copying.
+ * <p>
+ * The memory is allocated once, as a direct buffer: reading from a
+ * {@link dk.thibaut.serial.SerialChannel} doesn't involve any copy.
+ */
+public class RingBuffer {
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer tail;
+
+    /**
+     * @param capacity The size of the buffer, larger than the largest frame.
+     */
+    public RingBuffer(int capacity) {
+        buffer = ByteBuffer.allocateDirect(capacity);
+        buffer.limit(0);
+        tail = buffer.duplicate();
+    }
+
+    /**
+     * Get the bytes received and not consumed yet, between the
+     * position and the limit. Advancing the position consumes them.
+     *
+     * @return Always the same buffer instance.
+     */
+    public ByteBuffer readable() {
+        return buffer;
+    }
+
+    /**
+     * @return True if there is no room left for new bytes.
+     */
+    public boolean isFull() {
+        return buffer.position() == 0 && buffer.limit() == buffer.capacity();
+    }
+
+    /**
+     * Discard all the bytes not consumed yet.
+     */
+    public void clear() {
+        buffer.position(0);
+        buffer.limit(0);
+    }
+
+    /**
+     * Read bytes from the channel, making room for them if needed.
+     * <p>
+     * Moving the unconsumed bytes invalidates the slices of the buffer
+     * returned before.
+     *
+     * @param channel The channel to read from.
+     * @return The number of bytes read, possibly 0 if the buffer is full,
+     *      or -1 at the end of the stream.
+     * @throws IOException If an error occurs while reading.
+     */
+    public int fill(ReadableByteChannel channel) throws IOException {
+        if (!buffer.hasRemaining())
+            clear();
+        else if (buffer.limit() == buffer.capacity() && buffer.position() > 0) {
+            buffer.compact();
+            buffer.flip();
+        }
+        if (buffer.limit() == buffer.capacity())
+            return 0;
+        tail.limit(buffer.capacity());
+        tail.position(buffer.limit());
+        int count = channel.read(tail);
+        if (count > 0)
+            buffer.limit(tail.position());
+        return count;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dk.thibaut.serial.framing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serial Line Internet Protocol framing (RFC 1055).
+ * <p>
+ * Frames are decoded in place: the decoded frame is a slice of the
+ * received bytes, which are overwritten. Encoded frames start and end with
+ * the END byte, as recommended by the RFC to flush line noise; empty frames
+ * are skipped by the decoder.
+ */
+public class SlipCodec extends DelimitedDecoder implements FrameEncoder {
+
+    public static final byte END = (byte) 0xC0;
+    public static final byte ESC = (byte) 0xDB;
+    public static final byte ESC_END = (byte) 0xDC;
+    public static final byte ESC_ESC = (byte) 0xDD;
+
+    private final int maxFrameLength;
+
+    /**
+     * @param maxFrameLength The maximum frame length, before decoding
+     *      and without the END bytes.
+     */
+    public SlipCodec(int maxFrameLength) {
+        super(END, maxFrameLength);
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    int unwrap(ByteBuffer in, int start, int end) throws FrameException {
+        if (start == end)
+            return -1;
+        int write = start;
+        for (int read = start; read < end; read++) {
+            byte b = in.get(read);
+            if (b == ESC) {
+                if (++read == end)
+                    throw new FrameException("Truncated SLIP escape sequence");
+                b = in.get(read);
+                if (b == ESC_END)
+                    b = END;
+                else if (b == ESC_ESC)
+                    b = ESC;
+                else
+                    throw new FrameException("Invalid SLIP escape sequence: " + (b & 0xFF));
+            }
+            in.put(write++, b);
+        }
+        return write;
+    }
+
+    public int maxEncodedLength(int frameLength) {
+        return frameLength * 2 + 2;
+    }
+
+    public void encode(ByteBuffer frame, ByteBuffer out) throws FrameException {
+        int framePosition = frame.position();
+        int start = out.position();
+        out.put(END);
+        while (frame.hasRemaining()) {
+            byte b = frame.get();
+            if (b == END) {
+                out.put(ESC);
+                out.put(ESC_END);
+            } else if (b == ESC) {
+                out.put(ESC);
+                out.put(ESC_ESC);
+            } else {
+                out.put(b);
+            }
+        }
+        out.put(END);
+        Frames.checkEncodedLength(frame, framePosition, out, start, 2, maxFrameLength);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import dk.thibaut.serial.AsynchronousSerialChannel;
+import dk.thibaut.serial.AsynchronousSerialChannelGroup;
+import dk.thibaut.serial.SerialPort;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadPendingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/*
+ * Asynchronous channel tests, using pseudo-terminals (see
+ * VirtualNullModem), so they only run on Linux.
+ */
+
+public class TestAsynchronousSerialChannel {
+
+    private static final int PORTS = 16;
+
+    private final List<VirtualNullModem> modems = new ArrayList<>();
+    private final List<AsynchronousSerialChannel> channels = new ArrayList<>();
+    private final List<SerialPort> portsRead = new ArrayList<>();
+    private final List<SerialPort> portsWrite = new ArrayList<>();
+    private AsynchronousSerialChannelGroup group;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(System.getProperty("os.name").toLowerCase().startsWith("linux"));
+        /* Only two threads for all the ports. */
+        group = AsynchronousSerialChannelGroup.withThreadPool(Executors.newFixedThreadPool(2));
+        for (int i = 0; i < PORTS; i++) {
+            VirtualNullModem modem = new VirtualNullModem();
+            modems.add(modem);
+            portsRead.add(SerialPort.open(modem.getPortA()));
+            channels.add(AsynchronousSerialChannel.open(portsRead.get(i), group));
+            portsWrite.add(SerialPort.open(modem.getPortB()));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        if (group == null)
+            return;
+        for (AsynchronousSerialChannel channel : channels)
+            channel.close();
+        for (SerialPort port : portsWrite)
+            port.close();
+        for (VirtualNullModem modem : modems)
+            modem.close();
+        group.shutdown();
+        assertTrue(group.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    private void send(int port, byte... data) throws IOException {
+        portsWrite.get(port).getChannel().write(ByteBuffer.wrap(data));
+    }
+
+    @Test
+    public void testReadFuture() throws Exception {
+        Future<Integer> result = channels.get(0).read(ByteBuffer.allocate(16));
+        Thread.sleep(20);
+        assertFalse(result.isDone());
+        send(0, (byte) 1, (byte) 2, (byte) 3);
+        assertTrue(result.get(1, TimeUnit.SECONDS) > 0);
+    }
+
+    @Test
+    public void testWriteFuture() throws Exception {
+        ByteBuffer data = ByteBuffer.wrap(new byte[] {4, 5, 6});
+        assertEquals(channels.get(0).write(data).get(1, TimeUnit.SECONDS).intValue(), 3);
+        assertFalse(data.hasRemaining());
+        ByteBuffer received = ByteBuffer.allocate(3);
+        SerialPort port = portsWrite.get(0);
+        while (received.hasRemaining())
+            port.getChannel().read(received);
+        assertArrayEquals(received.array(), new byte[] {4, 5, 6});
+    }
+
+    @Test
+    public void testManyPendingReads() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(PORTS);
+        final AtomicInteger sum = new AtomicInteger();
+        for (int i = 0; i < PORTS; i++) {
+            final ByteBuffer buffer = ByteBuffer.allocate(1);
+            channels.get(i).read(buffer, i, new CompletionHandler<Integer, Integer>() {
+                public void completed(Integer result, Integer port) {
+                    assertEquals(buffer.get(0), port.byteValue());
+                    sum.addAndGet(port);
+                    latch.countDown();
+                }
+
+                public void failed(Throwable error, Integer port) {
+                    error.printStackTrace();
+                }
+            });
+        }
+        for (int i = PORTS - 1; i >= 0; i--)
+            send(i, (byte) i);
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(sum.get(), PORTS * (PORTS - 1) / 2);
+    }
+
+    @Test(expected = ReadPendingException.class)
+    public void testReadPending() {
+        channels.get(0).read(ByteBuffer.allocate(1));
+        channels.get(0).read(ByteBuffer.allocate(1));
+    }
+
+    @Test
+    public void testCloseFailsPendingRead() throws Exception {
+        Future<Integer> result = channels.get(0).read(ByteBuffer.allocate(1));
+        channels.get(0).close();
+        assertFalse(channels.get(0).isOpen());
+        try {
+            result.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AsynchronousCloseException);
+        }
+    }
+
+    @Test
+    public void testPortClosedWhileDispatched() throws Exception {
+        /* Ports closed under their channels, while data is dispatched,
+         * must not stop the group for the other channels. */
+        for (int i = 1; i < PORTS; i++) {
+            channels.get(i).read(ByteBuffer.allocate(1));
+            send(i, (byte) i);
+            portsRead.get(i).close();
+        }
+        Future<Integer> result = channels.get(0).read(ByteBuffer.allocate(1));
+        send(0, (byte) 0);
+        assertEquals(result.get(1, TimeUnit.SECONDS).intValue(), 1);
+        assertFalse(group.isShutdown());
+    }
+}
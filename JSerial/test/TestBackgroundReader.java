@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import dk.thibaut.serial.BackgroundReader;
+import dk.thibaut.serial.SerialPort;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/*
+ * Background reader tests, using pseudo-terminals (see VirtualNullModem),
+ * so they only run on Linux.
+ */
+
+public class TestBackgroundReader {
+
+    private VirtualNullModem modem;
+    private SerialPort portRead;
+    private SerialPort portWrite;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(System.getProperty("os.name").toLowerCase().startsWith("linux"));
+        modem = new VirtualNullModem();
+        portRead = SerialPort.open(modem.getPortA());
+        portWrite = SerialPort.open(modem.getPortB());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (portRead != null && portRead.isOpen())
+            portRead.close();
+        if (portWrite != null)
+            portWrite.close();
+        if (modem != null)
+            modem.close();
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        portWrite.getChannel().write(ByteBuffer.wrap(bytes));
+    }
+
+    /* Waits for the reader thread to receive the given number of bytes. */
+    private static void awaitAvailable(BackgroundReader reader, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (reader.available() < count && System.nanoTime() < deadline)
+            Thread.sleep(5);
+    }
+
+    @Test
+    public void testReadWrite() throws Exception {
+        BackgroundReader reader = portRead.startBackgroundReader(1024);
+        assertSame(reader, portRead.getBackgroundReader());
+        write(new byte[] {1, 2, 3, 4});
+        awaitAvailable(reader, 4);
+        assertEquals(4, reader.available());
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        assertEquals(4, reader.read(buffer));
+        buffer.flip();
+        assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}), buffer);
+        assertEquals(0, reader.available());
+        assertEquals(4, reader.getHighWaterMark());
+        assertEquals(0, reader.getOverflowCount());
+    }
+
+    @Test
+    public void testWrapAround() throws IOException {
+        BackgroundReader reader = portRead.startBackgroundReader(60);
+        assertEquals(64, reader.getCapacity());
+        byte[] chunk = new byte[50];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(50);
+        int value = 0;
+        for (int i = 0; i < 200; i++) {
+            for (int j = 0; j < chunk.length; j++)
+                chunk[j] = (byte) (i * chunk.length + j);
+            write(chunk);
+            buffer.clear();
+            while (buffer.hasRemaining())
+                reader.read(buffer);
+            buffer.flip();
+            while (buffer.hasRemaining())
+                assertEquals((byte) value++, buffer.get());
+        }
+        assertEquals(0, reader.getOverflowCount());
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        BackgroundReader reader = portRead.startBackgroundReader(16);
+        write(new byte[100]);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (reader.getOverflowCount() < 84 && System.nanoTime() < deadline)
+            Thread.sleep(5);
+        assertEquals(16, reader.available());
+        assertEquals(16, reader.getHighWaterMark());
+        assertEquals(84, reader.getOverflowCount());
+    }
+
+    @Test
+    public void testTimeout() throws IOException {
+        BackgroundReader reader = portRead.startBackgroundReader(16);
+        reader.setTimeout(SerialPort.TIMEOUT_IMMEDIATE);
+        assertEquals(0, reader.read(ByteBuffer.allocate(4)));
+        reader.setTimeout(200);
+        long start = System.nanoTime();
+        assertEquals(0, reader.read(ByteBuffer.allocate(4)));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Returned after " + elapsed + "ms", elapsed >= 190);
+    }
+
+    @Test
+    public void testCloseRestoresPort() throws Exception {
+        portRead.setTimeout(500);
+        BackgroundReader reader = portRead.startBackgroundReader(16);
+        assertTrue(portRead.isPolled());
+        write(new byte[] {1, 2});
+        awaitAvailable(reader, 2);
+        reader.close();
+        assertNull(portRead.getBackgroundReader());
+        assertFalse(portRead.isPolled());
+        assertEquals(500, portRead.getTimeout());
+
+        /* Received bytes can still be read, then the port is read directly. */
+        assertEquals(2, reader.read(ByteBuffer.allocate(4)));
+        try {
+            reader.read(ByteBuffer.allocate(4));
+            fail();
+        } catch (ClosedChannelException e) {
+            /* Expected */
+        }
+        write(new byte[] {3});
+        assertEquals(1, portRead.getChannel().read(ByteBuffer.allocate(4)));
+    }
+
+    @Test(timeout = 5000)
+    public void testPortClosed() throws Exception {
+        final BackgroundReader reader = portRead.startBackgroundReader(16);
+        Thread closer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    portRead.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        closer.start();
+        try {
+            reader.read(ByteBuffer.allocate(4));
+            fail();
+        } catch (ClosedChannelException e) {
+            /* Expected */
+        }
+        closer.join();
+        assertFalse(reader.isOpen());
+    }
+}
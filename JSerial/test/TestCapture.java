@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import dk.thibaut.serial.SerialPort;
+import dk.thibaut.serial.capture.CaptureReader;
+import dk.thibaut.serial.capture.CaptureWriter;
+import dk.thibaut.serial.capture.CapturingChannel;
+import dk.thibaut.serial.capture.Direction;
+import dk.thibaut.serial.capture.ReplayChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/*
+ * Captures are recorded from loopback ports, these tests run on any platform.
+ */
+
+public class TestCapture {
+
+    private Path directory;
+    private final List<SerialPort> ports = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("jserial-capture");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (SerialPort port : ports)
+            if (port.isOpen())
+                port.close();
+        for (Path segment : segments())
+            Files.delete(segment);
+        Files.delete(directory);
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path segment : stream)
+                segments.add(segment);
+        }
+        return segments;
+    }
+
+    private SerialPort open(String name) throws IOException {
+        SerialPort port = SerialPort.open(name);
+        ports.add(port);
+        return port;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testCaptureChannel() throws IOException {
+        SerialPort a = open("loop:capture/A?timing=false");
+        SerialPort b = open("loop:capture/B?timing=false");
+        a.setTimeout(1000);
+        CaptureWriter capture = CaptureWriter.open(directory);
+        CapturingChannel channel = new CapturingChannel(a.getChannel(), capture);
+
+        channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        b.getOutputStream().write(new byte[] {4, 5});
+        ByteBuffer dst = ByteBuffer.allocate(8);
+        dst.put((byte) 9);
+        assertEquals(2, channel.read(dst));
+        channel.write(new ByteBuffer[] {ByteBuffer.wrap(new byte[] {6}), ByteBuffer.wrap(new byte[] {7, 8})});
+        b.getOutputStream().write(new byte[] {10, 11, 12});
+        assertEquals(3, channel.readFully(ByteBuffer.allocate(3), 1, TimeUnit.SECONDS));
+        capture.close();
+        assertEquals(0, capture.getDroppedBytes());
+
+        CaptureReader reader = CaptureReader.open(directory);
+        Direction[] directions = {Direction.TX, Direction.RX, Direction.TX, Direction.TX, Direction.RX};
+        byte[][] data = {{1, 2, 3}, {4, 5}, {6}, {7, 8}, {10, 11, 12}};
+        long previous = -1;
+        for (int i = 0; i < directions.length; i++) {
+            assertTrue(reader.next());
+            assertEquals(directions[i], reader.getDirection());
+            assertArrayEquals(data[i], bytes(reader.getData()));
+            assertTrue(reader.getTimestamp() >= previous);
+            previous = reader.getTimestamp();
+        }
+        assertFalse(reader.next());
+        reader.close();
+        assertEquals(1, segments().size());
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        CaptureWriter capture = CaptureWriter.open(directory, CaptureWriter.MIN_SEGMENT_SIZE, 0);
+        byte[] chunk = new byte[100];
+        for (int i = 0; i < 100; i++) {
+            chunk[0] = (byte) i;
+            capture.record(Direction.RX, ByteBuffer.wrap(chunk));
+            /* Gives the background thread the time to map the next segment. */
+            Thread.sleep(1);
+        }
+        capture.close();
+        assertEquals(0, capture.getDroppedBytes());
+        assertTrue(segments().size() > 5);
+
+        CaptureReader reader = CaptureReader.open(directory);
+        for (int i = 0; i < 100; ) {
+            assertTrue(reader.next());
+            /* Chunks may be split at the end of a segment. */
+            ByteBuffer data = reader.getData();
+            if (data.remaining() == 100 || data.get(0) == (byte) i) {
+                int length = data.remaining();
+                while (length < 100) {
+                    assertTrue(reader.next());
+                    length += reader.getData().remaining();
+                }
+                assertEquals(100, length);
+                i++;
+            }
+        }
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void testLargeChunk() throws IOException {
+        CaptureWriter capture = CaptureWriter.open(directory, 4096, 0);
+        /* Split between the first segment and the one mapped in advance. */
+        byte[] chunk = new byte[6000];
+        for (int i = 0; i < chunk.length; i++)
+            chunk[i] = (byte) (i * 13);
+        ByteBuffer src = ByteBuffer.allocateDirect(chunk.length);
+        src.put(chunk).flip();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            capture.record(Direction.TX, src);
+            if (capture.getDroppedBytes() == 0)
+                break;
+            /* The next segment wasn't ready yet: start again. */
+            capture.close();
+            for (Path segment : segments())
+                Files.delete(segment);
+            capture = CaptureWriter.open(directory, 4096, 0);
+        }
+        assertEquals(0, src.position());
+        capture.close();
+        assertEquals(0, capture.getDroppedBytes());
+
+        CaptureReader reader = CaptureReader.open(directory);
+        ByteBuffer received = ByteBuffer.allocate(chunk.length);
+        while (reader.next()) {
+            assertEquals(Direction.TX, reader.getDirection());
+            received.put(reader.getData());
+        }
+        assertArrayEquals(chunk, received.array());
+        reader.close();
+    }
+
+    @Test
+    public void testMaxSegments() throws Exception {
+        CaptureWriter capture = CaptureWriter.open(directory, CaptureWriter.MIN_SEGMENT_SIZE, 3);
+        byte[] chunk = new byte[200];
+        for (int i = 0; i < 100; i++) {
+            chunk[0] = (byte) i;
+            capture.record(Direction.RX, ByteBuffer.wrap(chunk));
+            Thread.sleep(1);
+        }
+        capture.close();
+        assertEquals(3, segments().size());
+
+        /* The capture starts with the oldest segment left. */
+        CaptureReader reader = CaptureReader.open(directory);
+        int last = -1;
+        int count = 0;
+        while (reader.next()) {
+            if (reader.getData().remaining() == 200)
+                last = reader.getData().get(0);
+            count++;
+        }
+        assertEquals(99, last);
+        assertTrue(count < 20);
+        reader.close();
+
+        try {
+            CaptureWriter.open(directory);
+            fail();
+        } catch (FileAlreadyExistsException ignored) {
+        }
+    }
+
+    private void recordTimed() throws Exception {
+        CaptureWriter capture = CaptureWriter.open(directory);
+        capture.record(Direction.RX, ByteBuffer.wrap(new byte[] {1, 2}));
+        capture.record(Direction.TX, ByteBuffer.wrap(new byte[] {3}));
+        Thread.sleep(200);
+        capture.record(Direction.RX, ByteBuffer.wrap(new byte[] {4, 5, 6}));
+        capture.close();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        recordTimed();
+        ReplayChannel replay = ReplayChannel.open(directory, 1);
+        ByteBuffer dst = ByteBuffer.allocate(16);
+        long start = System.nanoTime();
+        assertEquals(2, replay.read(dst));
+        assertEquals(2, replay.write(ByteBuffer.wrap(new byte[] {7, 8})));
+        assertEquals(2, replay.getBytesWritten());
+        assertEquals(0, replay.read(dst, 50, TimeUnit.MILLISECONDS));
+        assertEquals(0, replay.available());
+        assertEquals(3, replay.read(dst));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("elapsed: " + elapsed, elapsed >= 180);
+        assertEquals(-1, replay.read(dst));
+        dst.flip();
+        assertArrayEquals(new byte[] {1, 2, 4, 5, 6}, bytes(dst));
+        replay.close();
+        assertFalse(replay.isOpen());
+    }
+
+    @Test
+    public void testReplaySpeed() throws Exception {
+        recordTimed();
+        ReplayChannel replay = ReplayChannel.open(directory, 10);
+        ByteBuffer dst = ByteBuffer.allocate(16);
+        long start = System.nanoTime();
+        assertEquals(5, replay.readFully(dst, 1, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("elapsed: " + elapsed, elapsed >= 15 && elapsed < 150);
+        replay.close();
+
+        replay = ReplayChannel.open(directory, Double.POSITIVE_INFINITY);
+        replay.setTimeout(SerialPort.TIMEOUT_IMMEDIATE);
+        dst.clear();
+        assertEquals(5, replay.read(new ByteBuffer[] {dst}));
+        assertEquals(-1, replay.read(dst));
+        replay.close();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import dk.thibaut.serial.CoalescingOutputStream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/*
+ * Coalescing tests, writing to a channel counting the write calls,
+ * they don't need any serial port.
+ */
+
+public class TestCoalescingOutputStream {
+
+    private static class CountingChannel implements WritableByteChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        volatile int writes;
+        volatile long lastWrite;
+        volatile IOException failure;
+        boolean open = true;
+
+        public synchronized int write(ByteBuffer src) throws IOException {
+            if (failure != null)
+                throw failure;
+            int count = src.remaining();
+            while (src.hasRemaining())
+                written.write(src.get());
+            writes++;
+            lastWrite = System.nanoTime();
+            return count;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public void close() {
+            open = false;
+        }
+    }
+
+    private static byte[] sequence(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) i;
+        return bytes;
+    }
+
+    @Test
+    public void testNoCoalescing() throws IOException {
+        CountingChannel channel = new CountingChannel();
+        CoalescingOutputStream stream = new CoalescingOutputStream(channel);
+        for (int i = 0; i < 10; i++)
+            stream.write(i);
+        assertEquals(10, channel.writes);
+        assertArrayEquals(sequence(10), channel.written.toByteArray());
+    }
+
+    @Test
+    public void testThreshold() throws IOException {
+        CountingChannel channel = new CountingChannel();
+        CoalescingOutputStream stream = new CoalescingOutputStream(channel, 64, 60000);
+        for (int i = 0; i < 1000; i++)
+            stream.write(i);
+        assertEquals(15, channel.writes);
+        assertEquals(40, stream.getBufferedCount());
+        stream.flush();
+        assertEquals(16, channel.writes);
+        assertEquals(0, stream.getBufferedCount());
+        assertArrayEquals(sequence(1000), channel.written.toByteArray());
+    }
+
+    @Test
+    public void testSmallArrays() throws IOException {
+        CountingChannel channel = new CountingChannel();
+        CoalescingOutputStream stream = new CoalescingOutputStream(channel, 64, 60000);
+        byte[] data = sequence(1000);
+        for (int i = 0; i < data.length; i += 10)
+            stream.write(data, i, 10);
+        stream.flush();
+        assertEquals(16, channel.writes);
+        assertArrayEquals(data, channel.written.toByteArray());
+    }
+
+    @Test
+    public void testLargeWriteIsDirect() throws IOException {
+        CountingChannel channel = new CountingChannel();
+        CoalescingOutputStream stream = new CoalescingOutputStream(channel, 64, 60000);
+        stream.write(1);
+        stream.write(new byte[100]);
+        /* Buffered bytes are written first, then the array. */
+        assertEquals(2, channel.writes);
+        assertEquals(101, channel.written.size());
+    }
+
+    @Test
+    public void testLingerTime() throws Exception {
+        CountingChannel channel = new CountingChannel();
+        CoalescingOutputStream stream = new CoalescingOutputStream(channel, 64, 50);
+        long start = System.nanoTime();
+        stream.write(new byte[] {1, 2, 3});
+        assertEquals(0, channel.writes);
+        long deadline = start + TimeUnit.SECONDS.toNanos(5);
+        while (channel.writes == 0 && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        assertEquals(1, channel.writes);
+        long latency = TimeUnit.NANOSECONDS.toMillis(channel.lastWrite - start);
+        assertTrue("Written after " + latency + "ms", latency >= 40 && latency < 1000);
+    }
+
+    @Test
+    public void testShorterLingerTime() throws Exception {
+        CountingChannel channel = new CountingChannel();
+        CoalescingOutputStream stream = new CoalescingOutputStream(channel, 64, 60000);
+        stream.write(1);
+        stream.setCoalescing(64, 50);
+        assertEquals(1, channel.writes);
+        long start = System.nanoTime();
+        stream.write(2);
+        long deadline = start + TimeUnit.SECONDS.toNanos(5);
+        while (channel.writes == 1 && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        assertEquals(2, channel.writes);
+        long latency = TimeUnit.NANOSECONDS.toMillis(channel.lastWrite - start);
+        assertTrue("Written after " + latency + "ms", latency < 1000);
+    }
+
+    @Test
+    public void testZeroLinger() throws IOException {
+        CountingChannel channel = new CountingChannel();
+        CoalescingOutputStream stream = new CoalescingOutputStream(channel, 64, 0);
+        stream.write(new byte[] {1, 2, 3});
+        assertEquals(1, channel.writes);
+    }
+
+    @Test
+    public void testLingerFailureIsReported() throws Exception {
+        CountingChannel channel = new CountingChannel();
+        channel.failure = new IOException("failure");
+        CoalescingOutputStream stream = new CoalescingOutputStream(channel, 64, 10);
+        stream.write(1);
+        Thread.sleep(200);
+        try {
+            stream.write(2);
+            fail();
+        } catch (IOException e) {
+            assertSame(channel.failure, e);
+        }
+    }
+
+    @Test
+    public void testCloseFlushes() throws IOException {
+        CountingChannel channel = new CountingChannel();
+        CoalescingOutputStream stream = new CoalescingOutputStream(channel, 64, 60000);
+        stream.write(1);
+        stream.close();
+        assertEquals(1, channel.written.size());
+        assertFalse(channel.isOpen());
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import dk.thibaut.serial.FileTransfers;
+import dk.thibaut.serial.SerialChannel;
+import dk.thibaut.serial.SerialPort;
+import dk.thibaut.serial.TransferListener;
+import dk.thibaut.serial.enums.BaudRate;
+import dk.thibaut.serial.enums.DataBits;
+import dk.thibaut.serial.enums.Parity;
+import dk.thibaut.serial.enums.StopBits;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/*
+ * Transfers go through pseudo-terminals (Linux only), to exercise the
+ * native calls with mapped buffers, and loopback ports for the chunking.
+ */
+
+public class TestFileTransfer {
+
+    private Path file;
+    private byte[] content;
+    private final List<SerialPort> ports = new ArrayList<>();
+    private VirtualNullModem modem;
+    private ExecutorService executor;
+
+    /* Records the progress reports. */
+    private static class Progress implements TransferListener {
+        final List<Long> reports = new ArrayList<>();
+        long count = -1;
+
+        public void transferred(long transferred, long count) {
+            reports.add(transferred);
+            this.count = count;
+        }
+
+        long largestChunk() {
+            long largest = 0;
+            long previous = 0;
+            for (long transferred : reports) {
+                assertTrue(transferred > previous);
+                largest = Math.max(largest, transferred - previous);
+                previous = transferred;
+            }
+            return largest;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("jserial-transfer", ".bin");
+        content = new byte[100000];
+        new Random(42).nextBytes(content);
+        Files.write(file, content);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        for (SerialPort port : ports)
+            if (port.isOpen())
+                port.close();
+        if (modem != null)
+            modem.close();
+        Files.delete(file);
+    }
+
+    private SerialPort open(String name) throws IOException {
+        SerialPort port = SerialPort.open(name);
+        ports.add(port);
+        return port;
+    }
+
+    private SerialPort[] openPty() throws IOException {
+        assumeTrue(System.getProperty("os.name").toLowerCase().startsWith("linux"));
+        modem = new VirtualNullModem();
+        SerialPort a = open(modem.getPortA());
+        SerialPort b = open(modem.getPortB());
+        a.setConfig(BaudRate.B115200, Parity.NONE, StopBits.ONE, DataBits.D8);
+        b.setConfig(BaudRate.B115200, Parity.NONE, StopBits.ONE, DataBits.D8);
+        return new SerialPort[] { a, b };
+    }
+
+    /* Reads count bytes in another thread. */
+    private Future<byte[]> receive(final SerialChannel channel, final int count) {
+        return executor.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                ByteBuffer buffer = ByteBuffer.allocate(count);
+                channel.readFully(buffer, 10, TimeUnit.SECONDS);
+                return buffer.array();
+            }
+        });
+    }
+
+    private byte[] range(int position, int count) {
+        byte[] range = new byte[count];
+        System.arraycopy(content, position, range, 0, count);
+        return range;
+    }
+
+    @Test
+    public void testTransferFrom() throws Exception {
+        SerialPort[] pty = openPty();
+        Future<byte[]> received = receive(pty[0].getChannel(), 50000);
+        Progress progress = new Progress();
+        try (FileChannel src = FileChannel.open(file, StandardOpenOption.READ)) {
+            assertEquals(50000, pty[1].getChannel().transferFrom(src, 10, 50000, progress));
+            assertEquals(0, src.position());
+        }
+        assertArrayEquals(range(10, 50000), received.get(10, TimeUnit.SECONDS));
+        assertEquals(50000, progress.count);
+        assertEquals(50000L, (long) progress.reports.get(progress.reports.size() - 1));
+        assertTrue(progress.largestChunk() <= 4096);
+    }
+
+    @Test
+    public void testTransferFromEndOfFile() throws Exception {
+        SerialPort[] pty = openPty();
+        Future<byte[]> received = receive(pty[0].getChannel(), 1000);
+        try (FileChannel src = FileChannel.open(file, StandardOpenOption.READ)) {
+            assertEquals(0, pty[1].getChannel().transferFrom(src, content.length, 10, null));
+            assertEquals(1000, pty[1].getChannel().transferFrom(src, content.length - 1000, 5000, null));
+        }
+        assertArrayEquals(range(content.length - 1000, 1000), received.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTransferFromStalledReceiver() throws Exception {
+        SerialPort[] pty = openPty();
+        pty[1].setPolled(true);
+        /* More than the pseudo-terminals buffer, the transfer
+         * waits while nothing is received. */
+        content = new byte[1 << 20];
+        new Random(42).nextBytes(content);
+        Files.write(file, content);
+        final SerialChannel channel = pty[1].getChannel();
+        final long[] sent = new long[1];
+        Thread sender = new Thread(new Runnable() {
+            public void run() {
+                try (FileChannel src = FileChannel.open(file, StandardOpenOption.READ)) {
+                    sent[0] = channel.transferFrom(src, 0, content.length, null);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        sender.start();
+        Thread.sleep(200);
+        assertTrue(sender.isAlive());
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpu = threads.getThreadCpuTime(sender.getId());
+        Thread.sleep(500);
+        long spent = TimeUnit.NANOSECONDS.toMillis(threads.getThreadCpuTime(sender.getId()) - cpu);
+        assertTrue("Spent " + spent + "ms of CPU while stalled", spent < 100);
+
+        Future<byte[]> received = receive(pty[0].getChannel(), content.length);
+        assertArrayEquals(content, received.get(10, TimeUnit.SECONDS));
+        sender.join(1000);
+        assertEquals(content.length, sent[0]);
+    }
+
+    @Test
+    public void testTransferFromWaitsWhenNothingWritten() throws Exception {
+        /* A non-blocking channel, whose queue is full for the first writes. */
+        final ByteBuffer written = ByteBuffer.allocate(1000);
+        final int[] calls = new int[1];
+        SerialChannel channel = (SerialChannel) Proxy.newProxyInstance(SerialChannel.class.getClassLoader(),
+            new Class<?>[] { SerialChannel.class }, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("pendingOutput"))
+                        return 0;
+                    if (++calls[0] <= 5)
+                        return 0;
+                    ByteBuffer src = (ByteBuffer) args[0];
+                    int count = src.remaining();
+                    written.put(src);
+                    return count;
+                }
+            });
+        long start = System.nanoTime();
+        try (FileChannel src = FileChannel.open(file, StandardOpenOption.READ)) {
+            assertEquals(1000, FileTransfers.transferFrom(channel, src, 0, 1000, 4096, null));
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Returned after " + elapsed + "ms", elapsed >= 4);
+        assertArrayEquals(range(0, 1000), written.array());
+    }
+
+    @Test
+    public void testTransferTo() throws Exception {
+        SerialPort[] pty = openPty();
+        pty[0].setTimeout(200);
+        final SerialChannel out = pty[1].getChannel();
+        Future<?> sent = executor.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                out.write(ByteBuffer.wrap(content, 0, 20000));
+                return null;
+            }
+        });
+        Progress progress = new Progress();
+        try (FileChannel dst = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            /* Stops when the port times out. */
+            assertEquals(20000, pty[0].getChannel().transferTo(dst, 5, 100000, progress));
+            assertEquals(0, dst.position());
+        }
+        sent.get(10, TimeUnit.SECONDS);
+        byte[] written = Files.readAllBytes(file);
+        assertEquals(content.length, written.length);
+        for (int i = 0; i < 20000; i++)
+            assertEquals(content[i], written[5 + i]);
+        assertEquals(content[20005], written[20005]);
+        assertEquals(100000, progress.count);
+        assertTrue(progress.largestChunk() <= 4096);
+    }
+
+    @Test
+    public void testTransferToCount() throws Exception {
+        SerialPort a = open("loop:transferTo/A?timing=false");
+        SerialPort b = open("loop:transferTo/B?timing=false");
+        a.setTimeout(SerialPort.TIMEOUT_INFINITE);
+        b.getChannel().write(ByteBuffer.wrap(content, 0, 3000));
+        try (FileChannel dst = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            assertEquals(1000, a.getChannel().transferTo(dst, 0, 1000, null));
+        }
+        ByteBuffer rest = ByteBuffer.allocate(2000);
+        a.getChannel().readFully(rest, 1, TimeUnit.SECONDS);
+        assertArrayEquals(range(1000, 2000), rest.array());
+    }
+
+    @Test
+    public void testChunkIsTransmitQueueSize() throws Exception {
+        SerialPort a = open("loop:chunk/A?timing=false");
+        SerialPort b = open("loop:chunk/B?timing=false");
+        /* Without wire timing nor flow control, the receive queue must
+         * hold everything. */
+        a.setQueueSizes(16384, 4096);
+        b.setQueueSizes(4096, 1000);
+        Future<byte[]> received = receive(a.getChannel(), 10000);
+        Progress progress = new Progress();
+        try (FileChannel src = FileChannel.open(file, StandardOpenOption.READ)) {
+            assertEquals(10000, b.getChannel().transferFrom(src, 0, 10000, progress));
+        }
+        assertArrayEquals(range(0, 10000), received.get(10, TimeUnit.SECONDS));
+        assertEquals(10, progress.reports.size());
+        assertEquals(1000, progress.largestChunk());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRegion() throws Exception {
+        SerialPort a = open("loop:invalid/A?timing=false");
+        try (FileChannel src = FileChannel.open(file, StandardOpenOption.READ)) {
+            a.getChannel().transferFrom(src, -1, 10, null);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import dk.thibaut.serial.framing.*;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Pipe;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/*
+ * Framing tests, they don't need any serial port.
+ */
+
+public class TestFraming {
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            result[i] = (byte) values[i];
+        return result;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    private static byte[] encode(FrameEncoder encoder, byte[] frame) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(encoder.maxEncodedLength(frame.length));
+        encoder.encode(ByteBuffer.wrap(frame), out);
+        out.flip();
+        return toArray(out);
+    }
+
+    /* Feeds the encoded bytes one at a time, as a slow serial line would. */
+    private static byte[] decodeByteByByte(FrameDecoder decoder, byte[] encoded) throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(encoded.length);
+        in.limit(0);
+        for (byte b : encoded) {
+            in.limit(in.limit() + 1);
+            in.put(in.limit() - 1, b);
+            ByteBuffer frame = decoder.decode(in);
+            if (frame != null) {
+                assertTrue(frame.isReadOnly());
+                assertFalse(in.hasRemaining());
+                return toArray(frame);
+            }
+        }
+        return null;
+    }
+
+    private static void assertRoundTrip(FrameDecoder decoder, FrameEncoder encoder, byte[] frame)
+            throws IOException {
+        assertArrayEquals(frame, decodeByteByByte(decoder, encode(encoder, frame)));
+    }
+
+    @Test
+    public void testDelimiter() throws IOException {
+        DelimiterCodec codec = new DelimiterCodec((byte) '\n', 16);
+        assertArrayEquals(bytes('a', 'b', '\n'), encode(codec, bytes('a', 'b')));
+        assertRoundTrip(codec, codec, "hello".getBytes());
+
+        ByteBuffer in = ByteBuffer.wrap("one\ntwo\n\nthr".getBytes());
+        assertArrayEquals("one".getBytes(), toArray(codec.decode(in)));
+        assertArrayEquals("two".getBytes(), toArray(codec.decode(in)));
+        assertEquals(0, codec.decode(in).remaining());
+        assertNull(codec.decode(in));
+        assertEquals(9, in.position());
+    }
+
+    @Test(expected = FrameException.class)
+    public void testDelimiterInFrame() throws IOException {
+        DelimiterCodec codec = new DelimiterCodec((byte) '\n', 16);
+        encode(codec, "a\nb".getBytes());
+    }
+
+    @Test
+    public void testDelimiterTooLong() throws IOException {
+        DelimiterCodec codec = new DelimiterCodec((byte) '\n', 4);
+        ByteBuffer in = ByteBuffer.wrap("abcdefg".getBytes());
+        try {
+            codec.decode(in);
+            fail();
+        } catch (FrameException e) {
+            assertFalse(in.hasRemaining());
+        }
+        /* The end of the long frame is dropped, then decoding goes on. */
+        in = ByteBuffer.wrap("hij\nok\n".getBytes());
+        assertArrayEquals("ok".getBytes(), toArray(codec.decode(in)));
+    }
+
+    @Test
+    public void testFixedLength() throws IOException {
+        FixedLengthCodec codec = new FixedLengthCodec(3);
+        assertRoundTrip(codec, codec, bytes(1, 2, 3));
+        ByteBuffer in = ByteBuffer.wrap(bytes(1, 2, 3, 4, 5));
+        assertArrayEquals(bytes(1, 2, 3), toArray(codec.decode(in)));
+        assertNull(codec.decode(in));
+        assertEquals(3, in.position());
+    }
+
+    @Test(expected = FrameException.class)
+    public void testFixedLengthInvalid() throws IOException {
+        encode(new FixedLengthCodec(3), bytes(1, 2));
+    }
+
+    @Test
+    public void testLengthField() throws IOException {
+        LengthFieldCodec big = new LengthFieldCodec(2, ByteOrder.BIG_ENDIAN, 1024);
+        assertArrayEquals(bytes(0, 3, 7, 8, 9), encode(big, bytes(7, 8, 9)));
+        assertRoundTrip(big, big, bytes(7, 8, 9));
+        LengthFieldCodec little = new LengthFieldCodec(4, ByteOrder.LITTLE_ENDIAN, 1024);
+        assertArrayEquals(bytes(2, 0, 0, 0, 7, 8), encode(little, bytes(7, 8)));
+        byte[] frame = new byte[300];
+        new Random(0).nextBytes(frame);
+        assertRoundTrip(little, little, frame);
+        assertRoundTrip(big, big, new byte[0]);
+    }
+
+    @Test
+    public void testLengthFieldTooLong() throws IOException {
+        LengthFieldCodec codec = new LengthFieldCodec(1, ByteOrder.BIG_ENDIAN, 4);
+        try {
+            encode(codec, new byte[5]);
+            fail();
+        } catch (FrameException e) {
+            /* Expected */
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes(5, 1, 2, 3, 4, 5));
+        try {
+            codec.decode(in);
+            fail();
+        } catch (FrameException e) {
+            assertFalse(in.hasRemaining());
+        }
+    }
+
+    @Test
+    public void testSlip() throws IOException {
+        SlipCodec codec = new SlipCodec(64);
+        assertArrayEquals(bytes(0xC0, 1, 0xDB, 0xDC, 0xDB, 0xDD, 2, 0xC0),
+            encode(codec, bytes(1, 0xC0, 0xDB, 2)));
+        assertRoundTrip(codec, codec, bytes(1, 0xC0, 0xDB, 2));
+        byte[] frame = new byte[30];
+        new Random(1).nextBytes(frame);
+        assertRoundTrip(codec, codec, frame);
+    }
+
+    @Test
+    public void testSlipInPlace() throws IOException {
+        ByteBuffer in = ByteBuffer.allocateDirect(8);
+        in.put(bytes(0xC0, 1, 0xDB, 0xDC, 2, 0xC0, 0xC0, 3)).flip();
+        ByteBuffer frame = new SlipCodec(64).decode(in);
+        assertArrayEquals(bytes(1, 0xC0, 2), toArray(frame));
+        /* The frame is decoded over the received bytes. */
+        assertEquals(1, in.get(1));
+        assertEquals((byte) 0xC0, in.get(2));
+        assertEquals(6, in.position());
+    }
+
+    @Test
+    public void testSlipInvalidEscape() throws IOException {
+        SlipCodec codec = new SlipCodec(64);
+        ByteBuffer in = ByteBuffer.wrap(bytes(1, 0xDB, 5, 0xC0, 2, 0xC0));
+        try {
+            codec.decode(in);
+            fail();
+        } catch (FrameException e) {
+            assertEquals(4, in.position());
+        }
+        assertArrayEquals(bytes(2), toArray(codec.decode(in)));
+    }
+
+    @Test
+    public void testCobs() throws IOException {
+        CobsCodec codec = new CobsCodec(1024);
+        assertArrayEquals(bytes(1, 1, 0), encode(codec, bytes(0)));
+        assertArrayEquals(bytes(3, 0x11, 0x22, 2, 0x33, 0), encode(codec, bytes(0x11, 0x22, 0, 0x33)));
+        assertArrayEquals(bytes(2, 0x11, 1, 1, 1, 0), encode(codec, bytes(0x11, 0, 0, 0)));
+        assertRoundTrip(codec, codec, bytes(0x11, 0x22, 0, 0x33));
+        assertRoundTrip(codec, codec, bytes(0, 0, 0));
+
+        /* Blocks of 254 non-zero bytes have no implicit zero. */
+        Random random = new Random(2);
+        for (int length : new int[] {253, 254, 255, 508, 600}) {
+            byte[] frame = new byte[length];
+            random.nextBytes(frame);
+            for (int i = 0; i < length; i++)
+                if (frame[i] == 0 && random.nextInt(4) != 0)
+                    frame[i] = 1;
+            byte[] encoded = encode(codec, frame);
+            assertTrue(encoded.length <= codec.maxEncodedLength(length));
+            assertArrayEquals(frame, decodeByteByByte(codec, encoded));
+        }
+    }
+
+    @Test
+    public void testCobsTruncated() throws IOException {
+        CobsCodec codec = new CobsCodec(1024);
+        ByteBuffer in = ByteBuffer.wrap(bytes(5, 1, 2, 0, 2, 9, 0));
+        try {
+            codec.decode(in);
+            fail();
+        } catch (FrameException e) {
+            assertEquals(4, in.position());
+        }
+        assertArrayEquals(bytes(9), toArray(codec.decode(in)));
+    }
+
+    @Test
+    public void testEncodedTooLong() throws IOException {
+        SlipCodec codec = new SlipCodec(4);
+        ByteBuffer frame = ByteBuffer.wrap(bytes(0xC0, 0xC0, 0xC0));
+        ByteBuffer out = ByteBuffer.allocate(codec.maxEncodedLength(3));
+        try {
+            codec.encode(frame, out);
+            fail();
+        } catch (FrameException e) {
+            assertEquals(0, frame.position());
+            assertEquals(0, out.position());
+        }
+    }
+
+    @Test
+    public void testReaderWriter() throws IOException {
+        Pipe pipe = Pipe.open();
+        try {
+            CobsCodec codec = new CobsCodec(256);
+            FrameWriter writer = new FrameWriter(pipe.sink(), codec, 200);
+            FrameReader reader = new FrameReader(pipe.source(), codec, 512);
+            Random random = new Random(3);
+            byte[][] frames = new byte[100][];
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = new byte[random.nextInt(200)];
+                random.nextBytes(frames[i]);
+            }
+            /* Frames are written and read in batches, so that the ring
+             * buffer wraps with partial frames in it. */
+            int read = 0;
+            for (int i = 0; i < frames.length; i++) {
+                writer.write(ByteBuffer.wrap(frames[i]));
+                if (i % 7 == 6 || i == frames.length - 1) {
+                    while (read <= i)
+                        assertArrayEquals(frames[read++], toArray(reader.read()));
+                }
+            }
+        } finally {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+
+    @Test
+    public void testReaderFrameLargerThanBuffer() throws IOException {
+        Pipe pipe = Pipe.open();
+        try {
+            DelimiterCodec codec = new DelimiterCodec((byte) '\n', 1024);
+            FrameReader reader = new FrameReader(pipe.source(), codec, 16);
+            pipe.sink().write(ByteBuffer.wrap("0123456789abcdefghij\nok\n".getBytes()));
+            try {
+                reader.read();
+                fail();
+            } catch (FrameException e) {
+                /* Expected */
+            }
+            /* The buffered bytes are dropped, the decoder doesn't know
+             * where the long frame ends and returns its last part. */
+            assertArrayEquals("ghij".getBytes(), toArray(reader.read()));
+            assertArrayEquals("ok".getBytes(), toArray(reader.read()));
+        } finally {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+}
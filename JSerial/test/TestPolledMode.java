@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import dk.thibaut.serial.SerialPort;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/*
+ * Polled mode tests, using pseudo-terminals (see VirtualNullModem),
+ * so they only run on Linux. The virtual threads test only runs on
+ * Java versions supporting them.
+ */
+
+public class TestPolledMode {
+
+    private static final int PORTS = 8;
+
+    private final List<VirtualNullModem> modems = new ArrayList<>();
+    private final List<SerialPort> portsRead = new ArrayList<>();
+    private final List<SerialPort> portsWrite = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUpClass() {
+        /* Fewer carriers than readers: if the readers pinned their
+         * carrier, the writes below would never complete. */
+        System.setProperty("jdk.virtualThreadScheduler.parallelism", "2");
+        System.setProperty("jdk.virtualThreadScheduler.maxPoolSize", "2");
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(System.getProperty("os.name").toLowerCase().startsWith("linux"));
+        for (int i = 0; i < PORTS; i++) {
+            VirtualNullModem modem = new VirtualNullModem();
+            modems.add(modem);
+            SerialPort port = SerialPort.open(modem.getPortA());
+            port.setPolled(true);
+            portsRead.add(port);
+            portsWrite.add(SerialPort.open(modem.getPortB()));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (SerialPort port : portsRead)
+            if (port.isOpen())
+                port.close();
+        for (SerialPort port : portsWrite)
+            port.close();
+        for (VirtualNullModem modem : modems)
+            modem.close();
+    }
+
+    @Test
+    public void testPolledFlag() throws IOException {
+        SerialPort port = portsRead.get(0);
+        assertTrue(port.isPolled());
+        port.setPolled(false);
+        assertFalse(port.isPolled());
+    }
+
+    @Test
+    public void testReadWrite() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        portsWrite.get(0).getChannel().write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}));
+        SerialPort port = portsRead.get(0);
+        while (buffer.hasRemaining())
+            port.getChannel().read(buffer);
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, buffer.array());
+    }
+
+    @Test
+    public void testTimeout() throws IOException {
+        SerialPort port = portsRead.get(0);
+        port.setTimeout(200);
+        assertEquals(200, port.getTimeout());
+        long start = System.nanoTime();
+        assertEquals(0, port.getChannel().read(ByteBuffer.allocate(4)));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Returned after " + elapsed + "ms", elapsed >= 190);
+    }
+
+    @Test
+    public void testTimeoutImmediate() throws IOException {
+        SerialPort port = portsRead.get(0);
+        port.setTimeout(SerialPort.TIMEOUT_IMMEDIATE);
+        assertEquals(0, port.getChannel().read(ByteBuffer.allocate(4)));
+    }
+
+    @Test(timeout = 5000)
+    public void testCloseReleasesReader() throws Exception {
+        final SerialPort port = portsRead.get(0);
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger result = new AtomicInteger(-1);
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    port.getChannel().read(ByteBuffer.allocate(4));
+                } catch (IOException e) {
+                    result.set(0);
+                }
+            }
+        });
+        reader.start();
+        started.await();
+        Thread.sleep(100);
+        port.close();
+        reader.join();
+        assertEquals(0, result.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testVirtualThreadsDontPinCarriers() throws Exception {
+        Method startVirtualThread;
+        try {
+            startVirtualThread = Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            startVirtualThread = null;
+        }
+        assumeTrue(startVirtualThread != null);
+
+        final CountDownLatch started = new CountDownLatch(PORTS);
+        final CountDownLatch done = new CountDownLatch(PORTS);
+        final AtomicInteger received = new AtomicInteger();
+        for (final SerialPort port : portsRead) {
+            startVirtualThread.invoke(null, new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try {
+                        ByteBuffer buffer = ByteBuffer.allocate(1);
+                        received.addAndGet(port.getChannel().read(buffer));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (SerialPort port : portsWrite)
+            port.getChannel().write(ByteBuffer.wrap(new byte[] {42}));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(PORTS, received.get());
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import dk.thibaut.serial.AsynchronousSerialChannel;
+import dk.thibaut.serial.BackgroundReader;
+import dk.thibaut.serial.ModemLineListener;
+import dk.thibaut.serial.ModemStatus;
+import dk.thibaut.serial.ReadTimeouts;
+import dk.thibaut.serial.SerialChannel;
+import dk.thibaut.serial.SerialConfig;
+import dk.thibaut.serial.SerialException;
+import dk.thibaut.serial.SerialPort;
+import dk.thibaut.serial.SerialSelectionKey;
+import dk.thibaut.serial.SerialSelector;
+import dk.thibaut.serial.enums.DataBits;
+import dk.thibaut.serial.enums.FlowControl;
+import dk.thibaut.serial.enums.Parity;
+import dk.thibaut.serial.enums.StopBits;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/*
+ * Loopback ports are pure Java, these tests run on any platform.
+ */
+
+public class TestSerialPortLoopback {
+
+    private final List<SerialPort> ports = new ArrayList<>();
+
+    private SerialPort open(String name) throws IOException {
+        SerialPort port = SerialPort.open(name);
+        ports.add(port);
+        return port;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (SerialPort port : ports)
+            if (port.isOpen())
+                port.close();
+    }
+
+    @Test
+    public void testReadWrite() throws IOException {
+        SerialPort a = open("loop:readWrite/A?timing=false");
+        SerialPort b = open("loop:readWrite/B?timing=false");
+        a.getOutputStream().write(new byte[] {1, 2, 3, 4});
+        b.getChannel().write(ByteBuffer.wrap(new byte[] {5, 6}));
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        assertEquals(4, b.getChannel().readFully(buffer, 1, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, buffer.array());
+        byte[] bytes = new byte[2];
+        assertEquals(2, a.getInputStream().read(bytes));
+        assertArrayEquals(new byte[] {5, 6}, bytes);
+        assertEquals("loop:readWrite/A?timing=false", a.getName());
+    }
+
+    @Test
+    public void testLooped() throws IOException {
+        SerialPort port = open("loop:looped?timing=false");
+        port.getChannel().write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        ByteBuffer buffer = ByteBuffer.allocate(3);
+        port.getChannel().read(buffer);
+        assertArrayEquals(new byte[] {1, 2, 3}, buffer.array());
+        assertTrue(port.getCts());
+        assertTrue(port.getDsr());
+        port.setRts(false);
+        assertFalse(port.getCts());
+    }
+
+    @Test
+    public void testWireTiming() throws IOException {
+        SerialPort a = open("loop:timing/A");
+        SerialPort b = open("loop:timing/B");
+        /* 10 bits per character, 1ms each at 9600 bauds. */
+        a.setConfig(new SerialConfig(9600, Parity.NONE, StopBits.ONE, DataBits.D8));
+        long start = System.nanoTime();
+        a.getChannel().write(ByteBuffer.allocate(96));
+        assertTrue(a.getChannel().pendingOutput() > 0);
+        ByteBuffer buffer = ByteBuffer.allocate(96);
+        assertEquals(96, b.getChannel().readFully(buffer, 5, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Received after " + elapsed + "ms", elapsed >= 95);
+        assertEquals(0, a.getChannel().pendingOutput());
+
+        a.setConfig(new SerialConfig(115200, Parity.EVEN, StopBits.TWO, DataBits.D8));
+        start = System.nanoTime();
+        a.getChannel().write(ByteBuffer.allocate(1000));
+        buffer = ByteBuffer.allocate(1000);
+        assertEquals(1000, b.getChannel().readFully(buffer, 5, TimeUnit.SECONDS));
+        elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Received after " + elapsed + "ms", elapsed >= 100 && elapsed < 2000);
+    }
+
+    @Test
+    public void testHighSpeedThroughput() throws Exception {
+        /* About 0.9s of wire time each. */
+        assertThroughput("loop:3M", 3000000, 256 * 1024);
+        assertThroughput("loop:12M", 12000000, 1024 * 1024);
+    }
+
+    /* Sends the bytes through a timed pair, they must arrive intact
+     * and take the time of their characters on the wire. */
+    private void assertThroughput(String name, int baudRate, int length) throws Exception {
+        final SerialPort a = open(name + "/A");
+        SerialPort b = open(name + "/B");
+        SerialConfig config = new SerialConfig(baudRate, Parity.NONE, StopBits.ONE, DataBits.D8);
+        a.setConfig(config);
+        b.setConfig(config);
+        /* The default queue holds 3ms at 12 Mbauds, less than a
+         * scheduling delay on a loaded machine. */
+        b.setQueueSizes(64 * 1024, 4096);
+        final ByteBuffer toWrite = ByteBuffer.allocateDirect(length);
+        for (int i = 0; i < length; i++)
+            toWrite.put((byte) (i * 31));
+        toWrite.flip();
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (toWrite.hasRemaining())
+                        a.getChannel().write(toWrite);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        long start = System.nanoTime();
+        writer.start();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        assertEquals(length, b.getChannel().readFully(buffer, 10, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        writer.join();
+        assertEquals(0, b.getModemStatus().getOverrunCount());
+        for (int i = 0; i < length; i++)
+            if (buffer.get(i) != (byte) (i * 31))
+                fail("Corrupted byte at " + i);
+        /* 10 bits per character. */
+        long expected = length * 10000L / baudRate;
+        assertTrue("Received after " + elapsed + "ms instead of " + expected + "ms",
+            elapsed >= expected * 95 / 100 && elapsed < expected * 3);
+    }
+
+    @Test
+    public void testDataBits() throws IOException {
+        SerialPort a = open("loop:dataBits/A?timing=false");
+        SerialPort b = open("loop:dataBits/B?timing=false");
+        a.setConfig(new SerialConfig(9600, Parity.NONE, StopBits.ONE, DataBits.D7));
+        assertEquals(DataBits.D7, a.getConfig().DataBits);
+        a.getChannel().write(ByteBuffer.wrap(new byte[] {(byte) 0xff}));
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        b.getChannel().read(buffer);
+        assertEquals(0x7f, buffer.get(0));
+    }
+
+    @Test
+    public void testReadTimeout() throws IOException {
+        SerialPort a = open("loop:readTimeout/A");
+        a.setTimeout(100);
+        assertEquals(100, a.getTimeout());
+        long start = System.nanoTime();
+        assertEquals(0, a.getChannel().read(ByteBuffer.allocate(4)));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Returned after " + elapsed + "ms", elapsed >= 95);
+
+        a.setTimeout(SerialPort.TIMEOUT_IMMEDIATE);
+        assertEquals(0, a.getChannel().read(ByteBuffer.allocate(4)));
+    }
+
+    @Test
+    public void testIntervalTimeout() throws IOException {
+        SerialPort a = open("loop:interval/A");
+        SerialPort b = open("loop:interval/B");
+        a.setConfig(new SerialConfig(9600, Parity.NONE, StopBits.ONE, DataBits.D8));
+        b.setReadTimeouts(new ReadTimeouts(2000, 50));
+        a.getChannel().write(ByteBuffer.allocate(20));
+        /* The bytes are received one by one, but the read only
+         * returns after a silence of 50ms. */
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        assertEquals(20, b.getChannel().read(buffer));
+    }
+
+    @Test
+    public void testOverrun() throws IOException {
+        SerialPort a = open("loop:overrun/A?timing=false");
+        SerialPort b = open("loop:overrun/B?timing=false");
+        b.setQueueSizes(16, 16);
+        a.getChannel().write(ByteBuffer.allocate(64));
+        assertEquals(16, b.getChannel().available());
+        ModemStatus status = b.getModemStatus();
+        assertEquals(48, status.getOverrunCount());
+        assertEquals(0, status.getFramingErrorCount());
+    }
+
+    @Test
+    public void testFlowControl() throws IOException {
+        SerialPort a = open("loop:flow/A?timing=false");
+        SerialPort b = open("loop:flow/B?timing=false");
+        SerialConfig config = new SerialConfig(9600, Parity.NONE, StopBits.ONE, DataBits.D8)
+            .withFlowControl(FlowControl.RTS_CTS);
+        a.setConfig(config);
+        b.setConfig(config);
+        b.setQueueSizes(16, 4096);
+        byte[] bytes = new byte[64];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) i;
+        a.getChannel().write(ByteBuffer.wrap(bytes));
+        assertEquals(16, b.getChannel().available());
+        assertEquals(48, a.getChannel().pendingOutput());
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        assertEquals(64, b.getChannel().readFully(buffer, 1, TimeUnit.SECONDS));
+        assertArrayEquals(bytes, buffer.array());
+        assertEquals(0, b.getModemStatus().getOverrunCount());
+    }
+
+    @Test
+    public void testWriteBlocksWhenQueueFull() throws Exception {
+        SerialPort a = open("loop:blocking/A");
+        SerialPort b = open("loop:blocking/B");
+        a.setConfig(new SerialConfig(9600, Parity.NONE, StopBits.ONE, DataBits.D8));
+        a.setQueueSizes(4096, 10);
+        long start = System.nanoTime();
+        a.getChannel().write(ByteBuffer.allocate(60));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        /* 50 bytes must cross the wire before the last 10 fit in the queue. */
+        assertTrue("Written after " + elapsed + "ms", elapsed >= 45);
+        assertEquals(60, b.getChannel().readFully(ByteBuffer.allocate(60), 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFaults() throws IOException {
+        SerialPort a = open("loop:faults/A?timing=false&drop=1");
+        SerialPort b = open("loop:faults/B?timing=false&errors=1");
+        a.getChannel().write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}));
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        assertEquals(4, b.getChannel().read(buffer));
+        assertArrayEquals(new byte[4], buffer.array());
+        assertEquals(4, b.getModemStatus().getFramingErrorCount());
+        b.getChannel().write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}));
+        a.setTimeout(SerialPort.TIMEOUT_IMMEDIATE);
+        assertEquals(0, a.getChannel().read(buffer.duplicate()));
+    }
+
+    @Test
+    public void testFaultsAreReproducible() throws IOException {
+        byte[][] received = new byte[2][];
+        for (int i = 0; i < received.length; i++) {
+            SerialPort a = open("loop:seed" + i + "/A?timing=false");
+            SerialPort b = open("loop:seed" + i + "/B?timing=false&drop=0.5&seed=42");
+            a.getChannel().write(ByteBuffer.wrap(new byte[256]));
+            received[i] = new byte[b.getChannel().available()];
+            b.getChannel().read(ByteBuffer.wrap(received[i]));
+        }
+        assertTrue(received[0].length > 64 && received[0].length < 192);
+        assertEquals(received[0].length, received[1].length);
+    }
+
+    @Test
+    public void testModemLines() throws IOException {
+        SerialPort a = open("loop:modem/A");
+        SerialPort b = open("loop:modem/B");
+        assertTrue(b.getCts());
+        assertTrue(b.getDsr());
+        a.setRts(false);
+        assertFalse(b.getCts());
+        assertTrue(b.getDsr());
+        a.setDtr(false);
+        assertFalse(b.getDsr());
+        assertFalse(b.getModemStatus().isDcd());
+        b.setDtr(true);
+        assertTrue(a.getModemStatus().isDcd());
+        b.close();
+        assertFalse(a.getModemStatus().isDsr());
+    }
+
+    @Test
+    public void testModemLineListener() throws Exception {
+        SerialPort a = open("loop:listener/A");
+        SerialPort b = open("loop:listener/B");
+        final CountDownLatch latch = new CountDownLatch(1);
+        final int[] received = new int[1];
+        b.addModemLineListener(new ModemLineListener() {
+            public void modemLinesChanged(SerialPort port, int events, ModemStatus status) {
+                received[0] = events;
+                latch.countDown();
+            }
+        });
+        /* Let the watcher read the initial status. */
+        Thread.sleep(100);
+        a.setRts(false);
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(ModemLineListener.CTS, received[0]);
+    }
+
+    @Test
+    public void testModemLineListenerAfterPollerError() throws Exception {
+        SerialPort a = open("loop:poller-error/A");
+        SerialPort b = open("loop:poller-error/B");
+        final CountDownLatch latch = new CountDownLatch(1);
+        b.addModemLineListener(new ModemLineListener() {
+            public void modemLinesChanged(SerialPort port, int events, ModemStatus status) {
+                latch.countDown();
+            }
+        });
+        Thread.sleep(100);
+        injectPollerError();
+        /* Let the poller recover from the error. */
+        Thread.sleep(100);
+        a.setRts(false);
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+    }
+
+    /* Closes the selector of the poller thread, which fails inside its loop. */
+    private static void injectPollerError() throws Exception {
+        Class<?> pollerClass = Class.forName("dk.thibaut.serial.SerialPoller");
+        Method get = pollerClass.getDeclaredMethod("get");
+        get.setAccessible(true);
+        Field selector = pollerClass.getDeclaredField("selector");
+        selector.setAccessible(true);
+        ((SerialSelector) selector.get(get.invoke(null))).close();
+    }
+
+    @Test
+    public void testSelector() throws IOException {
+        SerialPort a = open("loop:selector/A");
+        SerialPort b = open("loop:selector/B");
+        a.setConfig(new SerialConfig(9600, Parity.NONE, StopBits.ONE, DataBits.D8));
+        SerialSelector selector = SerialSelector.open();
+        try {
+            SerialSelectionKey key = selector.register(b.getChannel(), SerialSelectionKey.OP_READ, null);
+            assertEquals(0, selector.selectNow());
+            long start = System.nanoTime();
+            /* The byte takes about 1ms to cross the wire. */
+            a.getChannel().write(ByteBuffer.allocate(1));
+            assertEquals(1, selector.select(1000));
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("Selected after " + elapsed + "ms", elapsed < 500);
+            assertTrue(selector.selectedKeys().contains(key));
+            assertTrue(key.isReadable());
+            b.close();
+            selector.selectNow();
+            assertFalse(key.isValid());
+            assertTrue(selector.keys().isEmpty());
+        } finally {
+            selector.close();
+        }
+    }
+
+    @Test
+    public void testAsynchronousChannel() throws Exception {
+        SerialPort a = open("loop:async/A");
+        SerialPort b = open("loop:async/B");
+        a.setConfig(new SerialConfig(115200, Parity.NONE, StopBits.ONE, DataBits.D8));
+        AsynchronousSerialChannel channel = AsynchronousSerialChannel.open(b);
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        Future<Integer> read = channel.read(buffer);
+        a.getChannel().write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}));
+        assertTrue(read.get(1, TimeUnit.SECONDS) > 0);
+        assertEquals(1, buffer.get(0));
+        channel.close();
+    }
+
+    @Test
+    public void testBackgroundReader() throws IOException {
+        SerialPort a = open("loop:background/A?timing=false");
+        SerialPort b = open("loop:background/B?timing=false");
+        BackgroundReader reader = b.startBackgroundReader(1024);
+        a.getChannel().write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}));
+        reader.setTimeout(1000);
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        while (buffer.hasRemaining())
+            assertTrue(reader.read(buffer) > 0);
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, buffer.array());
+        reader.close();
+        assertFalse(b.isPolled());
+    }
+
+    @Test
+    public void testBusy() throws IOException {
+        SerialPort a = open("loop:busy/A");
+        try {
+            open("loop:busy/A");
+            fail();
+        } catch (SerialException e) {
+            assertEquals(16, e.getNativeError());
+        }
+        try {
+            open("loop:busy");
+            fail();
+        } catch (SerialException e) {
+            assertEquals(16, e.getNativeError());
+        }
+        a.close();
+        open("loop:busy/A").close();
+    }
+
+    @Test
+    public void testInvalidNames() throws IOException {
+        for (String name : Arrays.asList("loop:", "loop:/A", "loop:a/b/A", "loop:x?drop=2",
+                "loop:x?speed=1", "loop:x?timing=no")) {
+            try {
+                open(name);
+                fail(name);
+            } catch (SerialException e) {
+                assertEquals(22, e.getNativeError());
+            }
+        }
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        SerialPort a = open("loop:close/A");
+        SerialChannel channel = a.getChannel();
+        a.close();
+        assertFalse(a.isOpen());
+        assertFalse(channel.isOpen());
+        try {
+            channel.read(ByteBuffer.allocate(1));
+            fail();
+        } catch (ClosedChannelException e) {
+            /* Expected. */
+        }
+    }
+
+    @Test
+    public void testCloseReleasesReader() throws Exception {
+        final SerialPort a = open("loop:closeReader/A");
+        final Exception[] thrown = new Exception[1];
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    a.getChannel().read(ByteBuffer.allocate(1));
+                } catch (Exception e) {
+                    thrown[0] = e;
+                }
+            }
+        });
+        reader.start();
+        Thread.sleep(50);
+        a.close();
+        reader.join(1000);
+        assertFalse(reader.isAlive());
+        assertTrue(thrown[0] instanceof ClosedChannelException);
+    }
+
+    @Test
+    public void testMetrics() throws IOException {
+        SerialPort a = open("loop:metrics/A?timing=false");
+        SerialPort b = open("loop:metrics/B?timing=false");
+        b.setMetricsEnabled(true);
+        a.getChannel().write(ByteBuffer.allocate(10));
+        b.getChannel().read(ByteBuffer.allocate(10));
+        assertEquals(10, b.getMetrics().getBytesRead());
+    }
+}
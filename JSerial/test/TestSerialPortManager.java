@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import dk.thibaut.serial.ManagedPort;
+import dk.thibaut.serial.ManagedPortHandler;
+import dk.thibaut.serial.ManagerHealth;
+import dk.thibaut.serial.SerialConfig;
+import dk.thibaut.serial.SerialPort;
+import dk.thibaut.serial.SerialPortManager;
+import dk.thibaut.serial.enums.BaudRate;
+import dk.thibaut.serial.enums.DataBits;
+import dk.thibaut.serial.enums.Parity;
+import dk.thibaut.serial.enums.StopBits;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/*
+ * The functional tests use loopback ports and run on any platform, the
+ * soak test needs pseudo-terminals (Linux only): the manager opens them
+ * through symbolic links, which are pointed to new pseudo-terminals to
+ * emulate adapters unplugged and plugged again.
+ */
+
+public class TestSerialPortManager {
+
+    private static final SerialConfig CONFIG =
+        new SerialConfig(BaudRate.B115200, Parity.NONE, StopBits.ONE, DataBits.D8);
+
+    private final List<SerialPort> ports = new ArrayList<>();
+    private final List<VirtualNullModem> modems = new ArrayList<>();
+    private SerialPortManager manager;
+    private Path links;
+
+    private static class Recorder implements ManagedPortHandler {
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger disconnections = new AtomicInteger();
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        volatile IOException cause;
+
+        public void connected(ManagedPort port) {
+            connections.incrementAndGet();
+        }
+
+        public void dataReceived(ManagedPort port, ByteBuffer data) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            synchronized (received) {
+                received.write(bytes, 0, bytes.length);
+            }
+        }
+
+        public void disconnected(ManagedPort port, IOException cause) {
+            this.cause = cause;
+            disconnections.incrementAndGet();
+        }
+
+        byte[] received() {
+            synchronized (received) {
+                return received.toByteArray();
+            }
+        }
+
+        int receivedCount() {
+            synchronized (received) {
+                return received.size();
+            }
+        }
+    }
+
+    private interface Condition {
+        boolean holds() throws Exception;
+    }
+
+    private static void await(String what, Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline)
+                fail("Timed out waiting for " + what);
+            Thread.sleep(5);
+        }
+    }
+
+    private static void awaitConnections(final Recorder recorder, final int count) throws Exception {
+        await("connection", new Condition() {
+            public boolean holds() {
+                return recorder.connections.get() >= count;
+            }
+        });
+    }
+
+    private SerialPort open(String name) throws IOException {
+        SerialPort port = SerialPort.open(name);
+        ports.add(port);
+        return port;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (manager != null)
+            manager.close();
+        for (SerialPort port : ports)
+            if (port.isOpen())
+                port.close();
+        for (VirtualNullModem modem : modems)
+            modem.close();
+        if (links != null) {
+            for (Path link : Files.newDirectoryStream(links))
+                Files.delete(link);
+            Files.delete(links);
+        }
+    }
+
+    @Test
+    public void testReceiveAndWrite() throws Exception {
+        manager = new SerialPortManager(2);
+        final Recorder recorder = new Recorder();
+        ManagedPort managed = manager.add("loop:managerData/A?timing=false", CONFIG, recorder);
+        awaitConnections(recorder, 1);
+        assertTrue(managed.isConnected());
+
+        SerialPort peer = open("loop:managerData/B?timing=false");
+        peer.getOutputStream().write(new byte[] {1, 2, 3, 4, 5});
+        await("data", new Condition() {
+            public boolean holds() {
+                return recorder.receivedCount() == 5;
+            }
+        });
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5}, recorder.received());
+        assertEquals(5, managed.getBytesReceived());
+
+        assertEquals(3, managed.write(ByteBuffer.wrap(new byte[] {6, 7, 8})));
+        peer.setTimeout(1000);
+        byte[] echoed = new byte[3];
+        assertEquals(3, peer.getInputStream().read(echoed));
+        assertArrayEquals(new byte[] {6, 7, 8}, echoed);
+        assertEquals(3, managed.getBytesSent());
+        assertEquals(0, recorder.disconnections.get());
+    }
+
+    @Test
+    public void testReconnectKeepsConfig() throws Exception {
+        manager = new SerialPortManager(1);
+        manager.setReconnectBackoff(10, 100);
+        final Recorder recorder = new Recorder();
+        ManagedPort managed = manager.add("loop:managerReconnect/A", CONFIG, recorder);
+        awaitConnections(recorder, 1);
+        assertEquals(115200, managed.getPort().getConfig().getBaudRateValue());
+        managed.setConfig(CONFIG.withBaudRate(57600));
+        assertEquals(57600, managed.getPort().getConfig().getBaudRateValue());
+
+        /* Lost behind the back of the manager. */
+        managed.getPort().close();
+        awaitConnections(recorder, 2);
+        assertEquals(1, recorder.disconnections.get());
+        assertNotNull(recorder.cause);
+        assertEquals(1, managed.getReconnectCount());
+        assertEquals(57600, managed.getPort().getConfig().getBaudRateValue());
+
+        ManagerHealth health = manager.getHealth();
+        assertEquals(1, health.getPorts());
+        assertEquals(1, health.getConnected());
+        assertEquals(1, health.getReconnects());
+    }
+
+    @Test
+    public void testBackoff() throws Exception {
+        manager = new SerialPortManager(1);
+        manager.setReconnectBackoff(20, 80);
+        Recorder recorder = new Recorder();
+        ManagedPort managed = manager.add("loop:managerBackoff?nosuch=1", null, recorder);
+        Thread.sleep(500);
+        assertFalse(managed.isConnected());
+        assertNotNull(managed.getLastFailure());
+        /* Attempts at 0, ~10-20, ~20-40, then every 40-80 ms. */
+        long failures = managed.getFailureCount();
+        assertTrue("failures: " + failures, failures >= 4 && failures <= 30);
+        assertEquals(0, recorder.connections.get());
+        assertEquals(0, recorder.disconnections.get());
+        assertEquals(1, manager.getHealth().getDisconnected());
+
+        try {
+            manager.setReconnectBackoff(100, 10);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void testHandlerErrors() throws Exception {
+        manager = new SerialPortManager(1);
+        final AtomicInteger calls = new AtomicInteger();
+        Recorder recorder = new Recorder() {
+            @Override
+            public void dataReceived(ManagedPort port, ByteBuffer data) {
+                calls.incrementAndGet();
+                throw new IllegalStateException();
+            }
+        };
+        ManagedPort managed = manager.add("loop:managerErrors/A?timing=false", null, recorder);
+        awaitConnections(recorder, 1);
+        SerialPort peer = open("loop:managerErrors/B?timing=false");
+        peer.getOutputStream().write(1);
+        await("handler error", new Condition() {
+            public boolean holds() {
+                return manager.getHealth().getHandlerErrors() == 1;
+            }
+        });
+        peer.getOutputStream().write(2);
+        await("second call", new Condition() {
+            public boolean holds() {
+                return calls.get() == 2;
+            }
+        });
+        assertTrue(managed.isConnected());
+        assertEquals(0, recorder.disconnections.get());
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        manager = new SerialPortManager(1);
+        Recorder recorder = new Recorder();
+        final ManagedPort managed = manager.add("loop:managerRemove/A", null, recorder);
+        awaitConnections(recorder, 1);
+        try {
+            manager.add("loop:managerRemove/A", null, recorder);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        managed.close();
+        assertTrue(managed.isClosed());
+        assertTrue(manager.getPorts().isEmpty());
+        await("port closed", new Condition() {
+            public boolean holds() {
+                return !managed.isConnected();
+            }
+        });
+        /* The end is free again. */
+        open("loop:managerRemove/A");
+        assertEquals(0, recorder.disconnections.get());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        manager = new SerialPortManager(2);
+        Recorder recorder = new Recorder();
+        ManagedPort managed = manager.add("loop:managerClose/A", null, recorder);
+        awaitConnections(recorder, 1);
+        SerialPort port = managed.getPort();
+        manager.close();
+        assertTrue(manager.isClosed());
+        assertFalse(port.isOpen());
+        assertFalse(managed.isConnected());
+        try {
+            manager.add("loop:managerClose/B", null, recorder);
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    /*
+     * Hundreds of ports on a few threads: every byte written on the other
+     * side of the null-modems must be received, and ports whose
+     * null-modem is replaced must come back.
+     */
+    @Test
+    public void testManyPtyPorts() throws Exception {
+        assumeTrue(System.getProperty("os.name").toLowerCase().startsWith("linux"));
+        final int count = 100;
+        final int rounds = 10;
+        final int threads = 4;
+        manager = new SerialPortManager(threads);
+        manager.setReconnectBackoff(10, 200);
+        links = Files.createTempDirectory("jserial");
+        final Recorder[] recorders = new Recorder[count];
+        ManagedPort[] managed = new ManagedPort[count];
+        SerialPort[] peers = new SerialPort[count];
+        for (int i = 0; i < count; i++) {
+            VirtualNullModem modem = new VirtualNullModem();
+            modems.add(modem);
+            Path link = links.resolve("tty" + i);
+            Files.createSymbolicLink(link, Paths.get(modem.getPortA()));
+            recorders[i] = new Recorder();
+            managed[i] = manager.add(link.toString(), CONFIG, recorders[i]);
+            peers[i] = open(modem.getPortB());
+        }
+        for (int i = 0; i < count; i++)
+            awaitConnections(recorders[i], 1);
+
+        int threadCount = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            if (thread.getName().startsWith("SerialPortManager-"))
+                threadCount++;
+        assertEquals(threads, threadCount);
+
+        sendRounds(peers, recorders, rounds, 0);
+        ManagerHealth health = manager.getHealth();
+        assertEquals(count, health.getConnected());
+        assertEquals((long) count * rounds * 100, health.getBytesReceived());
+
+        /* Unplug a tenth of the adapters... */
+        final int lost = count / 10;
+        for (int i = 0; i < lost; i++) {
+            peers[i].close();
+            modems.get(i).close();
+        }
+        for (int i = 0; i < lost; i++) {
+            final Recorder recorder = recorders[i];
+            await("disconnection", new Condition() {
+                public boolean holds() {
+                    return recorder.disconnections.get() == 1;
+                }
+            });
+        }
+        assertEquals(lost, manager.getHealth().getDisconnected());
+
+        /* ... and plug them again. */
+        for (int i = 0; i < lost; i++) {
+            VirtualNullModem modem = new VirtualNullModem();
+            modems.set(i, modem);
+            Path link = links.resolve("tty" + i);
+            Files.delete(link);
+            Files.createSymbolicLink(link, Paths.get(modem.getPortA()));
+            peers[i] = open(modem.getPortB());
+        }
+        for (int i = 0; i < lost; i++)
+            awaitConnections(recorders[i], 2);
+        assertEquals(count, manager.getHealth().getConnected());
+        assertEquals(lost, manager.getHealth().getReconnects());
+        for (int i = 0; i < lost; i++)
+            assertEquals(115200, managed[i].getPort().getConfig().getBaudRateValue());
+
+        sendRounds(peers, recorders, rounds, rounds);
+        assertEquals(0, manager.getHealth().getHandlerErrors());
+    }
+
+    private static byte[] message(int port, int round) {
+        byte[] message = new byte[100];
+        for (int k = 0; k < message.length; k++)
+            message[k] = (byte) (port * 31 + round * 7 + k);
+        return message;
+    }
+
+    private static void sendRounds(SerialPort[] peers, final Recorder[] recorders,
+                                   int rounds, int firstRound) throws Exception {
+        for (int round = firstRound; round < firstRound + rounds; round++)
+            for (int i = 0; i < peers.length; i++)
+                peers[i].getOutputStream().write(message(i, round));
+        for (int i = 0; i < peers.length; i++) {
+            final Recorder recorder = recorders[i];
+            final int expected = (firstRound + rounds) * 100;
+            await("data of port " + i, new Condition() {
+                public boolean holds() {
+                    return recorder.receivedCount() >= expected;
+                }
+            });
+        }
+        for (int i = 0; i < peers.length; i++) {
+            byte[] received = recorders[i].received();
+            assertEquals((firstRound + rounds) * 100, received.length);
+            for (int round = 0; round < firstRound + rounds; round++)
+                assertArrayEquals(message(i, round),
+                    Arrays.copyOfRange(received, round * 100, round * 100 + 100));
+        }
+    }
+}
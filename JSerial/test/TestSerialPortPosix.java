@@ -0,0 +1,810 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import dk.thibaut.serial.ModemLineListener;
+import dk.thibaut.serial.ModemStatus;
+import dk.thibaut.serial.ReadTimeouts;
+import dk.thibaut.serial.SerialChannel;
+import dk.thibaut.serial.SerialConfig;
+import dk.thibaut.serial.SerialException;
+import dk.thibaut.serial.SerialPort;
+import dk.thibaut.serial.SerialPortMetrics;
+
+import dk.thibaut.serial.enums.BaudRate;
+import dk.thibaut.serial.enums.DataBits;
+import dk.thibaut.serial.enums.FlowControl;
+import dk.thibaut.serial.enums.Parity;
+import dk.thibaut.serial.enums.StopBits;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/*
+ * Same tests as TestSerialPortWindows, but using pseudo-terminals
+ * connected by a VirtualNullModem instead of virtual COM ports,
+ * so nothing needs to be installed.
+ */
+
+public class TestSerialPortPosix {
+
+    private static final SerialConfig DEFAULT_CONFIG = new SerialConfig(
+        BaudRate.B115200, Parity.NONE, StopBits.ONE, DataBits.D8);
+
+    /* Iterations before measuring allocations: with the ffm backend, the
+     * downcalls only stop allocating once compiled by C2. */
+    private static final int WARM_UP = 20000;
+
+    private VirtualNullModem modem;
+    private SerialPort portRead;
+    private SerialPort portWrite;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(System.getProperty("os.name").toLowerCase().startsWith("linux"));
+        modem = new VirtualNullModem();
+        portRead = SerialPort.open(modem.getPortA());
+        portRead.setConfig(DEFAULT_CONFIG);
+        portRead.setTimeout(SerialPort.TIMEOUT_INFINITE);
+        portWrite = SerialPort.open(modem.getPortB());
+        portWrite.setConfig(DEFAULT_CONFIG);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (modem == null)
+            return;
+        if (portRead.isOpen())
+            portRead.close();
+        if (portWrite.isOpen())
+            portWrite.close();
+        modem.close();
+    }
+
+    @Test(expected = SerialException.class)
+    public void testOpenFails() throws IOException {
+        SerialPort.open("/dev/ttyJSerialDoesNotExist");
+    }
+
+    @Test
+    public void testCloseTwice() throws IOException {
+        SerialChannel channel = portRead.getChannel();
+        channel.close();
+        channel.close();
+        portRead.close();
+        assertFalse(portRead.isOpen());
+    }
+
+    @Test
+    public void testGetSetConfig() throws IOException {
+        /* Sets some strange configuration on the port. Pseudo-terminals
+         * always force 8 data bits without parity, so only the baudrate
+         * and stop bits can be checked. */
+        SerialConfig config = new SerialConfig(BaudRate.B57600,
+            Parity.NONE, StopBits.TWO, DataBits.D8);
+        portRead.setConfig(config);
+        portRead.close();
+        /* Re-opens the port, and check that this is the current
+         * configuration, which means it was applied correctly. */
+        portRead = SerialPort.open(modem.getPortA());
+        config = portRead.getConfig();
+        assertEquals(config.BaudRate, BaudRate.B57600);
+        assertEquals(config.Parity, Parity.NONE);
+        assertEquals(config.StopBits, StopBits.TWO);
+        assertEquals(config.DataBits, DataBits.D8);
+    }
+
+    @Test(expected = SerialException.class)
+    public void testUnsupportedStopBits() throws IOException {
+        portRead.setConfig(new SerialConfig(BaudRate.B9600,
+            Parity.NONE, StopBits.ONE_HALF, DataBits.D8));
+    }
+
+    @Test
+    public void testConfigSnapshot() throws IOException {
+        SerialConfig config = portRead.getConfig();
+        assertSame(config, portRead.getConfig());
+        SerialConfig other = config.withStopBits(StopBits.TWO).withBaudRate(9600);
+        assertEquals(BaudRate.B9600, other.BaudRate);
+        assertEquals(config.StopBits, portRead.getConfig().StopBits);
+        portRead.setConfig(other);
+        assertEquals(other, portRead.getConfig());
+        assertSame(portRead.getConfig(), portRead.getConfig());
+        portRead.invalidateConfig();
+        SerialConfig read = portRead.getConfig();
+        assertEquals(other, read);
+        assertSame(read, portRead.getConfig());
+    }
+
+    @Test
+    public void testConfigToString() {
+        assertEquals("SerialConfig(BaudRate=115200, Parity=NONE, StopBits=1, DataBits=8, FlowControl=NONE)",
+            DEFAULT_CONFIG.toString());
+    }
+
+    @Test
+    public void testFlowControl() throws IOException {
+        for (FlowControl flowControl : new FlowControl[] {FlowControl.NONE, FlowControl.RTS_CTS, FlowControl.XON_XOFF}) {
+            portRead.setConfig(DEFAULT_CONFIG.withFlowControl(flowControl));
+            assertEquals(flowControl, portRead.getConfig().FlowControl);
+            portRead.invalidateConfig();
+            assertEquals(flowControl, portRead.getConfig().FlowControl);
+        }
+    }
+
+    @Test(expected = SerialException.class)
+    public void testUnsupportedFlowControl() throws IOException {
+        portRead.setConfig(DEFAULT_CONFIG.withFlowControl(FlowControl.DTR_DSR));
+    }
+
+    @Test
+    public void testFlowControlStalledReceiver() throws Exception {
+        transferWhileStalled(DEFAULT_CONFIG.withFlowControl(FlowControl.RTS_CTS), false);
+    }
+
+    @Test
+    public void testXonXoffStalledReceiver() throws Exception {
+        /* XON and XOFF can't be part of the data, it's text only. */
+        transferWhileStalled(DEFAULT_CONFIG.withFlowControl(FlowControl.XON_XOFF)
+            .withXonXoffLimits(2048, 2048), true);
+    }
+
+    /* Writes 256KiB while the receiver regularly stops reading for
+     * longer than the transfer would take, nothing must be lost. */
+    private void transferWhileStalled(SerialConfig config, boolean text) throws Exception {
+        portRead.setConfig(config);
+        portWrite.setConfig(config);
+        final byte[] data = new byte[256 * 1024];
+        for (int i = 0; i < data.length; i++)
+            data[i] = text ? (byte) ('A' + i % 26) : (byte) (i * 31);
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    portWrite.getChannel().write(ByteBuffer.wrap(data));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        writer.start();
+        ByteBuffer buffer = ByteBuffer.allocate(data.length);
+        ByteBuffer chunk = ByteBuffer.allocate(8192);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (buffer.hasRemaining() && System.nanoTime() < deadline) {
+            if (buffer.position() % 65536 < chunk.capacity())
+                Thread.sleep(200);
+            chunk.clear();
+            chunk.limit(Math.min(chunk.capacity(), buffer.remaining()));
+            portRead.getChannel().read(chunk, 1, TimeUnit.SECONDS);
+            chunk.flip();
+            buffer.put(chunk);
+        }
+        writer.join();
+        assertArrayEquals(data, buffer.array());
+    }
+
+    @Test
+    public void testCustomBaudRate() throws IOException {
+        /* 921600 is a Bxxx constant, the others need termios2 on Linux. */
+        for (int baudRate : new int[] {921600, 250000, 12000000}) {
+            portRead.setConfig(new SerialConfig(baudRate, Parity.NONE, StopBits.ONE, DataBits.D8));
+            assertEquals(baudRate, portRead.getConfig().getBaudRateValue());
+        }
+        portRead.close();
+        portRead = SerialPort.open(modem.getPortA());
+        SerialConfig config = portRead.getConfig();
+        assertEquals(BaudRate.UNKNOWN, config.BaudRate);
+        assertEquals(12000000, config.getBaudRateValue());
+        portRead.setConfig(new SerialConfig(BaudRate.B921600, Parity.NONE, StopBits.ONE, DataBits.D8));
+        assertEquals(BaudRate.B921600, portRead.getConfig().BaudRate);
+    }
+
+    @Test
+    public void testHighSpeedThroughput() throws Exception {
+        SerialConfig config = new SerialConfig(3000000, Parity.NONE, StopBits.ONE, DataBits.D8);
+        portRead.setConfig(config);
+        portWrite.setConfig(config);
+        final ByteBuffer toWrite = ByteBuffer.allocateDirect(1 << 20);
+        for (int i = 0; i < toWrite.capacity(); i++)
+            toWrite.put((byte) (i * 31));
+        toWrite.flip();
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (toWrite.hasRemaining())
+                        portWrite.getChannel().write(toWrite);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        writer.start();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(toWrite.capacity());
+        assertEquals(buffer.capacity(), portRead.getChannel().readFully(buffer, 30, TimeUnit.SECONDS));
+        writer.join();
+        for (int i = 0; i < buffer.capacity(); i++)
+            if (buffer.get(i) != (byte) (i * 31))
+                fail("Corrupted byte at " + i);
+    }
+
+    @Test
+    public void testReadWrite() throws IOException {
+        ByteBuffer toWrite = ByteBuffer.allocateDirect(50);
+        for (byte b = 0; b < toWrite.capacity(); b++)
+            toWrite.put(b);
+        toWrite.clear();
+        portWrite.getChannel().write(toWrite);
+        assertEquals(toWrite.remaining(), 0);
+        /* Reads return as soon as bytes are available, so
+         * the data may come in several chunks. */
+        ByteBuffer toRead = ByteBuffer.allocateDirect(50);
+        while (toRead.hasRemaining())
+            portRead.getChannel().read(toRead);
+        assertEquals(toRead.position(), 50);
+        assertEquals(toRead.get(0), 0);
+        assertEquals(toRead.get(25), 25);
+        assertEquals(toRead.get(49), 49);
+    }
+
+    @Test
+    public void testReadWriteHeapBuffer() throws IOException {
+        ByteBuffer toWrite = ByteBuffer.wrap(new byte[] {1, 2, 3, 4});
+        toWrite.position(1);
+        portWrite.getChannel().write(toWrite);
+        ByteBuffer toRead = ByteBuffer.allocate(4);
+        toRead.position(1);
+        while (toRead.hasRemaining())
+            portRead.getChannel().read(toRead);
+        assertArrayEquals(new byte[] {0, 2, 3, 4}, toRead.array());
+    }
+
+    @Test
+    public void testWriteReadOnlyHeapBuffer() throws IOException {
+        ByteBuffer toWrite = ByteBuffer.wrap(new byte[] {1, 2, 3}).asReadOnlyBuffer();
+        portWrite.getChannel().write(toWrite);
+        assertEquals(0, toWrite.remaining());
+        ByteBuffer toRead = ByteBuffer.allocate(3);
+        while (toRead.hasRemaining())
+            portRead.getChannel().read(toRead);
+        assertArrayEquals(new byte[] {1, 2, 3}, toRead.array());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReadReadOnlyBuffer() throws IOException {
+        portRead.getChannel().read(ByteBuffer.allocate(3).asReadOnlyBuffer());
+    }
+
+    @Test
+    public void testScatterGather() throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(new byte[] {0, 1, 2});
+        ByteBuffer payload = ByteBuffer.allocateDirect(4);
+        payload.put(new byte[] {3, 4, 5, 6}).flip();
+        ByteBuffer crc = ByteBuffer.wrap(new byte[] {7, 8});
+        long written = portWrite.getChannel().write(new ByteBuffer[] {header, payload, crc});
+        assertEquals(written, 9);
+        assertFalse(header.hasRemaining() || payload.hasRemaining() || crc.hasRemaining());
+
+        ByteBuffer[] received = {ByteBuffer.allocateDirect(2),
+            ByteBuffer.allocate(5), ByteBuffer.allocateDirect(2)};
+        long read = 0;
+        while (read < 9)
+            read += portRead.getChannel().read(received);
+        assertEquals(read, 9);
+        byte value = 0;
+        for (ByteBuffer buffer : received) {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                assertEquals(buffer.get(), value++);
+        }
+    }
+
+    @Test
+    public void testReadWriteDoesNotAllocate() throws IOException {
+        SerialChannel in = portRead.getChannel();
+        SerialChannel out = portWrite.getChannel();
+        ByteBuffer heap = ByteBuffer.allocate(8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(8);
+        /* Warm-up, so that scratch memory is allocated
+         * and the code is compiled. */
+        exchange(out, in, heap, direct, WARM_UP);
+        long before = allocatedBytes();
+        exchange(out, in, heap, direct, 10000);
+        long allocated = allocatedBytes() - before;
+        /* The JVM itself may allocate a few bytes, but one object per
+         * native call would be at least 16 bytes per call. */
+        assertTrue("Allocated " + allocated + " bytes", allocated < 10000);
+    }
+
+    private static void exchange(SerialChannel out, SerialChannel in,
+                                 ByteBuffer heap, ByteBuffer direct,
+                                 int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            heap.clear();
+            direct.clear();
+            out.write(heap);
+            while (direct.hasRemaining())
+                in.read(direct);
+            direct.flip();
+            heap.clear();
+            out.write(direct);
+            while (heap.hasRemaining())
+                in.read(heap);
+        }
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        assertNull(portRead.getMetrics());
+        portRead.setMetricsEnabled(true);
+        portWrite.setMetricsEnabled(true);
+        SerialPortMetrics metrics = portRead.getMetrics();
+        portWrite.getChannel().write(ByteBuffer.allocate(10));
+        ByteBuffer buffer = ByteBuffer.allocate(10);
+        while (buffer.hasRemaining())
+            portRead.getChannel().read(buffer);
+
+        assertEquals(10, metrics.getBytesRead());
+        assertEquals(10, portWrite.getMetrics().getBytesWritten());
+        assertEquals(0, metrics.getBytesWritten());
+        assertTrue(metrics.getReadCalls() >= 1);
+        assertEquals(metrics.getReadCalls(), sum(metrics.getReadSizeHistogram()));
+        assertEquals(metrics.getReadCalls(), sum(metrics.getReadLatencyHistogram()));
+        assertEquals(portWrite.getMetrics().getWriteCalls(), sum(portWrite.getMetrics().getWriteLatencyHistogram()));
+        assertEquals(0, metrics.getTimeouts());
+        /* Pseudo-terminals don't count line errors. */
+        assertEquals(-1, metrics.getFramingErrors());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(10L, server.getAttribute(metrics.getObjectName(), "BytesRead"));
+        portRead.close();
+        assertFalse(server.isRegistered(metrics.getObjectName()));
+        assertEquals(10, metrics.getBytesRead());
+    }
+
+    @Test
+    public void testMetricsTimeouts() throws IOException {
+        portRead.setMetricsEnabled(true);
+        portRead.setTimeout(50);
+        assertEquals(0, portRead.getChannel().read(ByteBuffer.allocate(10)));
+        assertEquals(0, portRead.getChannel().read(ByteBuffer.allocate(10), 20, TimeUnit.MILLISECONDS));
+        assertEquals(2, portRead.getMetrics().getTimeouts());
+
+        /* Nothing was waited for. */
+        portRead.setTimeout(SerialPort.TIMEOUT_IMMEDIATE);
+        portRead.getChannel().read(ByteBuffer.allocate(10));
+        assertEquals(2, portRead.getMetrics().getTimeouts());
+    }
+
+    @Test
+    public void testMetricsDisabled() throws IOException {
+        portRead.setMetricsEnabled(true);
+        SerialPortMetrics metrics = portRead.getMetrics();
+        portRead.setMetricsEnabled(false);
+        assertNull(portRead.getMetrics());
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(metrics.getObjectName()));
+        portWrite.getChannel().write(ByteBuffer.allocate(3));
+        portRead.getChannel().read(ByteBuffer.allocate(3));
+        assertEquals(0, metrics.getBytesRead());
+    }
+
+    private static long sum(long[] histogram) {
+        long sum = 0;
+        for (long count : histogram)
+            sum += count;
+        return sum;
+    }
+
+    @Test
+    public void testMetricsDoNotAllocate() throws IOException {
+        portRead.setMetricsEnabled(true);
+        portWrite.setMetricsEnabled(true);
+        SerialChannel in = portRead.getChannel();
+        SerialChannel out = portWrite.getChannel();
+        ByteBuffer heap = ByteBuffer.allocate(8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(8);
+        exchange(out, in, heap, direct, WARM_UP);
+        long before = allocatedBytes();
+        exchange(out, in, heap, direct, 10000);
+        long allocated = allocatedBytes() - before;
+        assertTrue("Allocated " + allocated + " bytes", allocated < 10000);
+    }
+
+    @Test
+    public void testReadWriteStream() throws IOException {
+        InputStream istream = portRead.getInputStream();
+        OutputStream ostream = portWrite.getOutputStream();
+        byte[] data = new byte[50];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte)i;
+        ostream.write(data);
+        assertEquals(istream.read(), 0);
+        assertEquals(istream.read(), 1);
+        assertEquals(istream.read(), 2);
+    }
+
+    @Test
+    public void testInputStreamTimeoutImmediate() throws IOException {
+        portRead.setTimeout(SerialPort.TIMEOUT_IMMEDIATE);
+        InputStream istream = portRead.getInputStream();
+        assertEquals(-1, istream.read());
+        assertEquals(0, istream.read(new byte[4]));
+        assertEquals(0, istream.available());
+    }
+
+    @Test
+    public void testAvailable() throws Exception {
+        SerialChannel channel = portRead.getChannel();
+        assertEquals(0, channel.available());
+        portWrite.getChannel().write(ByteBuffer.allocate(37));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (channel.available() < 37 && System.nanoTime() < deadline)
+            Thread.sleep(5);
+        /* The read is sized exactly, and returns without waiting. */
+        ByteBuffer buffer = ByteBuffer.allocate(channel.available());
+        assertEquals(37, channel.read(buffer));
+        assertEquals(0, channel.available());
+    }
+
+    @Test
+    public void testPendingOutput() throws IOException {
+        portWrite.getChannel().write(ByteBuffer.allocate(10));
+        assertTrue(portWrite.getChannel().pendingOutput() >= 0);
+    }
+
+    @Test
+    public void testQueueSizes() throws IOException {
+        portRead.setQueueSizes(16384, 4096);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidQueueSizes() throws IOException {
+        portRead.setQueueSizes(0, 4096);
+    }
+
+    @Test
+    public void testInputStreamBuffered() throws Exception {
+        InputStream istream = portRead.getInputStream();
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        portWrite.getChannel().write(ByteBuffer.wrap(data));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (istream.available() < 100 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(100, istream.available());
+        /* A single native read buffers everything the driver queued. */
+        assertEquals(0, istream.read());
+        assertEquals(99, istream.available());
+        assertEquals(10, istream.skip(10));
+        byte[] rest = new byte[100];
+        assertEquals(89, istream.read(rest));
+        assertEquals(11, rest[0]);
+        assertEquals(99, rest[88]);
+    }
+
+    @Test
+    public void testInputStreamDoesNotAllocate() throws IOException {
+        InputStream istream = portRead.getInputStream();
+        OutputStream ostream = portWrite.getOutputStream();
+        for (int i = 0; i < WARM_UP; i++) {
+            ostream.write(i);
+            assertEquals(i & 0xFF, istream.read());
+        }
+        /* assertEquals() would box the values. */
+        int errors = 0;
+        long before = allocatedBytes();
+        for (int i = 0; i < 10000; i++) {
+            ostream.write(i);
+            if (istream.read() != (i & 0xFF))
+                errors++;
+        }
+        assertEquals(0, errors);
+        long allocated = allocatedBytes() - before;
+        assertTrue("Allocated " + allocated + " bytes", allocated < 10000);
+    }
+
+    @Test
+    public void testOutputCoalescing() throws IOException {
+        portWrite.setOutputCoalescing(64, 10);
+        OutputStream ostream = portWrite.getOutputStream();
+        for (int i = 0; i < 100; i++)
+            ostream.write(i);
+        /* The last 36 bytes are written by the linger timer. */
+        byte[] data = new byte[100];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining())
+            portRead.getChannel().read(buffer);
+        for (int i = 0; i < data.length; i++)
+            assertEquals((byte) i, data[i]);
+    }
+
+    @Test
+    public void testTimeoutValue() throws IOException, InterruptedException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(5);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    portRead.getChannel().read(buffer);
+                } catch (IOException err) {
+                    err.printStackTrace();
+                }
+            }
+        });
+        portRead.setTimeout(110);
+        thread.start();
+        thread.join(100);
+        assertTrue(thread.isAlive());
+        thread.join(50);
+        assertFalse(thread.isAlive());
+    }
+
+    @Test
+    public void testReadReturnsAsSoonAsAvailable() throws IOException {
+        /* With a long timeout, a read must not wait for the buffer
+         * to be filled nor for the timeout to expire. */
+        portRead.setTimeout(5000);
+        portWrite.getChannel().write(ByteBuffer.wrap(new byte[] {42}));
+        long start = System.nanoTime();
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        while (buffer.position() == 0)
+            portRead.getChannel().read(buffer);
+        assertTrue(System.nanoTime() - start < 1000000000L);
+        assertEquals(buffer.get(0), 42);
+    }
+
+    @Test
+    public void testTimeoutImmediate() throws IOException {
+        portRead.setTimeout(SerialPort.TIMEOUT_IMMEDIATE);
+        assertEquals(portRead.getChannel().read(ByteBuffer.allocate(5)), 0);
+    }
+
+    @Test
+    public void testReadDeadline() throws IOException {
+        SerialChannel channel = portRead.getChannel();
+        long start = System.nanoTime();
+        assertEquals(0, channel.read(ByteBuffer.allocate(4), 100, TimeUnit.MILLISECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Returned after " + elapsed + "ms", elapsed >= 90 && elapsed < 2000);
+        assertEquals(SerialPort.TIMEOUT_INFINITE, portRead.getTimeout());
+        portWrite.getChannel().write(ByteBuffer.wrap(new byte[] {1, 2}));
+        assertEquals(2, channel.read(ByteBuffer.allocate(4), 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testReadDeadlinePolled() throws IOException {
+        portRead.setPolled(true);
+        testReadDeadline();
+    }
+
+    @Test
+    public void testReadFully() throws Exception {
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 4; i++) {
+                        Thread.sleep(20);
+                        portWrite.getChannel().write(ByteBuffer.allocate(10));
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        writer.start();
+        ByteBuffer buffer = ByteBuffer.allocate(40);
+        assertEquals(40, portRead.getChannel().readFully(buffer, 5, TimeUnit.SECONDS));
+        assertFalse(buffer.hasRemaining());
+        writer.join();
+    }
+
+    @Test
+    public void testReadFullyDeadline() throws IOException {
+        portWrite.getChannel().write(ByteBuffer.allocate(3));
+        ByteBuffer buffer = ByteBuffer.allocate(10);
+        assertEquals(3, portRead.getChannel().readFully(buffer, 100, TimeUnit.MILLISECONDS));
+        assertEquals(3, buffer.position());
+    }
+
+    @Test
+    public void testReadUntil() throws IOException {
+        portWrite.getChannel().write(ByteBuffer.wrap("abc\ndef".getBytes()));
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        assertEquals(4, portRead.getChannel().readUntil(buffer, (byte) '\n', 1, TimeUnit.SECONDS));
+        assertTrue(buffer.position() >= 4);
+        assertEquals('c', buffer.get(2));
+    }
+
+    @Test
+    public void testReadUntilDeadline() throws IOException {
+        portWrite.getChannel().write(ByteBuffer.wrap("abc".getBytes()));
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        assertEquals(-1, portRead.getChannel().readUntil(buffer, (byte) '\n', 100, TimeUnit.MILLISECONDS));
+        assertEquals(3, buffer.position());
+    }
+
+    @Test
+    public void testGetPorts() {
+        /* Pseudo-terminals are not listed, we can only
+         * check that listing real ports doesn't fail. */
+        List<String> portsNames = SerialPort.getAvailablePortsNames();
+        assertFalse(portsNames.contains(modem.getPortA()));
+    }
+
+    @Test
+    public void testFlush() throws IOException {
+        /* Nothing easy to test, just test the call. */
+        portRead.getChannel().flush(true, true);
+    }
+
+    @Test
+    public void testName() {
+        assertEquals(portRead.getName(), modem.getPortA());
+        assertEquals(portWrite.getName(), modem.getPortB());
+    }
+
+    @Test
+    public void testTimeout() throws IOException {
+        portRead.setTimeout(SerialPort.TIMEOUT_IMMEDIATE);
+        assertEquals(portRead.getTimeout(), SerialPort.TIMEOUT_IMMEDIATE);
+        portRead.setTimeout(SerialPort.TIMEOUT_INFINITE);
+        assertEquals(portRead.getTimeout(), SerialPort.TIMEOUT_INFINITE);
+        portRead.setTimeout(1337);
+        assertEquals(portRead.getTimeout(), 1337);
+    }
+
+    @Test
+    public void testReadTimeouts() throws IOException {
+        ReadTimeouts timeouts = new ReadTimeouts(500, ReadTimeouts.INTERVAL_NONE);
+        portRead.setReadTimeouts(timeouts);
+        assertEquals(timeouts, portRead.getReadTimeouts());
+        assertEquals(500, portRead.getTimeout());
+        portRead.setReadTimeouts(ReadTimeouts.lowLatency(SerialPort.TIMEOUT_INFINITE));
+        assertTrue(portRead.getReadTimeouts().isLowLatency());
+        portRead.setTimeout(1337);
+        assertFalse(portRead.getReadTimeouts().isLowLatency());
+        assertEquals(1337, portRead.getReadTimeouts().getTotalTimeout());
+    }
+
+    @Test
+    public void testReadTimeoutsLowLatency() throws IOException {
+        portRead.setReadTimeouts(ReadTimeouts.lowLatency(1000));
+        portWrite.getChannel().write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        assertEquals(3, portRead.getChannel().read(ByteBuffer.allocate(10)));
+    }
+
+    @Test
+    public void testReadTimeoutsIntervalNone() throws Exception {
+        portRead.setReadTimeouts(new ReadTimeouts(1000, ReadTimeouts.INTERVAL_NONE));
+        Thread writer = writeTwice(5, 50);
+        ByteBuffer buffer = ByteBuffer.allocate(10);
+        assertEquals(10, portRead.getChannel().read(buffer));
+        writer.join();
+
+        /* The total timeout expires before the buffer is full. */
+        portRead.setReadTimeouts(new ReadTimeouts(100, ReadTimeouts.INTERVAL_NONE));
+        portWrite.getChannel().write(ByteBuffer.allocate(3));
+        buffer.clear();
+        assertEquals(3, portRead.getChannel().read(buffer));
+    }
+
+    @Test
+    public void testReadTimeoutsInterval() throws Exception {
+        portRead.setReadTimeouts(new ReadTimeouts(SerialPort.TIMEOUT_INFINITE, 500));
+        Thread writer = writeTwice(5, 30);
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        assertEquals(10, portRead.getChannel().read(buffer));
+        writer.join();
+    }
+
+    @Test(expected = SerialException.class)
+    public void testModemStatusUnsupported() throws IOException {
+        /* Pseudo-terminals have no modem lines. */
+        portRead.getModemStatus();
+    }
+
+    @Test
+    public void testModemLineListener() throws IOException {
+        ModemLineListener listener = new ModemLineListener() {
+            public void modemLinesChanged(SerialPort port, int changes, ModemStatus status) {
+                fail("No modem lines on a pseudo-terminal");
+            }
+        };
+        portRead.addModemLineListener(listener);
+        portWrite.getChannel().write(ByteBuffer.allocate(3));
+        assertEquals(3, portRead.getChannel().read(ByteBuffer.allocate(10)));
+        portRead.removeModemLineListener(listener);
+
+        /* Closing a watched port stops watching it. */
+        portRead.addModemLineListener(listener);
+        portRead.close();
+        portRead.removeModemLineListener(listener);
+    }
+
+    @Test(expected = ClosedChannelException.class)
+    public void testModemLineListenerClosed() throws IOException {
+        portRead.close();
+        portRead.addModemLineListener(null);
+    }
+
+    /* The suite is also run with -Ddk.thibaut.serial.backend=jna on
+     * Java 22, to test both backends. */
+    @Test
+    public void testNativeBackend() throws IOException {
+        String backend = SerialPort.getNativeBackend();
+        if ("jna".equals(System.getProperty("dk.thibaut.serial.backend")))
+            assertEquals("jna", backend);
+        else
+            assertTrue(backend, backend.equals("jna") || backend.equals("ffm"));
+        portWrite.getChannel().write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        assertEquals(3, portRead.getChannel().readFully(ByteBuffer.allocateDirect(3), 1, TimeUnit.SECONDS));
+
+        /* Errors are reported with the errno of the failed call: EIO
+         * once the other side of the pseudo-terminal is closed. */
+        VirtualNullModem unplugged = new VirtualNullModem();
+        SerialPort port = SerialPort.open(unplugged.getPortA());
+        unplugged.close();
+        try {
+            port.getChannel().write(ByteBuffer.allocateDirect(1));
+            fail();
+        } catch (SerialException e) {
+            assertEquals(5, e.getNativeError());
+        } finally {
+            port.close();
+        }
+    }
+
+    private Thread writeTwice(final int count, final int gap) {
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    portWrite.getChannel().write(ByteBuffer.allocate(count));
+                    Thread.sleep(gap);
+                    portWrite.getChannel().write(ByteBuffer.allocate(count));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        writer.start();
+        return writer;
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import dk.thibaut.serial.SerialPort;
+import dk.thibaut.serial.SerialPortInfo;
+import dk.thibaut.serial.SerialPortListener;
+import dk.thibaut.serial.SerialPortRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/*
+ * Only checks the registry against the ports of the machine running
+ * the tests, as devices can't be plugged from here.
+ */
+
+public class TestSerialPortRegistry {
+
+    private SerialPortRegistry registry;
+
+    @Before
+    public void setUp() throws IOException {
+        String os = System.getProperty("os.name").toLowerCase();
+        assumeTrue(os.startsWith("linux") || os.startsWith("windows"));
+        registry = SerialPortRegistry.get();
+    }
+
+    @Test
+    public void testSingleton() throws IOException {
+        assertSame(registry, SerialPortRegistry.get());
+    }
+
+    @Test
+    public void testPortsNames() {
+        List<String> names = new ArrayList<>();
+        for (SerialPortInfo port : registry.getPorts())
+            names.add(port.getName());
+        assertEquals(new HashSet<>(SerialPort.getAvailablePortsNames()), new HashSet<>(names));
+    }
+
+    @Test
+    public void testGetPort() {
+        for (SerialPortInfo port : registry.getPorts())
+            assertSame(port, registry.getPort(port.getName()));
+        assertNull(registry.getPort("NotAPort"));
+    }
+
+    @Test
+    public void testFindPorts() {
+        for (SerialPortInfo port : registry.getPorts()) {
+            if (!port.isUsb())
+                continue;
+            assertTrue(registry.findPorts(port.getVendorId(), port.getProductId()).contains(port));
+            assertTrue(registry.findPorts(port.getVendorId(), SerialPortInfo.ID_UNKNOWN).contains(port));
+        }
+        assertTrue(registry.findPorts(SerialPortInfo.ID_UNKNOWN, SerialPortInfo.ID_UNKNOWN).isEmpty());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testPortsUnmodifiable() {
+        registry.getPorts().clear();
+    }
+
+    @Test
+    public void testRefreshWithoutChanges() {
+        final List<SerialPortInfo> events = new ArrayList<>();
+        SerialPortListener listener = new SerialPortListener() {
+            public void portAdded(SerialPortInfo port) {
+                events.add(port);
+            }
+
+            public void portRemoved(SerialPortInfo port) {
+                events.add(port);
+            }
+        };
+        registry.addListener(listener);
+        try {
+            List<SerialPortInfo> ports = registry.getPorts();
+            assertEquals(ports, registry.refresh());
+            assertEquals(ports, registry.getPorts());
+            assertTrue(events.isEmpty());
+        } finally {
+            registry.removeListener(listener);
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullListener() {
+        registry.addListener(null);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import dk.thibaut.serial.SerialChannel;
+import dk.thibaut.serial.SerialPort;
+import dk.thibaut.serial.SerialSelectionKey;
+import dk.thibaut.serial.SerialSelector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/*
+ * Selector tests, using pseudo-terminals (see VirtualNullModem),
+ * so they only run on Linux.
+ */
+
+public class TestSerialSelector {
+
+    private static final int PORTS = 8;
+
+    private final List<VirtualNullModem> modems = new ArrayList<>();
+    private final List<SerialPort> portsRead = new ArrayList<>();
+    private final List<SerialPort> portsWrite = new ArrayList<>();
+    private SerialSelector selector;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(System.getProperty("os.name").toLowerCase().startsWith("linux"));
+        for (int i = 0; i < PORTS; i++) {
+            VirtualNullModem modem = new VirtualNullModem();
+            modems.add(modem);
+            SerialPort port = SerialPort.open(modem.getPortA());
+            port.setTimeout(SerialPort.TIMEOUT_IMMEDIATE);
+            portsRead.add(port);
+            portsWrite.add(SerialPort.open(modem.getPortB()));
+        }
+        selector = SerialSelector.open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (selector != null)
+            selector.close();
+        for (SerialPort port : portsRead)
+            if (port.isOpen())
+                port.close();
+        for (SerialPort port : portsWrite)
+            port.close();
+        for (VirtualNullModem modem : modems)
+            modem.close();
+    }
+
+    private void send(int port, int value) throws IOException {
+        portsWrite.get(port).getChannel().write(ByteBuffer.wrap(new byte[] {(byte) value}));
+    }
+
+    @Test
+    public void testSelectReadable() throws IOException {
+        for (int i = 0; i < PORTS; i++)
+            selector.register(portsRead.get(i).getChannel(), SerialSelectionKey.OP_READ, i);
+        assertEquals(selector.selectNow(), 0);
+
+        send(1, 1);
+        send(5, 5);
+        Set<Integer> selected = new HashSet<>();
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        while (selected.size() < 2) {
+            selector.select(1000);
+            for (SerialSelectionKey key : selector.selectedKeys()) {
+                assertTrue(key.isReadable());
+                buffer.clear();
+                key.channel().read(buffer);
+                assertEquals(buffer.get(0), ((Integer) key.attachment()).byteValue());
+                selected.add((Integer) key.attachment());
+            }
+            selector.selectedKeys().clear();
+        }
+        assertEquals(selected, new HashSet<>(java.util.Arrays.asList(1, 5)));
+        assertEquals(selector.selectNow(), 0);
+    }
+
+    @Test
+    public void testSelectWritable() throws IOException {
+        SerialSelectionKey key = selector.register(portsWrite.get(0).getChannel(),
+            SerialSelectionKey.OP_WRITE, null);
+        assertEquals(selector.selectNow(), 1);
+        assertTrue(key.isWritable());
+        assertFalse(key.isReadable());
+    }
+
+    @Test
+    public void testSelectTimeout() throws IOException {
+        selector.register(portsRead.get(0).getChannel(), SerialSelectionKey.OP_READ, null);
+        long start = System.nanoTime();
+        assertEquals(selector.select(100), 0);
+        assertTrue(System.nanoTime() - start >= 90000000L);
+    }
+
+    @Test
+    public void testWakeup() throws IOException, InterruptedException {
+        selector.register(portsRead.get(0).getChannel(), SerialSelectionKey.OP_READ, null);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    selector.select();
+                } catch (IOException err) {
+                    err.printStackTrace();
+                }
+            }
+        });
+        thread.start();
+        thread.join(50);
+        assertTrue(thread.isAlive());
+        selector.wakeup();
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+    }
+
+    @Test
+    public void testModemInterestDoesNotBlock() throws IOException {
+        /* Pseudo-terminals have no modem lines: the selector must still
+         * report data and honor the timeout. */
+        selector.register(portsRead.get(0).getChannel(),
+            SerialSelectionKey.OP_READ | SerialSelectionKey.OP_MODEM, null);
+        assertEquals(selector.select(30), 0);
+        send(0, 42);
+        assertEquals(selector.select(1000), 1);
+    }
+
+    @Test
+    public void testCancel() throws IOException {
+        SerialChannel channel = portsRead.get(0).getChannel();
+        SerialSelectionKey key = selector.register(channel, SerialSelectionKey.OP_READ, null);
+        assertSame(selector.keyFor(channel), key);
+        key.cancel();
+        assertFalse(key.isValid());
+        send(0, 0);
+        assertEquals(selector.selectNow(), 0);
+        assertTrue(selector.keys().isEmpty());
+        assertNull(selector.keyFor(channel));
+    }
+
+    @Test
+    public void testClosedChannel() throws IOException {
+        SerialSelectionKey key = selector.register(portsRead.get(0).getChannel(),
+            SerialSelectionKey.OP_READ, null);
+        portsRead.get(0).close();
+        assertFalse(key.isValid());
+        assertEquals(selector.selectNow(), 0);
+        assertTrue(selector.keys().isEmpty());
+    }
+
+    @Test
+    public void testInterrupt() throws IOException, InterruptedException {
+        selector.register(portsRead.get(0).getChannel(), SerialSelectionKey.OP_READ, null);
+        final boolean[] interrupted = new boolean[1];
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    selector.select();
+                    interrupted[0] = Thread.currentThread().isInterrupted();
+                } catch (IOException err) {
+                    err.printStackTrace();
+                }
+            }
+        });
+        thread.start();
+        thread.join(50);
+        assertTrue(thread.isAlive());
+        thread.interrupt();
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+        assertTrue(interrupted[0]);
+    }
+
+    @Test
+    public void testCloseWhileSelecting() throws IOException, InterruptedException {
+        SerialSelectionKey key = selector.register(portsRead.get(0).getChannel(),
+            SerialSelectionKey.OP_READ, null);
+        final int[] selected = {-1};
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    selected[0] = selector.select();
+                } catch (IOException err) {
+                    err.printStackTrace();
+                }
+            }
+        });
+        thread.start();
+        thread.join(50);
+        assertTrue(thread.isAlive());
+        portsRead.get(0).close();
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+        /* The key of the closed channel is removed, not selected. */
+        assertEquals(0, selected[0]);
+        assertFalse(key.isValid());
+        assertTrue(selector.keys().isEmpty());
+        assertTrue(selector.selectedKeys().isEmpty());
+    }
+}
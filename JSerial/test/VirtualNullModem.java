@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2015 Thibaut DIRLIK <thibaut.dirlik@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import com.sun.jna.Library;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+
+import java.io.Closeable;
+
+/*
+ * A virtual null-modem cable made of two pseudo-terminals, like the
+ * virtual port utilities used by TestSerialPortWindows.
+ *
+ * openpty() gives us two master/slave pairs. A thread copies everything
+ * written on a master to the other one, so data written on a slave
+ * can be read on the other slave. Slaves are the ports under test.
+ *
+ * Pseudo-terminals have no modem lines, so RTS/DTR can't be tested.
+ */
+public class VirtualNullModem implements Closeable {
+
+    public interface Util extends Library {
+        int openpty(IntByReference master, IntByReference slave, Pointer name,
+                    Pointer termios, Pointer winsize);
+    }
+
+    public interface C extends Library {
+        int close(int fd);
+        int read(int fd, Pointer buffer, int count);
+        int write(int fd, Pointer buffer, int count);
+        int poll(Pointer fds, int nfds, int timeout);
+    }
+
+    private static final short POLLIN = 0x1;
+
+    private static final C LIBC = (C) Native.loadLibrary("c", C.class);
+    private static final Util UTIL = loadUtil();
+
+    private final int[] masters = new int[2];
+    private final int[] slaves = new int[2];
+    private final String[] names = new String[2];
+    private final Thread bridge;
+    private volatile boolean running = true;
+
+    private static Util loadUtil() {
+        /* openpty() moved from libutil to libc in glibc 2.34. */
+        try {
+            return (Util) Native.loadLibrary("util", Util.class);
+        } catch (UnsatisfiedLinkError e) {
+            return (Util) Native.loadLibrary("c", Util.class);
+        }
+    }
+
+    public VirtualNullModem() {
+        for (int i = 0; i < 2; i++) {
+            IntByReference master = new IntByReference();
+            IntByReference slave = new IntByReference();
+            Memory name = new Memory(256);
+            if (UTIL.openpty(master, slave, name, null, null) != 0)
+                throw new IllegalStateException("openpty() failed: " + Native.getLastError());
+            masters[i] = master.getValue();
+            slaves[i] = slave.getValue();
+            names[i] = name.getString(0);
+        }
+        bridge = new Thread(new Runnable() {
+            public void run() {
+                bridge();
+            }
+        }, "VirtualNullModem");
+        bridge.setDaemon(true);
+        bridge.start();
+    }
+
+    public String getPortA() {
+        return names[0];
+    }
+
+    public String getPortB() {
+        return names[1];
+    }
+
+    private void bridge() {
+        Memory fds = new Memory(16);
+        Memory buffer = new Memory(4096);
+        while (running) {
+            for (int i = 0; i < 2; i++) {
+                fds.setInt(i * 8, masters[i]);
+                fds.setShort(i * 8 + 4, POLLIN);
+                fds.setShort(i * 8 + 6, (short) 0);
+            }
+            if (LIBC.poll(fds, 2, 20) <= 0)
+                continue;
+            for (int i = 0; i < 2; i++) {
+                if ((fds.getShort(i * 8 + 6) & POLLIN) == 0)
+                    continue;
+                int n = LIBC.read(masters[i], buffer, (int) buffer.size());
+                for (int off = 0; off < n; ) {
+                    int w = LIBC.write(masters[1 - i], buffer.share(off), n - off);
+                    if (w < 0)
+                        break;
+                    off += w;
+                }
+            }
+        }
+    }
+
+    public void close() {
+        running = false;
+        try {
+            bridge.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (int i = 0; i < 2; i++) {
+            LIBC.close(slaves[i]);
+            LIBC.close(masters[i]);
+        }
+    }
+}
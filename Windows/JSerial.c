@@ -1,5 +1,10 @@
 #include <windows.h>
 #include <tchar.h>
+#include <setupapi.h>
+#include <initguid.h>
+#include <devguid.h>
+
+#pragma comment(lib, "setupapi.lib")
 
 #include "JSerial.h"
 
@@ -9,9 +14,45 @@ typedef struct SerialHandle
 	OVERLAPPED readOv;
 	OVERLAPPED writeOv;
 	DCB config;
+	/* The timeouts set by NativeSetReadTimeouts(), and the ones currently
+	 * programmed in the driver, which differ after a deadline read. */
 	COMMTIMEOUTS timeout;
+	COMMTIMEOUTS applied;
+	INT totalTimeout;
+	/* WaitCommEvent() state, used by selectors. */
+	OVERLAPPED eventOv;
+	DWORD eventMask;
+	DWORD armedMask;
+	BOOL eventPending;
+	/* What PollQueues() found the last time it was called. */
+	DWORD queueReady;
+	/* Line events reported by ClearCommError(), which resets them. */
+	DWORD breakCount;
+	DWORD framingErrorCount;
+	DWORD overrunCount;
+	DWORD parityErrorCount;
 } SerialHandle;
 
+struct SerialSelector
+{
+	/* Manual-reset event shared by all the registered ports. When it's
+	 * signaled, ports are scanned to find which ones completed. This
+	 * avoids the MAXIMUM_WAIT_OBJECTS limit of WaitForMultipleObjects. */
+	HANDLE event;
+	HANDLE wakeup;
+};
+
+struct PortsWatcher
+{
+	HKEY key;
+	/* Auto-reset event signaled by RegNotifyChangeKeyValue(). */
+	HANDLE changed;
+	BOOL armed;
+};
+
+static VOID SetFlowControl(DCB* config, INT flowControl, INT xonLimit, INT xoffLimit);
+static BOOL ClearErrors(SerialHandle* handle, LPDWORD errors, COMSTAT* status);
+
 LPTSTR NativeGetErrorString(DWORD error)
 {
 	LPTSTR message = NULL;
@@ -47,11 +88,19 @@ SerialHandle* NativeOpen(LPTSTR portName)
 	if (!GetCommState(nativeHandle, &handle->config))
 		goto error;
 
+	/* Whatever the previous user of the port left, there
+	 * is no flow control until the configuration asks for it. */
+	SetFlowControl(&handle->config, FLOW_NONE, 0, 0);
 	if (!SetCommState(handle->native, &handle->config))
 		goto error;
 
 	if (!GetCommTimeouts(nativeHandle, &handle->timeout))
 		goto error;
+	handle->applied = handle->timeout;
+
+	handle->readOv.hEvent = CreateEvent(NULL, TRUE, FALSE, NULL);
+	if (handle->readOv.hEvent == NULL)
+		goto error;
 
 	if (!PurgeComm(nativeHandle, PURGE_TXCLEAR | PURGE_RXCLEAR | PURGE_RXABORT | PURGE_TXABORT))
 		goto error;
@@ -67,12 +116,29 @@ error:
 	if (nativeHandle != NULL)
 		CloseHandle(nativeHandle);
 	if (handle != NULL)
+	{
+		if (handle->readOv.hEvent != NULL)
+			CloseHandle(handle->readOv.hEvent);
 		HeapFree(GetProcessHeap(), 0, handle);
+	}
 	return NULL;
 }
 
+/* Programs the driver timeouts, only if they changed. */
+static BOOL ApplyTimeouts(SerialHandle* handle, const COMMTIMEOUTS* timeouts)
+{
+	if (memcmp(&handle->applied, timeouts, sizeof(COMMTIMEOUTS)) == 0)
+		return TRUE;
+	if (!SetCommTimeouts(handle->native, (LPCOMMTIMEOUTS)timeouts))
+		return FALSE;
+	handle->applied = *timeouts;
+	return TRUE;
+}
+
 BOOL NativeRead(SerialHandle* handle, LPBYTE buffer, DWORD numberOfBytes, LPDWORD readBytes)
 {
+	if (!ApplyTimeouts(handle, &handle->timeout))
+		return FALSE;
 	if (!ReadFile(handle->native, buffer, numberOfBytes, readBytes, &handle->readOv))
 	{
 		DWORD error = GetLastError();
@@ -84,6 +150,46 @@ BOOL NativeRead(SerialHandle* handle, LPBYTE buffer, DWORD numberOfBytes, LPDWOR
 	return TRUE;
 }
 
+BOOL NativeReadTimeout(SerialHandle* handle, LPBYTE buffer, DWORD numberOfBytes, LPDWORD readBytes, DWORD timeout)
+{
+	/* With these values, ReadFile() returns the queued bytes immediately,
+	 * or waits for the first byte. The deadline is enforced while waiting
+	 * for the completion, so the driver is only reprogrammed when switching
+	 * between deadline reads and NativeRead(). */
+	COMMTIMEOUTS firstByte = handle->timeout;
+	firstByte.ReadIntervalTimeout = MAXDWORD;
+	firstByte.ReadTotalTimeoutMultiplier = MAXDWORD;
+	firstByte.ReadTotalTimeoutConstant = MAXDWORD - 1;
+
+	*readBytes = 0;
+	if (timeout == 0)
+	{
+		COMSTAT status;
+		if (!ClearErrors(handle, NULL, &status))
+			return FALSE;
+		if (status.cbInQue == 0)
+			return TRUE;
+	}
+
+	if (!ApplyTimeouts(handle, &firstByte))
+		return FALSE;
+	if (ReadFile(handle->native, buffer, numberOfBytes, readBytes, &handle->readOv))
+		return TRUE;
+	if (GetLastError() != ERROR_IO_PENDING)
+		return FALSE;
+
+	if (WaitForSingleObject(handle->readOv.hEvent, timeout) == WAIT_TIMEOUT)
+		CancelIoEx(handle->native, &handle->readOv);
+	/* A byte may have been received while cancelling. */
+	if (!GetOverlappedResult(handle->native, &handle->readOv, readBytes, TRUE))
+	{
+		if (GetLastError() != ERROR_OPERATION_ABORTED)
+			return FALSE;
+		*readBytes = 0;
+	}
+	return TRUE;
+}
+
 BOOL NativeWrite(SerialHandle* handle, LPBYTE buffer, DWORD numberOfBytes)
 {
 	DWORD toWrite = numberOfBytes;
@@ -105,88 +211,133 @@ BOOL NativeWrite(SerialHandle* handle, LPBYTE buffer, DWORD numberOfBytes)
 
 BOOL NativeClose(SerialHandle* handle)
 {
+	/* The pending WaitCommEvent() must complete before
+	 * the OVERLAPPED structure is freed. */
+	NativeSelectorCancel(handle);
 	if (!CloseHandle(handle->native))
 		return FALSE;
+	CloseHandle(handle->readOv.hEvent);
 	HeapFree(GetProcessHeap(), 0, handle);
 	return TRUE;
 }
 
-DWORD NativeGetBaudRate(SerialHandle* handle)
-{
-	return handle->config.BaudRate;
-}
-
-DWORD NativeGetParity(SerialHandle* handle)
-{
-	return handle->config.Parity;
-}
-
-DWORD NativeGetStopBits(SerialHandle* handle)
-{
-	return handle->config.StopBits;
-}
-
-DWORD NativeGetDataBits(SerialHandle* handle)
+static INT GetFlowControl(const DCB* config)
 {
-	return handle->config.ByteSize;
+	BOOL cts = config->fOutxCtsFlow && config->fRtsControl == RTS_CONTROL_HANDSHAKE;
+	BOOL dsr = config->fOutxDsrFlow && config->fDtrControl == DTR_CONTROL_HANDSHAKE;
+	BOOL xon = config->fOutX && config->fInX;
+	if (cts + dsr + xon > 1)
+		return FLOW_UNKNOWN;
+	if (cts)
+		return FLOW_RTS_CTS;
+	if (dsr)
+		return FLOW_DTR_DSR;
+	if (xon)
+		return FLOW_XON_XOFF;
+	if (config->fOutxCtsFlow || config->fOutxDsrFlow || config->fOutX || config->fInX)
+		return FLOW_UNKNOWN;
+	return FLOW_NONE;
 }
 
-VOID NativeSetBaudRate(SerialHandle* handle, DWORD baudRate)
+static VOID SetFlowControl(DCB* config, INT flowControl, INT xonLimit, INT xoffLimit)
 {
-	handle->config.BaudRate = baudRate;
+	config->fOutxCtsFlow = flowControl == FLOW_RTS_CTS;
+	config->fRtsControl = flowControl == FLOW_RTS_CTS ?
+		RTS_CONTROL_HANDSHAKE : RTS_CONTROL_ENABLE;
+	config->fOutxDsrFlow = flowControl == FLOW_DTR_DSR;
+	config->fDsrSensitivity = FALSE;
+	config->fDtrControl = flowControl == FLOW_DTR_DSR ?
+		DTR_CONTROL_HANDSHAKE : DTR_CONTROL_ENABLE;
+	config->fOutX = flowControl == FLOW_XON_XOFF;
+	config->fInX = flowControl == FLOW_XON_XOFF;
+	config->fTXContinueOnXoff = TRUE;
+	config->XonChar = 0x11;
+	config->XoffChar = 0x13;
+	/* Zero keeps the driver thresholds. */
+	if (xonLimit > 0)
+		config->XonLim = (WORD)xonLimit;
+	if (xoffLimit > 0)
+		config->XoffLim = (WORD)xoffLimit;
 }
 
-VOID NativeSetParity(SerialHandle* handle, DWORD parity)
+static VOID StoreConfig(const DCB* config, INT* values)
 {
-	handle->config.Parity = (BYTE)parity;
+	values[CONFIG_BAUDRATE] = config->BaudRate;
+	values[CONFIG_DATABITS] = config->ByteSize;
+	values[CONFIG_PARITY] = config->Parity;
+	values[CONFIG_STOPBITS] = config->StopBits;
+	values[CONFIG_FLOWCONTROL] = GetFlowControl(config);
+	values[CONFIG_XONLIMIT] = config->XonLim;
+	values[CONFIG_XOFFLIMIT] = config->XoffLim;
 }
 
-VOID NativeSetStopBits(SerialHandle* handle, DWORD stopBits)
+BOOL NativeApplyConfig(SerialHandle* handle, INT* values)
 {
-	handle->config.StopBits = (BYTE)stopBits;
+	DCB config = handle->config;
+	config.BaudRate = values[CONFIG_BAUDRATE];
+	config.ByteSize = (BYTE)values[CONFIG_DATABITS];
+	config.Parity = (BYTE)values[CONFIG_PARITY];
+	config.StopBits = (BYTE)values[CONFIG_STOPBITS];
+	SetFlowControl(&config, values[CONFIG_FLOWCONTROL],
+		values[CONFIG_XONLIMIT], values[CONFIG_XOFFLIMIT]);
+	if (!SetCommState(handle->native, &config))
+		return FALSE;
+	/* Reads back what the driver actually applied, a failure
+	 * there doesn't undo the configuration. */
+	if (!GetCommState(handle->native, &handle->config))
+		handle->config = config;
+	StoreConfig(&handle->config, values);
+	return TRUE;
 }
 
-VOID NativeSetDataBits(SerialHandle* handle, DWORD dataBits)
+BOOL NativeGetConfig(SerialHandle* handle, INT* values)
 {
-	handle->config.ByteSize = (BYTE)dataBits;
+	if (!GetCommState(handle->native, &handle->config))
+		return FALSE;
+	StoreConfig(&handle->config, values);
+	return TRUE;
 }
 
-BOOL NativeSetConfig(SerialHandle* handle)
+BOOL NativeSetReadTimeouts(SerialHandle* handle, INT total, INT interval)
 {
-	return SetCommState(handle->native, &handle->config);
-}
-
-BOOL NativeSetTimeout(SerialHandle* handle, INT timeout)
-{
-	if (timeout == TIMEOUT_INFINITE)
-	{
-		/* Waits indefinitly for the first byte, then read next bytes
-		 * until no bytes is available for 10ms. */
-		handle->timeout.ReadIntervalTimeout = 10;
-		handle->timeout.ReadTotalTimeoutConstant = 0;
-		handle->timeout.ReadTotalTimeoutMultiplier = 0;
-	} else if (timeout == TIMEOUT_IMMEDIATE)
+	if (total == TIMEOUT_IMMEDIATE)
 	{
 		/* No timeout. All the functions returns immediatly. */
 		handle->timeout.ReadIntervalTimeout = MAXDWORD;
 		handle->timeout.ReadTotalTimeoutConstant = 0;
 		handle->timeout.ReadTotalTimeoutMultiplier = 0;
+	} else if (interval == 0)
+	{
+		/* Waits for the first byte, then returns what is available. */
+		handle->timeout.ReadIntervalTimeout = MAXDWORD;
+		handle->timeout.ReadTotalTimeoutConstant =
+			total == TIMEOUT_INFINITE ? MAXDWORD - 1 : (DWORD)total;
+		handle->timeout.ReadTotalTimeoutMultiplier = MAXDWORD;
 	} else
 	{
-		handle->timeout.ReadIntervalTimeout = 0;
-		handle->timeout.ReadTotalTimeoutConstant = timeout;
+		/* A zero field disables the matching timeout. */
+		handle->timeout.ReadIntervalTimeout =
+			interval == INTERVAL_NONE ? 0 : (DWORD)interval;
+		handle->timeout.ReadTotalTimeoutConstant =
+			total == TIMEOUT_INFINITE ? 0 : (DWORD)total;
 		handle->timeout.ReadTotalTimeoutMultiplier = 0;
 	}
-	return SetCommTimeouts(handle->native, &handle->timeout);
+	handle->totalTimeout = total;
+	return ApplyTimeouts(handle, &handle->timeout);
+}
+
+BOOL NativeSetTimeout(SerialHandle* handle, INT timeout)
+{
+	/* Waits indefinitly for the first byte, then read next bytes
+	 * until no bytes is available for 10ms. A positive timeout
+	 * waits for the whole buffer. */
+	return NativeSetReadTimeouts(handle, timeout,
+		timeout == TIMEOUT_INFINITE ? 10 : INTERVAL_NONE);
 }
 
 INT NativeGetTimeout(SerialHandle* handle)
 {
-	if (handle->timeout.ReadIntervalTimeout == 10)
-		return TIMEOUT_INFINITE;
-	if (handle->timeout.ReadIntervalTimeout == MAXDWORD)
-		return TIMEOUT_IMMEDIATE;
-	return handle->timeout.ReadTotalTimeoutConstant;
+	return handle->totalTimeout;
 }
 
 LPTSTR* NativeGetAvailablePorts()
@@ -257,6 +408,145 @@ VOID NativeFreeAvailablePorts(LPTSTR* portsNames)
 	HeapFree(GetProcessHeap(), 0, tmp);
 }
 
+static LPTSTR CopyString(LPCTSTR value)
+{
+	SIZE_T size = (_tcslen(value) + 1) * sizeof(TCHAR);
+	LPTSTR copy = HeapAlloc(GetProcessHeap(), 0, size);
+	if (copy)
+		CopyMemory(copy, value, size);
+	return copy;
+}
+
+static VOID GetDeviceProperty(HDEVINFO devices, SP_DEVINFO_DATA* device,
+	DWORD property, LPTSTR value)
+{
+	/* For multi-strings (hardware IDs), only the first one is kept. */
+	ZeroMemory(value, PORT_INFO_LENGTH * sizeof(TCHAR));
+	if (!SetupDiGetDeviceRegistryProperty(devices, device, property, NULL,
+			(PBYTE)value, (PORT_INFO_LENGTH - 2) * sizeof(TCHAR), NULL))
+		value[0] = 0;
+}
+
+LPTSTR* NativeGetPortsInfo()
+{
+	/* The result is a NULL-terminated array of PORT_INFO_SIZE strings per
+	 * port, empty when unknown, freed by NativeFreeAvailablePorts(). */
+	TCHAR fields[PORT_INFO_SIZE][PORT_INFO_LENGTH];
+	SP_DEVINFO_DATA device;
+	DWORD count = 0;
+	DWORD filled = 0;
+	DWORD index, field;
+	LPTSTR* portsInfo;
+
+	HDEVINFO devices = SetupDiGetClassDevs(&GUID_DEVCLASS_PORTS, NULL, NULL, DIGCF_PRESENT);
+	if (devices == INVALID_HANDLE_VALUE)
+		return NULL;
+
+	device.cbSize = sizeof(SP_DEVINFO_DATA);
+	while (SetupDiEnumDeviceInfo(devices, count, &device))
+		count++;
+
+	portsInfo = HeapAlloc(GetProcessHeap(), HEAP_ZERO_MEMORY,
+		(count * PORT_INFO_SIZE + 1) * sizeof(LPTSTR));
+	if (!portsInfo)
+	{
+		SetupDiDestroyDeviceInfoList(devices);
+		return NULL;
+	}
+
+	for (index = 0; index < count && SetupDiEnumDeviceInfo(devices, index, &device); index++)
+	{
+		DWORD type = 0;
+		DWORD size = (PORT_INFO_LENGTH - 1) * sizeof(TCHAR);
+		LONG result;
+		HKEY key;
+
+		/* The ports class also has the printer ports, without a COM name. */
+		ZeroMemory(fields, sizeof(fields));
+		key = SetupDiOpenDevRegKey(devices, &device, DICS_FLAG_GLOBAL, 0, DIREG_DEV, KEY_QUERY_VALUE);
+		if (key == INVALID_HANDLE_VALUE)
+			continue;
+		result = RegQueryValueEx(key, _T("PortName"), NULL, &type,
+			(LPBYTE)fields[PORT_INFO_NAME], &size);
+		RegCloseKey(key);
+		if (result != ERROR_SUCCESS || type != REG_SZ
+				|| _tcsncmp(fields[PORT_INFO_NAME], _T("COM"), 3) != 0)
+			continue;
+
+		GetDeviceProperty(devices, &device, SPDRP_DEVICEDESC, fields[PORT_INFO_DESCRIPTION]);
+		GetDeviceProperty(devices, &device, SPDRP_MFG, fields[PORT_INFO_MANUFACTURER]);
+		GetDeviceProperty(devices, &device, SPDRP_HARDWAREID, fields[PORT_INFO_HARDWARE_ID]);
+		GetDeviceProperty(devices, &device, SPDRP_SERVICE, fields[PORT_INFO_DRIVER]);
+		if (!SetupDiGetDeviceInstanceId(devices, &device,
+				fields[PORT_INFO_INSTANCE_ID], PORT_INFO_LENGTH - 1, NULL))
+			fields[PORT_INFO_INSTANCE_ID][0] = 0;
+
+		for (field = 0; field < PORT_INFO_SIZE; field++)
+		{
+			LPTSTR value = CopyString(fields[field]);
+			if (!value)
+			{
+				NativeFreeAvailablePorts(portsInfo);
+				SetupDiDestroyDeviceInfoList(devices);
+				return NULL;
+			}
+			portsInfo[filled * PORT_INFO_SIZE + field] = value;
+		}
+		filled++;
+	}
+
+	SetupDiDestroyDeviceInfoList(devices);
+	return portsInfo;
+}
+
+PortsWatcher* NativePortsWatcherOpen()
+{
+	LONG result;
+	PortsWatcher* watcher = HeapAlloc(GetProcessHeap(),
+		HEAP_ZERO_MEMORY, sizeof(PortsWatcher));
+	if (!watcher)
+		return NULL;
+	/* SERIALCOMM itself only exists once a port was installed. */
+	result = RegOpenKeyEx(HKEY_LOCAL_MACHINE, _T("HARDWARE\\DEVICEMAP"),
+		0, KEY_NOTIFY, &watcher->key);
+	if (result != ERROR_SUCCESS)
+	{
+		HeapFree(GetProcessHeap(), 0, watcher);
+		SetLastError(result);
+		return NULL;
+	}
+	watcher->changed = CreateEvent(NULL, FALSE, FALSE, NULL);
+	if (!watcher->changed)
+	{
+		DWORD error = GetLastError();
+		RegCloseKey(watcher->key);
+		HeapFree(GetProcessHeap(), 0, watcher);
+		SetLastError(error);
+		return NULL;
+	}
+	return watcher;
+}
+
+BOOL NativePortsWatcherWait(PortsWatcher* watcher)
+{
+	/* Notifications are one-shot, and cancelled when the thread which
+	 * asked for them exits, so they are requested again by the waiting
+	 * thread before the ports are listed. The first call returns right
+	 * away, as changes may have been missed until then. */
+	LONG result;
+	if (watcher->armed && WaitForSingleObject(watcher->changed, INFINITE) == WAIT_FAILED)
+		return FALSE;
+	result = RegNotifyChangeKeyValue(watcher->key, TRUE,
+		REG_NOTIFY_CHANGE_NAME | REG_NOTIFY_CHANGE_LAST_SET, watcher->changed, TRUE);
+	if (result != ERROR_SUCCESS)
+	{
+		SetLastError(result);
+		return FALSE;
+	}
+	watcher->armed = TRUE;
+	return TRUE;
+}
+
 BOOL NativeFlush(SerialHandle* handle, BOOL read, BOOL write)
 {
 	DWORD flags = 0;
@@ -267,6 +557,23 @@ BOOL NativeFlush(SerialHandle* handle, BOOL read, BOOL write)
 	return PurgeComm(handle->native, flags);
 }
 
+BOOL NativeGetQueues(SerialHandle* handle, LPDWORD queues)
+{
+	/* queues[0]: bytes received and not read yet,
+	 * queues[1]: bytes written and not transmitted yet. */
+	COMSTAT stat;
+	if (!ClearErrors(handle, NULL, &stat))
+		return FALSE;
+	queues[0] = stat.cbInQue;
+	queues[1] = stat.cbOutQue;
+	return TRUE;
+}
+
+BOOL NativeSetQueueSizes(SerialHandle* handle, DWORD rx, DWORD tx)
+{
+	return SetupComm(handle->native, rx, tx);
+}
+
 BOOL NativeSetRts(SerialHandle* handle, BOOL value)
 {
 	return EscapeCommFunction(handle->native, value ? SETRTS : CLRRTS);
@@ -277,20 +584,248 @@ BOOL NativeSetDtr(SerialHandle* handle, BOOL value)
 	return EscapeCommFunction(handle->native, value ? SETDTR : CLRDTR);
 }
 
-BOOL NativeGetCts(SerialHandle* handle, LPBOOL result)
+BOOL NativeGetModemStatus(SerialHandle* handle, LPDWORD values)
 {
+	/* values[0]: GetCommModemStatus() bits,
+	 * values[1]: breaks received since the port was opened,
+	 * values[2], [3], [4]: framing errors, overruns (hardware or driver
+	 * buffer) and parity errors since the port was opened. */
 	DWORD status = 0;
+	COMSTAT stat;
 	if (!GetCommModemStatus(handle->native, &status))
 		return FALSE;
-	*result = (status & MS_CTS_ON) == MS_CTS_ON;
+	if (!ClearErrors(handle, NULL, &stat))
+		return FALSE;
+	values[0] = status;
+	values[1] = handle->breakCount;
+	values[2] = handle->framingErrorCount;
+	values[3] = handle->overrunCount;
+	values[4] = handle->parityErrorCount;
 	return TRUE;
 }
 
-BOOL NativeGetDsr(SerialHandle* handle, LPBOOL result)
+/* Wraps ClearCommError() to count the line events it resets. */
+static BOOL ClearErrors(SerialHandle* handle, LPDWORD errors, COMSTAT* status)
 {
-	DWORD status = 0;
-	if (!GetCommModemStatus(handle->native, &status))
+	DWORD flags = 0;
+	if (!ClearCommError(handle->native, &flags, status))
 		return FALSE;
-	*result = (status & MS_DSR_ON) == MS_DSR_ON;
+	if (flags & CE_BREAK)
+		handle->breakCount++;
+	if (flags & CE_FRAME)
+		handle->framingErrorCount++;
+	if (flags & (CE_OVERRUN | CE_RXOVER))
+		handle->overrunCount++;
+	if (flags & CE_RXPARITY)
+		handle->parityErrorCount++;
+	if (errors)
+		*errors = flags;
 	return TRUE;
 }
+
+SerialSelector* NativeSelectorOpen()
+{
+	SerialSelector* selector = HeapAlloc(GetProcessHeap(),
+		HEAP_ZERO_MEMORY, sizeof(SerialSelector));
+	if (!selector)
+		return NULL;
+	selector->event = CreateEvent(NULL, TRUE, FALSE, NULL);
+	selector->wakeup = CreateEvent(NULL, FALSE, FALSE, NULL);
+	if (!selector->event || !selector->wakeup)
+	{
+		DWORD error = GetLastError();
+		NativeSelectorClose(selector);
+		SetLastError(error);
+		return NULL;
+	}
+	return selector;
+}
+
+BOOL NativeSelectorClose(SerialSelector* selector)
+{
+	if (selector->event != NULL)
+		CloseHandle(selector->event);
+	if (selector->wakeup != NULL)
+		CloseHandle(selector->wakeup);
+	HeapFree(GetProcessHeap(), 0, selector);
+	return TRUE;
+}
+
+BOOL NativeSelectorWakeup(SerialSelector* selector)
+{
+	return SetEvent(selector->wakeup);
+}
+
+BOOL NativeSelectorCancel(SerialHandle* handle)
+{
+	DWORD unused = 0;
+	if (handle->armedMask == 0 && !handle->eventPending)
+		return TRUE;
+	/* Setting the mask completes the pending WaitCommEvent(). */
+	if (!SetCommMask(handle->native, 0))
+		return FALSE;
+	handle->armedMask = 0;
+	if (handle->eventPending)
+		GetOverlappedResult(handle->native, &handle->eventOv, &unused, TRUE);
+	handle->eventPending = FALSE;
+	return TRUE;
+}
+
+static DWORD CommMaskFor(DWORD interest)
+{
+	DWORD mask = 0;
+	if (interest & SELECT_READ)
+		mask |= EV_RXCHAR;
+	if (interest & SELECT_WRITE)
+		mask |= EV_TXEMPTY;
+	if (interest & SELECT_MODEM)
+		mask |= EV_CTS | EV_DSR | EV_RING | EV_RLSD | EV_BREAK | EV_ERR;
+	return mask;
+}
+
+static DWORD ReadyFromEvents(DWORD events)
+{
+	DWORD ready = 0;
+	if (events & EV_RXCHAR)
+		ready |= SELECT_READ;
+	if (events & EV_TXEMPTY)
+		ready |= SELECT_WRITE;
+	if (events & (EV_CTS | EV_DSR | EV_RING | EV_RLSD | EV_BREAK | EV_ERR))
+		ready |= SELECT_MODEM;
+	return ready;
+}
+
+/* EV_RXCHAR is only signaled for new bytes, bytes already
+ * queued must be found by looking at the driver queues. */
+static DWORD PollQueues(SerialHandle* handle, DWORD interest)
+{
+	COMSTAT status;
+	DWORD errors = 0;
+	DWORD ready = 0;
+	if (!ClearErrors(handle, &errors, &status))
+		return 0;
+	if ((interest & SELECT_READ) && status.cbInQue > 0)
+		ready |= SELECT_READ;
+	if ((interest & SELECT_WRITE) && status.cbOutQue == 0)
+		ready |= SELECT_WRITE;
+	handle->queueReady = ready;
+	if ((interest & SELECT_MODEM) && errors != 0)
+		ready |= SELECT_MODEM;
+	return ready;
+}
+
+static DWORD CollectEvent(SerialHandle* handle)
+{
+	DWORD unused = 0;
+	if (!handle->eventPending || !HasOverlappedIoCompleted(&handle->eventOv))
+		return 0;
+	handle->eventPending = FALSE;
+	if (!GetOverlappedResult(handle->native, &handle->eventOv, &unused, FALSE))
+		return 0;
+	return ReadyFromEvents(handle->eventMask);
+}
+
+static BOOL ArmEvent(SerialSelector* selector, SerialHandle* handle, DWORD interest, LPDWORD ready)
+{
+	DWORD unused = 0;
+	DWORD mask = CommMaskFor(interest);
+
+	if (handle->armedMask != mask)
+	{
+		/* Changing the mask completes the pending wait, if any. */
+		if (!SetCommMask(handle->native, mask))
+			return FALSE;
+		handle->armedMask = mask;
+		if (handle->eventPending)
+			GetOverlappedResult(handle->native, &handle->eventOv, &unused, TRUE);
+		handle->eventPending = FALSE;
+	}
+
+	if (mask == 0 || handle->eventPending)
+		return TRUE;
+
+	ZeroMemory(&handle->eventOv, sizeof(OVERLAPPED));
+	handle->eventOv.hEvent = selector->event;
+	handle->eventMask = 0;
+	if (WaitCommEvent(handle->native, &handle->eventMask, &handle->eventOv))
+	{
+		*ready |= ReadyFromEvents(handle->eventMask);
+		return TRUE;
+	}
+	if (GetLastError() != ERROR_IO_PENDING)
+		return FALSE;
+	handle->eventPending = TRUE;
+	return TRUE;
+}
+
+/*
+ * Arms the port, then looks at its queues. In that order, a byte received
+ * after PollQueues() always completes the wait. So when the wait armed by
+ * a previous call is still pending and the queues were found empty, nothing
+ * changed since and ClearCommError() doesn't need to be called again.
+ */
+static BOOL ScanPort(SerialSelector* selector, SerialHandle* handle, DWORD interest, LPDWORD ready)
+{
+	BOOL unchanged = handle->eventPending && handle->armedMask == CommMaskFor(interest);
+	*ready = CollectEvent(handle);
+	if (!ArmEvent(selector, handle, interest, ready))
+		return FALSE;
+	if (!(interest & (SELECT_READ | SELECT_WRITE)))
+		return TRUE;
+	if (!unchanged || !handle->eventPending || handle->queueReady != 0)
+		*ready |= PollQueues(handle, interest);
+	return TRUE;
+}
+
+INT NativeSelect(SerialSelector* selector, SerialHandle** handles,
+	LPDWORD interests, LPDWORD ready, DWORD count, INT timeout)
+{
+	DWORD i;
+	INT selected = 0;
+	HANDLE events[2];
+
+	/* Reset before scanning: a completion happening after the
+	 * scan will signal the event again. */
+	ResetEvent(selector->event);
+
+	for (i = 0; i < count; i++)
+	{
+		ready[i] = 0;
+		if (handles[i] == NULL)
+			continue;
+		if (!ScanPort(selector, handles[i], interests[i], &ready[i]))
+			return -1;
+		ready[i] &= interests[i];
+		if (ready[i] != 0)
+			selected++;
+	}
+
+	if (selected > 0 || timeout == TIMEOUT_IMMEDIATE)
+		return selected;
+
+	events[0] = selector->event;
+	events[1] = selector->wakeup;
+	switch (WaitForMultipleObjects(2, events, FALSE,
+		timeout == TIMEOUT_INFINITE ? INFINITE : (DWORD)timeout))
+	{
+	case WAIT_OBJECT_0:
+	case WAIT_OBJECT_0 + 1:
+	case WAIT_TIMEOUT:
+		break;
+	default:
+		return -1;
+	}
+
+	/* Ports whose wait is still pending didn't change since the scan, and
+	 * completed ones report what changed in their event mask. Bytes queued
+	 * after the completion will be found by the next call. */
+	for (i = 0; i < count; i++)
+	{
+		if (handles[i] == NULL)
+			continue;
+		ready[i] = CollectEvent(handles[i]) & interests[i];
+		if (ready[i] != 0)
+			selected++;
+	}
+	return selected;
+}
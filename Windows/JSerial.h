@@ -15,40 +15,79 @@ extern "C" {
 
 #define TIMEOUT_INFINITE -1
 #define TIMEOUT_IMMEDIATE 0
+#define INTERVAL_NONE -1
+
+/* Same values as SerialSelectionKey.OP_* */
+#define SELECT_READ 1
+#define SELECT_WRITE 4
+#define SELECT_MODEM 8
+
+/* Indexes in the values array of NativeApplyConfig()/NativeGetConfig() */
+#define CONFIG_BAUDRATE 0
+#define CONFIG_DATABITS 1
+#define CONFIG_PARITY 2
+#define CONFIG_STOPBITS 3
+#define CONFIG_FLOWCONTROL 4
+#define CONFIG_XONLIMIT 5
+#define CONFIG_XOFFLIMIT 6
+
+/* Same order as the FlowControl enum, without UNKNOWN */
+#define FLOW_UNKNOWN -1
+#define FLOW_NONE 0
+#define FLOW_RTS_CTS 1
+#define FLOW_DTR_DSR 2
+#define FLOW_XON_XOFF 3
+
+/* Strings of each port returned by NativeGetPortsInfo() */
+#define PORT_INFO_NAME 0
+#define PORT_INFO_DESCRIPTION 1
+#define PORT_INFO_MANUFACTURER 2
+#define PORT_INFO_HARDWARE_ID 3
+#define PORT_INFO_INSTANCE_ID 4
+#define PORT_INFO_DRIVER 5
+#define PORT_INFO_SIZE 6
+#define PORT_INFO_LENGTH 512
 
 typedef struct SerialHandle SerialHandle;
+typedef struct SerialSelector SerialSelector;
+typedef struct PortsWatcher PortsWatcher;
 
 DllExport LPTSTR NativeGetErrorString(DWORD error);
 DllExport VOID NativeFreeErrorString(LPTSTR message);
 
 DllExport SerialHandle* NativeOpen(LPTSTR portName);
 DllExport BOOL NativeRead(SerialHandle* handle, LPBYTE buffer, DWORD numberOfBytes, LPDWORD readBytes);
+DllExport BOOL NativeReadTimeout(SerialHandle* handle, LPBYTE buffer, DWORD numberOfBytes, LPDWORD readBytes, DWORD timeout);
 DllExport BOOL NativeWrite(SerialHandle* handle, LPBYTE buffer, DWORD numberOfBytes);
 DllExport BOOL NativeClose(SerialHandle* handle);
 
-DllExport DWORD NativeGetBaudRate(SerialHandle* handle);
-DllExport DWORD NativeGetParity(SerialHandle* handle);
-DllExport DWORD NativeGetStopBits(SerialHandle* handle);
-DllExport DWORD NativeGetDataBits(SerialHandle* handle);
-
-DllExport VOID NativeSetBaudRate(SerialHandle* handle, DWORD baudRate);
-DllExport VOID NativeSetParity(SerialHandle* handle, DWORD parity);
-DllExport VOID NativeSetStopBits(SerialHandle* handle, DWORD stopBits);
-DllExport VOID NativeSetDataBits(SerialHandle* handle, DWORD dataBits);
-DllExport BOOL NativeSetConfig(SerialHandle* handle);
+DllExport BOOL NativeApplyConfig(SerialHandle* handle, INT* values);
+DllExport BOOL NativeGetConfig(SerialHandle* handle, INT* values);
 
 DllExport BOOL NativeSetTimeout(SerialHandle* handle, INT timeout);
+DllExport BOOL NativeSetReadTimeouts(SerialHandle* handle, INT total, INT interval);
 DllExport INT NativeGetTimeout(SerialHandle* handle);
 
 DllExport LPTSTR* NativeGetAvailablePorts();
 DllExport VOID NativeFreeAvailablePorts(LPTSTR* portsNames);
+DllExport LPTSTR* NativeGetPortsInfo();
+DllExport PortsWatcher* NativePortsWatcherOpen();
+DllExport BOOL NativePortsWatcherWait(PortsWatcher* watcher);
 
 DllExport BOOL NativeFlush(SerialHandle* handle, BOOL read, BOOL write);
+DllExport BOOL NativeGetQueues(SerialHandle* handle, LPDWORD queues);
+DllExport BOOL NativeSetQueueSizes(SerialHandle* handle, DWORD rx, DWORD tx);
 
 DllExport BOOL NativeSetRts(SerialHandle* handle, BOOL value);
 DllExport BOOL NativeSetDtr(SerialHandle* handle, BOOL value);
-DllExport BOOL NativeGetCts(SerialHandle* handle, LPBOOL result);
-DllExport BOOL NativeGetDsr(SerialHandle* handle, LPBOOL result);
+DllExport BOOL NativeGetModemStatus(SerialHandle* handle, LPDWORD values);
+
+DllExport SerialSelector* NativeSelectorOpen();
+DllExport BOOL NativeSelectorClose(SerialSelector* selector);
+DllExport BOOL NativeSelectorWakeup(SerialSelector* selector);
+DllExport BOOL NativeSelectorCancel(SerialHandle* handle);
+DllExport INT NativeSelect(SerialSelector* selector, SerialHandle** handles,
+	LPDWORD interests, LPDWORD ready, DWORD count, INT timeout);
 
 #ifdef __cplusplus
 }